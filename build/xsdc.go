@@ -17,6 +17,7 @@ package xsdc
 import (
 	"android/soong/android"
 	"android/soong/java"
+	"fmt"
 	"path/filepath"
 	"strings"
 
@@ -39,25 +40,79 @@ var (
 	xsdc         = pctx.HostBinToolVariable("xsdcCmd", "xsdc")
 	xsdcJavaRule = pctx.StaticRule("xsdcJavaRule", blueprint.RuleParams{
 		Command: `rm -rf "${out}.temp" && mkdir -p "${out}.temp" && ` +
-			`${xsdcCmd} $in -p $pkgName -o ${out}.temp -j && ` +
+			`${xsdcCmd} $in -p $pkgName -o ${out}.temp -j $args && ` +
 			`${config.SoongZipCmd} -jar -o ${out} -C ${out}.temp -D ${out}.temp && ` +
 			`rm -rf ${out}.temp`,
 		CommandDeps: []string{"${xsdcCmd}", "${config.SoongZipCmd}"},
 		Description: "xsdc Java ${in} => ${out}",
-	}, "pkgName")
+	}, "pkgName", "args")
+
+	// Like xsdcJavaRule, but also generates the JMH benchmarks into their own srcjar, so that
+	// the parser is compiled without JMH.
+	xsdcJavaBenchmarkRule = pctx.StaticRule("xsdcJavaBenchmarkRule", blueprint.RuleParams{
+		Command: `rm -rf "${out}.temp" "${benchmarkOut}.temp" && ` +
+			`mkdir -p "${out}.temp" "${benchmarkOut}.temp" && ` +
+			`${xsdcCmd} $in -p $pkgName -o ${out}.temp -j $args ` +
+			`--benchmark --benchmarkOutDir ${benchmarkOut}.temp && ` +
+			`${config.SoongZipCmd} -jar -o ${out} -C ${out}.temp -D ${out}.temp && ` +
+			`${config.SoongZipCmd} -jar -o ${benchmarkOut} -C ${benchmarkOut}.temp ` +
+			`-D ${benchmarkOut}.temp && ` +
+			`rm -rf ${out}.temp ${benchmarkOut}.temp`,
+		CommandDeps: []string{"${xsdcCmd}", "${config.SoongZipCmd}"},
+		Description: "xsdc Java ${in} => ${out}",
+	}, "pkgName", "benchmarkOut", "args")
 
 	xsdcCppRule = pctx.StaticRule("xsdcCppRule", blueprint.RuleParams{
 		Command: `rm -rf "${outDir}" && ` +
-			`${xsdcCmd} $in -p $pkgName -o ${outDir} -c`,
+			`${xsdcCmd} $in -p $pkgName -o ${outDir} -c $args`,
 		CommandDeps: []string{"${xsdcCmd}", "${config.SoongZipCmd}"},
 		Description: "xsdc C++ ${in} => ${out}",
-	}, "pkgName", "outDir")
+	}, "pkgName", "outDir", "args")
 )
 
 type xsdConfigProperties struct {
 	Srcs         []string
+	// Schemas included or imported by the src, directly or through other schemas.
+	Include_srcs []string
 	Package_name *string
 	Api_dir *string
+	// If true, generated C++ objects of a document are allocated from one arena.
+	Arena *bool
+	// If true, readers and writers of binary snapshots of parsed documents are generated.
+	Snapshot *bool
+	// If true, writers of xml documents are generated.
+	Writer *bool
+	// If true, generated Java parsers can also read UTF-8 bytes with a tokenizer specialized to
+	// the schema.
+	Tokenizer *bool
+	// If true, generated Java parsers can also read repeated children of root elements in
+	// parallel. Requires tokenizer.
+	Parallel *bool
+	// If true, generated Java parsers can also return holders of documents which are read again
+	// when their file changes.
+	Watch *bool
+	// If true, generated Java parsers can also read files through a process-wide cache of
+	// documents.
+	Cache *bool
+	// If true, generated Java parsers report the elements they read to a ParseListener.
+	Listener *bool
+	// If true, generated Java parsers index key and unique constraints and check keyref
+	// constraints.
+	Indices *bool
+	// If true, generated parsers check values against the facets of their simple types.
+	Validate *bool
+	// If true, a JMH benchmark of the generated Java parser is generated for each root
+	// element, into a srcjar of its own referenced as ":<name>{.java_benchmark}", which is
+	// meant for a module depending on JMH and on this one.
+	// A Google Benchmark of the C++ readers is also generated as <package>_benchmark.cpp,
+	// which is not compiled into the library and is referenced as ":<name>{.cpp_benchmark}"
+	// by a cc_benchmark module.
+	Benchmark *bool
+	// If true, only the types reachable from root elements are generated.
+	Prune *bool
+	// If true, xsdc writes a json report of the time and memory of its phases next to the
+	// generated code, so that reports of all modules can be aggregated.
+	Profile *bool
 }
 
 type xsdConfig struct {
@@ -65,10 +120,12 @@ type xsdConfig struct {
 
 	properties xsdConfigProperties
 
-	genOutputDir android.Path
-	genOutputs_j android.WritablePath
-	genOutputs_c android.WritablePath
-	genOutputs_h android.WritablePath
+	genOutputDir           android.Path
+	genOutputs_j           android.WritablePath
+	genOutputs_j_benchmark android.WritablePath
+	genOutputs_c           android.WritablePath
+	genOutputs_c_benchmark android.WritablePath
+	genOutputs_h           android.WritablePath
 
 	docsPath android.Path
 }
@@ -102,6 +159,27 @@ func (module *xsdConfig) Srcs() android.Paths {
 	return android.Paths{module.genOutputs_j}
 }
 
+// OutputFiles returns the generated srcjar, or the generated benchmarks for the
+// ".java_benchmark" and ".cpp_benchmark" tags.
+func (module *xsdConfig) OutputFiles(tag string) (android.Paths, error) {
+	switch tag {
+	case "":
+		return android.Paths{module.genOutputs_j}, nil
+	case ".java_benchmark":
+		if module.genOutputs_j_benchmark == nil {
+			return nil, fmt.Errorf("benchmark is not set")
+		}
+		return android.Paths{module.genOutputs_j_benchmark}, nil
+	case ".cpp_benchmark":
+		if module.genOutputs_c_benchmark == nil {
+			return nil, fmt.Errorf("benchmark is not set")
+		}
+		return android.Paths{module.genOutputs_c_benchmark}, nil
+	default:
+		return nil, fmt.Errorf("unsupported module reference tag %q", tag)
+	}
+}
+
 func (module *xsdConfig) GeneratedDeps() android.Paths {
 	return android.Paths{module.genOutputs_h}
 }
@@ -112,6 +190,7 @@ func (module *xsdConfig) GeneratedHeaderDirs() android.Paths {
 
 func (module *xsdConfig) DepsMutator(ctx android.BottomUpMutatorContext) {
 	android.ExtractSourcesDeps(ctx, module.properties.Srcs)
+	android.ExtractSourcesDeps(ctx, module.properties.Include_srcs)
 }
 
 func (module *xsdConfig) GenerateAndroidBuildActions(ctx android.ModuleContext) {
@@ -127,37 +206,126 @@ func (module *xsdConfig) GenerateAndroidBuildActions(ctx android.ModuleContext)
 
 	srcFiles := ctx.ExpandSources(module.properties.Srcs, nil)
 	xsdFile := srcFiles[0]
+	includeFiles := ctx.ExpandSources(module.properties.Include_srcs, nil)
 
 	pkgName := *module.properties.Package_name
 
+	args := ""
+	if proptools.Bool(module.properties.Snapshot) {
+		args += " --snapshot"
+	}
+	if proptools.Bool(module.properties.Writer) {
+		args += " --writer"
+	}
+	if proptools.Bool(module.properties.Validate) {
+		args += " --validate"
+	}
+	if proptools.Bool(module.properties.Prune) {
+		args += " --prune"
+	}
+
+	javaArgs := args
+	if proptools.Bool(module.properties.Tokenizer) {
+		javaArgs += " --tokenizer"
+	}
+	if proptools.Bool(module.properties.Parallel) {
+		javaArgs += " --parallel"
+	}
+	if proptools.Bool(module.properties.Watch) {
+		javaArgs += " --watch"
+	}
+	if proptools.Bool(module.properties.Cache) {
+		javaArgs += " --cache"
+	}
+	if proptools.Bool(module.properties.Listener) {
+		javaArgs += " --listener"
+	}
+	if proptools.Bool(module.properties.Indices) {
+		javaArgs += " --indices"
+	}
+
 	module.genOutputs_j = android.PathForModuleGen(ctx, "java", "xsdcgen.srcjar")
 
-	ctx.Build(pctx, android.BuildParams{
-		Rule:        xsdcJavaRule,
-		Description: "xsdc " + xsdFile.String(),
-		Input:       xsdFile,
-		Implicit:    module.docsPath,
-		Output:      module.genOutputs_j,
-		Args: map[string]string{
-			"pkgName": pkgName,
-		},
-	})
+	var javaProfiles android.WritablePaths
+	if proptools.Bool(module.properties.Profile) {
+		javaProfile := android.PathForModuleGen(ctx, "java", "xsdc_profile.json")
+		javaArgs += " --profile json --profileReport " + javaProfile.String()
+		javaProfiles = append(javaProfiles, javaProfile)
+	}
+
+	if proptools.Bool(module.properties.Benchmark) {
+		module.genOutputs_j_benchmark = android.PathForModuleGen(ctx, "java",
+			"xsdcgen_benchmark.srcjar")
+		ctx.Build(pctx, android.BuildParams{
+			Rule:            xsdcJavaBenchmarkRule,
+			Description:     "xsdc " + xsdFile.String(),
+			Input:           xsdFile,
+			Implicit:        module.docsPath,
+			Implicits:       includeFiles,
+			Output:          module.genOutputs_j,
+			ImplicitOutput:  module.genOutputs_j_benchmark,
+			ImplicitOutputs: javaProfiles,
+			Args: map[string]string{
+				"pkgName":      pkgName,
+				"benchmarkOut": module.genOutputs_j_benchmark.String(),
+				"args":         javaArgs,
+			},
+		})
+	} else {
+		ctx.Build(pctx, android.BuildParams{
+			Rule:            xsdcJavaRule,
+			Description:     "xsdc " + xsdFile.String(),
+			Input:           xsdFile,
+			Implicit:        module.docsPath,
+			Implicits:       includeFiles,
+			Output:          module.genOutputs_j,
+			ImplicitOutputs: javaProfiles,
+			Args: map[string]string{
+				"pkgName": pkgName,
+				"args":    javaArgs,
+			},
+		})
+	}
+
+	cppArgs := args
+	if proptools.Bool(module.properties.Benchmark) {
+		cppArgs += " --benchmark"
+	}
+	if proptools.Bool(module.properties.Arena) {
+		cppArgs += " --arena"
+	}
 
 	pkgName = strings.Replace(pkgName, ".", "_", -1)
 	module.genOutputs_c = android.PathForModuleGen(ctx, "cpp", pkgName+".cpp")
 	module.genOutputs_h = android.PathForModuleGen(ctx, "cpp", "include/"+pkgName+".h")
 	module.genOutputDir = android.PathForModuleGen(ctx, "cpp", "include")
 
+	// the C++ rule removes its output directory first, so the report is written beside it
+	var cppImplicitOutputs android.WritablePaths
+	if proptools.Bool(module.properties.Profile) {
+		cppProfile := android.PathForModuleGen(ctx, "cpp_profile.json")
+		cppArgs += " --profile json --profileReport " + cppProfile.String()
+		cppImplicitOutputs = append(cppImplicitOutputs, cppProfile)
+	}
+	if proptools.Bool(module.properties.Benchmark) {
+		module.genOutputs_c_benchmark = android.PathForModuleGen(ctx, "cpp",
+			pkgName+"_benchmark.cpp")
+		cppImplicitOutputs = append(cppImplicitOutputs, module.genOutputs_c_benchmark)
+	}
+
 	ctx.Build(pctx, android.BuildParams{
-		Rule:           xsdcCppRule,
-		Description:    "xsdc " + xsdFile.String(),
-		Input:          xsdFile,
-		Implicit:       module.docsPath,
-		Output:         module.genOutputs_c,
-		ImplicitOutput: module.genOutputs_h,
+		Rule:            xsdcCppRule,
+		Description:     "xsdc " + xsdFile.String(),
+		Input:           xsdFile,
+		Implicit:        module.docsPath,
+		Implicits:       includeFiles,
+		Output:          module.genOutputs_c,
+		ImplicitOutput:  module.genOutputs_h,
+		ImplicitOutputs: cppImplicitOutputs,
 		Args: map[string]string{
 			"pkgName": pkgName,
 			"outDir":  android.PathForModuleGen(ctx, "cpp").String(),
+			"args":    cppArgs,
 		},
 	})
 }
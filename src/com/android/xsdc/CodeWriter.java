@@ -30,6 +30,39 @@ public class CodeWriter implements Closeable {
         startLine = true;
     }
 
+    // Returns value as a string literal, which Java and C++ read alike. Control characters are
+    // escaped, the other characters are written as they are.
+    public static String toStringLiteral(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        // octal escapes have at most three digits in both languages
+                        literal.append(String.format("\\%03o", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append("\"").toString();
+    }
+
     private void printIndent() {
         assert startLine;
         for (int i = 0; i < indent; ++i) {
@@ -34,9 +34,13 @@ public class FileSystem {
         this.fileOutputMap = fileOutputMap;
     }
 
+    /** For subclasses writing the generated files elsewhere, by overriding getPrintWriter. */
+    protected FileSystem() {
+    }
+
     public PrintWriter getPrintWriter(String fileName) throws IOException {
         if (rootDirectory != null) {
-            return new PrintWriter(new File(rootDirectory, fileName));
+            return new PrintWriter(new File(rootDirectory, fileName), "UTF-8");
         } else {
             StringWriter sw = new StringWriter();
             fileOutputMap.put(fileName, sw.getBuffer());
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the fingerprints of the files generated into an output directory, so that the next
+ * run only writes the files whose fingerprint changed and deletes the ones no longer generated.
+ *
+ * The manifest is kept in the output directory, with one line per file holding its fingerprint
+ * and its path relative to the directory.
+ */
+public class FingerprintManifest {
+    public static final String FILE_NAME = ".xsdc_manifest";
+
+    private final Path rootDirectory;
+    private final Map<String, String> fingerprints;
+
+    private FingerprintManifest(Path rootDirectory, Map<String, String> fingerprints) {
+        this.rootDirectory = rootDirectory;
+        this.fingerprints = fingerprints;
+    }
+
+    /** Reads the manifest of rootDirectory, which is empty for the first run. */
+    public static FingerprintManifest read(File rootDirectory) throws IOException {
+        Path root = rootDirectory.toPath().toAbsolutePath().normalize();
+        Map<String, String> fingerprints = new LinkedHashMap<>();
+        Path manifest = root.resolve(FILE_NAME);
+        if (Files.isRegularFile(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                int separator = line.indexOf(' ');
+                if (separator < 0) continue;
+                fingerprints.put(line.substring(separator + 1), line.substring(0, separator));
+            }
+        }
+        return new FingerprintManifest(root, fingerprints);
+    }
+
+    /**
+     * Returns the names of the files of directory, among the given files, which still exist and
+     * have the same fingerprint as when they were written.
+     */
+    public Set<String> getUnchanged(File directory, Map<String, String> files) {
+        Set<String> unchanged = new HashSet<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Path path = directory.toPath().resolve(file.getKey());
+            if (file.getValue().equals(fingerprints.get(getKey(path)))
+                    && Files.isRegularFile(path)) {
+                unchanged.add(file.getKey());
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Records the given files of directory as generated, deleting the files of the previous run
+     * which are not generated any more, and writes the manifest.
+     */
+    public void update(File directory, Map<String, String> files) throws IOException {
+        Map<String, String> current = new LinkedHashMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            current.put(getKey(directory.toPath().resolve(file.getKey())), file.getValue());
+        }
+        for (String stale : fingerprints.keySet()) {
+            if (!current.containsKey(stale)) {
+                Files.deleteIfExists(rootDirectory.resolve(stale));
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            lines.add(entry.getValue() + " " + entry.getKey());
+        }
+        Files.write(rootDirectory.resolve(FILE_NAME), lines, StandardCharsets.UTF_8);
+        fingerprints.clear();
+        fingerprints.putAll(current);
+    }
+
+    private String getKey(Path path) {
+        Path relative = rootDirectory.relativize(path.toAbsolutePath().normalize());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A FileSystem keeping the generated files in memory, encoded in UTF-8 like the files written
+ * to a directory.
+ *
+ * Generated code is mostly ASCII, so files take half the memory of the StringBuffers of
+ * FileSystem, and consumers of bytes use them without encoding them again. A file is complete
+ * once the writer returned for it is closed. Like the generators, a file system isn't meant to
+ * be written from several threads.
+ */
+public class InMemoryFileSystem extends FileSystem {
+    private static class Buffer extends OutputStream {
+        private byte[] bytes = new byte[8192];
+        private int count;
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+
+    // A view of ASCII bytes as the chars they encode.
+    private static class AsciiSequence implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        AsciiSequence(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > length) {
+                throw new IndexOutOfBoundsException(start + ", " + end);
+            }
+            return new AsciiSequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Map<String, Buffer> files;
+
+    public InMemoryFileSystem() {
+        files = new LinkedHashMap<>();
+    }
+
+    @Override
+    public PrintWriter getPrintWriter(String fileName) {
+        Buffer buffer = new Buffer();
+        files.put(fileName, buffer);
+        return new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(buffer, StandardCharsets.UTF_8)));
+    }
+
+    /** Returns the names of the generated files, in the order they were generated. */
+    public Set<String> getFileNames() {
+        return files.keySet();
+    }
+
+    /** Returns a read-only view of the UTF-8 bytes of fileName, or null if it wasn't generated. */
+    public ByteBuffer getBytes(String fileName) {
+        Buffer buffer = files.get(fileName);
+        if (buffer == null) return null;
+        return ByteBuffer.wrap(buffer.bytes, 0, buffer.count).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the contents of fileName, or null if it wasn't generated. The chars of ASCII files
+     * are read from their bytes, which are not copied.
+     */
+    public CharSequence getCharContent(String fileName) {
+        Buffer buffer = files.get(fileName);
+        if (buffer == null) return null;
+        for (int i = 0; i < buffer.count; ++i) {
+            if (buffer.bytes[i] < 0) {
+                return new String(buffer.bytes, 0, buffer.count, StandardCharsets.UTF_8);
+            }
+        }
+        return new AsciiSequence(buffer.bytes, 0, buffer.count);
+    }
+}
@@ -17,14 +17,18 @@
 package com.android.xsdc;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.lang.System.exit;
 
-import com.android.xsdc.java.JavaCodeGenerator;
-import com.android.xsdc.cpp.CppCodeGenerator;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -33,9 +37,6 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 public class Main {
     public static void main(String[] args) throws Exception {
         Options options = new Options();
@@ -60,6 +61,108 @@ public class Main {
                 .hasArgs(0)
                 .withDescription("Generate Cpp code.")
                 .create("c"));
+        options.addOption(OptionBuilder
+                .withLongOpt("arena")
+                .hasArgs(0)
+                .withDescription("Allocate generated Cpp objects of a document from one arena.")
+                .create("a"));
+        options.addOption(OptionBuilder
+                .withLongOpt("snapshot")
+                .hasArgs(0)
+                .withDescription("Generate readers and writers of binary snapshots.")
+                .create("s"));
+        options.addOption(OptionBuilder
+                .withLongOpt("writer")
+                .hasArgs(0)
+                .withDescription("Generate writers of xml documents.")
+                .create("w"));
+        options.addOption(OptionBuilder
+                .withLongOpt("tokenizer")
+                .hasArgs(0)
+                .withDescription("Generate Java parsers reading UTF-8 bytes with a tokenizer "
+                        + "specialized to the schema.")
+                .create("t"));
+        options.addOption(OptionBuilder
+                .withLongOpt("parallel")
+                .hasArgs(0)
+                .withDescription("Generate Java parsers reading repeated children of root "
+                        + "elements in parallel. Requires --tokenizer.")
+                .create("r"));
+        options.addOption(OptionBuilder
+                .withLongOpt("watch")
+                .hasArgs(0)
+                .withDescription("Generate Java holders of documents which are read again when "
+                        + "their file changes.")
+                .create("f"));
+        options.addOption(OptionBuilder
+                .withLongOpt("cache")
+                .hasArgs(0)
+                .withDescription("Generate Java parsers reading files through a process-wide "
+                        + "cache of documents.")
+                .create("k"));
+        options.addOption(OptionBuilder
+                .withLongOpt("listener")
+                .hasArgs(0)
+                .withDescription("Generate Java parsers reporting the elements they read to a "
+                        + "ParseListener.")
+                .create("l"));
+        options.addOption(OptionBuilder
+                .withLongOpt("indices")
+                .hasArgs(0)
+                .withDescription("Generate Java indices and lookup methods for key, unique and "
+                        + "keyref constraints.")
+                .create("i"));
+        options.addOption(OptionBuilder
+                .withLongOpt("validate")
+                .hasArgs(0)
+                .withDescription("Generate parsers checking values against the facets of their "
+                        + "simple types.")
+                .create("v"));
+        options.addOption(OptionBuilder
+                .withLongOpt("benchmark")
+                .hasArgs(0)
+                .withDescription("Generate a JMH benchmark of the Java parser for each root "
+                        + "element, or a Google Benchmark of the C++ readers.")
+                .create("b"));
+        options.addOption(OptionBuilder
+                .withLongOpt("benchmarkOutDir")
+                .hasArgs(1)
+                .withDescription("Out directory of the Java benchmarks of --benchmark, which are "
+                        + "then compiled apart from the parser.")
+                .create("g"));
+        options.addOption(OptionBuilder
+                .withLongOpt("prune")
+                .hasArgs(0)
+                .withDescription("Generate only the types reachable from root elements.")
+                .create("d"));
+        options.addOption(OptionBuilder
+                .withLongOpt("pruneReport")
+                .hasArgs(1)
+                .withDescription("File to write the names of the types removed by --prune to.")
+                .create("e"));
+        options.addOption(OptionBuilder
+                .withLongOpt("profile")
+                .hasArgs(1)
+                .withDescription("Report the time and memory of each phase, as json or text.")
+                .create("m"));
+        options.addOption(OptionBuilder
+                .withLongOpt("profileReport")
+                .hasArgs(1)
+                .withDescription("File to write the report of --profile to, instead of stderr.")
+                .create("n"));
+        options.addOption(OptionBuilder
+                .withLongOpt("schemaCache")
+                .hasArgs(1)
+                .withDescription("Directory to cache parsed schemas in, which are used instead "
+                        + "of parsing again while their documents don't change.")
+                .create("x"));
+        options.addOption(OptionBuilder
+                .withLongOpt("incremental")
+                .hasArgs(0)
+                .withDescription("Write only the files whose fingerprint changed since the last "
+                        + "run into the out directory, and delete the ones not generated any "
+                        + "more.")
+                .create("u"));
 
         CommandLineParser CommandParser = new GnuParser();
         CommandLine cmd;
@@ -85,29 +188,127 @@ public class Main {
             outDir = ".";
         }
 
-        XmlSchema xmlSchema;
-        try (FileInputStream in = new FileInputStream(xsdFile[0])) {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            SAXParser parser = factory.newSAXParser();
-            XsdHandler xsdHandler = new XsdHandler();
-            parser.parse(in, xsdHandler);
-            xmlSchema = xsdHandler.getSchema();
+        String profile = cmd.getOptionValue('m', null);
+        Profiler profiler = null;
+        if (profile != null) {
+            if (!profile.equals("json") && !profile.equals("text")) {
+                System.err.println("Error: profile must be json or text");
+                help(options);
+            }
+            profiler = new Profiler();
+        }
+
+        XsdCompiler.Language language = cmd.hasOption('j') ? XsdCompiler.Language.JAVA
+                : cmd.hasOption('c') ? XsdCompiler.Language.CPP : null;
+
+        String benchmarkOutDir = cmd.getOptionValue('g', null);
+        if (benchmarkOutDir != null && cmd.hasOption('u')) {
+            // the manifest records the files of outDir only
+            System.err.println("Error: benchmarkOutDir can't be used with incremental");
+            help(options);
+        }
+
+        String schemaCacheDir = cmd.getOptionValue('x', null);
+        SchemaCache schemaCache = schemaCacheDir != null
+                ? new SchemaCache(Paths.get(schemaCacheDir)) : null;
+        InMemoryFileSystem memory = null;
+        File rootDirectory = null;
+        try (XsdCompiler compiler = new XsdCompiler(
+                Runtime.getRuntime().availableProcessors(), schemaCache)) {
+            // stopped while the threads of the loader are alive, so their work is measured
+            Profiler.Phase phase = Profiler.startPhase(profiler, "parse");
+            XmlSchema xmlSchema = compiler.parse(Paths.get(xsdFile[0]));
+            Profiler.stopPhase(phase);
+            if (profiler != null) {
+                profiler.count("types", xmlSchema.getTypeMap().size());
+                profiler.count("elements", xmlSchema.getElementMap().size());
+                profiler.count("attributes", xmlSchema.getAttributeMap().size());
+            }
+
+            if (cmd.hasOption('d')) {
+                List<String> pruned = new ArrayList<>();
+                phase = Profiler.startPhase(profiler, "prune");
+                xmlSchema = xmlSchema.pruneUnreachableTypes(pruned);
+                Profiler.stopPhase(phase);
+                if (profiler != null) {
+                    profiler.count("prunedTypes", pruned.size());
+                }
+                String pruneReport = cmd.getOptionValue('e', null);
+                if (pruneReport != null) {
+                    Files.write(Paths.get(pruneReport), pruned);
+                }
+            }
+
+            if (language != null) {
+                XsdCompiler.Options compilerOptions = XsdCompiler.Options.builder(
+                        language, packageName)
+                        .setArena(cmd.hasOption('a'))
+                        .setSnapshot(cmd.hasOption('s'))
+                        .setWriter(cmd.hasOption('w'))
+                        .setTokenizer(cmd.hasOption('t'))
+                        .setParallel(cmd.hasOption('r'))
+                        .setWatch(cmd.hasOption('f'))
+                        .setCache(cmd.hasOption('k'))
+                        .setListener(cmd.hasOption('l'))
+                        .setIndices(cmd.hasOption('i'))
+                        .setValidate(cmd.hasOption('v'))
+                        .setBenchmark(cmd.hasOption('b'))
+                        .build();
+                FingerprintManifest manifest = cmd.hasOption('u')
+                        ? FingerprintManifest.read(new File(outDir)) : null;
+                if (language == XsdCompiler.Language.JAVA) {
+                    rootDirectory = new File(
+                            Paths.get(outDir, packageName.replace(".", "/")).toString());
+                    rootDirectory.mkdirs();
+                } else {
+                    new File(Paths.get(outDir, "include").toString()).mkdirs();
+                    rootDirectory = new File(outDir);
+                }
+                // When profiling, files are generated in memory first so that the time spent
+                // on emitting code and on writing files are reported apart.
+                memory = profiler != null ? new InMemoryFileSystem() : null;
+                FileSystem fs = profiler != null ? memory : new FileSystem(rootDirectory);
+                FileSystem benchmarkFs = fs;
+                if (benchmarkOutDir != null && language == XsdCompiler.Language.JAVA) {
+                    File benchmarkDir = new File(Paths.get(benchmarkOutDir,
+                            packageName.replace(".", "/")).toString());
+                    benchmarkDir.mkdirs();
+                    benchmarkFs = new FileSystem(benchmarkDir);
+                }
+                compiler.generate(xmlSchema, compilerOptions, fs, benchmarkFs, manifest,
+                        rootDirectory, profiler);
+            }
+        }
+
+        if (profiler != null) {
+            if (rootDirectory != null) {
+                Profiler.Phase phase = Profiler.startPhase(profiler, "write");
+                writeFiles(memory, rootDirectory, profiler);
+                Profiler.stopPhase(phase);
+            }
+            String report = profile.equals("json") ? profiler.toJson() : profiler.toText();
+            String profileReport = cmd.getOptionValue('n', null);
+            if (profileReport != null) {
+                Files.write(Paths.get(profileReport), report.getBytes(StandardCharsets.UTF_8));
+            } else {
+                System.err.print(report);
+            }
         }
+    }
 
-        if (cmd.hasOption('j')) {
-            File packageDir = new File(Paths.get(outDir, packageName.replace(".", "/")).toString());
-            packageDir.mkdirs();
-            FileSystem fs = new FileSystem(packageDir);
-            JavaCodeGenerator javaCodeGenerator = new JavaCodeGenerator(xmlSchema, packageName);
-            javaCodeGenerator.print(fs);
-        } else if (cmd.hasOption('c')) {
-            File includeDir = new File(Paths.get(outDir, "include").toString());
-            includeDir.mkdirs();
-            FileSystem fs = new FileSystem(new File(outDir));
-            CppCodeGenerator cppCodeGenerator = new CppCodeGenerator(xmlSchema,
-                    packageName.replace(".", "_"));
-            cppCodeGenerator.print(fs);
+    private static void writeFiles(InMemoryFileSystem memory, File rootDirectory,
+            Profiler profiler) throws IOException {
+        for (String fileName : memory.getFileNames()) {
+            ByteBuffer bytes = memory.getBytes(fileName);
+            profiler.count("files", 1);
+            profiler.count("bytesWritten", bytes.remaining());
+            try (FileChannel channel = FileChannel.open(
+                    new File(rootDirectory, fileName).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
         }
     }
 
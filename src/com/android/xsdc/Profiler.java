@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the wall time, CPU time and allocated bytes of the phases of a run of xsdc, along with
+ * counts of what was read and written.
+ *
+ * CPU time and allocated bytes are measured for each thread and summed over the threads alive
+ * when a phase stops, so the work of the threads of XsdSchemaLoader is included as long as the
+ * phase stops before the loader is closed. The work of threads which end during a phase is not.
+ * They are reported as -1 if the JVM doesn't measure them.
+ */
+public class Profiler {
+    public class Phase {
+        private final String name;
+        private final Map<Long, Long> startCpuNanos;
+        private final Map<Long, Long> startAllocatedBytes;
+        private final long startWallNanos;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+
+        private Phase(String name) {
+            this.name = name;
+            startCpuNanos = getCpuNanos();
+            startAllocatedBytes = getAllocatedBytes();
+            startWallNanos = System.nanoTime();
+        }
+
+        /** Stops this phase and records it. */
+        public void stop() {
+            wallNanos = System.nanoTime() - startWallNanos;
+            cpuNanos = sumIncrease(startCpuNanos, getCpuNanos());
+            allocatedBytes = sumIncrease(startAllocatedBytes, getAllocatedBytes());
+            phases.add(this);
+        }
+    }
+
+    private final ThreadMXBean threadMXBean;
+    private final List<Phase> phases;
+    private final Map<String, Long> counts;
+
+    public Profiler() {
+        threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isThreadCpuTimeSupported()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationMXBean =
+                    (com.sun.management.ThreadMXBean) threadMXBean;
+            if (allocationMXBean.isThreadAllocatedMemorySupported()) {
+                allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+        phases = new ArrayList<>();
+        counts = new LinkedHashMap<>();
+    }
+
+    /** Starts a phase, which is recorded when it is stopped. */
+    public Phase start(String name) {
+        return new Phase(name);
+    }
+
+    /** Starts a phase of profiler, or returns null if profiler is null. */
+    static Phase startPhase(Profiler profiler, String name) {
+        return profiler != null ? profiler.start(name) : null;
+    }
+
+    static void stopPhase(Phase phase) {
+        if (phase != null) {
+            phase.stop();
+        }
+    }
+
+    /** Adds value to the count of the given name. */
+    public void count(String name, long value) {
+        counts.merge(name, value, Long::sum);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"phases\": [");
+        for (int i = 0; i < phases.size(); ++i) {
+            Phase phase = phases.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format("    {\"name\": \"%s\", \"wallNanos\": %d, "
+                    + "\"cpuNanos\": %d, \"allocatedBytes\": %d}", phase.name, phase.wallNanos,
+                    phase.cpuNanos, phase.allocatedBytes));
+        }
+        json.append("\n  ],\n  \"counts\": {");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append(String.format("    \"%s\": %d", entry.getKey(), entry.getValue()));
+            first = false;
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-10s %12s %12s %16s\n", "phase", "wall ms", "cpu ms",
+                "allocated bytes"));
+        for (Phase phase : phases) {
+            text.append(String.format("%-10s %12.3f %12.3f %16d\n", phase.name,
+                    phase.wallNanos / 1e6, phase.cpuNanos < 0 ? -1 : phase.cpuNanos / 1e6,
+                    phase.allocatedBytes));
+        }
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            text.append(String.format("%-10s %12d\n", entry.getKey(), entry.getValue()));
+        }
+        return text.toString();
+    }
+
+    // Returns the CPU time of each live thread by id, or null if it isn't measured.
+    private Map<Long, Long> getCpuNanos() {
+        if (!threadMXBean.isThreadCpuTimeSupported()) return null;
+        Map<Long, Long> ret = new HashMap<>();
+        for (long id : threadMXBean.getAllThreadIds()) {
+            long nanos = threadMXBean.getThreadCpuTime(id);
+            // -1 if the thread ended since the ids were taken
+            if (nanos >= 0) ret.put(id, nanos);
+        }
+        return ret;
+    }
+
+    // Returns the bytes allocated by each live thread by id, or null if they aren't measured.
+    private Map<Long, Long> getAllocatedBytes() {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean allocationMXBean =
+                (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!allocationMXBean.isThreadAllocatedMemorySupported()) return null;
+        long[] ids = threadMXBean.getAllThreadIds();
+        long[] bytes = allocationMXBean.getThreadAllocatedBytes(ids);
+        Map<Long, Long> ret = new HashMap<>();
+        for (int i = 0; i < ids.length; ++i) {
+            if (bytes[i] >= 0) ret.put(ids[i], bytes[i]);
+        }
+        return ret;
+    }
+
+    // Returns the sum of the increases of the values of the threads alive at end since start.
+    // Threads started since start began at 0.
+    private static long sumIncrease(Map<Long, Long> start, Map<Long, Long> end) {
+        if (start == null || end == null) return -1;
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : end.entrySet()) {
+            total += entry.getValue() - start.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.tag.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+/**
+ * XmlSchema with the inherited members of its complex types resolved, which is built once and
+ * consumed by the code generators. Members are flattened once for each complex type including
+ * anonymous ones, reusing the members of its base, so printing the classes of a deep hierarchy
+ * doesn't walk the base chain again for each class and each method. References to elements,
+ * attributes and types are checked once here, so resolving them afterwards can't fail.
+ */
+public class ResolvedSchema {
+    final private XmlSchema xmlSchema;
+    // elements and attributes of each complex type, inherited ones first
+    final private Map<XsdComplexType, List<XsdElement>> allElements;
+    final private Map<XsdComplexType, List<XsdAttribute>> allAttributes;
+    // built-in types which restrictions restrict, or null for lists, unions and enumerations
+    final private Map<XsdRestriction, String> predefinedBases;
+    // complex types whose members are being flattened, to find circular bases
+    final private Set<XsdComplexType> flattening;
+
+    // Names the generated types of one language, which the layout of its snapshots depends on.
+    public interface TypeNames<E extends Exception> {
+        // Returns the name of the class generated for the complex type or enumeration name.
+        String getClassName(String name) throws E;
+
+        // Returns the name of the type generated for the elements named name of type.
+        String getTypeName(XsdType type, String name) throws E;
+
+        // Returns the name of the type generated for the attributes of type.
+        String getAttributeTypeName(XsdType type) throws E;
+
+        // Returns the name of the type generated for the value of simpleContent.
+        String getValueTypeName(XsdSimpleContent simpleContent) throws E;
+    }
+
+    public ResolvedSchema(XmlSchema xmlSchema) throws XsdParserException {
+        this.xmlSchema = xmlSchema;
+        allElements = new IdentityHashMap<>();
+        allAttributes = new IdentityHashMap<>();
+        predefinedBases = new IdentityHashMap<>();
+        flattening = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (XsdType type : xmlSchema.getTypeMap().values()) {
+            if (type instanceof XsdComplexType) {
+                flatten((XsdComplexType) type);
+            }
+        }
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            flattenAnonymousType(element);
+        }
+
+        for (XsdType type : xmlSchema.getTypeMap().values()) {
+            checkType(type);
+        }
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            checkElement(element);
+        }
+        for (XsdAttribute attribute : xmlSchema.getAttributeMap().values()) {
+            checkAttribute(attribute);
+        }
+    }
+
+    public XmlSchema getSchema() {
+        return xmlSchema;
+    }
+
+    // Returns the elements of complexType, inherited ones first.
+    public List<XsdElement> getAllElements(XsdComplexType complexType) {
+        return getMembers(allElements, complexType);
+    }
+
+    // Returns the attributes of complexType, inherited ones first.
+    public List<XsdAttribute> getAllAttributes(XsdComplexType complexType) {
+        return getMembers(allAttributes, complexType);
+    }
+
+    // Returns the element which element refers to, or element itself if it isn't a reference.
+    public XsdElement resolveElement(XsdElement element) {
+        if (element.getRef() == null) return element;
+        return getNamed(xmlSchema.getElementMap(), element.getRef().getLocalPart());
+    }
+
+    // Returns the attribute which attribute refers to, or attribute itself if it isn't a
+    // reference.
+    public XsdAttribute resolveAttribute(XsdAttribute attribute) {
+        if (attribute.getRef() == null) return attribute;
+        return getNamed(xmlSchema.getAttributeMap(), attribute.getRef().getLocalPart());
+    }
+
+    // Returns the type named name, which a type of the schema refers to.
+    public XsdType getType(String name) {
+        return getNamed(xmlSchema.getTypeMap(), name);
+    }
+
+    // Returns the name of the built-in type which restriction restricts through restrictions
+    // only, or null if it restricts a list, a union or an enumeration.
+    public String getPredefinedBase(XsdRestriction restriction) {
+        if (predefinedBases.containsKey(restriction)) {
+            return predefinedBases.get(restriction);
+        }
+        String ret = null;
+        XsdType base = restriction.getBase();
+        if (restriction.getEnums() == null && base.getRef() != null
+                && base.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+            ret = base.getRef().getLocalPart();
+        } else if (restriction.getEnums() == null) {
+            if (base.getRef() != null) {
+                base = getType(base.getRef().getLocalPart());
+            }
+            if (base instanceof XsdRestriction) {
+                ret = getPredefinedBase((XsdRestriction) base);
+            }
+        }
+        predefinedBases.put(restriction, ret);
+        return ret;
+    }
+
+    // Returns the name of the member generated for element, which is suffixed for the elements
+    // of choices and alls.
+    public String getElementName(XsdElement element) {
+        if (element instanceof XsdChoice) {
+            return element.getName() + "_optional";
+        } else if (element instanceof XsdAll) {
+            return element.getName() + "_all";
+        }
+        return element.getName();
+    }
+
+    // Hashes the members and types of every generated class, as named by names, which the layout
+    // of a snapshot depends on.
+    public <E extends Exception> long computeSchemaHash(TypeNames<E> names) throws E {
+        StringBuilder layout = new StringBuilder();
+        for (XsdType type : xmlSchema.getTypeMap().values()) {
+            if (type instanceof XsdComplexType) {
+                appendLayout(layout, names, names.getClassName(type.getName()),
+                        (XsdComplexType) type);
+            } else if (type instanceof XsdRestriction &&
+                    ((XsdRestriction)type).getEnums() != null) {
+                layout.append(names.getClassName(type.getName())).append('(');
+                for (XsdEnumeration tag : ((XsdRestriction) type).getEnums()) {
+                    layout.append(tag.getValue()).append(',');
+                }
+                layout.append(')');
+            }
+        }
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            XsdType type = element.getType();
+            if (type.getRef() == null && type instanceof XsdComplexType) {
+                appendLayout(layout, names, names.getClassName(element.getName()),
+                        (XsdComplexType) type);
+            } else {
+                layout.append(element.getName()).append(':')
+                        .append(names.getTypeName(type, element.getName())).append(';');
+            }
+        }
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : layout.toString().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private <E extends Exception> void appendLayout(StringBuilder layout, TypeNames<E> names,
+            String name, XsdComplexType complexType) throws E {
+        layout.append(name).append('{');
+        for (XsdAttribute attribute : getAllAttributes(complexType)) {
+            XsdAttribute attributeValue = resolveAttribute(attribute);
+            layout.append('@').append(attributeValue.getName()).append(':')
+                    .append(names.getAttributeTypeName(attributeValue.getType())).append(';');
+        }
+        if (complexType instanceof XsdSimpleContent) {
+            layout.append("value:").append(
+                    names.getValueTypeName((XsdSimpleContent) complexType)).append(';');
+        }
+        for (XsdElement element : getAllElements(complexType)) {
+            XsdElement elementValue = resolveElement(element);
+            layout.append(getElementName(elementValue)).append(':');
+            if (element.getRef() == null && element.getType().getRef() == null
+                    && element.getType() instanceof XsdComplexType) {
+                appendLayout(layout, names, "", (XsdComplexType) element.getType());
+            } else {
+                layout.append(names.getTypeName(elementValue.getType(),
+                        getElementName(elementValue)));
+            }
+            layout.append(element.isMultiple() ? "*;" : ";");
+        }
+        layout.append('}');
+    }
+
+    // How the length facets of a built-in type are measured.
+    public enum LengthUnit {
+        CHARACTERS,
+        // octets of the decoded hexBinary value
+        HEX_OCTETS,
+        // octets of the decoded base64Binary value
+        BASE64_OCTETS,
+    }
+
+    // Returns how the length facets of the built-in type named predefined are measured, or null
+    // if they don't apply to it.
+    public static LengthUnit getLengthUnit(String predefined) {
+        switch (predefined) {
+            case "string":
+            case "token":
+            case "normalizedString":
+            case "language":
+            case "ENTITY":
+            case "ID":
+            case "Name":
+            case "NCName":
+            case "NMTOKEN":
+            case "anyURI":
+            case "anyType":
+            case "QName":
+            case "NOTATION":
+            case "IDREF":
+                return LengthUnit.CHARACTERS;
+            case "hexBinary":
+                return LengthUnit.HEX_OCTETS;
+            case "base64Binary":
+                return LengthUnit.BASE64_OCTETS;
+            default:
+                return null;
+        }
+    }
+
+    // Returns true if the range facets apply to the built-in type named predefined.
+    public static boolean isNumericType(String predefined) {
+        switch (predefined) {
+            case "decimal":
+            case "integer":
+            case "negativeInteger":
+            case "nonNegativeInteger":
+            case "positiveInteger":
+            case "nonPositiveInteger":
+            case "long":
+            case "int":
+            case "short":
+            case "byte":
+            case "unsignedLong":
+            case "unsignedInt":
+            case "unsignedShort":
+            case "unsignedByte":
+            case "double":
+            case "float":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns the value of facet, which is a length, minLength, maxLength, totalDigits or
+    // fractionDigits.
+    public static int parseFacetLength(XsdFacet facet) throws XsdParserException {
+        try {
+            int length = Integer.parseInt(facet.getValue().trim());
+            if (length >= 0) return length;
+        } catch (NumberFormatException e) {
+            // thrown below
+        }
+        throw new XsdParserException(String.format("invalid %s : %s",
+                facet.getKind().getTagName(), facet.getValue()));
+    }
+
+    // Returns pattern, an XML Schema regular expression, with ^ and $ escaped outside character
+    // classes. They are ordinary characters in XML Schema but anchors in java.util.regex and
+    // ECMAScript, whose syntax XML Schema otherwise mostly shares.
+    public static String escapeAnchors(String pattern) {
+        StringBuilder ret = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                ret.append(c).append(pattern.charAt(++i));
+                continue;
+            }
+            if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+                // a leading ^ negates the class
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '^') {
+                    ret.append(c);
+                    c = pattern.charAt(++i);
+                }
+            } else if (c == '^' || c == '$') {
+                ret.append('\\');
+            }
+            ret.append(c);
+        }
+        return ret.toString();
+    }
+
+    // Maps the simple types of the schema to the types T of one language. Lists, restrictions
+    // and unions are walked down to built-in types and enumerations, and the types of named
+    // simple types are memoized, so each of them is mapped once however often it is used.
+    public abstract static class SimpleTypeMapping<T, E extends Exception> {
+        final private ResolvedSchema resolvedSchema;
+        final private Map<String, T> namedTypes = new HashMap<>();
+
+        protected SimpleTypeMapping(ResolvedSchema resolvedSchema) {
+            this.resolvedSchema = resolvedSchema;
+        }
+
+        // Returns the type of the built-in type named name.
+        protected abstract T mapPredefined(String name) throws E;
+
+        // Returns the type of restriction, which is an enumeration.
+        protected abstract T mapEnumeration(XsdRestriction restriction) throws E;
+
+        // Returns the type of restriction, which restricts baseType by its facets.
+        protected abstract T mapRestriction(XsdRestriction restriction, T baseType) throws E;
+
+        // Returns the type of lists of itemType.
+        protected abstract T mapList(T itemType) throws E;
+
+        // Returns the type of unions, which is a list if any of their member types is a list.
+        protected abstract T mapUnion(boolean list) throws E;
+
+        protected abstract boolean isList(T type);
+
+        // Returns the exception thrown for the error described by message.
+        protected abstract E newException(String message);
+
+        // Returns the type of type, which is a simple type or refers to one.
+        public T map(XsdType type) throws E {
+            if (type.getRef() == null) {
+                return mapValue((XsdSimpleType) type);
+            }
+            String name = type.getRef().getLocalPart();
+            if (type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+                return mapPredefined(name);
+            }
+            if (namedTypes.containsKey(name)) {
+                return namedTypes.get(name);
+            }
+            XsdType simpleType = resolvedSchema.getType(name);
+            if (!(simpleType instanceof XsdSimpleType)) {
+                throw newException(String.format("not a simple type : %s", name));
+            }
+            T ret = mapValue((XsdSimpleType) simpleType);
+            namedTypes.put(name, ret);
+            return ret;
+        }
+
+        private T mapValue(XsdSimpleType simpleType) throws E {
+            if (simpleType instanceof XsdList) {
+                return mapList(map(((XsdList) simpleType).getItemType()));
+            } else if (simpleType instanceof XsdRestriction) {
+                XsdRestriction restriction = (XsdRestriction) simpleType;
+                if (restriction.getEnums() != null) {
+                    return mapEnumeration(restriction);
+                }
+                return mapRestriction(restriction, map(restriction.getBase()));
+            } else if (simpleType instanceof XsdUnion) {
+                for (XsdType memberType : ((XsdUnion) simpleType).getMemberTypes()) {
+                    if (isList(map(memberType))) {
+                        return mapUnion(true);
+                    }
+                }
+                return mapUnion(false);
+            } else {
+                // unreachable
+                throw new IllegalStateException("unknown simple type");
+            }
+        }
+    }
+
+    private static <T> T getNamed(Map<String, T> map, String name) {
+        T ret = map.get(name);
+        if (ret == null) {
+            throw new IllegalArgumentException(String.format("%s not in the schema", name));
+        }
+        return ret;
+    }
+
+    private <T> List<T> getMembers(Map<XsdComplexType, List<T>> members,
+            XsdComplexType complexType) {
+        List<T> ret = members.get(complexType);
+        if (ret == null) {
+            throw new IllegalArgumentException("complex type not in the schema");
+        }
+        return ret;
+    }
+
+    private void flatten(XsdComplexType complexType) throws XsdParserException {
+        if (allElements.containsKey(complexType)) return;
+        if (!flattening.add(complexType)) {
+            throw new XsdParserException(
+                    String.format("circular base of type : %s", complexType.getName()));
+        }
+        List<XsdElement> elements = new ArrayList<>();
+        List<XsdAttribute> attributes = new ArrayList<>();
+        QName baseRef = complexType.getBase() != null ? complexType.getBase().getRef() : null;
+        if (baseRef != null && !baseRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+            checkTypeRef(baseRef);
+            XsdType parent = getType(baseRef.getLocalPart());
+            if (parent instanceof XsdComplexType) {
+                flatten((XsdComplexType) parent);
+                elements.addAll(allElements.get(parent));
+                attributes.addAll(allAttributes.get(parent));
+            }
+        }
+        elements.addAll(complexType.getElements());
+        attributes.addAll(complexType.getAttributes());
+        allElements.put(complexType, Collections.unmodifiableList(elements));
+        allAttributes.put(complexType, Collections.unmodifiableList(attributes));
+        flattening.remove(complexType);
+
+        for (XsdElement element : complexType.getElements()) {
+            flattenAnonymousType(element);
+        }
+    }
+
+    private void flattenAnonymousType(XsdElement element) throws XsdParserException {
+        if (element.getRef() == null && element.getType().getRef() == null
+                && element.getType() instanceof XsdComplexType) {
+            flatten((XsdComplexType) element.getType());
+        }
+    }
+
+    // Checks the references of type and of its anonymous types.
+    private void checkType(XsdType type) throws XsdParserException {
+        if (type == null) return;
+        if (type.getRef() != null) {
+            checkTypeRef(type.getRef());
+        } else if (type instanceof XsdComplexType) {
+            XsdComplexType complexType = (XsdComplexType) type;
+            checkType(complexType.getBase());
+            for (XsdAttribute attribute : complexType.getAttributes()) {
+                checkAttribute(attribute);
+            }
+            for (XsdElement element : complexType.getElements()) {
+                checkElement(element);
+            }
+        } else if (type instanceof XsdList) {
+            checkType(((XsdList) type).getItemType());
+        } else if (type instanceof XsdRestriction) {
+            checkType(((XsdRestriction) type).getBase());
+        } else if (type instanceof XsdUnion) {
+            for (XsdType memberType : ((XsdUnion) type).getMemberTypes()) {
+                checkType(memberType);
+            }
+        }
+    }
+
+    private void checkTypeRef(QName ref) throws XsdParserException {
+        if (ref.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) return;
+        if (!xmlSchema.getTypeMap().containsKey(ref.getLocalPart())) {
+            throw new XsdParserException(String.format("no type named : %s", ref.getLocalPart()));
+        }
+    }
+
+    private void checkElement(XsdElement element) throws XsdParserException {
+        if (element.getRef() == null) {
+            checkType(element.getType());
+        } else if (!xmlSchema.getElementMap().containsKey(element.getRef().getLocalPart())) {
+            throw new XsdParserException(
+                    String.format("no element named : %s", element.getRef().getLocalPart()));
+        }
+    }
+
+    private void checkAttribute(XsdAttribute attribute) throws XsdParserException {
+        if (attribute.getRef() == null) {
+            checkType(attribute.getType());
+        } else if (!xmlSchema.getAttributeMap().containsKey(attribute.getRef().getLocalPart())) {
+            throw new XsdParserException(
+                    String.format("no attribute named : %s", attribute.getRef().getLocalPart()));
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.tag.*;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Synthesizes instance documents of the root elements of a schema, for the benchmarks which
+ * the code generators emit when there are no real documents to read.
+ *
+ * A document has every attribute and child element declared, repeated elements twice. Elements
+ * of a complex type which is already being written by an enclosing element are left out, so
+ * recursive types end. Values are built from the built-in type of each simple type, the first
+ * value of enumerations and the length, range and digits facets of restrictions. Patterns are
+ * not followed, so parsers checking them may reject the values of such restrictions.
+ */
+public class SampleDocument {
+    private static final int REPEATED = 2;
+
+    private final ResolvedSchema resolvedSchema;
+
+    public SampleDocument(ResolvedSchema resolvedSchema) {
+        this.resolvedSchema = resolvedSchema;
+    }
+
+    /** Returns a document whose root element is element. */
+    public String of(XsdElement element) throws XsdParserException {
+        StringBuilder document = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        appendElement(document, element, Collections.newSetFromMap(new IdentityHashMap<>()));
+        document.append('\n');
+        return document.toString();
+    }
+
+    private void appendElement(StringBuilder document, XsdElement element,
+            Set<XsdComplexType> enclosing) throws XsdParserException {
+        XsdElement resolved = resolvedSchema.resolveElement(element);
+        String name = resolved.getName();
+        XsdType type = resolveType(resolved.getType());
+        document.append('<').append(name);
+        if (type instanceof XsdComplexType) {
+            XsdComplexType complexType = (XsdComplexType) type;
+            for (XsdAttribute attribute : resolvedSchema.getAllAttributes(complexType)) {
+                XsdAttribute resolvedAttribute = resolvedSchema.resolveAttribute(attribute);
+                document.append(' ').append(resolvedAttribute.getName()).append("=\"");
+                appendEscaped(document, getValue(resolvedAttribute.getType()));
+                document.append('"');
+            }
+            document.append('>');
+            enclosing.add(complexType);
+            if (complexType instanceof XsdSimpleContent) {
+                appendEscaped(document, getValue(getContentType(complexType)));
+            } else {
+                for (XsdElement child : resolvedSchema.getAllElements(complexType)) {
+                    XsdType childType = resolveType(
+                            resolvedSchema.resolveElement(child).getType());
+                    if (enclosing.contains(childType)) continue;
+                    int count = child.isMultiple() ? REPEATED : 1;
+                    for (int i = 0; i < count; ++i) {
+                        appendElement(document, child, enclosing);
+                    }
+                }
+            }
+            enclosing.remove(complexType);
+        } else {
+            document.append('>');
+            appendEscaped(document, getValue(type));
+        }
+        document.append("</").append(name).append('>');
+    }
+
+    // Returns the simple type of the text of a complex type with simple content.
+    private XsdType getContentType(XsdComplexType complexType) {
+        XsdType base = complexType.getBase();
+        while (true) {
+            XsdType resolved = resolveType(base);
+            if (!(resolved instanceof XsdComplexType)) return base;
+            base = ((XsdComplexType) resolved).getBase();
+        }
+    }
+
+    private String getValue(XsdType type) throws XsdParserException {
+        if (type.getRef() != null
+                && type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+            return getPredefinedValue(type.getRef().getLocalPart());
+        }
+        type = resolveType(type);
+        if (type instanceof XsdList) {
+            return getValue(((XsdList) type).getItemType());
+        } else if (type instanceof XsdUnion) {
+            return getValue(((XsdUnion) type).getMemberTypes().get(0));
+        } else if (type instanceof XsdRestriction) {
+            XsdRestriction restriction = (XsdRestriction) type;
+            if (restriction.getEnums() != null && !restriction.getEnums().isEmpty()) {
+                return restriction.getEnums().get(0).getValue();
+            }
+            String value = getValue(restriction.getBase());
+            String predefinedBase = resolvedSchema.getPredefinedBase(restriction);
+            boolean numeric = predefinedBase != null
+                    && ResolvedSchema.isNumericType(predefinedBase);
+            for (XsdFacet facet : restriction.getFacets()) {
+                value = applyFacet(value, facet, numeric);
+            }
+            return value;
+        } else if (type instanceof XsdComplexType) {
+            throw new XsdParserException(
+                    String.format("not a simple type : %s", type.getName()));
+        }
+        // anonymous types without a definition, such as xs:anyType
+        return "text";
+    }
+
+    private static String applyFacet(String value, XsdFacet facet, boolean numeric)
+            throws XsdParserException {
+        switch (facet.getKind()) {
+            case LENGTH: {
+                int length = ResolvedSchema.parseFacetLength(facet);
+                return truncate(pad(value, length), length);
+            }
+            case MIN_LENGTH:
+                return pad(value, ResolvedSchema.parseFacetLength(facet));
+            case MAX_LENGTH:
+                return truncate(value, ResolvedSchema.parseFacetLength(facet));
+            default:
+                break;
+        }
+        if (!numeric) return value;
+        BigDecimal number = new BigDecimal(value);
+        BigDecimal bound;
+        try {
+            bound = new BigDecimal(facet.getValue().trim());
+        } catch (NumberFormatException e) {
+            // INF and NaN bounds of floating point types
+            return value;
+        }
+        switch (facet.getKind()) {
+            case MIN_INCLUSIVE:
+                return number.compareTo(bound) < 0 ? bound.toPlainString() : value;
+            case MIN_EXCLUSIVE:
+                return number.compareTo(bound) <= 0 ? bound.add(BigDecimal.ONE).toPlainString()
+                        : value;
+            case MAX_INCLUSIVE:
+                return number.compareTo(bound) > 0 ? bound.toPlainString() : value;
+            case MAX_EXCLUSIVE:
+                return number.compareTo(bound) >= 0
+                        ? bound.subtract(BigDecimal.ONE).toPlainString() : value;
+            case TOTAL_DIGITS:
+                return number.round(new MathContext(bound.intValue(), RoundingMode.DOWN))
+                        .toPlainString();
+            case FRACTION_DIGITS:
+                return number.scale() > bound.intValue()
+                        ? number.setScale(bound.intValue(), RoundingMode.DOWN).toPlainString()
+                        : value;
+            default:
+                return value;
+        }
+    }
+
+    private static String pad(String value, int length) {
+        StringBuilder padded = new StringBuilder(value);
+        while (padded.length() < length) {
+            padded.append('a');
+        }
+        return padded.toString();
+    }
+
+    private static String truncate(String value, int length) {
+        return value.length() > length ? value.substring(0, length) : value;
+    }
+
+    private static String getPredefinedValue(String name) {
+        switch (name) {
+            case "anyURI":
+                return "http://example.com/";
+            case "language":
+                return "en";
+            case "QName":
+            case "NCName":
+            case "Name":
+            case "NMTOKEN":
+            case "NMTOKENS":
+            case "ID":
+            case "IDREF":
+            case "IDREFS":
+            case "ENTITY":
+            case "ENTITIES":
+            case "NOTATION":
+                return "name";
+            case "date":
+                return "2018-01-01";
+            case "dateTime":
+                return "2018-01-01T00:00:00";
+            case "time":
+                return "00:00:00";
+            case "gDay":
+                return "---01";
+            case "gMonth":
+                return "--01";
+            case "gYear":
+                return "2018";
+            case "gMonthDay":
+                return "--01-01";
+            case "gYearMonth":
+                return "2018-01";
+            case "duration":
+                return "P1D";
+            case "negativeInteger":
+                return "-1";
+            case "nonPositiveInteger":
+                return "0";
+            case "integer":
+            case "nonNegativeInteger":
+            case "positiveInteger":
+            case "unsignedLong":
+            case "long":
+            case "unsignedInt":
+            case "int":
+            case "unsignedShort":
+            case "short":
+            case "unsignedByte":
+            case "byte":
+                return "1";
+            case "decimal":
+            case "double":
+            case "float":
+                return "1.5";
+            case "boolean":
+                return "true";
+            case "base64Binary":
+                return "AAAA";
+            case "hexBinary":
+                return "0f";
+            default:
+                return "text";
+        }
+    }
+
+    // Returns the definition of type if it refers to a type of the schema.
+    private XsdType resolveType(XsdType type) {
+        if (type == null || type.getRef() == null
+                || type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+            return type;
+        }
+        return resolvedSchema.getType(type.getRef().getLocalPart());
+    }
+
+    private static void appendEscaped(StringBuilder document, String value) {
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '&':
+                    document.append("&amp;");
+                    break;
+                case '<':
+                    document.append("&lt;");
+                    break;
+                case '>':
+                    document.append("&gt;");
+                    break;
+                case '"':
+                    document.append("&quot;");
+                    break;
+                default:
+                    document.append(c);
+            }
+        }
+    }
+}
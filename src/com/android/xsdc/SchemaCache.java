@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps the schemas read by XsdSchemaLoader in a directory, encoded by XmlSchemaCodec, so that
+ * later runs of xsdc don't parse documents which didn't change.
+ *
+ * There is one entry per root document. An entry lists the digest of each document the schema
+ * was read from, and is only used while all of them are unchanged.
+ */
+public class SchemaCache {
+    private final Path directory;
+
+    public SchemaCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cached schema of the document at root, or null if there is none or one of
+     * its documents changed since it was cached.
+     */
+    XmlSchema get(Path root, SymbolTable symbols) throws IOException {
+        Path entry = getEntry(root);
+        if (!Files.isRegularFile(entry)) return null;
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            int count = buffer.getInt();
+            if (count < 0) return null;
+            for (int i = 0; i < count; ++i) {
+                byte[] path = new byte[buffer.getShort() & 0xffff];
+                buffer.get(path);
+                byte[] digest = new byte[XsdSchemaLoader.DIGEST_LENGTH];
+                buffer.get(digest);
+                Path document = Paths.get(new String(path, StandardCharsets.UTF_8));
+                if (!Files.isRegularFile(document) || !Arrays.equals(digest,
+                        XsdSchemaLoader.digest(Files.readAllBytes(document)))) {
+                    return null;
+                }
+            }
+            return XmlSchemaCodec.decode(buffer.slice(), symbols);
+        } catch (BufferUnderflowException | XsdParserException e) {
+            // entries of other versions of xsdc, or partially written ones, are parsed again
+            return null;
+        }
+    }
+
+    /** Stores xmlSchema, read from the documents with the given digests, for root. */
+    void put(Path root, Map<Path, byte[]> digests, XmlSchema xmlSchema) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(digests.size());
+        for (Map.Entry<Path, byte[]> document : digests.entrySet()) {
+            byte[] path = document.getKey().toString().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(path.length);
+            out.write(path);
+            out.write(document.getValue());
+        }
+        out.write(XmlSchemaCodec.encode(xmlSchema));
+        out.flush();
+
+        // entries are replaced atomically, so concurrent runs of xsdc read whole entries
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            Files.write(temporary, bytes.toByteArray());
+            Files.move(temporary, getEntry(root), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private Path getEntry(Path root) {
+        byte[] digest = XsdSchemaLoader.digest(
+                root.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest) {
+            name.append(String.format("%02x", b));
+        }
+        return directory.resolve(name.append(".xsdc").toString());
+    }
+}
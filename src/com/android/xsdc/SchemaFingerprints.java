@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.tag.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Computes fingerprints of the parts of a schema, which change whenever a definition they
+ * depend on changes. Code generators use them to skip files which would be generated the same.
+ *
+ * Every fingerprint also covers a salt given by the generator, for its options, and the code of
+ * xsdc itself, so that a newer xsdc generates everything again.
+ */
+public class SchemaFingerprints {
+    private static String codeDigest;
+
+    private final XmlSchema xmlSchema;
+    private final byte[] salt;
+    // digests of the encoded global definitions
+    private final Map<XsdTag, byte[]> definitionDigests;
+
+    public SchemaFingerprints(XmlSchema xmlSchema, String salt) throws IOException {
+        this.xmlSchema = xmlSchema;
+        this.salt = (getCodeDigest() + salt).getBytes(StandardCharsets.UTF_8);
+        definitionDigests = new IdentityHashMap<>();
+    }
+
+    /** Returns a fingerprint of the whole schema. */
+    public String ofSchema() throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(salt);
+        digest.update(XmlSchemaCodec.encode(xmlSchema));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns a fingerprint of tag and of the global types, elements and attributes it refers
+     * to, directly or through other definitions.
+     */
+    public String of(XsdTag tag) throws IOException {
+        List<XsdTag> reached = new ArrayList<>();
+        collect(tag, reached, Collections.newSetFromMap(new IdentityHashMap<>()));
+        MessageDigest digest = newDigest();
+        digest.update(salt);
+        digest.update(XmlSchemaCodec.encodeTag(tag));
+        for (XsdTag definition : reached) {
+            byte[] definitionDigest = definitionDigests.get(definition);
+            if (definitionDigest == null) {
+                definitionDigest = newDigest().digest(XmlSchemaCodec.encodeTag(definition));
+                definitionDigests.put(definition, definitionDigest);
+            }
+            digest.update(definitionDigest);
+        }
+        return toHex(digest.digest());
+    }
+
+    private void collect(XsdTag tag, List<XsdTag> reached, Set<XsdTag> visited) {
+        if (tag == null) return;
+        QName ref = tag.getRef();
+        if (ref != null) {
+            XsdTag definition;
+            if (tag instanceof XsdElement) {
+                definition = xmlSchema.getElementMap().get(ref.getLocalPart());
+            } else if (tag instanceof XsdAttribute) {
+                definition = xmlSchema.getAttributeMap().get(ref.getLocalPart());
+            } else if (!ref.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
+                definition = xmlSchema.getTypeMap().get(ref.getLocalPart());
+            } else {
+                definition = null;
+            }
+            // unknown references are reported by the code generators
+            if (definition != null && visited.add(definition)) {
+                reached.add(definition);
+                collect(definition, reached, visited);
+            }
+            return;
+        }
+        if (tag instanceof XsdElement) {
+            collect(((XsdElement) tag).getType(), reached, visited);
+        } else if (tag instanceof XsdAttribute) {
+            collect(((XsdAttribute) tag).getType(), reached, visited);
+        } else if (tag instanceof XsdComplexType) {
+            XsdComplexType complexType = (XsdComplexType) tag;
+            collect(complexType.getBase(), reached, visited);
+            for (XsdAttribute attribute : complexType.getAttributes()) {
+                collect(attribute, reached, visited);
+            }
+            for (XsdElement element : complexType.getElements()) {
+                collect(element, reached, visited);
+            }
+        } else if (tag instanceof XsdRestriction) {
+            collect(((XsdRestriction) tag).getBase(), reached, visited);
+        } else if (tag instanceof XsdList) {
+            collect(((XsdList) tag).getItemType(), reached, visited);
+        } else if (tag instanceof XsdUnion) {
+            for (XsdType memberType : ((XsdUnion) tag).getMemberTypes()) {
+                collect(memberType, reached, visited);
+            }
+        }
+    }
+
+    // Returns a digest of the jar or class files xsdc is run from.
+    private static synchronized String getCodeDigest() throws IOException {
+        if (codeDigest != null) return codeDigest;
+        MessageDigest digest = newDigest();
+        CodeSource codeSource = SchemaFingerprints.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            Path location;
+            try {
+                location = Paths.get(codeSource.getLocation().toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(location)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+        codeDigest = toHex(digest.digest());
+        return codeDigest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
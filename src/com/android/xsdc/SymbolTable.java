@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.tag.XsdType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Keeps one instance of each name, QName and type reference read from schema documents.
+ *
+ * Large schemas repeat the same few names and types in most declarations, so sharing them keeps
+ * the XmlSchema of such schemas small. A table can be shared by the handlers of several
+ * documents, also across threads.
+ */
+public class SymbolTable {
+    private final Map<String, String> strings;
+    private final Map<QName, QName> qNames;
+    private final Map<QName, XsdType> typeRefs;
+
+    public SymbolTable() {
+        strings = new ConcurrentHashMap<>();
+        qNames = new ConcurrentHashMap<>();
+        typeRefs = new ConcurrentHashMap<>();
+    }
+
+    public String intern(String string) {
+        if (string == null) return null;
+        String interned = strings.putIfAbsent(string, string);
+        return interned != null ? interned : string;
+    }
+
+    public QName qName(String namespaceURI, String localPart) {
+        QName qName = new QName(intern(namespaceURI), intern(localPart));
+        QName interned = qNames.putIfAbsent(qName, qName);
+        return interned != null ? interned : qName;
+    }
+
+    /**
+     * Returns the type referring to the type named ref. Type references have no state of their
+     * own, so they are shared by all the tags referring to the same type.
+     */
+    public XsdType typeRef(QName ref) {
+        return typeRefs.computeIfAbsent(ref, key -> new XsdType(null, key));
+    }
+}
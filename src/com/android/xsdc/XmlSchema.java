@@ -19,7 +19,13 @@ package com.android.xsdc;
 import com.android.xsdc.tag.*;
 
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
 
 public class XmlSchema {
     final private Map<String, XsdElement> elementMap;
@@ -33,6 +39,32 @@ public class XmlSchema {
         this.attributeMap = Collections.unmodifiableMap(attributeMap);
     }
 
+    /**
+     * Returns a schema with the definitions of all fragments, in order. A name can only be
+     * defined by one fragment.
+     */
+    static XmlSchema merge(List<XmlSchema> fragments) throws XsdParserException {
+        Map<String, XsdElement> elementMap = new LinkedHashMap<>();
+        Map<String, XsdType> typeMap = new LinkedHashMap<>();
+        Map<String, XsdAttribute> attributeMap = new LinkedHashMap<>();
+        for (XmlSchema fragment : fragments) {
+            putAll(elementMap, fragment.elementMap, "element");
+            putAll(typeMap, fragment.typeMap, "type");
+            putAll(attributeMap, fragment.attributeMap, "attribute");
+        }
+        return new XmlSchema(elementMap, typeMap, attributeMap);
+    }
+
+    private static <T> void putAll(Map<String, T> map, Map<String, T> definitions, String kind)
+            throws XsdParserException {
+        for (Map.Entry<String, T> entry : definitions.entrySet()) {
+            if (map.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                throw new XsdParserException(
+                        String.format("duplicate %s named : %s", kind, entry.getKey()));
+            }
+        }
+    }
+
     public Map<String, XsdElement> getElementMap() {
         return elementMap;
     }
@@ -44,4 +76,73 @@ public class XmlSchema {
     public Map<String, XsdAttribute> getAttributeMap() {
         return attributeMap;
     }
+
+    /**
+     * Returns a schema with only the named types which are reachable from the root elements
+     * through elements, attributes, bases and the item and member types of lists and unions.
+     * The names of the other types are added to pruned in the order they are defined.
+     */
+    public XmlSchema pruneUnreachableTypes(List<String> pruned) {
+        Set<String> reached = new HashSet<>();
+        for (XsdElement element : elementMap.values()) {
+            visitElement(element, reached);
+        }
+        Map<String, XsdType> reachableTypeMap = new LinkedHashMap<>();
+        for (Map.Entry<String, XsdType> entry : typeMap.entrySet()) {
+            if (reached.contains(entry.getKey())) {
+                reachableTypeMap.put(entry.getKey(), entry.getValue());
+            } else {
+                pruned.add(entry.getKey());
+            }
+        }
+        return new XmlSchema(elementMap, reachableTypeMap, attributeMap);
+    }
+
+    private void visitElement(XsdElement element, Set<String> reached) {
+        // references are to root elements, which are all visited
+        if (element.getRef() != null) return;
+        visitType(element.getType(), reached);
+    }
+
+    private void visitAttribute(XsdAttribute attribute, Set<String> reached) {
+        if (attribute.getRef() != null) {
+            XsdAttribute referenced = attributeMap.get(attribute.getRef().getLocalPart());
+            // unknown references are reported by the code generators
+            if (referenced != null) {
+                visitAttribute(referenced, reached);
+            }
+            return;
+        }
+        visitType(attribute.getType(), reached);
+    }
+
+    private void visitType(XsdType type, Set<String> reached) {
+        if (type == null) return;
+        QName ref = type.getRef();
+        if (ref != null) {
+            if (ref.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) return;
+            // each named type is visited once, which also ends recursive definitions.
+            if (!reached.add(ref.getLocalPart())) return;
+            type = typeMap.get(ref.getLocalPart());
+            if (type == null) return;
+        }
+        if (type instanceof XsdComplexType) {
+            XsdComplexType complexType = (XsdComplexType) type;
+            visitType(complexType.getBase(), reached);
+            for (XsdAttribute attribute : complexType.getAttributes()) {
+                visitAttribute(attribute, reached);
+            }
+            for (XsdElement element : complexType.getElements()) {
+                visitElement(element, reached);
+            }
+        } else if (type instanceof XsdRestriction) {
+            visitType(((XsdRestriction) type).getBase(), reached);
+        } else if (type instanceof XsdList) {
+            visitType(((XsdList) type).getItemType(), reached);
+        } else if (type instanceof XsdUnion) {
+            for (XsdType memberType : ((XsdUnion) type).getMemberTypes()) {
+                visitType(memberType, reached);
+            }
+        }
+    }
 }
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.tag.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Encodes an XmlSchema and its tags into a compact binary form, and decodes it back.
+ *
+ * Each distinct string is written once and referred to by index afterwards. VERSION has to be
+ * increased whenever the tags or the encoding change, so that data written by another version
+ * of xsdc is rejected instead of misread.
+ */
+public class XmlSchemaCodec {
+    static final int VERSION = 1;
+
+    private static final int MAGIC = 0x58534443; // "XSDC"
+
+    private static final int NULL = 0;
+    private static final int TYPE = 1;
+    private static final int ELEMENT = 2;
+    private static final int CHOICE = 3;
+    private static final int ALL = 4;
+    private static final int ATTRIBUTE = 5;
+    private static final int COMPLEX_CONTENT = 6;
+    private static final int SIMPLE_CONTENT = 7;
+    private static final int RESTRICTION = 8;
+    private static final int LIST = 9;
+    private static final int UNION = 10;
+    private static final int ENUMERATION = 11;
+    private static final int FACET = 12;
+    private static final int IDENTITY_CONSTRAINT = 13;
+
+    private XmlSchemaCodec() {
+    }
+
+    public static byte[] encode(XmlSchema xmlSchema) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Encoder encoder = new Encoder(new DataOutputStream(bytes));
+        encoder.out.writeInt(MAGIC);
+        encoder.out.writeInt(VERSION);
+        encoder.writeTags(xmlSchema.getElementMap().values());
+        encoder.writeTags(xmlSchema.getTypeMap().values());
+        encoder.writeTags(xmlSchema.getAttributeMap().values());
+        encoder.out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Encodes a single tag and its children, e.g. to compare them. */
+    public static byte[] encodeTag(XsdTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Encoder encoder = new Encoder(new DataOutputStream(bytes));
+        encoder.writeTag(tag);
+        encoder.out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a schema encoded by encode(). Names and type references are shared through
+     * symbols. Throws XsdParserException if the data is malformed or of another version.
+     */
+    public static XmlSchema decode(ByteBuffer buffer, SymbolTable symbols)
+            throws XsdParserException {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new XsdParserException("unknown format of encoded schema");
+            }
+            Decoder decoder = new Decoder(buffer, symbols);
+            Map<String, XsdElement> elementMap = new LinkedHashMap<>();
+            for (XsdElement element : decoder.readRequiredTags(XsdElement.class)) {
+                elementMap.put(element.getName(), element);
+            }
+            Map<String, XsdType> typeMap = new LinkedHashMap<>();
+            for (XsdType type : decoder.readRequiredTags(XsdType.class)) {
+                typeMap.put(type.getName(), type);
+            }
+            Map<String, XsdAttribute> attributeMap = new LinkedHashMap<>();
+            for (XsdAttribute attribute : decoder.readRequiredTags(XsdAttribute.class)) {
+                attributeMap.put(attribute.getName(), attribute);
+            }
+            if (buffer.hasRemaining()) {
+                throw new XsdParserException("trailing data in encoded schema");
+            }
+            return new XmlSchema(elementMap, typeMap, attributeMap);
+        } catch (BufferUnderflowException e) {
+            throw new XsdParserException("truncated encoded schema");
+        }
+    }
+
+    private static class Encoder {
+        final DataOutputStream out;
+        final Map<String, Integer> strings;
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+            strings = new HashMap<>();
+        }
+
+        void writeInt(int value) throws IOException {
+            // unsigned LEB128, as most values are small
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        // Strings are numbered from 1 in order of first use, and a new string is written after
+        // its number.
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+            index = strings.size() + 1;
+            strings.put(value, index);
+            writeInt(index);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeQName(QName qName) throws IOException {
+            if (qName == null) {
+                writeString(null);
+                return;
+            }
+            writeString(qName.getLocalPart());
+            writeString(qName.getNamespaceURI());
+        }
+
+        void writeTags(Collection<? extends XsdTag> tags) throws IOException {
+            if (tags == null) {
+                writeInt(0);
+                return;
+            }
+            writeInt(tags.size() + 1);
+            for (XsdTag tag : tags) {
+                writeTag(tag);
+            }
+        }
+
+        void writeTag(XsdTag tag) throws IOException {
+            if (tag == null) {
+                writeInt(NULL);
+                return;
+            }
+            writeInt(getKind(tag));
+            writeString(tag.getName());
+            writeQName(tag.getRef());
+            out.writeBoolean(tag.isDeprecated());
+            if (tag instanceof XsdElement) {
+                XsdElement element = (XsdElement) tag;
+                writeTag(element.getType());
+                out.writeBoolean(element.isMultiple());
+                writeTags(element.getIdentityConstraints());
+            } else if (tag instanceof XsdAttribute) {
+                writeTag(((XsdAttribute) tag).getType());
+            } else if (tag instanceof XsdComplexType) {
+                XsdComplexType complexType = (XsdComplexType) tag;
+                writeTag(complexType.getBase());
+                writeTags(complexType.getAttributes());
+                writeTags(complexType.getElements());
+            } else if (tag instanceof XsdRestriction) {
+                XsdRestriction restriction = (XsdRestriction) tag;
+                writeTag(restriction.getBase());
+                writeTags(restriction.getEnums());
+                writeTags(restriction.getFacets());
+            } else if (tag instanceof XsdList) {
+                writeTag(((XsdList) tag).getItemType());
+            } else if (tag instanceof XsdUnion) {
+                writeTags(((XsdUnion) tag).getMemberTypes());
+            } else if (tag instanceof XsdEnumeration) {
+                writeString(((XsdEnumeration) tag).getValue());
+            } else if (tag instanceof XsdFacet) {
+                XsdFacet facet = (XsdFacet) tag;
+                writeInt(facet.getKind().ordinal());
+                writeString(facet.getValue());
+            } else if (tag instanceof XsdIdentityConstraint) {
+                XsdIdentityConstraint constraint = (XsdIdentityConstraint) tag;
+                writeInt(constraint.getKind().ordinal());
+                writeQName(constraint.getRefer());
+                writeString(constraint.getSelector().getXpath());
+                writeInt(constraint.getFields().size());
+                for (XsdField field : constraint.getFields()) {
+                    writeString(field.getXpath());
+                }
+            }
+        }
+
+        private static int getKind(XsdTag tag) throws IOException {
+            if (tag instanceof XsdChoice) return CHOICE;
+            if (tag instanceof XsdAll) return ALL;
+            if (tag instanceof XsdElement) return ELEMENT;
+            if (tag instanceof XsdAttribute) return ATTRIBUTE;
+            if (tag instanceof XsdComplexContent) return COMPLEX_CONTENT;
+            if (tag instanceof XsdSimpleContent) return SIMPLE_CONTENT;
+            if (tag instanceof XsdRestriction) return RESTRICTION;
+            if (tag instanceof XsdList) return LIST;
+            if (tag instanceof XsdUnion) return UNION;
+            if (tag instanceof XsdEnumeration) return ENUMERATION;
+            if (tag instanceof XsdFacet) return FACET;
+            if (tag instanceof XsdIdentityConstraint) return IDENTITY_CONSTRAINT;
+            if (tag.getClass() == XsdType.class) return TYPE;
+            throw new IOException("cannot encode " + tag.getClass().getSimpleName());
+        }
+    }
+
+    private static class Decoder {
+        final ByteBuffer in;
+        final SymbolTable symbols;
+        final List<String> strings;
+
+        Decoder(ByteBuffer in, SymbolTable symbols) {
+            this.in = in;
+            this.symbols = symbols;
+            strings = new ArrayList<>();
+        }
+
+        int readInt() throws XsdParserException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new XsdParserException("malformed integer in encoded schema");
+        }
+
+        // Reads a count of the items which follow.
+        int readCount() throws XsdParserException {
+            return checkCount(readInt());
+        }
+
+        // Returns count, a count of the items which follow. Each of them takes at least one
+        // byte, so a corrupt count is rejected before anything is allocated for it.
+        int checkCount(int count) throws XsdParserException {
+            if (count < 0 || count > in.remaining()) {
+                throw new XsdParserException("malformed count in encoded schema");
+            }
+            return count;
+        }
+
+        String readString() throws XsdParserException {
+            int index = readInt();
+            if (index == 0) return null;
+            if (index > 0 && index <= strings.size()) return strings.get(index - 1);
+            if (index != strings.size() + 1) {
+                throw new XsdParserException("malformed string in encoded schema");
+            }
+            byte[] bytes = new byte[readCount()];
+            in.get(bytes);
+            String value = symbols.intern(new String(bytes, StandardCharsets.UTF_8));
+            strings.add(value);
+            return value;
+        }
+
+        QName readQName() throws XsdParserException {
+            String localPart = readString();
+            if (localPart == null) return null;
+            return symbols.qName(readString(), localPart);
+        }
+
+        boolean readBoolean() {
+            return in.get() != 0;
+        }
+
+        <T extends XsdTag> List<T> readTags(Class<T> tagClass) throws XsdParserException {
+            // 0 for null lists, or one more than the size
+            int size = readInt();
+            if (size == 0) return null;
+            int count = checkCount(size - 1);
+            List<T> tags = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                tags.add(readTag(tagClass));
+            }
+            return tags;
+        }
+
+        // Reads a list of tags which is never null.
+        <T extends XsdTag> List<T> readRequiredTags(Class<T> tagClass) throws XsdParserException {
+            List<T> tags = readTags(tagClass);
+            if (tags == null) {
+                throw new XsdParserException("missing list in encoded schema");
+            }
+            return tags;
+        }
+
+        <T extends XsdTag> T readTag(Class<T> tagClass) throws XsdParserException {
+            int kind = readInt();
+            if (kind == NULL) return null;
+            String name = readString();
+            QName ref = readQName();
+            boolean deprecated = readBoolean();
+            XsdTag tag;
+            switch (kind) {
+                case TYPE:
+                    // type references are shared like the handler does
+                    tag = name == null && ref != null && !deprecated ? symbols.typeRef(ref)
+                            : new XsdType(name, ref);
+                    break;
+                case ELEMENT:
+                case CHOICE:
+                case ALL: {
+                    XsdType type = readTag(XsdType.class);
+                    boolean multiple = readBoolean();
+                    List<XsdIdentityConstraint> constraints =
+                            readRequiredTags(XsdIdentityConstraint.class);
+                    tag = kind == CHOICE ? new XsdChoice(name, ref, type, multiple, constraints)
+                            : kind == ALL ? new XsdAll(name, ref, type, multiple, constraints)
+                            : new XsdElement(name, ref, type, multiple, constraints);
+                    break;
+                }
+                case ATTRIBUTE:
+                    tag = new XsdAttribute(name, ref, readTag(XsdType.class));
+                    break;
+                case COMPLEX_CONTENT:
+                case SIMPLE_CONTENT: {
+                    XsdType base = readTag(XsdType.class);
+                    List<XsdAttribute> attributes = readTags(XsdAttribute.class);
+                    List<XsdElement> elements = readTags(XsdElement.class);
+                    tag = kind == COMPLEX_CONTENT
+                            ? new XsdComplexContent(name, base, attributes, elements)
+                            : new XsdSimpleContent(name, base, attributes);
+                    break;
+                }
+                case RESTRICTION: {
+                    XsdType base = readTag(XsdType.class);
+                    List<XsdEnumeration> enums = readTags(XsdEnumeration.class);
+                    tag = new XsdRestriction(name, base, enums, readRequiredTags(XsdFacet.class));
+                    break;
+                }
+                case LIST:
+                    tag = new XsdList(name, readTag(XsdType.class));
+                    break;
+                case UNION:
+                    tag = new XsdUnion(name, readTags(XsdType.class));
+                    break;
+                case ENUMERATION:
+                    tag = new XsdEnumeration(readString());
+                    break;
+                case FACET:
+                    tag = new XsdFacet(readEnum(XsdFacet.Kind.values()), readString());
+                    break;
+                case IDENTITY_CONSTRAINT: {
+                    XsdIdentityConstraint.Kind constraintKind =
+                            readEnum(XsdIdentityConstraint.Kind.values());
+                    QName refer = readQName();
+                    XsdSelector selector = new XsdSelector(readString());
+                    int count = readCount();
+                    List<XsdField> fields = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i) {
+                        fields.add(new XsdField(readString()));
+                    }
+                    tag = new XsdIdentityConstraint(name, constraintKind, refer, selector,
+                            fields);
+                    break;
+                }
+                default:
+                    throw new XsdParserException("unknown tag in encoded schema");
+            }
+            if (!tagClass.isInstance(tag)) {
+                throw new XsdParserException("unexpected tag in encoded schema");
+            }
+            if (deprecated) {
+                tag.setDeprecated(true);
+            }
+            return tagClass.cast(tag);
+        }
+
+        <E> E readEnum(E[] values) throws XsdParserException {
+            int ordinal = readInt();
+            if (ordinal < 0 || ordinal >= values.length) {
+                throw new XsdParserException("unknown constant in encoded schema");
+            }
+            return values[ordinal];
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import com.android.xsdc.cpp.CppCodeGenerator;
+import com.android.xsdc.cpp.CppCodeGeneratorException;
+import com.android.xsdc.java.JavaCodeGenerator;
+import com.android.xsdc.java.JavaCodeGeneratorException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates code from schemas for callers embedding xsdc, such as build plugins and tests,
+ * without going through Main.
+ *
+ * A compiler keeps the loader of schema documents and its threads across compiles. Compiles
+ * from several threads may share one compiler.
+ */
+public class XsdCompiler implements AutoCloseable {
+    public enum Language {
+        JAVA,
+        CPP,
+    }
+
+    /** The options of Main for one compile. Options are immutable and built by a Builder. */
+    public static class Options {
+        private final Language language;
+        private final String packageName;
+        private final boolean arena;
+        private final boolean snapshot;
+        private final boolean writer;
+        private final boolean tokenizer;
+        private final boolean parallel;
+        private final boolean watch;
+        private final boolean cache;
+        private final boolean listener;
+        private final boolean indices;
+        private final boolean validate;
+        private final boolean benchmark;
+        private final boolean prune;
+
+        private Options(Builder builder) {
+            language = builder.language;
+            packageName = builder.packageName;
+            arena = builder.arena;
+            snapshot = builder.snapshot;
+            writer = builder.writer;
+            tokenizer = builder.tokenizer;
+            parallel = builder.parallel;
+            watch = builder.watch;
+            cache = builder.cache;
+            listener = builder.listener;
+            indices = builder.indices;
+            validate = builder.validate;
+            benchmark = builder.benchmark;
+            prune = builder.prune;
+        }
+
+        public static Builder builder(Language language, String packageName) {
+            return new Builder(language, packageName);
+        }
+
+        public Language getLanguage() {
+            return language;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public boolean isArena() {
+            return arena;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public boolean isWriter() {
+            return writer;
+        }
+
+        public boolean isTokenizer() {
+            return tokenizer;
+        }
+
+        public boolean isParallel() {
+            return parallel;
+        }
+
+        public boolean isWatch() {
+            return watch;
+        }
+
+        public boolean isCache() {
+            return cache;
+        }
+
+        public boolean isListener() {
+            return listener;
+        }
+
+        public boolean isIndices() {
+            return indices;
+        }
+
+        public boolean isValidate() {
+            return validate;
+        }
+
+        public boolean isBenchmark() {
+            return benchmark;
+        }
+
+        public boolean isPrune() {
+            return prune;
+        }
+    }
+
+    /** Builds Options. Every option is off unless it is set. */
+    public static class Builder {
+        private final Language language;
+        private final String packageName;
+        private boolean arena;
+        private boolean snapshot;
+        private boolean writer;
+        private boolean tokenizer;
+        private boolean parallel;
+        private boolean watch;
+        private boolean cache;
+        private boolean listener;
+        private boolean indices;
+        private boolean validate;
+        private boolean benchmark;
+        private boolean prune;
+
+        private Builder(Language language, String packageName) {
+            if (language == null || packageName == null) {
+                throw new NullPointerException("language and packageName are required");
+            }
+            this.language = language;
+            this.packageName = packageName;
+        }
+
+        public Builder setArena(boolean arena) {
+            this.arena = arena;
+            return this;
+        }
+
+        public Builder setSnapshot(boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public Builder setWriter(boolean writer) {
+            this.writer = writer;
+            return this;
+        }
+
+        public Builder setTokenizer(boolean tokenizer) {
+            this.tokenizer = tokenizer;
+            return this;
+        }
+
+        public Builder setParallel(boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+
+        public Builder setWatch(boolean watch) {
+            this.watch = watch;
+            return this;
+        }
+
+        public Builder setCache(boolean cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        public Builder setListener(boolean listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder setIndices(boolean indices) {
+            this.indices = indices;
+            return this;
+        }
+
+        public Builder setValidate(boolean validate) {
+            this.validate = validate;
+            return this;
+        }
+
+        public Builder setBenchmark(boolean benchmark) {
+            this.benchmark = benchmark;
+            return this;
+        }
+
+        public Builder setPrune(boolean prune) {
+            this.prune = prune;
+            return this;
+        }
+
+        public Options build() {
+            return new Options(this);
+        }
+    }
+
+    private final XsdSchemaLoader loader;
+
+    public XsdCompiler() {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Creates a compiler parsing documents with the given number of threads. If schemaCache
+     * isn't null, schemas read from paths are kept in it.
+     */
+    public XsdCompiler(int threads, SchemaCache schemaCache) {
+        loader = new XsdSchemaLoader(threads, schemaCache);
+    }
+
+    public XmlSchema parse(Path path) throws IOException, XsdParserException {
+        return loader.load(path);
+    }
+
+    /**
+     * Parses the schema document contents. Locations of the schemas it includes or imports
+     * are resolved against the working directory.
+     */
+    public XmlSchema parse(byte[] contents) throws IOException, XsdParserException {
+        return loader.load(contents);
+    }
+
+    public XmlSchema parse(InputStream in) throws IOException, XsdParserException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            contents.write(buffer, 0, length);
+        }
+        return parse(contents.toByteArray());
+    }
+
+    /** Returns the sources generated from the schema at path, by file name. */
+    public Map<String, String> compile(Path path, Options options) throws IOException,
+            XsdParserException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        return generate(parse(path), options);
+    }
+
+    public Map<String, String> compile(byte[] contents, Options options) throws IOException,
+            XsdParserException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        return generate(parse(contents), options);
+    }
+
+    public Map<String, String> compile(InputStream in, Options options) throws IOException,
+            XsdParserException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        return generate(parse(in), options);
+    }
+
+    /** Writes the files generated from the schema at path to fs. */
+    public void compile(Path path, Options options, FileSystem fs) throws IOException,
+            XsdParserException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        generate(parse(path), options, fs);
+    }
+
+    /**
+     * Returns the sources generated from xmlSchema, by file name. Headers of C++ code are
+     * named include/name.h like the files written by Main.
+     */
+    public Map<String, String> generate(XmlSchema xmlSchema, Options options)
+            throws IOException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        InMemoryFileSystem fs = new InMemoryFileSystem();
+        generate(xmlSchema, options, fs);
+        Map<String, String> sources = new TreeMap<>();
+        for (String fileName : fs.getFileNames()) {
+            sources.put(fileName, fs.getCharContent(fileName).toString());
+        }
+        return sources;
+    }
+
+    /**
+     * Writes the files generated from xmlSchema to fs. Java files are written at the root of
+     * fs, which is the directory of the package.
+     */
+    public void generate(XmlSchema xmlSchema, Options options, FileSystem fs)
+            throws IOException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        generate(xmlSchema, options, fs, fs, null, null, null);
+    }
+
+    /**
+     * Writes the files generated from xmlSchema to fs, like generate(xmlSchema, options, fs),
+     * except Java benchmarks, which are written to benchmarkFs. If manifest isn't null, files
+     * whose fingerprint didn't change since the last run into directory aren't written, and the
+     * manifest is updated. If profiler isn't null, the phases of generating are reported to it.
+     */
+    public void generate(XmlSchema xmlSchema, Options options, FileSystem fs,
+            FileSystem benchmarkFs, FingerprintManifest manifest, File directory,
+            Profiler profiler)
+            throws IOException, JavaCodeGeneratorException, CppCodeGeneratorException {
+        if (options.prune) {
+            xmlSchema = xmlSchema.pruneUnreachableTypes(new ArrayList<>());
+        }
+        switch (options.language) {
+            case JAVA: {
+                Profiler.Phase phase = Profiler.startPhase(profiler, "resolve");
+                JavaCodeGenerator javaCodeGenerator = new JavaCodeGenerator(xmlSchema, options);
+                Profiler.stopPhase(phase);
+                Map<String, String> fingerprints = null;
+                Set<String> skipped = Collections.emptySet();
+                if (manifest != null) {
+                    phase = Profiler.startPhase(profiler, "fingerprint");
+                    fingerprints = javaCodeGenerator.getFingerprints();
+                    skipped = manifest.getUnchanged(directory, fingerprints);
+                    Profiler.stopPhase(phase);
+                }
+                phase = Profiler.startPhase(profiler, "emit");
+                javaCodeGenerator.print(fs, benchmarkFs, skipped);
+                Profiler.stopPhase(phase);
+                if (manifest != null) {
+                    manifest.update(directory, fingerprints);
+                }
+                break;
+            }
+            case CPP: {
+                Profiler.Phase phase = Profiler.startPhase(profiler, "resolve");
+                CppCodeGenerator cppCodeGenerator = new CppCodeGenerator(xmlSchema, options);
+                Profiler.stopPhase(phase);
+                // all files depend on the whole schema, so they are written or skipped together
+                Map<String, String> fingerprints = null;
+                boolean unchanged = false;
+                if (manifest != null) {
+                    phase = Profiler.startPhase(profiler, "fingerprint");
+                    fingerprints = cppCodeGenerator.getFingerprints();
+                    unchanged = manifest.getUnchanged(directory, fingerprints).size()
+                            == fingerprints.size();
+                    Profiler.stopPhase(phase);
+                }
+                if (!unchanged) {
+                    phase = Profiler.startPhase(profiler, "emit");
+                    cppCodeGenerator.print(fs);
+                    Profiler.stopPhase(phase);
+                }
+                if (manifest != null) {
+                    manifest.update(directory, fingerprints);
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        loader.close();
+    }
+}
@@ -23,13 +23,13 @@ import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.stream.Collectors;
 
 import javax.xml.namespace.QName;
@@ -38,26 +38,49 @@ public class XsdHandler extends DefaultHandler {
     private static class State {
         final String name;
         final Map<String, String> attributeMap;
-        final List<XsdTag> tags;
+        // most tags have no children, so the list is only allocated for the first one.
+        List<XsdTag> tags;
         boolean deprecated;
 
         State(String name, Map<String, String> attributeMap) {
             this.name = name;
-            this.attributeMap = Collections.unmodifiableMap(attributeMap);
-            tags = new ArrayList<>();
+            this.attributeMap = attributeMap;
+            tags = Collections.emptyList();
             deprecated = false;
         }
+
+        void addTag(XsdTag tag) {
+            if (tags.isEmpty()) tags = new ArrayList<>();
+            tags.add(tag);
+        }
+
+        void addTags(List<? extends XsdTag> children) {
+            if (children.isEmpty()) return;
+            if (tags.isEmpty()) tags = new ArrayList<>();
+            tags.addAll(children);
+        }
     }
 
     private XmlSchema schema;
-    private final Stack<State> stateStack;
+    private final SymbolTable symbols;
+    private final List<String> schemaLocations;
+    private final ArrayDeque<State> stateStack;
     private final Map<String, String> namespaces;
     private Locator locator;
     private boolean documentationFlag;
     private boolean enumerationFlag;
 
     public XsdHandler() {
-        stateStack = new Stack<>();
+        this(new SymbolTable());
+    }
+
+    /**
+     * Creates a handler sharing names and type references with the other handlers of symbols.
+     */
+    public XsdHandler(SymbolTable symbols) {
+        this.symbols = symbols;
+        schemaLocations = new ArrayList<>();
+        stateStack = new ArrayDeque<>();
         namespaces = new HashMap<>();
         documentationFlag = false;
         enumerationFlag = false;
@@ -67,6 +90,14 @@ public class XsdHandler extends DefaultHandler {
         return schema;
     }
 
+    /**
+     * Returns the schemaLocation of the include and import tags of the document, in document
+     * order. Imports without a schemaLocation are left out.
+     */
+    public List<String> getSchemaLocations() {
+        return Collections.unmodifiableList(schemaLocations);
+    }
+
     @Override
     public void setDocumentLocator(Locator locator) {
         this.locator = locator;
@@ -86,9 +117,9 @@ public class XsdHandler extends DefaultHandler {
         if (str == null) return null;
         String[] parsed = str.split(":");
         if (parsed.length == 2) {
-            return new QName(namespaces.get(parsed[0]), parsed[1]);
+            return symbols.qName(namespaces.get(parsed[0]), parsed[1]);
         } else if (parsed.length == 1) {
-            return new QName(null, str);
+            return symbols.qName(null, str);
         }
         throw new XsdParserException(String.format("QName parse error : %s", str));
     }
@@ -106,119 +137,173 @@ public class XsdHandler extends DefaultHandler {
     @Override
     public void startElement(
             String uri, String localName, String qName, Attributes attributes) {
+        if (documentationFlag) return;
         // we need to copy attributes because it is mutable..
         Map<String, String> attributeMap = new HashMap<>();
         for (int i = 0; i < attributes.getLength(); ++i) {
             attributeMap.put(attributes.getLocalName(i), attributes.getValue(i));
         }
-        if (!documentationFlag) {
-            stateStack.push(new State(localName, attributeMap));
+        startTag(localName, attributeMap);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        try {
+            endTag(localName);
+        } catch (XsdParserException e) {
+            throw new SAXException(locate(locator.getLineNumber(), locator.getColumnNumber(),
+                    e.getMessage()));
         }
-        if (localName == "documentation") {
+    }
+
+    /**
+     * Returns whether the content of the current tag is skipped, in which case the attributes of
+     * the next start tag don't need to be read.
+     */
+    boolean isSkipping() {
+        return documentationFlag;
+    }
+
+    // The attributeMap is owned by the handler from then on.
+    void startTag(String localName, Map<String, String> attributeMap) {
+        if (documentationFlag) return;
+        attributeMap.replaceAll((name, value) -> symbols.intern(value));
+        stateStack.push(new State(localName, attributeMap));
+        if (localName.equals("documentation")) {
             documentationFlag = true;
         }
     }
 
-    @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (documentationFlag && localName != "documentation") {
+    void endTag(String localName) throws XsdParserException {
+        if (documentationFlag && !localName.equals("documentation")) {
             return;
         }
-        try {
-            State state = stateStack.pop();
-            switch (state.name) {
-                case "schema":
-                    schema = makeSchema(state);
-                    break;
-                case "element":
-                    stateStack.peek().tags.add(makeElement(state));
-                    break;
-                case "attribute":
-                    stateStack.peek().tags.add(makeAttribute(state));
-                    break;
-                case "complexType":
-                    stateStack.peek().tags.add(makeComplexType(state));
-                    break;
-                case "complexContent":
-                    stateStack.peek().tags.add(makeComplexContent(state));
-                    break;
-                case "simpleContent":
-                    stateStack.peek().tags.add(makeSimpleContent(state));
-                    break;
-                case "restriction":
-                    if (enumerationFlag) {
-                        stateStack.peek().tags.add(makeEnumRestriction(state));
-                        enumerationFlag = false;
-                    } else {
-                        stateStack.peek().tags.add(makeGeneralRestriction(state));
-                    }
-                    break;
-                case "extension":
-                    stateStack.peek().tags.add(makeGeneralExtension(state));
-                    break;
-                case "simpleType":
-                    stateStack.peek().tags.add(makeSimpleType(state));
-                    break;
-                case "list":
-                    stateStack.peek().tags.add(makeSimpleTypeList(state));
-                    break;
-                case "union":
-                    stateStack.peek().tags.add(makeSimpleTypeUnion(state));
-                    break;
-                case "sequence":
-                    stateStack.peek().tags.addAll(makeSequence(state));
-                    break;
-                case "choice":
-                    stateStack.peek().tags.addAll(makeChoice(state));
-                    break;
-                case "all":
-                    stateStack.peek().tags.addAll(makeAll(state));
-                    break;
-                case "enumeration":
-                    stateStack.peek().tags.add(makeEnumeration(state));
-                    enumerationFlag = true;
-                    break;
-                case "fractionDigits":
-                case "length":
-                case "maxExclusive":
-                case "maxInclusive":
-                case "maxLength":
-                case "minExclusive":
-                case "minInclusive":
-                case "minLength":
-                case "pattern":
-                case "totalDigits":
-                case "whiteSpace":
-                    // Tags under simpleType <restriction>. They are ignored.
-                    break;
-                case "annotation":
-                    stateStack.peek().deprecated = isDeprecated(state.attributeMap, state.tags);
-                    break;
-                case "appinfo":
-                    // They function like comments, so are ignored.
-                    break;
-                case "documentation":
-                    documentationFlag = false;
-                    break;
-                case "key":
-                case "keyref":
-                case "selector":
-                case "field":
-                case "unique":
-                    // These tags are not related to xml parsing.
-                    // They are using when validating xml files via xsd file.
-                    // So they are ignored.
-                    break;
-                default:
-                    throw new XsdParserException(String.format("unsupported tag : %s", state.name));
-            }
-        } catch (XsdParserException e) {
-            throw new SAXException(
-                    String.format("Line %d, Column %d - %s",
-                            locator.getLineNumber(), locator.getColumnNumber(), e.getMessage()));
+        State state = stateStack.pop();
+        switch (state.name) {
+            case "schema":
+                schema = makeSchema(state);
+                break;
+            case "include":
+            case "import":
+                addSchemaLocation(state);
+                break;
+            case "element":
+                stateStack.peek().addTag(makeElement(state));
+                break;
+            case "attribute":
+                stateStack.peek().addTag(makeAttribute(state));
+                break;
+            case "complexType":
+                stateStack.peek().addTag(makeComplexType(state));
+                break;
+            case "complexContent":
+                stateStack.peek().addTag(makeComplexContent(state));
+                break;
+            case "simpleContent":
+                stateStack.peek().addTag(makeSimpleContent(state));
+                break;
+            case "restriction":
+                if (enumerationFlag) {
+                    stateStack.peek().addTag(makeEnumRestriction(state));
+                    enumerationFlag = false;
+                } else {
+                    stateStack.peek().addTag(makeGeneralRestriction(state));
+                }
+                break;
+            case "extension":
+                stateStack.peek().addTag(makeGeneralExtension(state));
+                break;
+            case "simpleType":
+                stateStack.peek().addTag(makeSimpleType(state));
+                break;
+            case "list":
+                stateStack.peek().addTag(makeSimpleTypeList(state));
+                break;
+            case "union":
+                stateStack.peek().addTag(makeSimpleTypeUnion(state));
+                break;
+            case "sequence":
+                stateStack.peek().addTags(makeSequence(state));
+                break;
+            case "choice":
+                stateStack.peek().addTags(makeChoice(state));
+                break;
+            case "all":
+                stateStack.peek().addTags(makeAll(state));
+                break;
+            case "enumeration":
+                stateStack.peek().addTag(makeEnumeration(state));
+                enumerationFlag = true;
+                break;
+            case "fractionDigits":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.FRACTION_DIGITS));
+                break;
+            case "length":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.LENGTH));
+                break;
+            case "maxExclusive":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MAX_EXCLUSIVE));
+                break;
+            case "maxInclusive":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MAX_INCLUSIVE));
+                break;
+            case "maxLength":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MAX_LENGTH));
+                break;
+            case "minExclusive":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MIN_EXCLUSIVE));
+                break;
+            case "minInclusive":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MIN_INCLUSIVE));
+                break;
+            case "minLength":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.MIN_LENGTH));
+                break;
+            case "pattern":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.PATTERN));
+                break;
+            case "totalDigits":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.TOTAL_DIGITS));
+                break;
+            case "whiteSpace":
+                stateStack.peek().addTag(makeFacet(state, XsdFacet.Kind.WHITE_SPACE));
+                break;
+            case "annotation":
+                stateStack.peek().deprecated = isDeprecated(state.attributeMap, state.tags);
+                break;
+            case "appinfo":
+                // They function like comments, so are ignored.
+                break;
+            case "documentation":
+                documentationFlag = false;
+                break;
+            case "key":
+                stateStack.peek().addTag(makeIdentityConstraint(state,
+                        XsdIdentityConstraint.Kind.KEY));
+                break;
+            case "keyref":
+                stateStack.peek().addTag(makeIdentityConstraint(state,
+                        XsdIdentityConstraint.Kind.KEYREF));
+                break;
+            case "unique":
+                stateStack.peek().addTag(makeIdentityConstraint(state,
+                        XsdIdentityConstraint.Kind.UNIQUE));
+                break;
+            case "selector":
+                stateStack.peek().addTag(makeSelector(state));
+                break;
+            case "field":
+                stateStack.peek().addTag(makeField(state));
+                break;
+            default:
+                throw new XsdParserException(String.format("unsupported tag : %s", state.name));
         }
     }
 
+    static String locate(int line, int column, String message) {
+        return String.format("Line %d, Column %d - %s", line, column, message);
+    }
+
     private XmlSchema makeSchema(State state) {
         Map<String, XsdElement> elementMap = new LinkedHashMap<>();
         Map<String, XsdType> typeMap = new LinkedHashMap<>();
@@ -238,6 +323,16 @@ public class XsdHandler extends DefaultHandler {
         return new XmlSchema(elementMap, typeMap, attrMap);
     }
 
+    private void addSchemaLocation(State state) throws XsdParserException {
+        String schemaLocation = state.attributeMap.get("schemaLocation");
+        if (schemaLocation == null) {
+            // a namespace can be imported without a location, e.g. for the xml namespace.
+            if (state.name.equals("import")) return;
+            throw new XsdParserException("schemaLocation is required for include.");
+        }
+        schemaLocations.add(schemaLocation);
+    }
+
     private XsdElement makeElement(State state) throws XsdParserException {
         String name = state.attributeMap.get("name");
         QName typename = parseQName(state.attributeMap.get("type"));
@@ -265,16 +360,20 @@ public class XsdHandler extends DefaultHandler {
 
         XsdType type = null;
         if (typename != null) {
-            type = new XsdType(null, typename);
+            type = symbols.typeRef(typename);
         }
+        List<XsdIdentityConstraint> identityConstraints = new ArrayList<>();
         for (XsdTag tag : state.tags) {
             if (tag == null) continue;
             if (tag instanceof XsdType) {
                 type = (XsdType) tag;
+            } else if (tag instanceof XsdIdentityConstraint) {
+                identityConstraints.add((XsdIdentityConstraint) tag);
             }
         }
 
-        return setDeprecated(new XsdElement(name, ref, type, multiple), state.deprecated);
+        return setDeprecated(new XsdElement(name, ref, type, multiple, identityConstraints),
+                state.deprecated);
     }
 
     private XsdAttribute makeAttribute(State state) throws XsdParserException {
@@ -288,7 +387,7 @@ public class XsdHandler extends DefaultHandler {
 
         XsdType type = null;
         if (typename != null) {
-            type = new XsdType(null, typename);
+            type = symbols.typeRef(typename);
         }
         for (XsdTag tag : state.tags) {
             if (tag == null) continue;
@@ -391,20 +490,23 @@ public class XsdHandler extends DefaultHandler {
 
         XsdType type = null;
         if (base != null) {
-            type = new XsdType(null, base);
+            type = symbols.typeRef(base);
         }
         List<XsdAttribute> attributes = new ArrayList<>();
         List<XsdElement> elements = new ArrayList<>();
+        List<XsdFacet> facets = new ArrayList<>();
         for (XsdTag tag : state.tags) {
             if (tag == null) continue;
             if (tag instanceof XsdAttribute) {
                 attributes.add((XsdAttribute) tag);
             } else if (tag instanceof XsdElement) {
                 elements.add((XsdElement) tag);
+            } else if (tag instanceof XsdFacet) {
+                facets.add((XsdFacet) tag);
             }
         }
 
-        return setDeprecated(new XsdGeneralRestriction(type, attributes, elements),
+        return setDeprecated(new XsdGeneralRestriction(type, attributes, elements, facets),
                 state.deprecated);
     }
 
@@ -421,7 +523,8 @@ public class XsdHandler extends DefaultHandler {
                 elements.add((XsdElement) tag);
             }
         }
-        return setDeprecated(new XsdGeneralExtension(new XsdType(null, base), attributes, elements),
+        XsdType type = base != null ? symbols.typeRef(base) : new XsdType(null, null);
+        return setDeprecated(new XsdGeneralExtension(type, attributes, elements),
                 state.deprecated);
     }
 
@@ -433,7 +536,8 @@ public class XsdHandler extends DefaultHandler {
             if (tag instanceof XsdList) {
                 type = new XsdList(name, ((XsdList) tag).getItemType());
             } else if (tag instanceof XsdGeneralRestriction) {
-                type = new XsdRestriction(name, ((XsdGeneralRestriction) tag).getBase(), null);
+                type = new XsdRestriction(name, ((XsdGeneralRestriction) tag).getBase(), null,
+                        ((XsdGeneralRestriction) tag).getFacets());
             } else if (tag instanceof XsdEnumRestriction) {
                 type = new XsdRestriction(name, ((XsdEnumRestriction) tag).getBase(),
                         ((XsdEnumRestriction) tag).getEnums());
@@ -449,7 +553,7 @@ public class XsdHandler extends DefaultHandler {
 
         XsdType itemType = null;
         if (itemTypeName != null) {
-            itemType = new XsdType(null, itemTypeName);
+            itemType = symbols.typeRef(itemTypeName);
         }
         for (XsdTag tag : state.tags) {
             if (tag == null) continue;
@@ -463,7 +567,7 @@ public class XsdHandler extends DefaultHandler {
     private XsdUnion makeSimpleTypeUnion(State state) throws XsdParserException {
         List<QName> memberTypeNames = parseQNames(state.attributeMap.get("memberTypes"));
         List<XsdType> memberTypes = memberTypeNames.stream().map(
-                ref -> new XsdType(null, ref)).collect(Collectors.toList());
+                symbols::typeRef).collect(Collectors.toList());
 
         for (XsdTag tag : state.tags) {
             if (tag == null) continue;
@@ -511,7 +615,8 @@ public class XsdHandler extends DefaultHandler {
                 }
                 XsdElement element = (XsdElement)tag;
                 elements.add(setDeprecated(new XsdChoice(element.getName(), element.getRef(),
-                        element.getType(), element.isMultiple()), element.isDeprecated()));
+                        element.getType(), element.isMultiple(),
+                        element.getIdentityConstraints()), element.isDeprecated()));
             }
         }
         return elements;
@@ -524,12 +629,43 @@ public class XsdHandler extends DefaultHandler {
             if (tag instanceof XsdElement) {
                 XsdElement element = (XsdElement)tag;
                 elements.add(setDeprecated(new XsdAll(element.getName(), element.getRef(),
-                        element.getType(), element.isMultiple()), element.isDeprecated()));
+                        element.getType(), element.isMultiple(),
+                        element.getIdentityConstraints()), element.isDeprecated()));
             }
         }
         return elements;
     }
 
+    private XsdIdentityConstraint makeIdentityConstraint(State state,
+            XsdIdentityConstraint.Kind kind) throws XsdParserException {
+        String name = state.attributeMap.get("name");
+        QName refer = parseQName(state.attributeMap.get("refer"));
+
+        XsdSelector selector = null;
+        List<XsdField> fields = new ArrayList<>();
+        for (XsdTag tag : state.tags) {
+            if (tag == null) continue;
+            if (tag instanceof XsdSelector) {
+                selector = (XsdSelector) tag;
+            } else if (tag instanceof XsdField) {
+                fields.add((XsdField) tag);
+            }
+        }
+        return new XsdIdentityConstraint(name, kind, refer, selector, fields);
+    }
+
+    private XsdSelector makeSelector(State state) throws XsdParserException {
+        return new XsdSelector(state.attributeMap.get("xpath"));
+    }
+
+    private XsdField makeField(State state) throws XsdParserException {
+        return new XsdField(state.attributeMap.get("xpath"));
+    }
+
+    private XsdFacet makeFacet(State state, XsdFacet.Kind kind) throws XsdParserException {
+        return new XsdFacet(kind, state.attributeMap.get("value"));
+    }
+
     private XsdEnumeration makeEnumeration(State state) throws XsdParserException {
         String value = state.attributeMap.get("value");
         return setDeprecated(new XsdEnumeration(value), state.deprecated);
@@ -540,7 +676,7 @@ public class XsdHandler extends DefaultHandler {
 
         XsdType type = null;
         if (base != null) {
-            type = new XsdType(null, base);
+            type = symbols.typeRef(base);
         }
         List<XsdEnumeration> enums = new ArrayList<>();
         for (XsdTag tag : state.tags) {
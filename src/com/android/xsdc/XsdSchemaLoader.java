@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a schema together with the schemas it includes or imports, and merges their
+ * definitions into one XmlSchema.
+ *
+ * Documents are read with XsdStaxReader as soon as they are discovered, so documents which
+ * don't depend on each other are parsed in parallel. Each document is parsed once per load, and
+ * the documents parsed by a load share one SymbolTable, which doesn't outlive the load. The
+ * loader keeps the most recently used parsed documents by real path and digest, so a document
+ * shared by the schemas read with one loader is only parsed again when it changes or when it was
+ * evicted. With a SchemaCache, schemas whose documents didn't change since an earlier run are
+ * decoded from the cache instead.
+ */
+public class XsdSchemaLoader implements AutoCloseable {
+    static final int DIGEST_LENGTH = 32;
+    static final int DEFAULT_MAX_FRAGMENTS = 256;
+
+    private static class Fragment {
+        final byte[] digest;
+        final XmlSchema schema;
+        final List<Path> dependencies;
+
+        Fragment(byte[] digest, XmlSchema schema, List<Path> dependencies) {
+            this.digest = digest;
+            this.schema = schema;
+            this.dependencies = Collections.unmodifiableList(dependencies);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final SchemaCache schemaCache;
+    private final Map<Path, Fragment> fragments;
+
+    public XsdSchemaLoader() {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    public XsdSchemaLoader(int threads) {
+        this(threads, null);
+    }
+
+    public XsdSchemaLoader(int threads, SchemaCache schemaCache) {
+        this(threads, schemaCache, DEFAULT_MAX_FRAGMENTS);
+    }
+
+    /**
+     * Creates a loader reading documents with the given number of threads, which keeps at most
+     * maxFragments parsed documents across loads.
+     */
+    public XsdSchemaLoader(int threads, SchemaCache schemaCache, int maxFragments) {
+        if (maxFragments < 0) {
+            throw new IllegalArgumentException("maxFragments is negative : " + maxFragments);
+        }
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "xsdc-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.schemaCache = schemaCache;
+        fragments = Collections.synchronizedMap(new LinkedHashMap<Path, Fragment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Fragment> eldest) {
+                return size() > maxFragments;
+            }
+        });
+    }
+
+    /**
+     * Returns the definitions of the schema at path and of the schemas it depends on, the
+     * dependencies of a schema coming before its own definitions. Documents which include each
+     * other are merged once.
+     */
+    public XmlSchema load(Path path) throws IOException, XsdParserException {
+        Map<Path, Future<Fragment>> pending = new ConcurrentHashMap<>();
+        SymbolTable symbols = new SymbolTable();
+        Path root = path.toRealPath();
+        if (schemaCache != null) {
+            XmlSchema cached = schemaCache.get(root, symbols);
+            if (cached != null) return cached;
+        }
+        submit(root, pending, symbols);
+        List<XmlSchema> ordered = new ArrayList<>();
+        Map<Path, byte[]> digests = new LinkedHashMap<>();
+        visit(root, pending, digests, ordered);
+        XmlSchema xmlSchema = XmlSchema.merge(ordered);
+        if (schemaCache != null) {
+            schemaCache.put(root, digests, xmlSchema);
+        }
+        return xmlSchema;
+    }
+
+    /**
+     * Returns the definitions of the schema document contents and of the schemas it depends on.
+     * As the document has no location, the locations of its dependencies are resolved against
+     * the working directory.
+     */
+    public XmlSchema load(byte[] contents) throws IOException, XsdParserException {
+        SymbolTable symbols = new SymbolTable();
+        Fragment fragment = parse("<input>", Paths.get("").toAbsolutePath(), contents,
+                digest(contents), symbols);
+        Map<Path, Future<Fragment>> pending = new ConcurrentHashMap<>();
+        for (Path dependency : fragment.dependencies) {
+            submit(dependency, pending, symbols);
+        }
+        List<XmlSchema> ordered = new ArrayList<>();
+        Map<Path, byte[]> digests = new LinkedHashMap<>();
+        for (Path dependency : fragment.dependencies) {
+            visit(dependency, pending, digests, ordered);
+        }
+        ordered.add(fragment.schema);
+        return XmlSchema.merge(ordered);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void submit(Path path, Map<Path, Future<Fragment>> pending, SymbolTable symbols) {
+        pending.computeIfAbsent(path, key -> executor.submit(() -> {
+            Fragment fragment = read(key, symbols);
+            for (Path dependency : fragment.dependencies) {
+                submit(dependency, pending, symbols);
+            }
+            return fragment;
+        }));
+    }
+
+    // Visited documents are added to digests.
+    private void visit(Path path, Map<Path, Future<Fragment>> pending, Map<Path, byte[]> digests,
+            List<XmlSchema> ordered) throws IOException, XsdParserException {
+        if (digests.containsKey(path)) return;
+        Fragment fragment;
+        try {
+            fragment = pending.get(path).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof XsdParserException) throw (XsdParserException) cause;
+            throw new IllegalStateException(cause);
+        }
+        digests.put(path, fragment.digest);
+        for (Path dependency : fragment.dependencies) {
+            visit(dependency, pending, digests, ordered);
+        }
+        ordered.add(fragment.schema);
+    }
+
+    // A document parsed by an earlier load is reused while its digest is unchanged.
+    private Fragment read(Path path, SymbolTable symbols) throws IOException, XsdParserException {
+        byte[] contents = Files.readAllBytes(path);
+        byte[] digest = digest(contents);
+        Fragment cached = fragments.get(path);
+        if (cached != null && Arrays.equals(cached.digest, digest)) {
+            return cached;
+        }
+        Fragment fragment = parse(path.toString(), path.getParent(), contents, digest, symbols);
+        fragments.put(path, fragment);
+        return fragment;
+    }
+
+    // Locations of dependencies are relative to directory.
+    private Fragment parse(String name, Path directory, byte[] contents, byte[] digest,
+            SymbolTable symbols) throws IOException, XsdParserException {
+        XsdHandler xsdHandler = new XsdHandler(symbols);
+        try {
+            XsdStaxReader.parse(new ByteArrayInputStream(contents), xsdHandler);
+        } catch (XsdParserException e) {
+            throw new XsdParserException(String.format("%s : %s", name, e.getMessage()));
+        }
+        List<Path> dependencies = new ArrayList<>();
+        for (String schemaLocation : xsdHandler.getSchemaLocations()) {
+            Path dependency = directory.resolve(schemaLocation);
+            if (!Files.exists(dependency)) {
+                throw new XsdParserException(String.format("%s : no schema at %s", name,
+                        schemaLocation));
+            }
+            dependencies.add(dependency.toRealPath());
+        }
+        return new Fragment(digest, xsdHandler.getSchema(), dependencies);
+    }
+
+    static byte[] digest(byte[] contents) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a schema document with a StAX pull parser into an XsdHandler, which then returns the
+ * same XmlSchema as when the document is read with SAX.
+ *
+ * The attributes of the tags skipped by the handler aren't copied.
+ */
+public class XsdStaxReader {
+    // XMLInputFactory isn't guaranteed to be thread-safe
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    });
+
+    private XsdStaxReader() {
+    }
+
+    /**
+     * Reads the schema document in into xsdHandler. Errors are reported with their line and
+     * column like the SAX parser does.
+     */
+    public static void parse(InputStream in, XsdHandler xsdHandler) throws XsdParserException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.get().createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader, xsdHandler);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement(reader, xsdHandler);
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new XsdParserException(e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // the stream is owned by the caller
+                }
+            }
+        }
+    }
+
+    private static void startElement(XMLStreamReader reader, XsdHandler xsdHandler) {
+        for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+            String prefix = reader.getNamespacePrefix(i);
+            xsdHandler.startPrefixMapping(prefix == null ? "" : prefix,
+                    reader.getNamespaceURI(i));
+        }
+        if (xsdHandler.isSkipping()) return;
+        int count = reader.getAttributeCount();
+        Map<String, String> attributeMap = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i) {
+            attributeMap.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        xsdHandler.startTag(reader.getLocalName(), attributeMap);
+    }
+
+    private static void endElement(XMLStreamReader reader, XsdHandler xsdHandler)
+            throws XsdParserException {
+        try {
+            xsdHandler.endTag(reader.getLocalName());
+        } catch (XsdParserException e) {
+            Location location = reader.getLocation();
+            throw new XsdParserException(XsdHandler.locate(location.getLineNumber(),
+                    location.getColumnNumber(), e.getMessage()));
+        }
+        for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+            String prefix = reader.getNamespacePrefix(i);
+            xsdHandler.endPrefixMapping(prefix == null ? "" : prefix);
+        }
+    }
+}
@@ -18,8 +18,13 @@ package com.android.xsdc.cpp;
 
 import com.android.xsdc.CodeWriter;
 import com.android.xsdc.FileSystem;
+import com.android.xsdc.ResolvedSchema;
+import com.android.xsdc.SampleDocument;
+import com.android.xsdc.SchemaFingerprints;
 import com.android.xsdc.XmlSchema;
+import com.android.xsdc.XsdCompiler;
 import com.android.xsdc.XsdConstants;
+import com.android.xsdc.XsdParserException;
 import com.android.xsdc.tag.*;
 
 import java.io.IOException;
@@ -27,6 +32,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -35,21 +42,96 @@ import javax.xml.namespace.QName;
 
 public class CppCodeGenerator {
     private XmlSchema xmlSchema;
+    private ResolvedSchema resolvedSchema;
     private String fileName;
-    private Map<String, CppSimpleType> cppSimpleTypeMap;
+    private SimpleTypeMapping simpleTypes;
     private CodeWriter cppFile;
     private CodeWriter headerFile;
     private boolean hasAttr;
+    private boolean arena;
+    private boolean snapshot;
+    private boolean writer;
+    private boolean validate;
+    private boolean benchmark;
+    // names of the read functions of root elements
+    private Map<XsdElement, String> readers;
+    private Set<XsdElement> recursiveElements;
+    // types of restrictions whose facets are checked, and the validators checking them with the
+    // constants they use
+    private Map<XsdRestriction, CppSimpleType> validatedTypes;
+    private List<String> validators;
+    private Set<String> validatorNames;
+    private boolean countsCharacters;
+    private boolean countsDigits;
 
     public CppCodeGenerator(XmlSchema xmlSchema, String fileName)
             throws CppCodeGeneratorException {
+        this(xmlSchema, XsdCompiler.Options.builder(XsdCompiler.Language.CPP, fileName).build());
+    }
+
+    /**
+     * Generates the code of xmlSchema in files named after the package of options, whose dots
+     * are replaced by underscores. The other options add to the generated code:
+     *
+     * With arena, every object of a parsed document is allocated from a single monotonic buffer
+     * owned by the returned XmlDocument. Strings are std::string_views of copies in the arena
+     * and repeated children are XmlSpans, so generated classes are trivially destructible and a
+     * document is released at once.
+     *
+     * With snapshot, a parsed document can also be written to a compact binary snapshot file,
+     * which is memory-mapped and read back much faster than the XML is parsed. Snapshots are
+     * tagged with a hash of the generated classes, so a snapshot written for another version of
+     * the schema is rejected.
+     *
+     * With writer, a document can be written back to XML which the generated parser reads.
+     *
+     * With validate, values of simple types are checked against the pattern, length, range and
+     * digits facets of their restrictions as they are parsed. Like malformed values, invalid
+     * values are logged and fail the read of the document. Patterns are compiled once into
+     * static std::regex objects.
+     *
+     * With benchmark, a Google Benchmark translation unit with its own main is also generated,
+     * which times the reader of each root element over documents given as arguments, or over
+     * documents synthesized from the schema. It replaces the global operator new to count
+     * allocations, so it is meant to be the only user of the parser in its binary.
+     *
+     * The language and prune of options, and the options of Java code only, are ignored.
+     */
+    public CppCodeGenerator(XmlSchema xmlSchema, XsdCompiler.Options options)
+            throws CppCodeGeneratorException {
         this.xmlSchema = xmlSchema;
-        this.fileName = fileName;
+        try {
+            this.resolvedSchema = new ResolvedSchema(xmlSchema);
+        } catch (XsdParserException e) {
+            throw new CppCodeGeneratorException(e.getMessage());
+        }
+        this.fileName = options.getPackageName().replace(".", "_");
+        this.arena = options.isArena();
+        this.snapshot = options.isSnapshot();
+        this.writer = options.isWriter();
+        this.validate = options.isValidate();
+        this.benchmark = options.isBenchmark();
+        this.readers = new LinkedHashMap<>();
+
+        if (arena && snapshot) {
+            throw new CppCodeGeneratorException("snapshot is not supported with arena");
+        }
 
         // class naming validation
         {
             Set<String> nameSet = new HashSet<>();
             nameSet.add("XmlParser");
+            if (arena) {
+                nameSet.add("XmlSpan");
+                nameSet.add("XmlDocument");
+            } else {
+                nameSet.add("XmlBox");
+            }
+            if (snapshot) {
+                nameSet.add("XmlSnapshotWriter");
+                nameSet.add("XmlSnapshotReader");
+                nameSet.add("XmlSnapshotFile");
+            }
             for (XsdType type : xmlSchema.getTypeMap().values()) {
                 if ((type instanceof XsdComplexType) || (type instanceof XsdRestriction &&
                         ((XsdRestriction)type).getEnums() != null)) {
@@ -80,15 +162,66 @@ public class CppCodeGenerator {
             }
         }
 
-        cppSimpleTypeMap = new HashMap<>();
+        validatedTypes = new HashMap<>();
+        validators = new ArrayList<>();
+        validatorNames = new HashSet<>();
+        simpleTypes = new SimpleTypeMapping();
         for (XsdType type : xmlSchema.getTypeMap().values()) {
             if (type instanceof XsdSimpleType) {
-                XsdType refType = new XsdType(null, new QName(type.getName()));
-                parseSimpleType(refType, true);
+                simpleTypes.map(new XsdType(null, new QName(type.getName())));
+            }
+        }
+
+        if (validate) {
+            // validators are printed before the parsers using them, so the anonymous simple
+            // types are parsed in advance.
+            for (XsdType type : xmlSchema.getTypeMap().values()) {
+                if (type instanceof XsdComplexType) {
+                    collectValidators((XsdComplexType) type);
+                }
+            }
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                collectValidators(element);
             }
         }
     }
 
+    private void collectValidators(XsdComplexType complexType) throws CppCodeGeneratorException {
+        for (XsdElement element : complexType.getElements()) {
+            collectValidators(element);
+        }
+        for (XsdAttribute attribute : complexType.getAttributes()) {
+            simpleTypes.map(resolvedSchema.resolveAttribute(attribute).getType());
+        }
+    }
+
+    private void collectValidators(XsdElement element) throws CppCodeGeneratorException {
+        if (element.getRef() != null || element.getType().getRef() != null) return;
+        if (element.getType() instanceof XsdComplexType) {
+            collectValidators((XsdComplexType) element.getType());
+        } else {
+            parseType(element.getType(), element.getName());
+        }
+    }
+
+    /**
+     * Returns the fingerprint of each file which print() writes, by file name. Both files depend
+     * on the whole schema.
+     */
+    public Map<String, String> getFingerprints() throws IOException {
+        SchemaFingerprints fingerprints = new SchemaFingerprints(xmlSchema, String.format(
+                "cpp %s %b %b %b %b %b", fileName, arena, snapshot, writer, validate,
+                benchmark));
+        String schemaFingerprint = fingerprints.ofSchema();
+        Map<String, String> ret = new LinkedHashMap<>();
+        ret.put(fileName + ".cpp", schemaFingerprint);
+        ret.put("include/" + fileName + ".h", schemaFingerprint);
+        if (benchmark) {
+            ret.put(fileName + "_benchmark.cpp", schemaFingerprint);
+        }
+        return ret;
+    }
+
     public void print(FileSystem fs)
             throws CppCodeGeneratorException, IOException {
         // cpp file, headr file init
@@ -99,14 +232,51 @@ public class CppCodeGenerator {
         headerFile.printf("#define %s_H\n\n", fileName.toUpperCase());
         headerFile.printf("#include <libxml/parser.h>\n");
         headerFile.printf("#include <libxml/xinclude.h>\n\n");
+        headerFile.printf("#include <bitset>\n");
         headerFile.printf("#include <map>\n");
+        headerFile.printf("#include <memory>\n");
+        if (arena) {
+            headerFile.printf("#include <memory_resource>\n");
+        }
         headerFile.printf("#include <optional>\n");
         headerFile.printf("#include <string>\n");
+        if (arena || writer) {
+            headerFile.printf("#include <string_view>\n");
+        }
         headerFile.printf("#include <vector>\n\n");
 
         cppFile.printf("#define LOG_TAG \"%s\"\n\n", fileName);
         cppFile.printf("#include <android/log.h>\n");
-        cppFile.printf("#include <android-base/strings.h>\n\n");
+        cppFile.printf("#include <charconv>\n");
+        if (validate) {
+            cppFile.printf("#include <limits>\n");
+        }
+        if (snapshot) {
+            cppFile.printf("#include <cstdint>\n");
+            cppFile.printf("#include <cstdio>\n");
+        }
+        if (arena || snapshot) {
+            cppFile.printf("#include <cstring>\n");
+        }
+        cppFile.printf("#include <memory>\n");
+        if (arena) {
+            cppFile.printf("#include <new>\n");
+        }
+        if (validate) {
+            cppFile.printf("#include <regex>\n");
+        }
+        cppFile.printf("#include <string_view>\n");
+        if (arena) {
+            cppFile.printf("#include <type_traits>\n");
+        }
+        if (snapshot) {
+            cppFile.printf("#include <unordered_map>\n\n");
+            cppFile.printf("#include <fcntl.h>\n");
+            cppFile.printf("#include <sys/mman.h>\n");
+            cppFile.printf("#include <sys/stat.h>\n");
+            cppFile.printf("#include <unistd.h>\n");
+        }
+        cppFile.println();
         cppFile.printf("#include <libxml/parser.h>\n");
         cppFile.printf("#include <libxml/xinclude.h>\n\n");
         cppFile.printf("#include \"%s.h\"\n\n",fileName);
@@ -118,28 +288,44 @@ public class CppCodeGenerator {
             cppFile.printf("namespace %s {\n", token);
         }
 
+        Map<String, XsdComplexType> classMap = new LinkedHashMap<>();
+        for (XsdType type : xmlSchema.getTypeMap().values()) {
+            if (type instanceof XsdComplexType) {
+                classMap.put(Utils.toClassName(type.getName()), (XsdComplexType) type);
+            }
+        }
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            XsdType type = element.getType();
+            if (type.getRef() == null && type instanceof XsdComplexType) {
+                classMap.put(Utils.toClassName(element.getName()), (XsdComplexType) type);
+            }
+        }
+        List<String> classOrder = orderClasses(classMap);
+
+        if (arena) {
+            printArenaTypes();
+        } else if (!recursiveElements.isEmpty()) {
+            printXmlBox();
+        }
         printPrototype();
         printXmlParser();
+        if (snapshot) {
+            printXmlSnapshot();
+        }
+        if (writer) {
+            printXmlWriter();
+        }
 
         for (XsdType type : xmlSchema.getTypeMap().values()) {
-            if (type instanceof XsdComplexType) {
-                String name = Utils.toClassName(type.getName());
-                XsdComplexType complexType = (XsdComplexType) type;
-                printClass(name, "", complexType);
-            } else if (type instanceof XsdRestriction &&
+            if (type instanceof XsdRestriction &&
                   ((XsdRestriction)type).getEnums() != null) {
                 String name = Utils.toClassName(type.getName());
                 XsdRestriction restrictionType = (XsdRestriction) type;
                 printEnum(name, restrictionType);
             }
         }
-        for (XsdElement element : xmlSchema.getElementMap().values()) {
-            XsdType type = element.getType();
-            if (type.getRef() == null && type instanceof XsdComplexType) {
-                String name = Utils.toClassName(element.getName());
-                XsdComplexType complexType = (XsdComplexType) type;
-                printClass(name, "", complexType);
-            }
+        for (String name : classOrder) {
+            printClass(name, "", classMap.get(name));
         }
 
         Collections.reverse(namespace);
@@ -151,12 +337,101 @@ public class CppCodeGenerator {
         headerFile.printf("#endif // %s_H\n",fileName.toUpperCase().replace(".", "_"));
         cppFile.close();
         headerFile.close();
+
+        if (benchmark) {
+            try (CodeWriter out = new CodeWriter(
+                    fs.getPrintWriter(fileName + "_benchmark.cpp"))) {
+                printBenchmark(out);
+            }
+        }
+    }
+
+    // Single complex children are held by value, so the class of a child has to be complete
+    // before the class holding it. Children which lead back to their holder are held by an
+    // XmlBox, or by pointer into the arena, instead, and classes are printed in an order where
+    // the remaining dependencies come first.
+    private List<String> orderClasses(Map<String, XsdComplexType> classMap)
+            throws CppCodeGeneratorException {
+        Map<String, List<XsdElement>> children = new HashMap<>();
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        for (Map.Entry<String, XsdComplexType> entry : classMap.entrySet()) {
+            List<XsdElement> elements = new ArrayList<>();
+            Set<String> names = new LinkedHashSet<>();
+            String baseName = getBaseName(entry.getValue());
+            if (baseName != null) {
+                names.add(baseName);
+            }
+            collectChildren(entry.getValue(), elements);
+            for (XsdElement element : elements) {
+                names.add(getChildClassName(element));
+            }
+            children.put(entry.getKey(), elements);
+            dependencies.put(entry.getKey(), names);
+        }
+
+        recursiveElements = new HashSet<>();
+        for (String name : classMap.keySet()) {
+            for (XsdElement element : children.get(name)) {
+                String childName = getChildClassName(element);
+                if (reaches(childName, name, dependencies, new HashSet<>())) {
+                    recursiveElements.add(element);
+                    dependencies.get(name).remove(childName);
+                }
+            }
+        }
+        // recursive edges have been removed, so the remaining dependencies are acyclic
+        List<String> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (String name : classMap.keySet()) {
+            visitClass(name, dependencies, visited, order);
+        }
+        return order;
+    }
+
+    // Collects the single complex children of a class which refer to top level classes,
+    // including those of its anonymous inner classes.
+    private void collectChildren(XsdComplexType complexType, List<XsdElement> elements)
+            throws CppCodeGeneratorException {
+        for (XsdElement element : complexType.getElements()) {
+            if (element.getRef() == null && element.getType().getRef() == null
+                    && element.getType() instanceof XsdComplexType) {
+                collectChildren((XsdComplexType) element.getType(), elements);
+            } else if (!element.isMultiple()
+                    && parseType(resolvedSchema.resolveElement(element).getType(),
+                    resolvedSchema.resolveElement(element).getName()) instanceof CppComplexType) {
+                elements.add(element);
+            }
+        }
+    }
+
+    private String getChildClassName(XsdElement element) throws CppCodeGeneratorException {
+        XsdElement elementValue = resolvedSchema.resolveElement(element);
+        return parseType(elementValue.getType(), elementValue.getName()).getName();
+    }
+
+    private static boolean reaches(String from, String to, Map<String, Set<String>> dependencies,
+            Set<String> visited) {
+        if (from.equals(to)) return true;
+        if (!visited.add(from) || !dependencies.containsKey(from)) return false;
+        for (String name : dependencies.get(from)) {
+            if (reaches(name, to, dependencies, visited)) return true;
+        }
+        return false;
+    }
+
+    private static void visitClass(String name, Map<String, Set<String>> dependencies,
+            Set<String> visited, List<String> order) {
+        if (!visited.add(name) || !dependencies.containsKey(name)) return;
+        for (String dependency : dependencies.get(name)) {
+            visitClass(dependency, dependencies, visited, order);
+        }
+        order.add(name);
     }
 
     private void printEnum(String name, XsdRestriction restrictionType)
             throws CppCodeGeneratorException {
         headerFile.printf("enum class %s {\n", name);
-        cppFile.printf("const std::map<std::string, %s> %sString {\n", name, name);
+        cppFile.printf("const std::map<std::string, %s, std::less<>> %sString {\n", name, name);
         List<XsdEnumeration> enums = restrictionType.getEnums();
 
         for (XsdEnumeration tag : enums) {
@@ -167,13 +442,97 @@ public class CppCodeGenerator {
         headerFile.printf("UNKNOWN\n};\n\n");
         cppFile.printf("};\n\n");
 
-        cppFile.printf("static %s stringTo%s(std::string value) {\n"
+        // unknown values are kept as UNKNOWN, which may come from a newer version of the schema
+        cppFile.printf("static %s stringTo%s(std::string_view value) {\n"
                 + "auto enumValue =  %sString.find(value);\n"
-                + "return enumValue == %sString.end() ? %s::UNKNOWN : enumValue->second;\n"
-                + "}\n\n", name, name, name, name, name);
+                + "if (enumValue == %sString.end()) {\n"
+                + "__android_log_print(ANDROID_LOG_WARN, LOG_TAG, "
+                + "\"unknown value of %s: \\\"%%.*s\\\"\",\n"
+                + "static_cast<int>(value.size()), value.data());\n"
+                + "return %s::UNKNOWN;\n"
+                + "}\n"
+                + "return enumValue->second;\n"
+                + "}\n\n", name, name, name, name, name, name);
+
+        if (writer) {
+            cppFile.printf("[[maybe_unused]] static std::string_view %sToString(%s value) {\n"
+                    + "switch (value) {\n", name, name);
+            for (XsdEnumeration tag : enums) {
+                cppFile.printf("case %s::%s:\n"
+                        + "return \"%s\";\n", name, Utils.toEnumName(tag.getValue()),
+                        tag.getValue());
+            }
+            cppFile.printf("default:\n"
+                    + "return \"\";\n"
+                    + "}\n"
+                    + "}\n\n");
+        }
     }
 
 
+    private void printArenaTypes() {
+        headerFile.printf("// A view of an array allocated from the arena of an XmlDocument.\n"
+                + "template <class T>\n"
+                + "class XmlSpan {\n"
+                + "public:\n"
+                + "XmlSpan() = default;\n"
+                + "XmlSpan(T* data, size_t size) : data_(data), size_(size) {}\n"
+                + "T* begin() const { return data_; }\n"
+                + "T* end() const { return data_ + size_; }\n"
+                + "size_t size() const { return size_; }\n"
+                + "bool empty() const { return size_ == 0; }\n"
+                + "T& operator[](size_t i) const { return data_[i]; }\n"
+                + "private:\n"
+                + "T* data_ = nullptr;\n"
+                + "size_t size_ = 0;\n"
+                + "};\n\n");
+        headerFile.printf("// Owns the arena of a parsed document. "
+                + "Destroying it releases the whole document.\n"
+                + "template <class T>\n"
+                + "class XmlDocument {\n"
+                + "public:\n"
+                + "XmlDocument(std::unique_ptr<std::pmr::monotonic_buffer_resource> arena, "
+                + "T* root)\n"
+                + ": arena_(std::move(arena)), root_(root) {}\n"
+                + "T& get() const { return *root_; }\n"
+                + "T& operator*() const { return *root_; }\n"
+                + "T* operator->() const { return root_; }\n"
+                + "private:\n"
+                + "std::unique_ptr<std::pmr::monotonic_buffer_resource> arena_;\n"
+                + "T* root_;\n"
+                + "};\n\n");
+    }
+
+    private void printXmlBox() {
+        headerFile.printf("// Owns a child which leads back to the class holding it, so it can't "
+                + "be held by value.\n"
+                + "// Copies are deep, so classes holding an XmlBox copy like the others.\n"
+                + "template <class T>\n"
+                + "class XmlBox {\n"
+                + "public:\n"
+                + "XmlBox() = default;\n"
+                + "XmlBox(const XmlBox& other) : value_(copy(other)) {}\n"
+                + "XmlBox(XmlBox&& other) = default;\n"
+                + "XmlBox& operator=(const XmlBox& other) {\n"
+                + "if (this != &other) {\n"
+                + "value_ = copy(other);\n"
+                + "}\n"
+                + "return *this;\n"
+                + "}\n"
+                + "XmlBox& operator=(XmlBox&& other) = default;\n"
+                + "XmlBox& operator=(T value) {\n"
+                + "value_ = std::make_unique<T>(std::move(value));\n"
+                + "return *this;\n"
+                + "}\n"
+                + "const T* get() const { return value_.get(); }\n"
+                + "private:\n"
+                + "static std::unique_ptr<T> copy(const XmlBox& other) {\n"
+                + "return other.value_ ? std::make_unique<T>(*other.value_) : nullptr;\n"
+                + "}\n"
+                + "std::unique_ptr<T> value_;\n"
+                + "};\n\n");
+    }
+
     private void printPrototype() throws CppCodeGeneratorException {
         for (XsdType type : xmlSchema.getTypeMap().values()) {
             if (type instanceof XsdComplexType) {
@@ -188,6 +547,10 @@ public class CppCodeGenerator {
                 headerFile.printf("class %s;\n", name);
             }
         }
+        if (snapshot) {
+            headerFile.printf("class XmlSnapshotWriter;\n");
+            headerFile.printf("class XmlSnapshotReader;\n");
+        }
     }
 
     private void printClass(String name, String nameScope, XsdComplexType complexType)
@@ -211,72 +574,106 @@ public class CppCodeGenerator {
         List<CppType> elementTypes = new ArrayList<>();
         for (XsdElement element : complexType.getElements()) {
             CppType cppType;
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
             if (element.getRef() == null && element.getType().getRef() == null
                     && element.getType() instanceof XsdComplexType) {
                 // print inner class for anonymous types
                 headerFile.printf("public:\n");
-                String innerName = Utils.toClassName(getElementName(element));
+                String innerName = Utils.toClassName(resolvedSchema.getElementName(element));
                 XsdComplexType innerType = (XsdComplexType) element.getType();
                 printClass(innerName, nameScope + name + "::", innerType);
                 headerFile.println();
-                cppType = new CppComplexType(nameScope + name + "::"+ innerName);
+                cppType = new CppComplexType(nameScope + name + "::"+ innerName, arena);
             } else {
-                cppType = parseType(elementValue.getType(), getElementName(elementValue));
+                cppType = parseType(elementValue.getType(),
+                        resolvedSchema.getElementName(elementValue));
             }
             elementTypes.add(cppType);
         }
         List<CppSimpleType> attributeTypes = new ArrayList<>();
         for (XsdAttribute attribute : complexType.getAttributes()) {
-            XsdType type = resolveAttribute(attribute).getType();
-            attributeTypes.add(parseSimpleType(type, false));
+            XsdType type = resolvedSchema.resolveAttribute(attribute).getType();
+            attributeTypes.add(simpleTypes.map(type));
         }
 
         // print member variables
 
         headerFile.printf("private:\n");
+        int presenceBits = 0;
         for (int i = 0; i < elementTypes.size(); ++i) {
             CppType type = elementTypes.get(i);
             XsdElement element = complexType.getElements().get(i);
-            XsdElement elementValue = resolveElement(element);
-            String typeName = element.isMultiple() || type instanceof CppComplexType ?
-                    String.format("std::vector<%s>", type.getName()) : type.getName();
-            headerFile.printf("%s %s;\n", typeName,
-                    Utils.toVariableName(getElementName(elementValue)));
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            String variableName = Utils.toVariableName(resolvedSchema.getElementName(elementValue));
+            if (element.isMultiple()) {
+                headerFile.printf("%s %s;\n", getContainerName(type), variableName);
+            } else if (type instanceof CppComplexType) {
+                if (!recursiveElements.contains(element)) {
+                    headerFile.printf("std::optional<%s> %s;\n", type.getName(), variableName);
+                } else if (arena) {
+                    headerFile.printf("%s* %s = nullptr;\n", type.getName(), variableName);
+                } else {
+                    headerFile.printf("XmlBox<%s> %s;\n", type.getName(), variableName);
+                }
+            } else {
+                headerFile.printf("%s %s{};\n", type.getName(), variableName);
+                ++presenceBits;
+            }
         }
         for (int i = 0; i < attributeTypes.size(); ++i) {
             CppType type = attributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(complexType.getAttributes().get(i));
-            headerFile.printf("%s %s;\n", type.getName(),
+            XsdAttribute attribute =
+                    resolvedSchema.resolveAttribute(complexType.getAttributes().get(i));
+            headerFile.printf("%s %s{};\n", type.getName(),
                     Utils.toVariableName(attribute.getName()));
+            ++presenceBits;
         }
         if (valueType != null) {
-            headerFile.printf("%s value;\n", valueType.getName());
+            headerFile.printf("%s value{};\n", valueType.getName());
+            ++presenceBits;
+        }
+        if (presenceBits > 0) {
+            // whether each simple typed member has been set
+            headerFile.printf("std::bitset<%d> _isPresent;\n", presenceBits);
         }
 
         // print getters and setters
 
         headerFile.printf("public:\n");
+        int presenceBit = 0;
         for (int i = 0; i < elementTypes.size(); ++i) {
             CppType type = elementTypes.get(i);
             XsdElement element = complexType.getElements().get(i);
-            XsdElement elementValue = resolveElement(element);
-            printGetterAndSetter(nameScope + name, type,
-                    Utils.toVariableName(getElementName(elementValue)),
-                    type instanceof CppComplexType ? true : element.isMultiple(),
-                    type instanceof CppComplexType ? false : ((CppSimpleType)type).isList());
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            String variableName = Utils.toVariableName(resolvedSchema.getElementName(elementValue));
+            if (element.isMultiple()) {
+                printListAccessors(nameScope + name, type, variableName);
+            } else if (type instanceof CppComplexType) {
+                printChildAccessors(nameScope + name, (CppComplexType) type, variableName,
+                        recursiveElements.contains(element));
+            } else {
+                printValueAccessors(nameScope + name, (CppSimpleType) type, variableName,
+                        presenceBit++);
+            }
         }
         for (int i = 0; i < attributeTypes.size(); ++i) {
-            CppType type = attributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(complexType.getAttributes().get(i));
-            printGetterAndSetter(nameScope + name, type,
-                    Utils.toVariableName(attribute.getName()), false, false);
+            CppSimpleType type = attributeTypes.get(i);
+            XsdAttribute attribute =
+                    resolvedSchema.resolveAttribute(complexType.getAttributes().get(i));
+            printValueAccessors(nameScope + name, type,
+                    Utils.toVariableName(attribute.getName()), presenceBit++);
         }
         if (valueType != null) {
-            printGetterAndSetter(nameScope + name, valueType, "value", false, false);
+            printValueAccessors(nameScope + name, valueType, "value", presenceBit++);
         }
 
         printParser(name, nameScope, complexType);
+        if (snapshot) {
+            printSnapshot(name, nameScope, complexType);
+        }
+        if (writer) {
+            printWriter(name, nameScope, complexType);
+        }
         headerFile.println("};\n");
     }
 
@@ -284,56 +681,83 @@ public class CppCodeGenerator {
             throws CppCodeGeneratorException {
         CppSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
                 getValueType((XsdSimpleContent) complexType, true) : null;
-        List<XsdElement> allElements = new ArrayList<>();
-        List<XsdAttribute> allAttributes = new ArrayList<>();
-        stackComponents(complexType, allElements, allAttributes);
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
 
         // parse types for elements and attributes
         List<CppType> allElementTypes = new ArrayList<>();
         for (XsdElement element : allElements) {
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
             CppType cppType = parseType(elementValue.getType(), elementValue.getName());
             allElementTypes.add(cppType);
         }
         List<CppSimpleType> allAttributeTypes = new ArrayList<>();
         for (XsdAttribute attribute : allAttributes) {
-            XsdType type = resolveAttribute(attribute).getType();
-            allAttributeTypes.add(parseSimpleType(type, false));
+            XsdType type = resolvedSchema.resolveAttribute(attribute).getType();
+            allAttributeTypes.add(simpleTypes.map(type));
         }
 
         String fullName = nameScope + name;
-        headerFile.printf("static %s read(xmlNode *root);\n", fullName, Utils.lowerize(name));
-        cppFile.printf("\n%s %s::read(xmlNode *root) {\n", fullName, fullName);
+        // std::nullopt if a value is malformed, which has been logged
+        if (arena) {
+            headerFile.printf("static std::optional<%s> read(xmlNode *root, "
+                    + "std::pmr::memory_resource *arena);\n", fullName);
+            cppFile.printf("\nstd::optional<%s> %s::read(xmlNode *root, "
+                    + "std::pmr::memory_resource *arena) {\n", fullName, fullName);
+        } else {
+            headerFile.printf("static std::optional<%s> read(xmlNode *root);\n", fullName);
+            cppFile.printf("\nstd::optional<%s> %s::read(xmlNode *root) {\n", fullName,
+                    fullName);
+        }
 
-        cppFile.printf("%s instance;\n std::string raw;\n", fullName, fullName);
+        // With an arena, raw values are views of the strings returned by libxml2, which are
+        // copied once into the arena. Otherwise they are copied into a reused std::string.
+        cppFile.printf("%s instance;\n", fullName);
+        String rawAssignment = "std::string_view raw = ";
+        if (!arena) {
+            cppFile.printf("std::string raw;\n");
+            rawAssignment = "raw = ";
+        }
 
         for (int i = 0; i < allAttributes.size(); ++i) {
             CppType type = allAttributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(allAttributes.get(i));
+            XsdAttribute attribute = resolvedSchema.resolveAttribute(allAttributes.get(i));
             String variableName = Utils.toVariableName(attribute.getName());
-            cppFile.printf("raw = getXmlAttribute(root, \"%s\");\n", attribute.getName());
-            cppFile.printf("if (raw != \"\") {\n");
+            if (arena) {
+                cppFile.printf("if (auto xmlValue = make_xmlUnique(xmlGetProp(root, "
+                        + "reinterpret_cast<const xmlChar*>(\"%s\")));\n"
+                        + "xmlValue != nullptr && xmlValue.get()[0] != '\\0') {\n"
+                        + "std::string_view raw = reinterpret_cast<const char*>(xmlValue.get());\n",
+                        attribute.getName());
+            } else {
+                cppFile.printf("raw = getXmlAttribute(root, \"%s\");\n", attribute.getName());
+                cppFile.printf("if (raw != \"\") {\n");
+            }
             cppFile.print(type.getParsingExpression());
-            cppFile.printf("instance.set%s(value);\n}\n", Utils.capitalize(variableName));
+            printValueStatement(type, attribute.getName(), String.format("instance.set%s(%%s);\n",
+                    Utils.capitalize(variableName)));
+            cppFile.printf("}\n");
         }
 
         if (baseValueType != null) {
             cppFile.printf("auto xmlValue = make_xmlUnique(xmlNodeListGetString("
                     + "root->doc, root->xmlChildrenNode, 1));\n"
                     + "if (xmlValue != nullptr) {\n"
-                    + "raw = reinterpret_cast<const char*>(xmlValue.get());\n");
+                    + "%sreinterpret_cast<const char*>(xmlValue.get());\n", rawAssignment);
 
             cppFile.print(baseValueType.getParsingExpression());
-            cppFile.printf("instance.setValue(value);\n");
+            printValueStatement(baseValueType, name, "instance.setValue(%s);\n");
             cppFile.printf("}\n");
         } else if (!allElements.isEmpty()) {
+            printListVariables(allElements, allElementTypes);
             cppFile.print("for (xmlNode *child = root->xmlChildrenNode; child != nullptr;"
                     + " child = child->next) {\n");
             for (int i = 0; i < allElements.size(); ++i) {
                 CppType type = allElementTypes.get(i);
                 XsdElement element = allElements.get(i);
-                XsdElement elementValue = resolveElement(element);
-                String variableName = Utils.toVariableName(getElementName(elementValue));
+                XsdElement elementValue = resolvedSchema.resolveElement(element);
+                String variableName =
+                        Utils.toVariableName(resolvedSchema.getElementName(elementValue));
                 if (i != 0) cppFile.printf("} else ");
                 cppFile.printf("if (!xmlStrcmp(child->name, reinterpret_cast<const xmlChar*>");
                 cppFile.printf("(\"%s\"))) {\n", elementValue.getName());
@@ -342,74 +766,609 @@ public class CppCodeGenerator {
                     cppFile.printf("auto xmlValue = make_xmlUnique(xmlNodeListGetString(");
                     cppFile.printf("child->doc, child->xmlChildrenNode, 1));\n");
                     cppFile.printf("if (xmlValue == nullptr) {\ncontinue;\n}\n");
-                    cppFile.printf("raw = reinterpret_cast<const char*>(xmlValue.get());\n");
+                    cppFile.printf("%sreinterpret_cast<const char*>(xmlValue.get());\n",
+                            rawAssignment);
                 }
 
                 cppFile.print(type.getParsingExpression());
 
-                if (element.isMultiple() || type instanceof CppComplexType) {
-                    cppFile.printf("instance.get%s().push_back(std::move(value));\n",
-                            Utils.capitalize(variableName));
+                String elementName = elementValue.getName();
+                if (arena && element.isMultiple()) {
+                    printValueStatement(type, elementName, String.format(
+                            "%sItems[%sSize++] = %%s;\n", variableName, variableName));
+                } else if (element.isMultiple()) {
+                    printValueStatement(type, elementName, String.format(
+                            "%sItems.push_back(%%s);\n", variableName));
+                } else if (arena && recursiveElements.contains(element)) {
+                    printValueStatement(type, elementName, String.format(
+                            "%s* %sValue = newXmlArray<%s>(arena, 1);\n"
+                            + "*%sValue = %%s;\n"
+                            + "instance.set%s(%sValue);\n", type.getName(), variableName,
+                            type.getName(), variableName, Utils.capitalize(variableName),
+                            variableName));
                 } else {
-                    cppFile.printf("instance.set%s(value);\n", Utils.capitalize(variableName));
+                    printValueStatement(type, elementName, String.format(
+                            "instance.set%s(%%s);\n", Utils.capitalize(variableName)));
                 }
             }
             cppFile.printf("}\n}\n");
+            for (int i = 0; i < allElements.size(); ++i) {
+                if (!allElements.get(i).isMultiple()) continue;
+                String variableName = Utils.toVariableName(resolvedSchema.getElementName(
+                        resolvedSchema.resolveElement(allElements.get(i))));
+                if (arena) {
+                    cppFile.printf("instance.set%s(XmlSpan<%s>(%sItems, %sSize));\n",
+                            Utils.capitalize(variableName), allElementTypes.get(i).getName(),
+                            variableName, variableName);
+                } else {
+                    cppFile.printf("instance.set%s(std::move(%sItems));\n",
+                            Utils.capitalize(variableName), variableName);
+                }
+            }
         }
         cppFile.printf("return instance;\n"
                 + "}\n");
+        if (arena) {
+            // the arena is released without running any destructor
+            cppFile.printf("static_assert(std::is_trivially_destructible_v<%s>);\n", fullName);
+        }
     }
 
-    private void printGetterAndSetter(String name, CppType type, String variableName,
-            boolean isMultiple, boolean isMultipleType) {
-        String typeName = isMultiple ? String.format("std::vector<%s>", type.getName())
-                : type.getName();
+    // Repeated children are collected before they are set. With an arena they are stored in
+    // arrays allocated from it, so they are counted before parsing.
+    private void printListVariables(List<XsdElement> allElements, List<CppType> allElementTypes)
+            throws CppCodeGeneratorException {
+        List<Integer> arrayIndexes = new ArrayList<>();
+        for (int i = 0; i < allElements.size(); ++i) {
+            if (allElements.get(i).isMultiple()) {
+                arrayIndexes.add(i);
+            }
+        }
+        if (arrayIndexes.isEmpty()) return;
+        if (!arena) {
+            for (int i : arrayIndexes) {
+                cppFile.printf("std::vector<%s> %sItems;\n", allElementTypes.get(i).getName(),
+                        Utils.toVariableName(resolvedSchema.getElementName(
+                                resolvedSchema.resolveElement(allElements.get(i)))));
+            }
+            return;
+        }
 
-        headerFile.printf("%s& get%s();\n", typeName, Utils.capitalize(variableName));
+        for (int i : arrayIndexes) {
+            String variableName = Utils.toVariableName(resolvedSchema.getElementName(
+                    resolvedSchema.resolveElement(allElements.get(i))));
+            cppFile.printf("size_t %sCount = 0;\n", variableName);
+        }
+        cppFile.print("for (xmlNode *child = root->xmlChildrenNode; child != nullptr;"
+                + " child = child->next) {\n");
+        for (int j = 0; j < arrayIndexes.size(); ++j) {
+            XsdElement elementValue =
+                    resolvedSchema.resolveElement(allElements.get(arrayIndexes.get(j)));
+            String variableName = Utils.toVariableName(resolvedSchema.getElementName(elementValue));
+            if (j != 0) cppFile.printf("} else ");
+            cppFile.printf("if (!xmlStrcmp(child->name, reinterpret_cast<const xmlChar*>");
+            cppFile.printf("(\"%s\"))) {\n", elementValue.getName());
+            cppFile.printf("++%sCount;\n", variableName);
+        }
+        cppFile.printf("}\n}\n");
+        for (int i : arrayIndexes) {
+            String variableName = Utils.toVariableName(resolvedSchema.getElementName(
+                    resolvedSchema.resolveElement(allElements.get(i))));
+            String typeName = allElementTypes.get(i).getName();
+            cppFile.printf("%s* %sItems = newXmlArray<%s>(arena, %sCount);\n"
+                    + "size_t %sSize = 0;\n", typeName, variableName, typeName, variableName,
+                    variableName);
+        }
+    }
 
-        cppFile.println();
-        cppFile.printf("%s& %s::get%s() {\n"
-                + "return %s;\n}\n",
-                typeName, name, Utils.capitalize(variableName), variableName);
-
-        if (isMultiple || isMultipleType) {
-            String elementTypeName = type instanceof CppComplexType ? type.getName() :
-                    ((CppSimpleType)type).getTypeName();
-            if (elementTypeName.equals("bool")) {
-                headerFile.printf("%s getFirst%s();\n",
-                        elementTypeName, Utils.capitalize(variableName));
-                cppFile.println();
-                cppFile.printf("%s %s::getFirst%s() {\n"
-                        + "if (%s.empty()) {\n"
-                        + "return false;\n"
-                        + "}\n"
-                        + "return %s[0];\n"
-                        + "}\n",
-                        elementTypeName, name, Utils.capitalize(variableName), variableName,
-                        variableName);
+    // Prints a statement consuming the parsed value of the attribute or element named name. A
+    // malformed value of a fallible type is logged and fails the read of the whole document, as
+    // does a child which failed to be read.
+    private void printValueStatement(CppType type, String name, String statement) {
+        if (type instanceof CppComplexType) {
+            cppFile.print("if (!value) {\n"
+                    + "return std::nullopt;\n"
+                    + "}\n");
+            cppFile.printf(statement, "std::move(*value)");
+        } else if (((CppSimpleType) type).isFallible()) {
+            cppFile.printf("if (!value) {\n"
+                    + "logInvalidXmlValue(\"%s\", raw);\n"
+                    + "return std::nullopt;\n"
+                    + "}\n", name);
+            cppFile.printf(statement, "std::move(*value)");
+        } else {
+            cppFile.printf(statement, "std::move(value)");
+        }
+    }
+
+    private void printSnapshot(String name, String nameScope, XsdComplexType complexType)
+            throws CppCodeGeneratorException {
+        CppSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
+                getValueType((XsdSimpleContent) complexType, true) : null;
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
+
+        // members are written in the same order as they are read
+        List<CppType> allTypes = new ArrayList<>();
+        List<String> allVariableNames = new ArrayList<>();
+        List<Boolean> allMultiples = new ArrayList<>();
+        for (XsdAttribute attribute : allAttributes) {
+            XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+            allTypes.add(simpleTypes.map(attributeValue.getType()));
+            allVariableNames.add(Utils.toVariableName(attributeValue.getName()));
+            allMultiples.add(false);
+        }
+        if (baseValueType != null) {
+            allTypes.add(baseValueType);
+            allVariableNames.add("value");
+            allMultiples.add(false);
+        } else {
+            for (XsdElement element : allElements) {
+                XsdElement elementValue = resolvedSchema.resolveElement(element);
+                allTypes.add(parseType(elementValue.getType(), elementValue.getName()));
+                allVariableNames.add(
+                        Utils.toVariableName(resolvedSchema.getElementName(elementValue)));
+                allMultiples.add(element.isMultiple());
+            }
+        }
+
+        String fullName = nameScope + name;
+        headerFile.printf("void writeSnapshot(XmlSnapshotWriter& out) const;\n");
+        headerFile.printf("static %s readSnapshot(XmlSnapshotReader& in);\n", fullName);
+
+        cppFile.printf("\nvoid %s::writeSnapshot(XmlSnapshotWriter& out) const {\n", fullName);
+        for (int i = 0; i < allTypes.size(); ++i) {
+            CppType type = allTypes.get(i);
+            String variableName = Utils.capitalize(allVariableNames.get(i));
+            if (allMultiples.get(i)) {
+                cppFile.printf("out.writeVarint(get%s().size());\n"
+                        + "for (const auto& item : get%s()) {\n", variableName, variableName);
+                printSnapshotWrite(type, "item", 1);
+                cppFile.printf("}\n");
             } else {
-                headerFile.printf("%s* getFirst%s();\n",
-                        elementTypeName, Utils.capitalize(variableName));
-                cppFile.println();
-                cppFile.printf("%s* %s::getFirst%s() {\n"
-                        + "if (%s.empty()) {\n"
-                        + "return nullptr;\n"
+                cppFile.printf("out.writeBool(has%s());\n"
+                        + "if (has%s()) {\n", variableName, variableName);
+                printSnapshotWrite(type, String.format("get%s()", variableName), 1);
+                cppFile.printf("}\n");
+            }
+        }
+        if (allTypes.isEmpty()) {
+            cppFile.printf("out.writeBool(false);\n");
+        }
+        cppFile.printf("}\n");
+
+        cppFile.printf("\n%s %s::readSnapshot(XmlSnapshotReader& in) {\n"
+                + "%s instance;\n", fullName, fullName, fullName);
+        for (int i = 0; i < allTypes.size(); ++i) {
+            CppType type = allTypes.get(i);
+            String variableName = allVariableNames.get(i);
+            if (allMultiples.get(i)) {
+                cppFile.printf("std::vector<%s> %sItems;\n"
+                        + "for (uint64_t count = in.readCount(); count > 0 && in.ok(); --count) "
+                        + "{\n", type.getName(), variableName);
+                printSnapshotRead(type, "item", 1);
+                cppFile.printf("%sItems.push_back(std::move(item));\n"
                         + "}\n"
-                        + "return &%s[0];\n"
-                        + "}\n",
-                        elementTypeName, name, Utils.capitalize(variableName), variableName,
-                        variableName);
+                        + "instance.set%s(std::move(%sItems));\n", variableName,
+                        Utils.capitalize(variableName), variableName);
+            } else {
+                cppFile.printf("if (in.readBool()) {\n");
+                printSnapshotRead(type, "value", 1);
+                cppFile.printf("instance.set%s(std::move(value));\n"
+                        + "}\n", Utils.capitalize(variableName));
             }
         }
+        if (allTypes.isEmpty()) {
+            cppFile.printf("in.readBool();\n");
+        }
+        cppFile.printf("return instance;\n"
+                + "}\n");
+    }
 
-        if (isMultiple) return;
-        headerFile.printf("void set%s(%s);\n", Utils.capitalize(variableName), typeName);
+    private void printWriter(String name, String nameScope, XsdComplexType complexType)
+            throws CppCodeGeneratorException {
+        CppSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
+                getValueType((XsdSimpleContent) complexType, true) : null;
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
+
+        String fullName = nameScope + name;
+        // the name is given by the caller since a type may be used by elements of any name
+        headerFile.printf("void write(std::string& out, std::string_view name, int indent) "
+                + "const;\n");
+        cppFile.printf("\nvoid %s::write(std::string& out, std::string_view name, int indent) "
+                + "const {\n"
+                + "appendXmlIndent(out, indent);\n"
+                + "out += '<';\n"
+                + "out += name;\n", fullName);
+        for (XsdAttribute attribute : allAttributes) {
+            XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+            CppSimpleType type = simpleTypes.map(attributeValue.getType());
+            String variableName = Utils.capitalize(
+                    Utils.toVariableName(attributeValue.getName()));
+            cppFile.printf("if (has%s()) {\n"
+                    + "out += \" %s=\\\"\";\n", variableName, attributeValue.getName());
+            printWriterText(type, String.format("get%s()", variableName), true);
+            cppFile.printf("out += '\"';\n"
+                    + "}\n");
+        }
+
+        if (baseValueType != null) {
+            cppFile.printf("out += '>';\n"
+                    + "if (hasValue()) {\n");
+            printWriterText(baseValueType, "getValue()", false);
+            cppFile.printf("}\n"
+                    + "out += \"</\";\n"
+                    + "out += name;\n"
+                    + "out += \">\\n\";\n"
+                    + "}\n");
+            return;
+        }
+        if (allElements.isEmpty()) {
+            cppFile.printf("out += \"/>\\n\";\n"
+                    + "}\n");
+            return;
+        }
+
+        cppFile.printf("out += \">\\n\";\n");
+        for (XsdElement element : allElements) {
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            CppType type = parseType(elementValue.getType(), elementValue.getName());
+            String variableName = Utils.capitalize(
+                    Utils.toVariableName(resolvedSchema.getElementName(elementValue)));
+            String value = String.format("get%s()", variableName);
+            if (element.isMultiple()) {
+                cppFile.printf("for (const auto& item : %s) {\n", value);
+                value = "item";
+            } else {
+                cppFile.printf("if (has%s()) {\n", variableName);
+            }
+            if (type instanceof CppComplexType) {
+                cppFile.printf("%s.write(out, \"%s\", indent + 1);\n", value,
+                        elementValue.getName());
+            } else {
+                cppFile.printf("appendXmlIndent(out, indent + 1);\n"
+                        + "out += \"<%s>\";\n", elementValue.getName());
+                printWriterText((CppSimpleType) type, value, false);
+                cppFile.printf("out += \"</%s>\\n\";\n", elementValue.getName());
+            }
+            cppFile.printf("}\n");
+        }
+        cppFile.printf("appendXmlIndent(out, indent);\n"
+                + "out += \"</\";\n"
+                + "out += name;\n"
+                + "out += \">\\n\";\n"
+                + "}\n");
+    }
+
+    // Prints statements appending the escaped text of value to the std::string named out.
+    private void printWriterText(CppSimpleType type, String value, boolean attribute) {
+        if (type.isList()) {
+            cppFile.printf("for (size_t i = 0; i < %s.size(); ++i) {\n"
+                    + "if (i != 0) {\n"
+                    + "out += ' ';\n"
+                    + "}\n", value);
+            cppFile.printf("%s;\n", getWritingExpression(type, value + "[i]", attribute));
+            cppFile.printf("}\n");
+        } else {
+            cppFile.printf("%s;\n", getWritingExpression(type, value, attribute));
+        }
+    }
+
+    private String getWritingExpression(CppSimpleType type, String value, boolean attribute) {
+        switch (type.getTypeName()) {
+            case "bool":
+                return String.format("out += %s ? \"true\" : \"false\"", value);
+            case "char":
+                // char may be unsigned, but xs:byte is always signed
+                return String.format("appendXmlNumber(out, static_cast<int>(%s))", value);
+            case "short":
+            case "int":
+            case "long long":
+            case "unsigned char":
+            case "unsigned short":
+            case "unsigned int":
+            case "unsigned long long":
+            case "float":
+            case "double":
+                return String.format("appendXmlNumber(out, %s)", value);
+            case "std::string":
+            case "std::string_view":
+                return String.format("appendXmlEscaped(out, %s, %b)", value, attribute);
+            default:
+                // enums
+                return String.format("appendXmlEscaped(out, %sToString(%s), %b)",
+                        type.getTypeName(), value, attribute);
+        }
+    }
+
+    private void printXmlWriter() throws CppCodeGeneratorException {
+        cppFile.printf("[[maybe_unused]] static void appendXmlIndent(std::string& out, "
+                + "int indent) {\n"
+                + "out.append(4 * indent, ' ');\n"
+                + "}\n\n");
+        // runs of characters which don't need escaping are appended at once
+        cppFile.printf("[[maybe_unused]] static void appendXmlEscaped(std::string& out, "
+                + "std::string_view text, bool attribute) {\n"
+                + "size_t start = 0;\n"
+                + "for (size_t i = 0; i < text.size(); ++i) {\n"
+                + "const char* escaped;\n"
+                + "switch (text[i]) {\n"
+                + "case '&':\n"
+                + "escaped = \"&amp;\";\n"
+                + "break;\n"
+                + "case '<':\n"
+                + "escaped = \"&lt;\";\n"
+                + "break;\n"
+                + "case '>':\n"
+                + "escaped = \"&gt;\";\n"
+                + "break;\n"
+                + "case '\"':\n"
+                + "escaped = attribute ? \"&quot;\" : nullptr;\n"
+                + "break;\n"
+                + "case '\\r':\n"
+                + "escaped = \"&#13;\";\n"
+                + "break;\n"
+                + "case '\\n':\n"
+                + "escaped = attribute ? \"&#10;\" : nullptr;\n"
+                + "break;\n"
+                + "case '\\t':\n"
+                + "escaped = attribute ? \"&#9;\" : nullptr;\n"
+                + "break;\n"
+                + "default:\n"
+                + "escaped = nullptr;\n"
+                + "}\n"
+                + "if (escaped != nullptr) {\n"
+                + "out.append(text, start, i - start);\n"
+                + "out += escaped;\n"
+                + "start = i + 1;\n"
+                + "}\n"
+                + "}\n"
+                + "out.append(text, start);\n"
+                + "}\n\n");
+        // std::to_chars writes the shortest representation which parses back to the same value
+        cppFile.printf("template <class T>\n"
+                + "static void appendXmlNumber(std::string& out, T value) {\n"
+                + "char buffer[32];\n"
+                + "auto [ptr, ec] = std::to_chars(buffer, buffer + sizeof(buffer), value);\n"
+                + "out.append(buffer, ptr);\n"
+                + "}\n\n");
+
+        boolean isMultiRootElement = xmlSchema.getElementMap().values().size() > 1;
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            CppType cppType = parseType(element.getType(), element.getName());
+            String typeName = cppType instanceof CppSimpleType ? cppType.getName() :
+                    Utils.toClassName(cppType.getName());
+            String functionName = "write" + (isMultiRootElement ? Utils.capitalize(typeName) : "");
+
+            headerFile.printf("// Appends value as an XML document to out, which may be reused "
+                    + "between documents.\n");
+            headerFile.printf("void %s(std::string& out, const %s& value);\n\n", functionName,
+                    typeName);
+            cppFile.printf("void %s(std::string& out, const %s& value) {\n"
+                    + "out += \"<?xml version=\\\"1.0\\\" encoding=\\\"utf-8\\\"?>\\n\";\n",
+                    functionName, typeName);
+            if (cppType instanceof CppComplexType) {
+                cppFile.printf("value.write(out, \"%s\", 0);\n", element.getName());
+            } else {
+                cppFile.printf("out += \"<%s>\";\n", element.getName());
+                printWriterText((CppSimpleType) cppType, "value", false);
+                cppFile.printf("out += \"</%s>\\n\";\n", element.getName());
+            }
+            cppFile.printf("}\n\n");
+        }
+    }
+
+    // Prints statements writing value to the XmlSnapshotWriter named out. depth makes the names
+    // of nested loop variables unique.
+    private void printSnapshotWrite(CppType type, String value, int depth) {
+        if (type instanceof CppComplexType) {
+            cppFile.printf("%s.writeSnapshot(out);\n", value);
+            return;
+        }
+        CppSimpleType simpleType = (CppSimpleType) type;
+        if (simpleType.isList()) {
+            String item = "item" + depth;
+            cppFile.printf("out.writeVarint(%s.size());\n"
+                    + "for (const auto& %s : %s) {\n", value, item, value);
+            cppFile.printf("%s;\n", getSnapshotWriteExpression(simpleType, item));
+            cppFile.printf("}\n");
+        } else {
+            cppFile.printf("%s;\n", getSnapshotWriteExpression(simpleType, value));
+        }
+    }
+
+    // Prints statements declaring a variable named target read from the XmlSnapshotReader
+    // named in.
+    private void printSnapshotRead(CppType type, String target, int depth) {
+        if (type instanceof CppComplexType) {
+            cppFile.printf("%s %s = %s::readSnapshot(in);\n", type.getName(), target,
+                    type.getName());
+            return;
+        }
+        CppSimpleType simpleType = (CppSimpleType) type;
+        if (simpleType.isList()) {
+            String count = "count" + depth;
+            cppFile.printf("%s %s;\n"
+                    + "for (uint64_t %s = in.readCount(); %s > 0 && in.ok(); --%s) {\n"
+                    + "%s.push_back(%s);\n"
+                    + "}\n", simpleType.getName(), target, count, count, count, target,
+                    getSnapshotReadExpression(simpleType));
+        } else {
+            cppFile.printf("%s %s = %s;\n", simpleType.getName(), target,
+                    getSnapshotReadExpression(simpleType));
+        }
+    }
+
+    private String getSnapshotWriteExpression(CppSimpleType type, String value) {
+        switch (type.getTypeName()) {
+            case "bool":
+                return String.format("out.writeBool(%s)", value);
+            case "char":
+            case "short":
+            case "int":
+            case "long long":
+                return String.format("out.writeSignedVarint(%s)", value);
+            case "unsigned char":
+            case "unsigned short":
+            case "unsigned int":
+            case "unsigned long long":
+                return String.format("out.writeVarint(%s)", value);
+            case "float":
+                return String.format("out.writeFloat(%s)", value);
+            case "double":
+                return String.format("out.writeDouble(%s)", value);
+            case "std::string":
+                return String.format("out.writeString(%s)", value);
+            default:
+                // enums
+                return String.format("out.writeVarint(static_cast<uint64_t>(%s))", value);
+        }
+    }
+
+    private String getSnapshotReadExpression(CppSimpleType type) {
+        switch (type.getTypeName()) {
+            case "bool":
+                return "in.readBool()";
+            case "char":
+            case "short":
+            case "int":
+            case "long long":
+                return String.format("static_cast<%s>(in.readSignedVarint())",
+                        type.getTypeName());
+            case "unsigned char":
+            case "unsigned short":
+            case "unsigned int":
+            case "unsigned long long":
+                return String.format("static_cast<%s>(in.readVarint())", type.getTypeName());
+            case "float":
+                return "in.readFloat()";
+            case "double":
+                return "in.readDouble()";
+            case "std::string":
+                return "std::string(in.readString())";
+            default:
+                // enums
+                return String.format("in.readEnum(%s::UNKNOWN)", type.getTypeName());
+        }
+    }
+
+    private String getContainerName(CppType type) {
+        return String.format(arena ? "XmlSpan<%s>" : "std::vector<%s>", type.getName());
+    }
+
+    // Repeated elements
+    private void printListAccessors(String name, CppType type, String variableName) {
+        String typeName = getContainerName(type);
+        printGetter(name, typeName, variableName, variableName);
+        printGetFirst(name, type instanceof CppComplexType ? type.getName() :
+                ((CppSimpleType) type).getTypeName(), variableName);
+        printSetter(name, typeName, variableName, "this->%s = std::move(%s);\n");
+    }
+
+    // Single complex elements, which may be absent. getX() aborts if the child is absent, and
+    // getFirstX() returns nullptr instead.
+    private void printChildAccessors(String name, CppComplexType type, String variableName,
+            boolean recursive) {
+        String typeName = type.getName();
+        String capitalizedName = Utils.capitalize(variableName);
+        String pointer = !recursive ?
+                String.format("%s ? &*%s : nullptr", variableName, variableName) :
+                arena ? variableName : variableName + ".get()";
+
+        headerFile.printf("const %s& get%s() const;\n", typeName, capitalizedName);
+        cppFile.println();
+        cppFile.printf("const %s& %s::get%s() const {\n"
+                + "if (!has%s()) {\n"
+                + "abortAbsentXmlChild(\"%s\");\n"
+                + "}\n"
+                + "return *%s;\n"
+                + "}\n",
+                typeName, name, capitalizedName, capitalizedName, variableName,
+                !recursive ? variableName : "getFirst" + capitalizedName + "()");
+        printHas(name, variableName, !recursive ? variableName + ".has_value()" :
+                String.format("%s != nullptr", pointer));
+
+        headerFile.printf("const %s* getFirst%s() const;\n", typeName, capitalizedName);
+        cppFile.println();
+        cppFile.printf("const %s* %s::getFirst%s() const {\n"
+                + "return %s;\n"
+                + "}\n",
+                typeName, name, capitalizedName, pointer);
+
+        if (!recursive || !arena) {
+            printSetter(name, typeName, variableName, "this->%s = std::move(%s);\n");
+        } else {
+            // the child has to be allocated from the same arena
+            printSetter(name, typeName + "*", variableName, "this->%s = %s;\n");
+        }
+    }
+
+    // Simple typed elements, attributes and values, whose presence is kept in _isPresent
+    private void printValueAccessors(String name, CppSimpleType type, String variableName,
+            int presenceBit) {
+        printGetter(name, type.getName(), variableName, variableName);
+        printHas(name, variableName, String.format("_isPresent[%d]", presenceBit));
+        if (type.isList()) {
+            printGetFirst(name, type.getTypeName(), variableName);
+        }
+        printSetter(name, type.getName(), variableName, "this->%s = std::move(%s);\n"
+                + String.format("_isPresent[%d] = true;\n", presenceBit));
+    }
+
+    private void printGetter(String name, String typeName, String variableName,
+            String expression) {
+        headerFile.printf("const %s& get%s() const;\n", typeName, Utils.capitalize(variableName));
+        cppFile.println();
+        cppFile.printf("const %s& %s::get%s() const {\n"
+                + "return %s;\n"
+                + "}\n",
+                typeName, name, Utils.capitalize(variableName), expression);
+    }
+
+    private void printHas(String name, String variableName, String expression) {
+        headerFile.printf("bool has%s() const;\n", Utils.capitalize(variableName));
         cppFile.println();
-        cppFile.printf("void %s::set%s(%s %s) {\n"
-                + "this->%s = std::move(%s);\n"
+        cppFile.printf("bool %s::has%s() const {\n"
+                + "return %s;\n"
                 + "}\n",
-                name, Utils.capitalize(variableName), typeName, variableName,
-                variableName, variableName);
+                name, Utils.capitalize(variableName), expression);
+    }
+
+    private void printGetFirst(String name, String elementTypeName, String variableName) {
+        if (elementTypeName.equals("bool")) {
+            headerFile.printf("bool getFirst%s() const;\n", Utils.capitalize(variableName));
+            cppFile.println();
+            cppFile.printf("bool %s::getFirst%s() const {\n"
+                    + "if (%s.empty()) {\n"
+                    + "return false;\n"
+                    + "}\n"
+                    + "return %s[0];\n"
+                    + "}\n",
+                    name, Utils.capitalize(variableName), variableName, variableName);
+        } else {
+            headerFile.printf("const %s* getFirst%s() const;\n",
+                    elementTypeName, Utils.capitalize(variableName));
+            cppFile.println();
+            cppFile.printf("const %s* %s::getFirst%s() const {\n"
+                    + "if (%s.empty()) {\n"
+                    + "return nullptr;\n"
+                    + "}\n"
+                    + "return &%s[0];\n"
+                    + "}\n",
+                    elementTypeName, name, Utils.capitalize(variableName), variableName,
+                    variableName);
+        }
+    }
+
+    // body is a format taking the member and parameter name
+    private void printSetter(String name, String typeName, String variableName, String body) {
+        headerFile.printf("void set%s(%s);\n", Utils.capitalize(variableName), typeName);
+        cppFile.println();
+        cppFile.printf("void %s::set%s(%s %s) {\n", name, Utils.capitalize(variableName),
+                typeName, variableName);
+        cppFile.printf(body, variableName, variableName);
+        cppFile.printf("}\n");
     }
 
     private void printXmlParser() throws CppCodeGeneratorException {
@@ -423,7 +1382,154 @@ public class CppCodeGenerator {
                 + "return std::unique_ptr<T, decltype(deleter)>{t, deleter};\n"
                 + "}\n\n");
 
-        if (hasAttr) {
+        cppFile.printf("[[maybe_unused]] static void logInvalidXmlValue(const char* name, "
+                + "std::string_view raw) {\n"
+                + "__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "
+                + "\"invalid value of %%s: \\\"%%.*s\\\"\", name,\n"
+                + "static_cast<int>(raw.size()), raw.data());\n"
+                + "}\n\n");
+
+        if (!validators.isEmpty()) {
+            cppFile.printf("static void logInvalidXmlFacet(const char* name, std::string_view raw, "
+                    + "const char* facet) {\n"
+                    + "__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "
+                    + "\"invalid %%s: \\\"%%.*s\\\" (%%s)\", name,\n"
+                    + "static_cast<int>(raw.size()), raw.data(), facet);\n"
+                    + "}\n\n");
+        }
+
+        cppFile.printf("[[noreturn]] [[maybe_unused]] static void abortAbsentXmlChild("
+                + "const char* name) {\n"
+                + "__android_log_assert(nullptr, LOG_TAG, \"%%s is absent\", name);\n"
+                + "}\n\n");
+
+        cppFile.printf("static bool isXmlWhitespace(char c) {\n"
+                + "return c == ' ' || c == '\\t' || c == '\\n' || c == '\\r';\n"
+                + "}\n\n");
+
+        if (arena) {
+            cppFile.printf("template <class T>\n"
+                    + "static T* newXmlArray(std::pmr::memory_resource* arena, size_t size) {\n"
+                    + "if (size == 0) {\n"
+                    + "return nullptr;\n"
+                    + "}\n"
+                    + "T* items = static_cast<T*>(arena->allocate(sizeof(T) * size, "
+                    + "alignof(T)));\n"
+                    + "for (size_t i = 0; i < size; ++i) {\n"
+                    + "new (items + i) T();\n"
+                    + "}\n"
+                    + "return items;\n"
+                    + "}\n\n");
+            cppFile.printf("static std::string_view copyXmlString(std::string_view raw, "
+                    + "std::pmr::memory_resource* arena) {\n"
+                    + "if (raw.empty()) {\n"
+                    + "return std::string_view();\n"
+                    + "}\n"
+                    + "char* copy = static_cast<char*>(arena->allocate(raw.size(), 1));\n"
+                    + "std::memcpy(copy, raw.data(), raw.size());\n"
+                    + "return std::string_view(copy, raw.size());\n"
+                    + "}\n\n");
+        }
+
+        // xs:list items are separated by runs of any XML whitespace.
+        cppFile.printf("static bool nextXmlListItem(std::string_view& rest, "
+                + "std::string_view& item) {\n"
+                + "size_t start = 0;\n"
+                + "while (start < rest.size() && isXmlWhitespace(rest[start])) {\n"
+                + "++start;\n"
+                + "}\n"
+                + "if (start == rest.size()) {\n"
+                + "rest = std::string_view();\n"
+                + "return false;\n"
+                + "}\n"
+                + "size_t end = start;\n"
+                + "while (end < rest.size() && !isXmlWhitespace(rest[end])) {\n"
+                + "++end;\n"
+                + "}\n"
+                + "item = rest.substr(start, end - start);\n"
+                + "rest.remove_prefix(end);\n"
+                + "return true;\n"
+                + "}\n\n");
+        cppFile.printf("static size_t countXmlListItems(std::string_view raw) {\n"
+                + "size_t count = 0;\n"
+                + "for (std::string_view rest = raw, item; nextXmlListItem(rest, item);) {\n"
+                + "++count;\n"
+                + "}\n"
+                + "return count;\n"
+                + "}\n\n");
+
+        // std::from_chars neither throws nor depends on the locale. XSD numeric values may be
+        // surrounded by whitespace and have a leading '+', which std::from_chars rejects.
+        cppFile.printf("template <class T>\n"
+                + "static std::optional<T> parseXmlNumber(std::string_view raw) {\n"
+                + "const char* first = raw.data();\n"
+                + "const char* last = raw.data() + raw.size();\n"
+                + "while (first != last && isXmlWhitespace(*first)) {\n"
+                + "++first;\n"
+                + "}\n"
+                + "while (last != first && isXmlWhitespace(*(last - 1))) {\n"
+                + "--last;\n"
+                + "}\n"
+                + "if (last - first > 1 && first[0] == '+' && first[1] != '-') {\n"
+                + "++first;\n"
+                + "}\n"
+                + "T value;\n"
+                + "auto [ptr, ec] = std::from_chars(first, last, value);\n"
+                + "if (ec != std::errc() || ptr != last) {\n"
+                + "return std::nullopt;\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n\n");
+        cppFile.printf("template <class T>\n"
+                + "static std::optional<T> parseXmlNumberInRange(std::string_view raw, "
+                + "int min, int max) {\n"
+                + "std::optional<int> value = parseXmlNumber<int>(raw);\n"
+                + "if (!value || *value < min || *value > max) {\n"
+                + "return std::nullopt;\n"
+                + "}\n"
+                + "return static_cast<T>(*value);\n"
+                + "}\n\n");
+
+        if (countsCharacters) {
+            cppFile.printf("// Returns the number of characters of the UTF-8 string raw.\n"
+                    + "static size_t countXmlCharacters(std::string_view raw) {\n"
+                    + "size_t count = 0;\n"
+                    + "for (char c : raw) {\n"
+                    + "if ((c & 0xc0) != 0x80) {\n"
+                    + "++count;\n"
+                    + "}\n"
+                    + "}\n"
+                    + "return count;\n"
+                    + "}\n\n");
+        }
+        if (countsDigits) {
+            // leading and trailing zeros are not significant
+            cppFile.printf("// Returns the number of digits of the decimal raw, or of its fraction "
+                    + "digits if fraction is\n"
+                    + "// true.\n"
+                    + "static size_t countXmlDigits(std::string_view raw, bool fraction) {\n"
+                    + "size_t point = raw.find('.');\n"
+                    + "size_t integerDigits = 0;\n"
+                    + "for (char c : raw.substr(0, point)) {\n"
+                    + "if ((c >= '1' && c <= '9') || (c == '0' && integerDigits > 0)) {\n"
+                    + "++integerDigits;\n"
+                    + "}\n"
+                    + "}\n"
+                    + "size_t fractionDigits = 0;\n"
+                    + "for (size_t i = point + 1; point != std::string_view::npos && "
+                    + "i < raw.size(); ++i) {\n"
+                    + "if (raw[i] >= '1' && raw[i] <= '9') {\n"
+                    + "fractionDigits = i - point;\n"
+                    + "}\n"
+                    + "}\n"
+                    + "return fraction ? fractionDigits : integerDigits + fractionDigits;\n"
+                    + "}\n\n");
+        }
+        for (String validator : validators) {
+            cppFile.print(validator);
+        }
+
+        if (hasAttr && !arena) {
             cppFile.printf("static std::string getXmlAttribute"
                     + "(const xmlNode *cur, const char *attribute) {\n"
                     + "auto xmlValue = make_xmlUnique(xmlGetProp(cur, "
@@ -446,10 +1552,15 @@ public class CppCodeGenerator {
             String typeName = cppType instanceof CppSimpleType ? cppType.getName() :
                     Utils.toClassName(cppType.getName());
 
+            String resultName = arena ? String.format("XmlDocument<%s>", typeName) : typeName;
+            readers.put(element, "read" + (isMultiRootElement ? Utils.capitalize(typeName) : ""));
+            headerFile.printf("// Returns std::nullopt if configFile can't be parsed or has a "
+                    + "malformed value, which is\n"
+                    + "// logged.\n");
             headerFile.printf("std::optional<%s> read%s(const char* configFile);\n\n",
-                    typeName, isMultiRootElement ? Utils.capitalize(typeName) : "");
+                    resultName, isMultiRootElement ? Utils.capitalize(typeName) : "");
             cppFile.printf("std::optional<%s> read%s(const char* configFile) {\n",
-                    typeName, isMultiRootElement ? Utils.capitalize(typeName) : "");
+                    resultName, isMultiRootElement ? Utils.capitalize(typeName) : "");
             cppFile.printf("auto doc = make_xmlUnique(xmlParseFile(configFile));\n"
                     + "if (doc == nullptr) {\n"
                     + "return std::nullopt;\n"
@@ -462,6 +1573,26 @@ public class CppCodeGenerator {
                     + "(\"%s\"))) {\n",
                     elementName);
 
+            if (arena) {
+                if (cppType instanceof CppSimpleType) {
+                    throw new CppCodeGeneratorException(String.format(
+                            "simple type root element is not supported with arena : %s",
+                            elementName));
+                }
+                cppFile.printf("auto arena = std::make_unique<std::pmr::monotonic_buffer_resource>"
+                        + "();\n"
+                        + "std::optional<%s> root = %s::read(child, arena.get());\n"
+                        + "if (!root) {\n"
+                        + "return std::nullopt;\n"
+                        + "}\n"
+                        + "%s* value = newXmlArray<%s>(arena.get(), 1);\n"
+                        + "*value = *root;\n"
+                        + "return %s(std::move(arena), value);\n}\n",
+                        typeName, typeName, typeName, typeName, resultName);
+                cppFile.printf("return std::nullopt;\n");
+                cppFile.printf("}\n\n");
+                continue;
+            }
             if (cppType instanceof CppSimpleType) {
                 cppFile.printf("%s value = getXmlAttribute(child, \"%s\");\n",
                         elementName, elementName);
@@ -474,28 +1605,292 @@ public class CppCodeGenerator {
         }
     }
 
-    private String getElementName(XsdElement element) {
-        if (element instanceof XsdChoice) {
-            return element.getName() + "_optional";
-        } else if (element instanceof XsdAll) {
-            return element.getName() + "_all";
+    // A snapshot starts with a header made of the magic "XSDS", the format version, the hash of
+    // the generated classes and a table of all strings. Then the members of each object follow
+    // in the order of declaration. Integers are varints, optional members are preceded by their
+    // presence and lists by their size. Objects without members take a zero byte, so that each
+    // item of a list takes at least one byte.
+    private void printXmlSnapshot() throws CppCodeGeneratorException {
+        cppFile.printf("constexpr char kXmlSnapshotMagic[] = {'X', 'S', 'D', 'S'};\n"
+                + "constexpr uint64_t kXmlSnapshotVersion = 2;\n"
+                + "constexpr uint64_t kXmlSnapshotSchemaHash = 0x%016xULL;\n\n",
+                computeSchemaHash());
+
+        cppFile.printf("class XmlSnapshotWriter {\n"
+                + "public:\n"
+                + "void writeVarint(uint64_t value) {\n"
+                + "while (value >= 0x80) {\n"
+                + "body_.push_back(static_cast<char>(value | 0x80));\n"
+                + "value >>= 7;\n"
+                + "}\n"
+                + "body_.push_back(static_cast<char>(value));\n"
+                + "}\n"
+                + "void writeSignedVarint(int64_t value) {\n"
+                + "writeVarint((static_cast<uint64_t>(value) << 1) ^ "
+                + "static_cast<uint64_t>(value >> 63));\n"
+                + "}\n"
+                + "void writeBool(bool value) {\n"
+                + "body_.push_back(value ? 1 : 0);\n"
+                + "}\n"
+                + "void writeFloat(float value) {\n"
+                + "uint32_t bits;\n"
+                + "std::memcpy(&bits, &value, sizeof(bits));\n"
+                + "writeFixed(bits, sizeof(bits));\n"
+                + "}\n"
+                + "void writeDouble(double value) {\n"
+                + "uint64_t bits;\n"
+                + "std::memcpy(&bits, &value, sizeof(bits));\n"
+                + "writeFixed(bits, sizeof(bits));\n"
+                + "}\n"
+                + "// value has to outlive the writer\n"
+                + "void writeString(std::string_view value) {\n"
+                + "auto [it, inserted] = stringIndexes_.try_emplace(value, strings_.size());\n"
+                + "if (inserted) {\n"
+                + "strings_.push_back(value);\n"
+                + "}\n"
+                + "writeVarint(it->second);\n"
+                + "}\n"
+                + "std::string finish() const {\n"
+                + "XmlSnapshotWriter header;\n"
+                + "header.body_.append(kXmlSnapshotMagic, sizeof(kXmlSnapshotMagic));\n"
+                + "header.writeVarint(kXmlSnapshotVersion);\n"
+                + "header.writeFixed(kXmlSnapshotSchemaHash, sizeof(kXmlSnapshotSchemaHash));\n"
+                + "header.writeVarint(strings_.size());\n"
+                + "for (std::string_view string : strings_) {\n"
+                + "header.writeVarint(string.size());\n"
+                + "header.body_.append(string);\n"
+                + "}\n"
+                + "return header.body_ + body_;\n"
+                + "}\n"
+                + "private:\n"
+                + "void writeFixed(uint64_t value, size_t size) {\n"
+                + "for (size_t i = 0; i < size; ++i) {\n"
+                + "body_.push_back(static_cast<char>(value >> (8 * i)));\n"
+                + "}\n"
+                + "}\n"
+                + "std::string body_;\n"
+                + "std::unordered_map<std::string_view, uint64_t> stringIndexes_;\n"
+                + "std::vector<std::string_view> strings_;\n"
+                + "};\n\n");
+
+        cppFile.printf("// Reading past the end of the snapshot yields zeros and clears ok().\n"
+                + "class XmlSnapshotReader {\n"
+                + "public:\n"
+                + "explicit XmlSnapshotReader(std::string_view data) : data_(data) {}\n"
+                + "// Returns false if the snapshot was written by another version or for "
+                + "another schema.\n"
+                + "bool readHeader() {\n"
+                + "if (take(sizeof(kXmlSnapshotMagic)) != "
+                + "std::string_view(kXmlSnapshotMagic, sizeof(kXmlSnapshotMagic))\n"
+                + "|| readVarint() != kXmlSnapshotVersion\n"
+                + "|| readFixed(sizeof(kXmlSnapshotSchemaHash)) != kXmlSnapshotSchemaHash) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "for (uint64_t count = readCount(); count > 0 && ok_; --count) {\n"
+                + "strings_.push_back(take(readVarint()));\n"
+                + "}\n"
+                + "return ok_;\n"
+                + "}\n"
+                + "bool ok() const {\n"
+                + "return ok_;\n"
+                + "}\n"
+                + "uint64_t readVarint() {\n"
+                + "uint64_t value = 0;\n"
+                + "for (int shift = 0; shift < 64; shift += 7) {\n"
+                + "uint64_t byte = readFixed(1);\n"
+                + "value |= (byte & 0x7f) << shift;\n"
+                + "if ((byte & 0x80) == 0) {\n"
+                + "return value;\n"
+                + "}\n"
+                + "}\n"
+                + "ok_ = false;\n"
+                + "return 0;\n"
+                + "}\n"
+                + "int64_t readSignedVarint() {\n"
+                + "uint64_t value = readVarint();\n"
+                + "return static_cast<int64_t>(value >> 1) ^ -static_cast<int64_t>(value & 1);\n"
+                + "}\n"
+                + "bool readBool() {\n"
+                + "return readFixed(1) != 0;\n"
+                + "}\n"
+                + "float readFloat() {\n"
+                + "uint32_t bits = readFixed(sizeof(bits));\n"
+                + "float value;\n"
+                + "std::memcpy(&value, &bits, sizeof(value));\n"
+                + "return value;\n"
+                + "}\n"
+                + "double readDouble() {\n"
+                + "uint64_t bits = readFixed(sizeof(bits));\n"
+                + "double value;\n"
+                + "std::memcpy(&value, &bits, sizeof(value));\n"
+                + "return value;\n"
+                + "}\n"
+                + "std::string_view readString() {\n"
+                + "uint64_t index = readVarint();\n"
+                + "if (index >= strings_.size()) {\n"
+                + "ok_ = false;\n"
+                + "return std::string_view();\n"
+                + "}\n"
+                + "return strings_[index];\n"
+                + "}\n"
+                + "// Returns the size of a list, whose items take at least one byte each.\n"
+                + "uint64_t readCount() {\n"
+                + "uint64_t count = readVarint();\n"
+                + "if (count > data_.size()) {\n"
+                + "ok_ = false;\n"
+                + "data_ = std::string_view();\n"
+                + "return 0;\n"
+                + "}\n"
+                + "return count;\n"
+                + "}\n"
+                + "// Returns last, which is the last enumerator of T, if the value is out of "
+                + "range.\n"
+                + "template <class T>\n"
+                + "T readEnum(T last) {\n"
+                + "uint64_t value = readVarint();\n"
+                + "if (value > static_cast<uint64_t>(last)) {\n"
+                + "ok_ = false;\n"
+                + "return last;\n"
+                + "}\n"
+                + "return static_cast<T>(value);\n"
+                + "}\n"
+                + "private:\n"
+                + "std::string_view take(uint64_t size) {\n"
+                + "if (size > data_.size()) {\n"
+                + "ok_ = false;\n"
+                + "data_ = std::string_view();\n"
+                + "return std::string_view();\n"
+                + "}\n"
+                + "std::string_view value = data_.substr(0, size);\n"
+                + "data_.remove_prefix(size);\n"
+                + "return value;\n"
+                + "}\n"
+                + "uint64_t readFixed(size_t size) {\n"
+                + "std::string_view bytes = take(size);\n"
+                + "uint64_t value = 0;\n"
+                + "for (size_t i = 0; i < bytes.size(); ++i) {\n"
+                + "value |= static_cast<uint64_t>(static_cast<unsigned char>(bytes[i])) "
+                + "<< (8 * i);\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n"
+                + "std::string_view data_;\n"
+                + "std::vector<std::string_view> strings_;\n"
+                + "bool ok_ = true;\n"
+                + "};\n\n");
+
+        cppFile.printf("class XmlSnapshotFile {\n"
+                + "public:\n"
+                + "explicit XmlSnapshotFile(const char* path) {\n"
+                + "int fd = open(path, O_RDONLY | O_CLOEXEC);\n"
+                + "if (fd < 0) {\n"
+                + "return;\n"
+                + "}\n"
+                + "struct stat st;\n"
+                + "if (fstat(fd, &st) == 0 && st.st_size > 0) {\n"
+                + "void* data = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);\n"
+                + "if (data != MAP_FAILED) {\n"
+                + "data_ = data;\n"
+                + "size_ = st.st_size;\n"
+                + "}\n"
+                + "}\n"
+                + "close(fd);\n"
+                + "}\n"
+                + "~XmlSnapshotFile() {\n"
+                + "if (data_ != nullptr) {\n"
+                + "munmap(data_, size_);\n"
+                + "}\n"
+                + "}\n"
+                + "XmlSnapshotFile(const XmlSnapshotFile&) = delete;\n"
+                + "XmlSnapshotFile& operator=(const XmlSnapshotFile&) = delete;\n"
+                + "std::string_view data() const {\n"
+                + "return std::string_view(static_cast<const char*>(data_), size_);\n"
+                + "}\n"
+                + "private:\n"
+                + "void* data_ = nullptr;\n"
+                + "size_t size_ = 0;\n"
+                + "};\n\n");
+
+        // the snapshot is renamed into place, so readers never see a partial file
+        cppFile.printf("static bool writeXmlSnapshotFile(const std::string& snapshot, "
+                + "const char* path) {\n"
+                + "std::string tempPath = std::string(path) + \".tmp\";\n"
+                + "FILE* file = fopen(tempPath.c_str(), \"we\");\n"
+                + "if (file == nullptr) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "bool written = fwrite(snapshot.data(), 1, snapshot.size(), file) == "
+                + "snapshot.size();\n"
+                + "if (fclose(file) != 0 || !written || rename(tempPath.c_str(), path) != 0) {\n"
+                + "unlink(tempPath.c_str());\n"
+                + "return false;\n"
+                + "}\n"
+                + "return true;\n"
+                + "}\n\n");
+
+        boolean isMultiRootElement = xmlSchema.getElementMap().values().size() > 1;
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            CppType cppType = parseType(element.getType(), element.getName());
+            String typeName = cppType instanceof CppSimpleType ? cppType.getName() :
+                    Utils.toClassName(cppType.getName());
+            String suffix = isMultiRootElement ? Utils.capitalize(typeName) : "";
+
+            headerFile.printf("bool writeSnapshot%s(const %s& value, const char* snapshotFile);"
+                    + "\n\n", suffix, typeName);
+            cppFile.printf("bool writeSnapshot%s(const %s& value, const char* snapshotFile) {\n"
+                    + "XmlSnapshotWriter out;\n", suffix, typeName);
+            printSnapshotWrite(cppType, "value", 1);
+            cppFile.printf("return writeXmlSnapshotFile(out.finish(), snapshotFile);\n"
+                    + "}\n\n");
+
+            headerFile.printf("// Returns std::nullopt if the snapshot can't be read, was written "
+                    + "for another schema or\n"
+                    + "// is corrupted, in which case the xml file should be read instead.\n");
+            headerFile.printf("std::optional<%s> readSnapshot%s(const char* snapshotFile);\n\n",
+                    typeName, suffix);
+            cppFile.printf("std::optional<%s> readSnapshot%s(const char* snapshotFile) {\n"
+                    + "XmlSnapshotFile file(snapshotFile);\n"
+                    + "XmlSnapshotReader in(file.data());\n"
+                    + "if (!in.readHeader()) {\n"
+                    + "return std::nullopt;\n"
+                    + "}\n", typeName, suffix);
+            printSnapshotRead(cppType, "value", 1);
+            cppFile.printf("if (!in.ok()) {\n"
+                    + "return std::nullopt;\n"
+                    + "}\n"
+                    + "return value;\n"
+                    + "}\n\n");
         }
-        return element.getName();
     }
 
-    private void stackComponents(XsdComplexType complexType, List<XsdElement> elements,
-            List<XsdAttribute> attributes) throws CppCodeGeneratorException {
-        if (complexType.getBase() != null) {
-            QName baseRef = complexType.getBase().getRef();
-            if (baseRef != null && !baseRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-                XsdType parent = getType(baseRef.getLocalPart());
-                if (parent instanceof XsdComplexType) {
-                    stackComponents((XsdComplexType) parent, elements, attributes);
-                }
+    // Hashes the members and types of every generated class, which the layout of a snapshot
+    // depends on.
+    private long computeSchemaHash() throws CppCodeGeneratorException {
+        ResolvedSchema.TypeNames<CppCodeGeneratorException> names =
+                new ResolvedSchema.TypeNames<CppCodeGeneratorException>() {
+            @Override
+            public String getClassName(String name) throws CppCodeGeneratorException {
+                return Utils.toClassName(name);
             }
-        }
-        elements.addAll(complexType.getElements());
-        attributes.addAll(complexType.getAttributes());
+
+            @Override
+            public String getTypeName(XsdType type, String name)
+                    throws CppCodeGeneratorException {
+                return parseType(type, name).getName();
+            }
+
+            @Override
+            public String getAttributeTypeName(XsdType type) throws CppCodeGeneratorException {
+                return simpleTypes.map(type).getName();
+            }
+
+            @Override
+            public String getValueTypeName(XsdSimpleContent simpleContent)
+                    throws CppCodeGeneratorException {
+                return getValueType(simpleContent, true).getName();
+            }
+        };
+        return resolvedSchema.computeSchemaHash(names);
     }
 
     private String getBaseName(XsdComplexType complexType) throws CppCodeGeneratorException {
@@ -503,7 +1898,7 @@ public class CppCodeGenerator {
         if (complexType.getBase().getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
             return null;
         }
-        XsdType base = getType(complexType.getBase().getRef().getLocalPart());
+        XsdType base = resolvedSchema.getType(complexType.getBase().getRef().getLocalPart());
         if (base instanceof XsdComplexType) {
             return Utils.toClassName(base.getName());
         }
@@ -516,11 +1911,11 @@ public class CppCodeGenerator {
         QName baseRef = simpleContent.getBase().getRef();
         assert baseRef != null;
         if (baseRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-            return predefinedType(baseRef.getLocalPart());
+            return simpleTypes.map(simpleContent.getBase());
         } else {
-            XsdType parent = getType(baseRef.getLocalPart());
+            XsdType parent = resolvedSchema.getType(baseRef.getLocalPart());
             if (parent instanceof XsdSimpleType) {
-                return parseSimpleTypeReference(baseRef, false);
+                return simpleTypes.map(simpleContent.getBase());
             }
             if (!traverse) return null;
             if (parent instanceof XsdSimpleContent) {
@@ -536,110 +1931,504 @@ public class CppCodeGenerator {
         if (type.getRef() != null) {
             String name = type.getRef().getLocalPart();
             if (type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-                return predefinedType(name);
+                return simpleTypes.map(type);
             } else {
-                XsdType typeValue = getType(name);
+                XsdType typeValue = resolvedSchema.getType(name);
                 if (typeValue instanceof XsdSimpleType) {
-                    return parseSimpleTypeReference(type.getRef(), false);
+                    return simpleTypes.map(type);
                 }
                 return parseType(typeValue, name);
             }
         }
         if (type instanceof XsdComplexType) {
-            return new CppComplexType(Utils.toClassName(defaultName));
+            return new CppComplexType(Utils.toClassName(defaultName), arena);
         } else if (type instanceof XsdSimpleType) {
-            return parseSimpleTypeValue((XsdSimpleType) type, false);
+            return simpleTypes.map(type);
         } else {
             throw new CppCodeGeneratorException(
                     String.format("unknown type name : %s", defaultName));
         }
     }
 
-    private CppSimpleType parseSimpleType(XsdType type, boolean traverse)
-            throws CppCodeGeneratorException {
-        if (type.getRef() != null) {
-            return parseSimpleTypeReference(type.getRef(), traverse);
-        } else {
-            return parseSimpleTypeValue((XsdSimpleType) type, traverse);
+    // Maps simple types to CppSimpleTypes, which are allocated from the arena if arena is true.
+    private class SimpleTypeMapping
+            extends ResolvedSchema.SimpleTypeMapping<CppSimpleType, CppCodeGeneratorException> {
+        SimpleTypeMapping() {
+            super(resolvedSchema);
         }
-    }
 
-    private CppSimpleType parseSimpleTypeReference(QName typeRef, boolean traverse)
-            throws CppCodeGeneratorException {
-        assert typeRef != null;
-        String typeName = typeRef.getLocalPart();
-        if (typeRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-            return predefinedType(typeName);
-        }
-        if (cppSimpleTypeMap.containsKey(typeName)) {
-            return cppSimpleTypeMap.get(typeName);
-        } else if (traverse) {
-            XsdSimpleType simpleType = getSimpleType(typeName);
-            CppSimpleType ret = parseSimpleTypeValue(simpleType, true);
-            cppSimpleTypeMap.put(typeName, ret);
-            return ret;
-        } else {
-            throw new CppCodeGeneratorException(String.format("unknown type name : %s", typeName));
+        @Override
+        protected CppSimpleType mapPredefined(String name) throws CppCodeGeneratorException {
+            return arenaType(predefinedType(name));
+        }
+
+        @Override
+        protected CppSimpleType mapEnumeration(XsdRestriction restriction)
+                throws CppCodeGeneratorException {
+            String name = Utils.toClassName(restriction.getName());
+            return arenaType(new CppSimpleType(name, "stringTo" + name + "(%s)", false));
+        }
+
+        @Override
+        protected CppSimpleType mapRestriction(XsdRestriction restriction,
+                CppSimpleType baseType) throws CppCodeGeneratorException {
+            // facets are considered only if validate is true.
+            if (validate && !restriction.getFacets().isEmpty()) {
+                return getValidatedType(restriction, baseType);
+            }
+            return baseType;
+        }
+
+        @Override
+        protected CppSimpleType mapList(CppSimpleType itemType)
+                throws CppCodeGeneratorException {
+            return itemType.newListType();
+        }
+
+        @Override
+        protected CppSimpleType mapUnion(boolean list) {
+            // unions are almost always interpreted as std::string
+            return arenaType(new CppSimpleType("std::string", "%s", list));
+        }
+
+        @Override
+        protected boolean isList(CppSimpleType type) {
+            return type.isList();
+        }
+
+        @Override
+        protected CppCodeGeneratorException newException(String message) {
+            return new CppCodeGeneratorException(message);
         }
     }
 
-    private CppSimpleType parseSimpleTypeValue(XsdSimpleType simpleType, boolean traverse)
+    // Returns baseType whose values are checked against the facets of restriction by a
+    // validator. Facets which don't apply to the built-in type being restricted are ignored, as
+    // are the facets of restrictions of lists, unions and enumerations.
+    private CppSimpleType getValidatedType(XsdRestriction restriction, CppSimpleType baseType)
             throws CppCodeGeneratorException {
-        if (simpleType instanceof XsdList) {
-            XsdList list = (XsdList) simpleType;
-            return parseSimpleType(list.getItemType(), traverse).newListType();
-        } else if (simpleType instanceof XsdRestriction) {
-            // we don't consider any restrictions.
-            XsdRestriction restriction = (XsdRestriction) simpleType;
-            if (restriction.getEnums() != null) {
-                String name = Utils.toClassName(restriction.getName());
-                return new CppSimpleType(name, "stringTo" + name + "(%s)", false);
-            }
-            return parseSimpleType(restriction.getBase(), traverse);
-        } else if (simpleType instanceof XsdUnion) {
-            // unions are almost always interpreted as java.lang.String
-            // Exceptionally, if any of member types of union are 'list', then we interpret it as
-            // List<String>
-            XsdUnion union = (XsdUnion) simpleType;
-            for (XsdType memberType : union.getMemberTypes()) {
-                if (parseSimpleType(memberType, traverse).isList()) {
-                    return new CppSimpleType("std::string", "%s", true);
+        if (validatedTypes.containsKey(restriction)) {
+            return validatedTypes.get(restriction);
+        }
+        String predefined = resolvedSchema.getPredefinedBase(restriction);
+        if (predefined == null || baseType.isList()) {
+            validatedTypes.put(restriction, baseType);
+            return baseType;
+        }
+        // anonymous types are numbered
+        String name = restriction.getName() != null ? Utils.toClassName(restriction.getName())
+                : "Value";
+        String suffix = name;
+        for (int i = 0; suffix.equals("Value") || validatorNames.contains(suffix); ++i) {
+            suffix = name + i;
+        }
+        String label = restriction.getName() != null ? restriction.getName() : "value";
+        String typeName = baseType.getTypeName();
+        String length = getLengthExpression(ResolvedSchema.getLengthUnit(predefined));
+        boolean numeric = ResolvedSchema.isNumericType(predefined);
+        boolean decimal = numeric && !predefined.equals("double") && !predefined.equals("float");
+
+        StringBuilder constants = new StringBuilder();
+        StringBuilder checks = new StringBuilder();
+        List<String> patterns = new ArrayList<>();
+        try {
+            for (XsdFacet facet : restriction.getFacets()) {
+                String condition = null;
+                switch (facet.getKind()) {
+                    case LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s != %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case MIN_LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s < %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case MAX_LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s > %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case PATTERN:
+                        patterns.add(facet.getValue());
+                        break;
+                    case MIN_INCLUSIVE:
+                        if (numeric) {
+                            condition = String.format("*value < %s", getBound(facet, typeName));
+                        }
+                        break;
+                    case MAX_INCLUSIVE:
+                        if (numeric) {
+                            condition = String.format("*value > %s", getBound(facet, typeName));
+                        }
+                        break;
+                    case MIN_EXCLUSIVE:
+                        if (numeric) {
+                            condition = String.format("*value <= %s", getBound(facet, typeName));
+                        }
+                        break;
+                    case MAX_EXCLUSIVE:
+                        if (numeric) {
+                            condition = String.format("*value >= %s", getBound(facet, typeName));
+                        }
+                        break;
+                    case TOTAL_DIGITS:
+                    case FRACTION_DIGITS:
+                        // digits are counted in the raw value, since decimals are parsed as doubles
+                        if (decimal) {
+                            condition = String.format("countXmlDigits(raw, %s) > %d",
+                                    facet.getKind() == XsdFacet.Kind.FRACTION_DIGITS,
+                                    ResolvedSchema.parseFacetLength(facet));
+                            countsDigits = true;
+                        }
+                        break;
+                    default:
+                        // whiteSpace is applied by the parsing of the built-in type.
+                        break;
+                }
+                if (condition != null) {
+                    printFacetCheck(checks, condition, label, facet.getKind().getTagName() + " "
+                            + facet.getValue());
                 }
             }
-            return new CppSimpleType("std::string", "%s", false);
-        } else {
-            // unreachable
-            throw new IllegalStateException("unknown simple type");
+        } catch (XsdParserException e) {
+            throw new CppCodeGeneratorException(e.getMessage());
+        }
+        if (!patterns.isEmpty()) {
+            // patterns of the same restriction are alternatives
+            StringBuilder regex = new StringBuilder();
+            for (String pattern : patterns) {
+                if (regex.length() > 0) regex.append("|");
+                regex.append("(?:").append(toCppRegex(pattern)).append(")");
+            }
+            String constant = suffix.toUpperCase() + "_PATTERN";
+            constants.append(String.format("static const std::regex %s(%s);\n", constant,
+                    CodeWriter.toStringLiteral(regex.toString())));
+            printFacetCheck(checks,
+                    String.format("!std::regex_match(raw.begin(), raw.end(), %s)", constant),
+                    label, "pattern " + String.join(" | ", patterns));
+        }
+        if (checks.length() == 0) {
+            validatedTypes.put(restriction, baseType);
+            return baseType;
         }
+        if (length != null && length.startsWith("countXmlCharacters")) {
+            countsCharacters = true;
+        }
+
+        String validator = "validate" + suffix;
+        StringBuilder code = new StringBuilder(constants);
+        if (constants.length() > 0) {
+            code.append("\n");
+        }
+        code.append(String.format("// Checks a value of %s against its facets.\n"
+                + "static std::optional<%s> %s(std::optional<%s> value, std::string_view raw) {\n"
+                + "if (!value) {\n"
+                + "return value;\n"
+                + "}\n", restriction.getName() != null ? restriction.getName()
+                        : "an anonymous type", typeName, validator, typeName));
+        code.append(checks);
+        code.append("return value;\n"
+                + "}\n\n");
+        validators.add(code.toString());
+        validatorNames.add(suffix);
+        CppSimpleType ret = baseType.newValidatedType(validator);
+        validatedTypes.put(restriction, ret);
+        return ret;
+    }
+
+    // Prints a check which logs the facet which the value breaks and rejects it.
+    private static void printFacetCheck(StringBuilder checks, String condition, String label,
+            String facet) {
+        checks.append(String.format("if (%s) {\n"
+                + "logInvalidXmlFacet(%s, raw, %s);\n"
+                + "return std::nullopt;\n"
+                + "}\n", condition, CodeWriter.toStringLiteral(label),
+                CodeWriter.toStringLiteral(facet)));
     }
 
-    private XsdElement resolveElement(XsdElement element) throws CppCodeGeneratorException {
-        if (element.getRef() == null) return element;
-        String name = element.getRef().getLocalPart();
-        XsdElement ret = xmlSchema.getElementMap().get(name);
-        if (ret != null) return ret;
-        throw new CppCodeGeneratorException(String.format("no element named : %s", name));
+    // Returns an expression counting the length of raw for the length facets measured in unit.
+    // base64Binary values aren't decoded, so their length isn't checked.
+    private static String getLengthExpression(ResolvedSchema.LengthUnit unit) {
+        if (unit == null) return null;
+        switch (unit) {
+            case CHARACTERS:
+                return "countXmlCharacters(raw)";
+            case HEX_OCTETS:
+                return "raw.size() / 2";
+            default:
+                return null;
+        }
     }
 
-    private XsdAttribute resolveAttribute(XsdAttribute attribute)
+    // Returns the literal of the bound of a range facet for values of typeName.
+    private static String getBound(XsdFacet facet, String typeName)
             throws CppCodeGeneratorException {
-        if (attribute.getRef() == null) return attribute;
-        String name = attribute.getRef().getLocalPart();
-        XsdAttribute ret = xmlSchema.getAttributeMap().get(name);
-        if (ret != null) return ret;
-        throw new CppCodeGeneratorException(String.format("no attribute named : %s", name));
+        String value = facet.getValue().trim();
+        try {
+            if (typeName.equals("double") || typeName.equals("float")) {
+                if (value.equals("INF")) {
+                    return "std::numeric_limits<double>::infinity()";
+                } else if (value.equals("-INF")) {
+                    return "-std::numeric_limits<double>::infinity()";
+                } else if (value.equals("NaN")) {
+                    return "std::numeric_limits<double>::quiet_NaN()";
+                } else if (typeName.equals("float")) {
+                    // compared as floats, so that the bound is rounded like the value
+                    return Float.parseFloat(value) + "f";
+                }
+                return String.valueOf(Double.parseDouble(value));
+            }
+            java.math.BigInteger bound = new java.math.BigDecimal(value).toBigIntegerExact();
+            if (typeName.startsWith("unsigned")) {
+                if (bound.signum() >= 0 && bound.bitLength() <= 64) {
+                    return bound + "ULL";
+                }
+            } else if (bound.bitLength() <= 63) {
+                // the literal of the least long long is out of range before it is negated
+                return bound.equals(java.math.BigInteger.valueOf(Long.MIN_VALUE))
+                        ? "(-9223372036854775807LL - 1)" : bound + "LL";
+            }
+            throw new CppCodeGeneratorException(String.format("%s out of range : %s",
+                    facet.getKind().getTagName(), value));
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new CppCodeGeneratorException(String.format("invalid %s : %s",
+                    facet.getKind().getTagName(), value));
+        }
     }
 
-    private XsdType getType(String name) throws CppCodeGeneratorException {
-        XsdType type = xmlSchema.getTypeMap().get(name);
-        if (type != null) return type;
-        throw new CppCodeGeneratorException(String.format("no type named : %s", name));
+    // Returns pattern, an XML Schema regular expression, as an ECMAScript expression of
+    // std::regex, with ^ and $ escaped. The multi-character escapes of XML names, Unicode
+    // categories and blocks, and character class subtraction have no equivalent, so they are
+    // rejected.
+    private static String toCppRegex(String pattern) throws CppCodeGeneratorException {
+        if (pattern.matches("(?s).*(\\\\[iIcCpP]|-\\[).*")) {
+            throw new CppCodeGeneratorException("unsupported pattern : " + pattern);
+        }
+        String regex = ResolvedSchema.escapeAnchors(pattern);
+        try {
+            java.util.regex.Pattern.compile(regex);
+        } catch (java.util.regex.PatternSyntaxException e) {
+            throw new CppCodeGeneratorException(
+                    String.format("invalid pattern : %s (%s)", pattern, e.getDescription()));
+        }
+        return regex;
+    }
+
+    private void printBenchmark(CodeWriter out) throws CppCodeGeneratorException {
+        SampleDocument sampleDocument = new SampleDocument(resolvedSchema);
+        String namespace = String.join("::", fileName.split("_"));
+
+        out.printf("// Google Benchmark of the readers of %s.h. Each argument is a document or "
+                + "a directory of\n"
+                + "// documents, which are read by the reader of their root element. Without "
+                + "arguments, a document\n"
+                + "// synthesized from the schema is read for each root element.\n"
+                + "//\n"
+                + "// Besides the time per document and bytes per second, allocs and allocBytes "
+                + "count the\n"
+                + "// allocations per document of operator new, which this file replaces, and of "
+                + "libxml2.\n\n", fileName);
+        out.printf("#include <algorithm>\n"
+                + "#include <atomic>\n"
+                + "#include <cstdint>\n"
+                + "#include <cstdio>\n"
+                + "#include <cstdlib>\n"
+                + "#include <cstring>\n"
+                + "#include <new>\n"
+                + "#include <string>\n"
+                + "#include <vector>\n\n"
+                + "#include <dirent.h>\n"
+                + "#include <sys/stat.h>\n"
+                + "#include <unistd.h>\n\n"
+                + "#include <benchmark/benchmark.h>\n"
+                + "#include <libxml/xmlmemory.h>\n\n"
+                + "#include \"%s.h\"\n\n", fileName);
+
+        out.printf("namespace {\n\n"
+                + "std::atomic<uint64_t> allocations;\n"
+                + "std::atomic<uint64_t> allocatedBytes;\n\n"
+                + "void countAllocation(size_t size) {\n"
+                + "allocations.fetch_add(1, std::memory_order_relaxed);\n"
+                + "allocatedBytes.fetch_add(size, std::memory_order_relaxed);\n"
+                + "}\n\n"
+                + "void* countingMalloc(size_t size) {\n"
+                + "countAllocation(size);\n"
+                + "return std::malloc(size);\n"
+                + "}\n\n"
+                + "void* countingRealloc(void* ptr, size_t size) {\n"
+                + "countAllocation(size);\n"
+                + "return std::realloc(ptr, size);\n"
+                + "}\n\n"
+                + "char* countingStrdup(const char* str) {\n"
+                + "countAllocation(std::strlen(str) + 1);\n"
+                + "return strdup(str);\n"
+                + "}\n\n"
+                + "} // namespace\n\n");
+        // exceptions may be disabled, so failed allocations abort
+        out.printf("void* operator new(size_t size) {\n"
+                + "countAllocation(size);\n"
+                + "void* ptr = std::malloc(size == 0 ? 1 : size);\n"
+                + "if (ptr == nullptr) {\n"
+                + "std::abort();\n"
+                + "}\n"
+                + "return ptr;\n"
+                + "}\n\n"
+                + "void operator delete(void* ptr) noexcept {\n"
+                + "std::free(ptr);\n"
+                + "}\n\n"
+                + "void operator delete(void* ptr, size_t) noexcept {\n"
+                + "std::free(ptr);\n"
+                + "}\n\n");
+
+        out.printf("namespace {\n\n"
+                + "struct Reader {\n"
+                + "const char* name;\n"
+                + "bool (*read)(const char* file);\n"
+                + "// a document synthesized from the schema\n"
+                + "const char* sample;\n"
+                + "};\n\n"
+                + "const Reader kReaders[] = {\n");
+        for (Map.Entry<XsdElement, String> reader : readers.entrySet()) {
+            String sample;
+            try {
+                sample = sampleDocument.of(reader.getKey());
+            } catch (XsdParserException e) {
+                throw new CppCodeGeneratorException(e.getMessage());
+            }
+            out.printf("{%s, [](const char* file) { return %s::%s(file).has_value(); },\n",
+                    CodeWriter.toStringLiteral(reader.getKey().getName()), namespace,
+                    reader.getValue());
+            for (int i = 0; i < sample.length(); i += 4096) {
+                out.printf("%s%s\n", CodeWriter.toStringLiteral(
+                        sample.substring(i, Math.min(sample.length(), i + 4096))),
+                        i + 4096 < sample.length() ? "" : "},");
+            }
+        }
+        out.printf("};\n\n");
+
+        out.printf("void benchmarkRead(benchmark::State& state, const Reader* reader, "
+                + "const std::string& file,\n"
+                + "int64_t size) {\n"
+                + "uint64_t startAllocations = allocations.load();\n"
+                + "uint64_t startAllocatedBytes = allocatedBytes.load();\n"
+                + "for (auto _ : state) {\n"
+                + "if (!reader->read(file.c_str())) {\n"
+                + "state.SkipWithError(\"document not read\");\n"
+                + "break;\n"
+                + "}\n"
+                + "}\n"
+                + "state.SetBytesProcessed(state.iterations() * size);\n"
+                + "state.counters[\"allocs\"] = benchmark::Counter(\n"
+                + "allocations.load() - startAllocations, "
+                + "benchmark::Counter::kAvgIterations);\n"
+                + "state.counters[\"allocBytes\"] = benchmark::Counter(\n"
+                + "allocatedBytes.load() - startAllocatedBytes, "
+                + "benchmark::Counter::kAvgIterations);\n"
+                + "}\n\n"
+                + "void registerRead(const Reader* reader, const std::string& file, "
+                + "const std::string& label) {\n"
+                + "struct stat st;\n"
+                + "int64_t size = stat(file.c_str(), &st) == 0 ? st.st_size : 0;\n"
+                + "benchmark::RegisterBenchmark(\n"
+                + "(std::string(\"read/\") + reader->name + \"/\" + label).c_str(),\n"
+                + "[reader, file, size](benchmark::State& state) {\n"
+                + "benchmarkRead(state, reader, file, size);\n"
+                + "});\n"
+                + "}\n\n"
+                + "// Returns the documents at path, which is a document or a directory.\n"
+                + "std::vector<std::string> listDocuments(const std::string& path) {\n"
+                + "std::vector<std::string> documents;\n"
+                + "DIR* dir = opendir(path.c_str());\n"
+                + "if (dir == nullptr) {\n"
+                + "documents.push_back(path);\n"
+                + "return documents;\n"
+                + "}\n"
+                + "while (dirent* entry = readdir(dir)) {\n"
+                + "std::string document = path + \"/\" + entry->d_name;\n"
+                + "struct stat st;\n"
+                + "if (stat(document.c_str(), &st) == 0 && S_ISREG(st.st_mode)) {\n"
+                + "documents.push_back(document);\n"
+                + "}\n"
+                + "}\n"
+                + "closedir(dir);\n"
+                + "std::sort(documents.begin(), documents.end());\n"
+                + "return documents;\n"
+                + "}\n\n"
+                + "// Writes sample to a new temporary file and returns its path, or an empty "
+                + "string on failure.\n"
+                + "std::string writeSample(const char* sample) {\n"
+                + "const char* tmpdir = getenv(\"TMPDIR\");\n"
+                + "#ifdef __ANDROID__\n"
+                + "std::string path = tmpdir != nullptr ? tmpdir : \"/data/local/tmp\";\n"
+                + "#else\n"
+                + "std::string path = tmpdir != nullptr ? tmpdir : \"/tmp\";\n"
+                + "#endif\n"
+                + "path += \"/xsdc_benchmark_XXXXXX\";\n"
+                + "std::vector<char> name(path.begin(), path.end());\n"
+                + "name.push_back('\\0');\n"
+                + "int fd = mkstemp(name.data());\n"
+                + "if (fd < 0) {\n"
+                + "return \"\";\n"
+                + "}\n"
+                + "size_t length = std::strlen(sample);\n"
+                + "bool written = write(fd, sample, length) == static_cast<ssize_t>(length);\n"
+                + "close(fd);\n"
+                + "if (!written) {\n"
+                + "unlink(name.data());\n"
+                + "return \"\";\n"
+                + "}\n"
+                + "return name.data();\n"
+                + "}\n\n"
+                + "} // namespace\n\n");
+
+        out.printf("int main(int argc, char** argv) {\n"
+                + "xmlMemSetup(std::free, countingMalloc, countingRealloc, countingStrdup);\n"
+                + "benchmark::Initialize(&argc, argv);\n"
+                + "std::vector<std::string> samples;\n"
+                + "if (argc > 1) {\n"
+                + "for (int i = 1; i < argc; ++i) {\n"
+                + "for (const std::string& document : listDocuments(argv[i])) {\n"
+                + "const Reader* found = nullptr;\n"
+                + "for (const Reader& reader : kReaders) {\n"
+                + "if (reader.read(document.c_str())) {\n"
+                + "found = &reader;\n"
+                + "break;\n"
+                + "}\n"
+                + "}\n"
+                + "if (found == nullptr) {\n"
+                + "fprintf(stderr, \"%%s: no root element of the schema\\n\", "
+                + "document.c_str());\n"
+                + "continue;\n"
+                + "}\n"
+                + "registerRead(found, document, document);\n"
+                + "}\n"
+                + "}\n"
+                + "} else {\n"
+                + "for (const Reader& reader : kReaders) {\n"
+                + "std::string sample = writeSample(reader.sample);\n"
+                + "if (sample.empty()) {\n"
+                + "fprintf(stderr, \"cannot write the sample of %%s\\n\", reader.name);\n"
+                + "return 1;\n"
+                + "}\n"
+                + "samples.push_back(sample);\n"
+                + "registerRead(&reader, sample, \"sample\");\n"
+                + "}\n"
+                + "}\n"
+                + "benchmark::RunSpecifiedBenchmarks();\n"
+                + "for (const std::string& sample : samples) {\n"
+                + "unlink(sample.c_str());\n"
+                + "}\n"
+                + "return 0;\n"
+                + "}\n");
     }
 
-    private XsdSimpleType getSimpleType(String name) throws CppCodeGeneratorException {
-        XsdType type = getType(name);
-        if (type instanceof XsdSimpleType) return (XsdSimpleType) type;
-        throw new CppCodeGeneratorException(String.format("not a simple type : %s", name));
+    private CppSimpleType arenaType(CppSimpleType type) {
+        return arena ? type.newArenaType() : type;
     }
 
     private boolean hasAttribute(XsdComplexType complexType) throws CppCodeGeneratorException {
@@ -648,7 +2437,7 @@ public class CppCodeGenerator {
         }
         boolean results = false;
         for (XsdElement element : complexType.getElements()) {
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
             if (element.getRef() == null && element.getType().getRef() == null
                     && element.getType() instanceof XsdComplexType) {
                 results = hasAttribute((XsdComplexType) element.getType());
@@ -692,38 +2481,42 @@ public class CppCodeGenerator {
             case "duration":
                 return new CppSimpleType("std::string", "%s", false);
             case "decimal":
-                return new CppSimpleType("double", "std::stod(%s)", false);
+                return new CppSimpleType("double", "parseXmlNumber<double>(%s)", false, true);
             case "integer":
             case "negativeInteger":
             case "nonNegativeInteger":
             case "positiveInteger":
             case "nonPositiveInteger":
-                return new CppSimpleType("long long", "std::stoll(%s)", false);
+                return new CppSimpleType("long long", "parseXmlNumber<long long>(%s)", false,
+                        true);
             case "unsignedLong":
-                return new CppSimpleType("unsigned long long", "std::stoull(%s)", false);
+                return new CppSimpleType("unsigned long long",
+                        "parseXmlNumber<unsigned long long>(%s)", false, true);
             case "long":
-                return new CppSimpleType("long long", "std::stoll(%s)", false);
+                return new CppSimpleType("long long", "parseXmlNumber<long long>(%s)", false,
+                        true);
             case "unsignedInt":
-                return new CppSimpleType("unsigned int",
-                        "static_cast<unsigned int>(stoul(%s))", false);
+                return new CppSimpleType("unsigned int", "parseXmlNumber<unsigned int>(%s)",
+                        false, true);
             case "int":
-                return new CppSimpleType("int", "std::stoi(%s)", false);
+                return new CppSimpleType("int", "parseXmlNumber<int>(%s)", false, true);
             case "unsignedShort":
                 return new CppSimpleType("unsigned short",
-                        "static_cast<unsigned short>(std::stoi(%s))", false);
+                        "parseXmlNumberInRange<unsigned short>(%s, 0, 65535)", false, true);
             case "short":
-                return new CppSimpleType("short", "static_cast<short>(std::stoi(%s))", false);
+                return new CppSimpleType("short", "parseXmlNumber<short>(%s)", false, true);
             case "unsignedByte":
                 return new CppSimpleType("unsigned char",
-                        "static_cast<unsigned char>(std::stoi(%s))", false);
+                        "parseXmlNumberInRange<unsigned char>(%s, 0, 255)", false, true);
             case "byte":
-                return new CppSimpleType("char", "static_cast<char>(std::stoi(%s))", false);
+                return new CppSimpleType("char", "parseXmlNumberInRange<char>(%s, -128, 127)",
+                        false, true);
             case "boolean":
                 return new CppSimpleType("bool", "%s == \"true\"", false);
             case "double":
-                return new CppSimpleType("double", "std::stod(%s)", false);
+                return new CppSimpleType("double", "parseXmlNumber<double>(%s)", false, true);
             case "float":
-                return new CppSimpleType("float", "std::stof(%s)", false);
+                return new CppSimpleType("float", "parseXmlNumber<float>(%s)", false, true);
             case "base64Binary":
             case "hexBinary":
                 return new CppSimpleType("std::string", "%s", false);
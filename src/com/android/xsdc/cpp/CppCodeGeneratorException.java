@@ -16,7 +16,7 @@
 
 package com.android.xsdc.cpp;
 
-class CppCodeGeneratorException extends Exception {
+public class CppCodeGeneratorException extends Exception {
     CppCodeGeneratorException(String message) {
         super(message);
     }
@@ -18,9 +18,15 @@ package com.android.xsdc.cpp;
 
 class CppComplexType implements CppType {
     final private String name;
+    final private boolean arena;
 
-    CppComplexType(String name) {
+    CppComplexType(String name, boolean arena) {
         this.name = name;
+        this.arena = arena;
+    }
+
+    CppComplexType(String name) {
+        this(name, false);
     }
 
     @Override
@@ -30,6 +36,10 @@ class CppComplexType implements CppType {
 
     @Override
     public String getParsingExpression() {
-        return String.format("%s value = %s::read(child);\n", name, name);
+        if (arena) {
+            return String.format("std::optional<%s> value = %s::read(child, arena);\n", name,
+                    name);
+        }
+        return String.format("std::optional<%s> value = %s::read(child);\n", name, name);
     }
 }
@@ -21,21 +21,66 @@ class CppSimpleType implements CppType {
     final private String fullName;
     final private String rawParsingExpression;
     final private boolean list;
+    // If true, rawParsingExpression yields a std::optional which is empty on malformed input.
+    final private boolean fallible;
+    // If true, values are allocated from the arena of the document being parsed.
+    final private boolean arena;
 
-    CppSimpleType(String name, String rawParsingExpression, boolean list) {
+    CppSimpleType(String name, String rawParsingExpression, boolean list, boolean fallible,
+            boolean arena) {
         this.rawParsingExpression = rawParsingExpression;
         this.list = list;
+        this.fallible = fallible;
+        this.arena = arena;
         this.name = name;
-        this.fullName = list ? String.format("std::vector<%s>", name) : name;
+        if (!list) {
+            this.fullName = name;
+        } else if (arena) {
+            this.fullName = String.format("XmlSpan<%s>", name);
+        } else {
+            this.fullName = String.format("std::vector<%s>", name);
+        }
+    }
+
+    CppSimpleType(String name, String rawParsingExpression, boolean list, boolean fallible) {
+        this(name, rawParsingExpression, list, fallible, false);
+    }
+
+    CppSimpleType(String name, String rawParsingExpression, boolean list) {
+        this(name, rawParsingExpression, list, false, false);
     }
 
     boolean isList() {
         return list;
     }
 
+    boolean isFallible() {
+        return fallible;
+    }
+
     CppSimpleType newListType() throws CppCodeGeneratorException {
         if (list) throw new CppCodeGeneratorException("list of list is not supported");
-        return new CppSimpleType(name, rawParsingExpression, true);
+        return new CppSimpleType(name, rawParsingExpression, true, fallible, arena);
+    }
+
+    // Returns this type whose parsed values are passed with their raw strings to validator, which
+    // returns an empty std::optional if the value is invalid.
+    CppSimpleType newValidatedType(String validator) {
+        String value = fallible ? rawParsingExpression
+                : String.format("std::optional<%s>(%s)", name, rawParsingExpression);
+        return new CppSimpleType(name, String.format("%s(%s, %%1$s)", validator, value), list,
+                true, arena);
+    }
+
+    CppSimpleType newArenaType() {
+        if (arena) return this;
+        if (name.equals("std::string")) {
+            // strings are views of copies owned by the arena
+            return new CppSimpleType("std::string_view",
+                    String.format("copyXmlString(%s, arena)", rawParsingExpression), list,
+                    fallible, true);
+        }
+        return new CppSimpleType(name, rawParsingExpression, list, fallible, true);
     }
 
     public String getTypeName() {
@@ -50,13 +95,64 @@ class CppSimpleType implements CppType {
     @Override
     public String getParsingExpression() {
         StringBuilder expression = new StringBuilder();
-        if (list) {
-            expression.append(
-                    String.format("%s value;\n", getName()));
-            expression.append("for (auto& token : android::base::Split(raw, \" \")) {\n");
-            expression.append(String.format("value.push_back(std::move(%s));\n",
-                    String.format(rawParsingExpression, "token")));
+        if (list && arena) {
+            String item = String.format(rawParsingExpression, "token");
+            expression.append(String.format(
+                    "%s* items = newXmlArray<%s>(arena, countXmlListItems(raw));\n"
+                    + "size_t size = 0;\n", name, name));
+            if (fallible) {
+                expression.append("bool valid = true;\n");
+            }
+            expression.append("for (std::string_view rest = raw, token; "
+                    + "nextXmlListItem(rest, token);) {\n");
+            if (fallible) {
+                expression.append(String.format("std::optional<%s> item = %s;\n", name, item));
+                expression.append("if (!item) {\n"
+                        + "valid = false;\n"
+                        + "break;\n"
+                        + "}\n"
+                        + "items[size++] = *item;\n");
+            } else {
+                expression.append(String.format("items[size++] = %s;\n", item));
+            }
+            expression.append("}\n");
+            if (fallible) {
+                expression.append(String.format("std::optional<%s> value;\n"
+                        + "if (valid) {\n"
+                        + "value.emplace(items, size);\n"
+                        + "}\n", getName()));
+            } else {
+                expression.append(String.format("%s value(items, size);\n", getName()));
+            }
+        } else if (list) {
+            // items are parsed straight from the raw value without copying them
+            String item = String.format(rawParsingExpression, "token");
+            if (fallible) {
+                // the whole list is invalid if any of its items is invalid
+                expression.append(String.format(
+                        "std::optional<%s> value(std::in_place);\n", getName()));
+                expression.append("value->reserve(countXmlListItems(raw));\n");
+            } else {
+                expression.append(String.format("%s value;\n", getName()));
+                expression.append("value.reserve(countXmlListItems(raw));\n");
+            }
+            expression.append("for (std::string_view rest = raw, token; "
+                    + "nextXmlListItem(rest, token);) {\n");
+            if (fallible) {
+                expression.append(String.format("std::optional<%s> item = %s;\n", name, item));
+                expression.append("if (!item) {\n"
+                        + "value.reset();\n"
+                        + "break;\n"
+                        + "}\n"
+                        + "value->push_back(*item);\n");
+            } else {
+                expression.append(String.format("value.emplace_back(%s);\n", item));
+            }
             expression.append("}\n");
+        } else if (fallible) {
+            expression.append(
+                    String.format("std::optional<%s> value = %s;\n", getName(),
+                            String.format(rawParsingExpression, "raw")));
         } else {
             expression.append(
                     String.format("%s value = %s;\n", getName(),
@@ -18,14 +18,21 @@ package com.android.xsdc.java;
 
 import com.android.xsdc.CodeWriter;
 import com.android.xsdc.FileSystem;
+import com.android.xsdc.ResolvedSchema;
+import com.android.xsdc.SampleDocument;
+import com.android.xsdc.SchemaFingerprints;
 import com.android.xsdc.XmlSchema;
+import com.android.xsdc.XsdCompiler;
 import com.android.xsdc.XsdConstants;
+import com.android.xsdc.XsdParserException;
 import com.android.xsdc.tag.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,18 +41,127 @@ import javax.xml.namespace.QName;
 
 public class JavaCodeGenerator {
     private XmlSchema xmlSchema;
+    private ResolvedSchema resolvedSchema;
     private String packageName;
-    private Map<String, JavaSimpleType> javaSimpleTypeMap;
+    private SimpleTypeMapping simpleTypes;
+    private boolean snapshot;
+    private boolean writer;
+    private boolean tokenizer;
+    private boolean parallel;
+    private boolean watch;
+    private boolean cache;
+    private boolean listener;
+    private boolean indices;
+    private boolean validate;
+    private boolean benchmark;
+    // complex types of root elements, which can be read in parallel
+    private Set<XsdComplexType> parallelTypes;
+    // key, unique and keyref constraints by the type of the element declaring them
+    private Map<XsdComplexType, List<XsdIdentityConstraint>> identityConstraints;
+    // types of restrictions whose facets are checked, and the validators of XmlParser checking
+    // them with the constants they use
+    private Map<XsdRestriction, JavaSimpleType> validatedTypes;
+    private List<String> validators;
+    private Set<String> validatorNames;
+    private boolean countsTotalDigits;
 
     public JavaCodeGenerator(XmlSchema xmlSchema, String packageName)
             throws JavaCodeGeneratorException {
+        this(xmlSchema, XsdCompiler.Options.builder(XsdCompiler.Language.JAVA, packageName)
+                .build());
+    }
+
+    /**
+     * Generates the classes of xmlSchema in the package of options. The other options add to the
+     * generated code:
+     *
+     * With snapshot, XmlParser can also write a parsed document to a compact binary snapshot and
+     * read it back, which is much faster than parsing the XML again. Snapshots are tagged with a
+     * hash of the generated classes, so a snapshot written for another version of the schema is
+     * rejected.
+     *
+     * With writer, XmlWriter can write a document back to XML which the generated XmlParser
+     * reads.
+     *
+     * With tokenizer, XmlParser can also read UTF-8 encoded documents from bytes with
+     * XmlTokenizer, which compares names as bytes and decodes integers without going through
+     * Strings, instead of with an XmlPullParser.
+     *
+     * With parallel, XmlParser can also read the repeated complex children of a root element on
+     * a ForkJoinPool. The children are located by tokenizing the document once, then ranges of
+     * them are read in parallel and merged in document order. It requires tokenizer.
+     *
+     * With watch, XmlParser can also return a ConfigHolder which holds the latest document read
+     * from a file, and reads the file again on a background thread whenever it changes.
+     *
+     * With cache, XmlParser can also read files through a process-wide cache, which returns the
+     * document read before while the file is unchanged.
+     *
+     * With listener, the generated parsers report each element of a generated class they read to
+     * the ParseListener set with XmlParser.setParseListener.
+     *
+     * With indices, the key and unique constraints of an element are indexed by hash maps once
+     * the element is read, which also finds duplicate values, and keyref constraints are checked
+     * against them. Classes get lookup methods for each index.
+     *
+     * With validate, values of simple types are checked against the pattern, length, range and
+     * digits facets of their restrictions as they are parsed, and an XmlPullParserException is
+     * thrown for an invalid value. Patterns are compiled once.
+     *
+     * With benchmark, a JMH benchmark class is also generated for each root element, which reads
+     * the documents of a corpus, or a document synthesized from the schema, with XmlParser. The
+     * benchmarks then need JMH to compile.
+     *
+     * The language and prune of options are ignored.
+     */
+    public JavaCodeGenerator(XmlSchema xmlSchema, XsdCompiler.Options options)
+            throws JavaCodeGeneratorException {
         this.xmlSchema = xmlSchema;
-        this.packageName = packageName;
+        try {
+            this.resolvedSchema = new ResolvedSchema(xmlSchema);
+        } catch (XsdParserException e) {
+            throw new JavaCodeGeneratorException(e.getMessage());
+        }
+        this.packageName = options.getPackageName();
+        this.snapshot = options.isSnapshot();
+        this.writer = options.isWriter();
+        this.tokenizer = options.isTokenizer();
+        this.parallel = options.isParallel();
+        this.watch = options.isWatch();
+        this.cache = options.isCache();
+        this.listener = options.isListener();
+        this.indices = options.isIndices();
+        this.validate = options.isValidate();
+        this.benchmark = options.isBenchmark();
+
+        if (parallel && !tokenizer) {
+            throw new JavaCodeGeneratorException("parallel requires tokenizer");
+        }
 
         // class naming validation
         {
             Set<String> nameSet = new HashSet<>();
             nameSet.add("XmlParser");
+            if (snapshot) {
+                nameSet.add("XmlSnapshot");
+            }
+            if (writer) {
+                nameSet.add("XmlWriter");
+            }
+            if (tokenizer) {
+                nameSet.add("XmlTokenizer");
+            }
+            if (watch) {
+                nameSet.add("ConfigHolder");
+            }
+            if (listener) {
+                nameSet.add("ParseListener");
+            }
+            if (benchmark) {
+                for (XsdElement element : xmlSchema.getElementMap().values()) {
+                    nameSet.add(getBenchmarkName(element));
+                }
+            }
             for (XsdType type : xmlSchema.getTypeMap().values()) {
                 if ((type instanceof XsdComplexType) || (type instanceof XsdRestriction &&
                         ((XsdRestriction)type).getEnums() != null)) {
@@ -70,20 +186,101 @@ public class JavaCodeGenerator {
             }
         }
 
-        javaSimpleTypeMap = new HashMap<>();
+        validatedTypes = new HashMap<>();
+        validators = new ArrayList<>();
+        validatorNames = new HashSet<>();
+        simpleTypes = new SimpleTypeMapping();
         for (XsdType type : xmlSchema.getTypeMap().values()) {
             if (type instanceof XsdSimpleType) {
-                XsdType refType = new XsdType(null, new QName(type.getName()));
-                parseSimpleType(refType, true);
+                simpleTypes.map(new XsdType(null, new QName(type.getName())));
+            }
+        }
+
+        parallelTypes = new HashSet<>();
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            XsdType type = getRootType(element);
+            if (type instanceof XsdComplexType) {
+                parallelTypes.add((XsdComplexType) type);
+            }
+        }
+
+        identityConstraints = new HashMap<>();
+        if (indices) {
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                collectIdentityConstraints(element);
+            }
+            for (XsdType type : xmlSchema.getTypeMap().values()) {
+                if (type instanceof XsdComplexType) {
+                    for (XsdElement element : ((XsdComplexType) type).getElements()) {
+                        collectIdentityConstraints(element);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprint of each file which print() writes, by file name. The file of a
+     * type changes only with the type and the definitions it refers to, and the other files with
+     * the whole schema. With validate, parallel or indices, the files of types also depend on the
+     * whole schema, as they call validators numbered across types or read constraints of other
+     * types.
+     */
+    public Map<String, String> getFingerprints()
+            throws JavaCodeGeneratorException, IOException {
+        SchemaFingerprints fingerprints = new SchemaFingerprints(xmlSchema, String.format(
+                "java %s %b %b %b %b %b %b %b %b %b %b", packageName, snapshot, writer,
+                tokenizer, parallel, watch, cache, listener, indices, validate, benchmark));
+        String schemaFingerprint = fingerprints.ofSchema();
+        boolean global = validate || parallel || indices;
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (XsdType type : xmlSchema.getTypeMap().values()) {
+            if (type instanceof XsdComplexType || (type instanceof XsdRestriction
+                    && ((XsdRestriction) type).getEnums() != null)) {
+                ret.put(Utils.toClassName(type.getName()) + ".java",
+                        global ? schemaFingerprint : fingerprints.of(type));
             }
         }
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            XsdType type = element.getType();
+            if (type.getRef() == null && type instanceof XsdComplexType) {
+                ret.put(Utils.toClassName(element.getName()) + ".java",
+                        global ? schemaFingerprint : fingerprints.of(element));
+            }
+        }
+        for (String name : getParserFileNames()) {
+            ret.put(name, schemaFingerprint);
+        }
+        return ret;
     }
 
     public void print(FileSystem fs)
             throws JavaCodeGeneratorException, IOException {
+        print(fs, Collections.emptySet());
+    }
+
+    /**
+     * Writes the generated files except the ones in skipped, which are known to be up to date.
+     */
+    public void print(FileSystem fs, Set<String> skipped)
+            throws JavaCodeGeneratorException, IOException {
+        print(fs, fs, skipped);
+    }
+
+    /**
+     * Like print(fs, skipped), but writes the benchmark classes to benchmarkFs, so that they are
+     * compiled apart from the parser, which doesn't need JMH.
+     */
+    public void print(FileSystem fs, FileSystem benchmarkFs, Set<String> skipped)
+            throws JavaCodeGeneratorException, IOException {
+        if (validate && !skipped.contains("XmlParser.java")) {
+            // validators are collected while the classes are printed
+            skipped = Collections.emptySet();
+        }
         for (XsdType type : xmlSchema.getTypeMap().values()) {
             if (type instanceof XsdComplexType) {
                 String name = Utils.toClassName(type.getName());
+                if (skipped.contains(name + ".java")) continue;
                 XsdComplexType complexType = (XsdComplexType) type;
                 try (CodeWriter out = new CodeWriter(fs.getPrintWriter(name + ".java"))) {
                     out.printf("package %s;\n\n", packageName);
@@ -92,6 +289,7 @@ public class JavaCodeGenerator {
             } else if (type instanceof XsdRestriction &&
                     ((XsdRestriction)type).getEnums() != null) {
                 String name = Utils.toClassName(type.getName());
+                if (skipped.contains(name + ".java")) continue;
                 XsdRestriction restrictionType = (XsdRestriction) type;
                 try (CodeWriter out = new CodeWriter(fs.getPrintWriter(name + ".java"))) {
                     out.printf("package %s;\n\n", packageName);
@@ -103,6 +301,7 @@ public class JavaCodeGenerator {
             XsdType type = element.getType();
             if (type.getRef() == null && type instanceof XsdComplexType) {
                 String name = Utils.toClassName(element.getName());
+                if (skipped.contains(name + ".java")) continue;
                 XsdComplexType complexType = (XsdComplexType) type;
                 try (CodeWriter out = new CodeWriter(fs.getPrintWriter(name + ".java"))) {
                     out.printf("package %s;\n\n", packageName);
@@ -110,11 +309,65 @@ public class JavaCodeGenerator {
                 }
             }
         }
-        try (CodeWriter out = new CodeWriter(fs.getPrintWriter("XmlParser.java"))) {
-            printXmlParser(out);
+        if (!skipped.contains("XmlParser.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("XmlParser.java"))) {
+                printXmlParser(out);
+            }
+        }
+        if (snapshot && !skipped.contains("XmlSnapshot.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("XmlSnapshot.java"))) {
+                printXmlSnapshot(out);
+            }
+        }
+        if (writer && !skipped.contains("XmlWriter.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("XmlWriter.java"))) {
+                printXmlWriter(out);
+            }
+        }
+        if (tokenizer && !skipped.contains("XmlTokenizer.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("XmlTokenizer.java"))) {
+                printXmlTokenizer(out);
+            }
+        }
+        if (watch && !skipped.contains("ConfigHolder.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("ConfigHolder.java"))) {
+                printConfigHolder(out);
+            }
+        }
+        if (listener && !skipped.contains("ParseListener.java")) {
+            try (CodeWriter out = new CodeWriter(fs.getPrintWriter("ParseListener.java"))) {
+                printParseListener(out);
+            }
+        }
+        if (benchmark) {
+            SampleDocument sampleDocument = new SampleDocument(resolvedSchema);
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                String name = getBenchmarkName(element);
+                if (skipped.contains(name + ".java")) continue;
+                try (CodeWriter out = new CodeWriter(
+                        benchmarkFs.getPrintWriter(name + ".java"))) {
+                    printBenchmark(out, name, element, sampleDocument);
+                }
+            }
         }
     }
 
+    private List<String> getParserFileNames() throws JavaCodeGeneratorException {
+        List<String> names = new ArrayList<>();
+        names.add("XmlParser.java");
+        if (snapshot) names.add("XmlSnapshot.java");
+        if (writer) names.add("XmlWriter.java");
+        if (tokenizer) names.add("XmlTokenizer.java");
+        if (watch) names.add("ConfigHolder.java");
+        if (listener) names.add("ParseListener.java");
+        if (benchmark) {
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                names.add(getBenchmarkName(element) + ".java");
+            }
+        }
+        return names;
+    }
+
     private void printEnumClass(CodeWriter out, String name, XsdRestriction restrictionType,
             boolean deprecated) throws JavaCodeGeneratorException {
         if (deprecated) {
@@ -167,68 +420,120 @@ public class JavaCodeGenerator {
         List<JavaType> elementTypes = new ArrayList<>();
         for (XsdElement element : complexType.getElements()) {
             JavaType javaType;
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
             if (element.getRef() == null && element.getType().getRef() == null
                     && element.getType() instanceof XsdComplexType) {
                 // print inner class for anonymous types
-                String innerName = Utils.toClassName(getElementName(element));
+                String innerName = Utils.toClassName(resolvedSchema.getElementName(element));
                 XsdComplexType innerType = (XsdComplexType) element.getType();
                 String innerNameScope = nameScope + name + ".";
                 printClass(out, innerName, innerType, innerNameScope, innerType.isDeprecated());
                 out.println();
                 javaType = new JavaComplexType(innerNameScope + innerName);
             } else {
-                javaType = parseType(elementValue.getType(), getElementName(elementValue));
+                javaType = parseType(elementValue.getType(),
+                        resolvedSchema.getElementName(elementValue));
             }
             elementTypes.add(javaType);
         }
         List<JavaSimpleType> attributeTypes = new ArrayList<>();
         for (XsdAttribute attribute : complexType.getAttributes()) {
-            XsdType type = resolveAttribute(attribute).getType();
-            attributeTypes.add(parseSimpleType(type, false));
+            XsdType type = resolvedSchema.resolveAttribute(attribute).getType();
+            attributeTypes.add(simpleTypes.map(type));
         }
 
         // print member variables
+        List<String> memberNames = new ArrayList<>();
+        List<JavaType> memberTypes = new ArrayList<>();
         for (int i = 0; i < elementTypes.size(); ++i) {
             JavaType type = elementTypes.get(i);
             XsdElement element = complexType.getElements().get(i);
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            String variableName =
+                    Utils.toVariableName(resolvedSchema.getElementName(elementValue));
             String typeName = element.isMultiple() ? String.format("java.util.List<%s>",
                     type.getNullableName()) : type.getName();
-            out.printf("private %s %s;\n", typeName,
-                    Utils.toVariableName(getElementName(elementValue)));
+            out.printf("private %s %s;\n", typeName, variableName);
+            memberNames.add(variableName);
+            memberTypes.add(element.isMultiple() ? null : type);
         }
         for (int i = 0; i < attributeTypes.size(); ++i) {
             JavaType type = attributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(complexType.getAttributes().get(i));
-            out.printf("private %s %s;\n", type.getName(),
-                    Utils.toVariableName(attribute.getName()));
+            XsdAttribute attribute =
+                    resolvedSchema.resolveAttribute(complexType.getAttributes().get(i));
+            String variableName = Utils.toVariableName(attribute.getName());
+            out.printf("private %s %s;\n", type.getName(), variableName);
+            memberNames.add(variableName);
+            memberTypes.add(type);
         }
         if (valueType != null) {
             out.printf("private %s value;\n", valueType.getName());
+            memberNames.add("value");
+            memberTypes.add(valueType);
+        }
+
+        // Absent primitive members read as 0 or false, so indices, writers and snapshots tell
+        // them apart by a bit of the primitive members which are set.
+        Map<String, Integer> presenceBits = new HashMap<>();
+        String presenceName = "presence";
+        while (memberNames.contains(presenceName)) {
+            presenceName = "_" + presenceName;
+        }
+        if (indices || writer || snapshot) {
+            for (int i = 0; i < memberNames.size(); ++i) {
+                JavaType type = memberTypes.get(i);
+                if (type == null || type.getName().equals(type.getNullableName())) continue;
+                int bit = presenceBits.size();
+                if (bit % 32 == 0) {
+                    out.printf("private int %s;\n", getPresenceField(presenceName, bit));
+                }
+                presenceBits.put(memberNames.get(i), bit);
+            }
         }
 
         // print getters and setters
         for (int i = 0; i < elementTypes.size(); ++i) {
             JavaType type = elementTypes.get(i);
             XsdElement element = complexType.getElements().get(i);
-            XsdElement elementValue = resolveElement(element);
-            printGetterAndSetter(out, type, Utils.toVariableName(getElementName(elementValue)),
-                    element.isMultiple(), element.isDeprecated());
+            printGetterAndSetter(out, type, memberNames.get(i), element.isMultiple(),
+                    element.isDeprecated(), presenceName,
+                    presenceBits.getOrDefault(memberNames.get(i), -1));
         }
         for (int i = 0; i < attributeTypes.size(); ++i) {
             JavaType type = attributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(complexType.getAttributes().get(i));
-            printGetterAndSetter(out, type, Utils.toVariableName(attribute.getName()), false,
-                    attribute.isDeprecated());
+            XsdAttribute attribute =
+                    resolvedSchema.resolveAttribute(complexType.getAttributes().get(i));
+            String variableName = memberNames.get(elementTypes.size() + i);
+            printGetterAndSetter(out, type, variableName, false, attribute.isDeprecated(),
+                    presenceName, presenceBits.getOrDefault(variableName, -1));
         }
         if (valueType != null) {
-            printGetterAndSetter(out, valueType, "value", false, false);
+            printGetterAndSetter(out, valueType, "value", false, false, presenceName,
+                    presenceBits.getOrDefault("value", -1));
+        }
+
+        if (identityConstraints.containsKey(complexType)) {
+            printIndices(out, complexType);
         }
 
         out.println();
         printParser(out, nameScope + name, complexType);
 
+        if (tokenizer) {
+            out.println();
+            printTokenizerParser(out, nameScope + name, complexType);
+        }
+
+        if (snapshot) {
+            out.println();
+            printSnapshot(out, nameScope + name, complexType);
+        }
+
+        if (writer) {
+            out.println();
+            printWriter(out, complexType);
+        }
+
         out.println("}");
     }
 
@@ -236,32 +541,35 @@ public class JavaCodeGenerator {
             throws JavaCodeGeneratorException {
         JavaSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
                 getValueType((XsdSimpleContent) complexType, true) : null;
-        List<XsdElement> allElements = new ArrayList<>();
-        List<XsdAttribute> allAttributes = new ArrayList<>();
-        stackComponents(complexType, allElements, allAttributes);
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
 
         // parse types for elements and attributes
         List<JavaType> allElementTypes = new ArrayList<>();
         for (XsdElement element : allElements) {
-            XsdElement elementValue = resolveElement(element);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
             JavaType javaType = parseType(elementValue.getType(), elementValue.getName());
             allElementTypes.add(javaType);
         }
         List<JavaSimpleType> allAttributeTypes = new ArrayList<>();
         for (XsdAttribute attribute : allAttributes) {
-            XsdType type = resolveAttribute(attribute).getType();
-            allAttributeTypes.add(parseSimpleType(type, false));
+            XsdType type = resolvedSchema.resolveAttribute(attribute).getType();
+            allAttributeTypes.add(simpleTypes.map(type));
         }
 
         out.printf("static %s read(org.xmlpull.v1.XmlPullParser parser) " +
                 "throws org.xmlpull.v1.XmlPullParserException, java.io.IOException, " +
                 "javax.xml.datatype.DatatypeConfigurationException {\n", name);
 
+        if (listener) {
+            out.printf("ParseListener listener = XmlParser.getParseListener();\n"
+                    + "long start = listener.start(\"%s\");\n", name);
+        }
         out.printf("%s instance = new %s();\n"
                 + "String raw = null;\n", name, name);
         for (int i = 0; i < allAttributes.size(); ++i) {
             JavaType type = allAttributeTypes.get(i);
-            XsdAttribute attribute = resolveAttribute(allAttributes.get(i));
+            XsdAttribute attribute = resolvedSchema.resolveAttribute(allAttributes.get(i));
             String variableName = Utils.toVariableName(attribute.getName());
             out.printf("raw = parser.getAttributeValue(null, \"%s\");\n"
                     + "if (raw != null) {\n", attribute.getName());
@@ -284,8 +592,9 @@ public class JavaCodeGenerator {
             for (int i = 0; i < allElements.size(); ++i) {
                 JavaType type = allElementTypes.get(i);
                 XsdElement element = allElements.get(i);
-                XsdElement elementValue = resolveElement(element);
-                String variableName = Utils.toVariableName(getElementName(elementValue));
+                XsdElement elementValue = resolvedSchema.resolveElement(element);
+                String variableName =
+                        Utils.toVariableName(resolvedSchema.getElementName(elementValue));
                 out.printf("if (tagName.equals(\"%s\")) {\n", elementValue.getName());
                 if (type instanceof JavaSimpleType) {
                     out.print("raw = XmlParser.readText(parser);\n");
@@ -307,12 +616,1522 @@ public class JavaCodeGenerator {
         } else {
             out.print("XmlParser.skip(parser);\n");
         }
+        if (identityConstraints.containsKey(complexType)) {
+            out.print("instance.buildIndices();\n");
+        }
+        if (listener) {
+            out.printf("listener.end(\"%s\", start, -1);\n", name);
+        }
         out.print("return instance;\n"
                 + "}\n");
     }
 
+    private void printTokenizerParser(CodeWriter out, String name, XsdComplexType complexType)
+            throws JavaCodeGeneratorException {
+        JavaSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
+                getValueType((XsdSimpleContent) complexType, true) : null;
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
+
+        // names are compared as the bytes of their UTF-8 encoding
+        Map<String, String> nameConstants = new LinkedHashMap<>();
+        for (XsdAttribute attribute : allAttributes) {
+            addNameConstant(nameConstants, resolvedSchema.resolveAttribute(attribute).getName());
+        }
+        if (baseValueType == null) {
+            for (XsdElement element : allElements) {
+                addNameConstant(nameConstants, resolvedSchema.resolveElement(element).getName());
+            }
+        }
+        printNameConstants(out, nameConstants);
+
+        boolean buildIndices = identityConstraints.containsKey(complexType);
+        printTokenizerRead(out, name, allElements, allAttributes, baseValueType, nameConstants,
+                buildIndices, false);
+        if (parallel && hasParallelElements(complexType)) {
+            out.println();
+            printTokenizerRead(out, name, allElements, allAttributes, baseValueType,
+                    nameConstants, buildIndices, true);
+        }
+    }
+
+    // If parallel is true, repeated complex children are only located while the element is read,
+    // and read on a ForkJoinPool afterwards.
+    private void printTokenizerRead(CodeWriter out, String name, List<XsdElement> allElements,
+            List<XsdAttribute> allAttributes, JavaSimpleType baseValueType,
+            Map<String, String> nameConstants, boolean buildIndices, boolean parallel)
+            throws JavaCodeGeneratorException {
+        if (parallel) {
+            out.printf("static %s readParallel(XmlTokenizer tokenizer, "
+                    + "java.util.concurrent.ForkJoinPool pool) "
+                    + "throws org.xmlpull.v1.XmlPullParserException, "
+                    + "javax.xml.datatype.DatatypeConfigurationException {\n", name);
+        } else {
+            out.printf("static %s read(XmlTokenizer tokenizer) "
+                    + "throws org.xmlpull.v1.XmlPullParserException, "
+                    + "javax.xml.datatype.DatatypeConfigurationException {\n", name);
+        }
+        if (listener) {
+            out.printf("int tagStart = tokenizer.getTagStart();\n"
+                    + "ParseListener listener = XmlParser.getParseListener();\n"
+                    + "long start = listener.start(\"%s\");\n", name);
+        }
+        out.printf("%s instance = new %s();\n"
+                + "String raw = null;\n", name, name);
+        if (!allAttributes.isEmpty()) {
+            out.print("int index;\n");
+        }
+        for (XsdAttribute attribute : allAttributes) {
+            XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+            JavaSimpleType type = simpleTypes.map(attributeValue.getType());
+            out.printf("index = tokenizer.findAttribute(%s);\n"
+                    + "if (index != -1) {\n", nameConstants.get(attributeValue.getName()));
+            if (isTokenizerInteger(type)) {
+                out.printf("%s value = (%s) tokenizer.getLongAttributeValue(index, "
+                        + "%s.MIN_VALUE, %s.MAX_VALUE);\n", type.getName(), type.getName(),
+                        type.getNullableName(), type.getNullableName());
+            } else {
+                out.print("raw = tokenizer.getAttributeValue(index);\n");
+                out.print(type.getParsingExpression());
+            }
+            out.printf("instance.set%s(value);\n"
+                    + "}\n", Utils.capitalize(Utils.toVariableName(attributeValue.getName())));
+        }
+
+        if (baseValueType != null) {
+            printTokenizerValue(out, baseValueType);
+            out.print("instance.setValue(value);\n");
+        } else if (!allElements.isEmpty()) {
+            if (parallel) {
+                for (XsdElement element : allElements) {
+                    if (isParallelElement(element)) {
+                        out.printf("XmlTokenizer.Offsets %sOffsets = "
+                                + "new XmlTokenizer.Offsets();\n",
+                                Utils.toVariableName(resolvedSchema.getElementName(
+                                        resolvedSchema.resolveElement(element))));
+                    }
+                }
+            }
+            out.print("while (tokenizer.nextChildTag()) {\n");
+            for (XsdElement element : allElements) {
+                XsdElement elementValue = resolvedSchema.resolveElement(element);
+                JavaType type = parseType(elementValue.getType(), elementValue.getName());
+                String variableName =
+                        Utils.toVariableName(resolvedSchema.getElementName(elementValue));
+                out.printf("if (tokenizer.isName(%s)) {\n",
+                        nameConstants.get(elementValue.getName()));
+                if (parallel && isParallelElement(element)) {
+                    out.printf("%sOffsets.add(tokenizer.getTagStart());\n"
+                            + "tokenizer.skip();\n", variableName);
+                    out.printf("} else ");
+                    continue;
+                }
+                printTokenizerValue(out, type);
+                if (element.isMultiple()) {
+                    out.printf("instance.get%s().add(value);\n",
+                            Utils.capitalize(variableName));
+                } else {
+                    out.printf("instance.set%s(value);\n",
+                            Utils.capitalize(variableName));
+                }
+                out.printf("} else ");
+            }
+            out.print("{\n"
+                    + "tokenizer.skip();\n"
+                    + "}\n"
+                    + "}\n");
+            if (parallel) {
+                for (XsdElement element : allElements) {
+                    if (isParallelElement(element)) {
+                        XsdElement elementValue = resolvedSchema.resolveElement(element);
+                        JavaType type = parseType(elementValue.getType(),
+                                elementValue.getName());
+                        String variableName = Utils.toVariableName(
+                                resolvedSchema.getElementName(elementValue));
+                        out.printf("instance.get%s().addAll(tokenizer.readElements(pool, "
+                                + "%sOffsets, %s::read));\n", Utils.capitalize(variableName),
+                                variableName, type.getName());
+                    }
+                }
+            }
+        } else {
+            out.print("tokenizer.skip();\n");
+        }
+        if (buildIndices) {
+            out.print("instance.buildIndices();\n");
+        }
+        if (listener) {
+            out.printf("listener.end(\"%s\", start, tokenizer.getPosition() - tagStart);\n",
+                    name);
+        }
+        out.print("return instance;\n"
+                + "}\n");
+    }
+
+    // An identity constraint resolved against the generated classes. The selected elements are
+    // reached from the element declaring the constraint by calling getters in turn, and the value
+    // of the field is read with another getter of each selected element.
+    private static class IdentityIndex {
+        final XsdIdentityConstraint constraint;
+        final List<String> getters = new ArrayList<>();
+        final List<Boolean> multiple = new ArrayList<>();
+        final List<String> classNames = new ArrayList<>();
+        String itemName;
+        String fieldName;
+        String fieldGetter;
+        JavaType fieldType;
+
+        IdentityIndex(XsdIdentityConstraint constraint) {
+            this.constraint = constraint;
+        }
+
+        String getVariableName() throws JavaCodeGeneratorException {
+            return Utils.toVariableName(constraint.getName()) + "Index";
+        }
+
+        String getItemClassName() {
+            return classNames.get(classNames.size() - 1);
+        }
+
+        // Returns the value of the field of item, which is null if it is absent.
+        String getFieldValue(String item) {
+            if (fieldType.getName().equals(fieldType.getNullableName())) {
+                return String.format("%s.%s()", item, fieldGetter);
+            }
+            return String.format("%s.has%s() ? %s.%s() : null", item, fieldGetter.substring(3),
+                    item, fieldGetter);
+        }
+    }
+
+    private void collectIdentityConstraints(XsdElement element)
+            throws JavaCodeGeneratorException {
+        // referenced elements are collected as top level elements
+        if (element.getRef() != null) return;
+        XsdComplexType type = getElementComplexType(element);
+        if (!element.getIdentityConstraints().isEmpty()) {
+            if (type == null) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "identity constraints of element %s without complex type are not "
+                        + "supported", element.getName()));
+            }
+            if (identityConstraints.containsKey(type)) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "identity constraints of elements sharing a type are not supported : %s",
+                        element.getName()));
+            }
+            identityConstraints.put(type, element.getIdentityConstraints());
+        }
+        if (element.getType().getRef() == null && type != null) {
+            for (XsdElement child : type.getElements()) {
+                collectIdentityConstraints(child);
+            }
+        }
+    }
+
+    private IdentityIndex resolveIdentityConstraint(XsdComplexType scopeType,
+            XsdIdentityConstraint constraint) throws JavaCodeGeneratorException {
+        IdentityIndex index = new IdentityIndex(constraint);
+        String xpath = constraint.getSelector().getXpath().trim();
+        XsdComplexType type = scopeType;
+        String nameScope = "";
+        // only paths of child elements are supported, like "products/product"
+        for (String step : xpath.split("/", -1)) {
+            step = removePrefix(step.trim());
+            if (step.equals(".") && index.getters.isEmpty()) continue;
+            if (!step.matches("[A-Za-z_][\\w.-]*") || type instanceof XsdSimpleContent) {
+                throw new JavaCodeGeneratorException(
+                        String.format("unsupported selector xpath : %s", xpath));
+            }
+            XsdElement element = findChildElement(type, step);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            XsdComplexType elementType = getElementComplexType(elementValue);
+            if (elementType == null) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "selector xpath %s selects element %s without complex type", xpath,
+                        step));
+            }
+            String className;
+            if (element.getRef() == null && element.getType().getRef() == null) {
+                className = nameScope + Utils.toClassName(resolvedSchema.getElementName(element));
+            } else if (elementValue.getType().getRef() != null) {
+                className = Utils.toClassName(elementValue.getType().getRef().getLocalPart());
+            } else {
+                className = Utils.toClassName(elementValue.getName());
+            }
+            index.getters.add("get" + Utils.capitalize(Utils.toVariableName(
+                    resolvedSchema.getElementName(elementValue))));
+            index.multiple.add(element.isMultiple());
+            index.classNames.add(className);
+            index.itemName = step;
+            nameScope = className + ".";
+            type = elementType;
+        }
+        if (index.getters.isEmpty()) {
+            throw new JavaCodeGeneratorException(
+                    String.format("unsupported selector xpath : %s", xpath));
+        }
+
+        if (constraint.getFields().size() != 1) {
+            throw new JavaCodeGeneratorException(String.format(
+                    "composite keys are not supported : %s", constraint.getName()));
+        }
+        String field = constraint.getFields().get(0).getXpath().trim();
+        if (field.startsWith("@")) {
+            index.fieldName = removePrefix(field.substring(1));
+            for (XsdAttribute attribute : resolvedSchema.getAllAttributes(type)) {
+                XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+                if (attributeValue.getName().equals(index.fieldName)) {
+                    index.fieldGetter = "get" + Utils.capitalize(Utils.toVariableName(
+                            attributeValue.getName()));
+                    index.fieldType = simpleTypes.map(attributeValue.getType());
+                }
+            }
+            if (index.fieldGetter == null) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "no attribute named %s in field xpath : %s", index.fieldName, field));
+            }
+        } else {
+            index.fieldName = removePrefix(field);
+            if (!index.fieldName.matches("[A-Za-z_][\\w.-]*")
+                    || type instanceof XsdSimpleContent) {
+                throw new JavaCodeGeneratorException(
+                        String.format("unsupported field xpath : %s", field));
+            }
+            XsdElement element = findChildElement(type, index.fieldName);
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            index.fieldType = parseType(elementValue.getType(), elementValue.getName());
+            if (element.isMultiple() || !(index.fieldType instanceof JavaSimpleType)) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "field xpath %s selects an element which is repeated or not simple",
+                        field));
+            }
+            index.fieldGetter = "get" + Utils.capitalize(Utils.toVariableName(
+                    resolvedSchema.getElementName(elementValue)));
+        }
+        return index;
+    }
+
+    // Returns the complex type of element, or null if its type is simple.
+    private XsdComplexType getElementComplexType(XsdElement element)
+            throws JavaCodeGeneratorException {
+        XsdType type = element.getType();
+        if (type.getRef() != null) {
+            if (type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) return null;
+            type = resolvedSchema.getType(type.getRef().getLocalPart());
+        }
+        return type instanceof XsdComplexType ? (XsdComplexType) type : null;
+    }
+
+    private XsdElement findChildElement(XsdComplexType type, String name)
+            throws JavaCodeGeneratorException {
+        for (XsdElement element : resolvedSchema.getAllElements(type)) {
+            if (resolvedSchema.resolveElement(element).getName().equals(name)) {
+                return element;
+            }
+        }
+        throw new JavaCodeGeneratorException(String.format("no element named : %s", name));
+    }
+
+    private static String removePrefix(String name) {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    // Prints lookup methods of the key, unique and keyref constraints of an element, and
+    // buildIndices() which the parsers call once the element has been read.
+    private void printIndices(CodeWriter out, XsdComplexType complexType)
+            throws JavaCodeGeneratorException {
+        Map<String, IdentityIndex> keys = new LinkedHashMap<>();
+        List<IdentityIndex> keyrefs = new ArrayList<>();
+        for (XsdIdentityConstraint constraint : identityConstraints.get(complexType)) {
+            IdentityIndex index = resolveIdentityConstraint(complexType, constraint);
+            if (constraint.getKind() == XsdIdentityConstraint.Kind.KEYREF) {
+                keyrefs.add(index);
+            } else if (keys.put(constraint.getName(), index) != null) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "duplicate identity constraint : %s", constraint.getName()));
+            }
+        }
+
+        Set<String> methodNames = new HashSet<>();
+        for (IdentityIndex key : keys.values()) {
+            String methodName = String.format("find%sBy%s", Utils.toClassName(key.itemName),
+                    Utils.toClassName(key.fieldName));
+            if (!methodNames.add(methodName)) {
+                throw new JavaCodeGeneratorException(
+                        String.format("duplicate method name : %s", methodName));
+            }
+            out.println();
+            out.printf("private java.util.Map<%s, %s> %s;\n", key.fieldType.getNullableName(),
+                    key.getItemClassName(), key.getVariableName());
+            out.println();
+            out.printf("// Returns the %s whose %s is the given value, by %s %s.\n",
+                    key.itemName, key.fieldName,
+                    key.constraint.getKind() == XsdIdentityConstraint.Kind.KEY ? "key" : "unique",
+                    key.constraint.getName());
+            out.printf("public %s %s(%s value) {\n"
+                    + "if (%s == null) {\n"
+                    + "throw new IllegalStateException(\"not read by XmlParser\");\n"
+                    + "}\n"
+                    + "return %s.get(value);\n"
+                    + "}\n", key.getItemClassName(), methodName,
+                    key.fieldType.getNullableName(), key.getVariableName(),
+                    key.getVariableName());
+        }
+        for (IdentityIndex keyref : keyrefs) {
+            IdentityIndex key = keys.get(keyref.constraint.getRefer().getLocalPart());
+            if (key == null) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "keyref %s has to refer to a key of the same element",
+                        keyref.constraint.getName()));
+            }
+            if (!key.fieldType.getNullableName().equals(keyref.fieldType.getNullableName())) {
+                throw new JavaCodeGeneratorException(String.format(
+                        "keyref %s has a different type from %s", keyref.constraint.getName(),
+                        key.constraint.getName()));
+            }
+            String methodName = "resolve" + Utils.toClassName(keyref.constraint.getName());
+            if (!methodNames.add(methodName)) {
+                throw new JavaCodeGeneratorException(
+                        String.format("duplicate method name : %s", methodName));
+            }
+            out.println();
+            out.printf("// Returns the %s which the given %s refers to, by keyref %s.\n",
+                    key.itemName, keyref.itemName, keyref.constraint.getName());
+            out.printf("public %s %s(%s %s) {\n"
+                    + "return find%sBy%s(%s);\n"
+                    + "}\n", key.getItemClassName(), methodName, keyref.getItemClassName(),
+                    Utils.toVariableName(keyref.itemName), Utils.toClassName(key.itemName),
+                    Utils.toClassName(key.fieldName),
+                    keyref.getFieldValue(Utils.toVariableName(keyref.itemName)));
+        }
+
+        out.println();
+        out.print("private void buildIndices() throws org.xmlpull.v1.XmlPullParserException {\n");
+        for (IdentityIndex key : keys.values()) {
+            out.printf("%s = new java.util.HashMap<>();\n", key.getVariableName());
+        }
+        for (IdentityIndex key : keys.values()) {
+            boolean isKey = key.constraint.getKind() == XsdIdentityConstraint.Kind.KEY;
+            printIndexLoops(out, key);
+            out.printf("%s value = %s;\n", key.fieldType.getNullableName(),
+                    key.getFieldValue("item" + (key.getters.size() - 1)));
+            if (isKey) {
+                out.printf("if (value == null) {\n"
+                        + "throw new org.xmlpull.v1.XmlPullParserException(\"missing %s of key "
+                        + "%s\");\n"
+                        + "}\n", key.fieldName, key.constraint.getName());
+            }
+            // put() finds duplicates while building the index
+            out.printf("if (%s%s.put(value, item%d) != null) {\n"
+                    + "throw new org.xmlpull.v1.XmlPullParserException(\"duplicate value of %s "
+                    + "%s : \" + value);\n"
+                    + "}\n", isKey ? "" : "value != null && ", key.getVariableName(),
+                    key.getters.size() - 1, isKey ? "key" : "unique", key.constraint.getName());
+            printIndexLoopsEnd(out, key);
+        }
+        for (IdentityIndex keyref : keyrefs) {
+            IdentityIndex key = keys.get(keyref.constraint.getRefer().getLocalPart());
+            printIndexLoops(out, keyref);
+            out.printf("%s value = %s;\n"
+                    + "if (value != null && !%s.containsKey(value)) {\n"
+                    + "throw new org.xmlpull.v1.XmlPullParserException(\"keyref %s refers to no "
+                    + "value of %s : \" + value);\n"
+                    + "}\n", keyref.fieldType.getNullableName(),
+                    keyref.getFieldValue("item" + (keyref.getters.size() - 1)),
+                    key.getVariableName(), keyref.constraint.getName(),
+                    key.constraint.getName());
+            printIndexLoopsEnd(out, keyref);
+        }
+        out.print("}\n");
+    }
+
+    // Prints loops declaring item0, item1, ... for each step of the selector of index.
+    private void printIndexLoops(CodeWriter out, IdentityIndex index) {
+        out.printf("// %s %s\n", index.constraint.getKind().name().toLowerCase(),
+                index.constraint.getName());
+        out.print("{\n");
+        String parent = "this";
+        for (int i = 0; i < index.getters.size(); ++i) {
+            String item = "item" + i;
+            if (index.multiple.get(i)) {
+                out.printf("for (%s %s : %s.%s()) {\n", index.classNames.get(i), item, parent,
+                        index.getters.get(i));
+            } else {
+                out.printf("%s %s = %s.%s();\n"
+                        + "if (%s != null) {\n", index.classNames.get(i), item, parent,
+                        index.getters.get(i), item);
+            }
+            parent = item;
+        }
+    }
+
+    private void printIndexLoopsEnd(CodeWriter out, IdentityIndex index) {
+        for (int i = 0; i < index.getters.size(); ++i) {
+            out.print("}\n");
+        }
+        out.print("}\n");
+    }
+
+    private boolean hasParallelElements(XsdComplexType complexType)
+            throws JavaCodeGeneratorException {
+        if (!parallelTypes.contains(complexType) || complexType instanceof XsdSimpleContent) {
+            return false;
+        }
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        for (XsdElement element : allElements) {
+            if (isParallelElement(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private XsdType getRootType(XsdElement element) throws JavaCodeGeneratorException {
+        XsdType type = element.getType();
+        return type.getRef() != null ? resolvedSchema.getType(type.getRef().getLocalPart()) : type;
+    }
+
+    private boolean isParallelElement(XsdElement element) throws JavaCodeGeneratorException {
+        XsdElement elementValue = resolvedSchema.resolveElement(element);
+        return element.isMultiple() && parseType(elementValue.getType(),
+                elementValue.getName()) instanceof JavaComplexType;
+    }
+
+    // Prints statements declaring a variable named value read from the current element.
+    private void printTokenizerValue(CodeWriter out, JavaType type) {
+        if (type instanceof JavaComplexType) {
+            out.printf("%s value = %s.read(tokenizer);\n", type.getName(), type.getName());
+        } else if (isTokenizerInteger((JavaSimpleType) type)) {
+            out.printf("%s value = (%s) tokenizer.readLongText(%s.MIN_VALUE, %s.MAX_VALUE);\n",
+                    type.getName(), type.getName(), type.getNullableName(),
+                    type.getNullableName());
+        } else {
+            out.print("raw = tokenizer.readText();\n");
+            out.print(type.getParsingExpression());
+        }
+    }
+
+    // Integers are decoded straight from the bytes of the document. Everything else is parsed
+    // from Strings like XmlPullParser does.
+    private static boolean isTokenizerInteger(JavaSimpleType type) {
+        if (type.isList() || type.isValidated()) {
+            return false;
+        }
+        switch (type.getName()) {
+            case "long":
+            case "int":
+            case "short":
+            case "byte":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addNameConstant(Map<String, String> nameConstants, String name)
+            throws JavaCodeGeneratorException {
+        if (nameConstants.containsKey(name)) {
+            return;
+        }
+        String constant = "NAME_" + Utils.toEnumName(name).toUpperCase();
+        for (int i = 2; nameConstants.containsValue(constant); ++i) {
+            constant = "NAME_" + Utils.toEnumName(name).toUpperCase() + i;
+        }
+        nameConstants.put(name, constant);
+    }
+
+    private static void printNameConstants(CodeWriter out, Map<String, String> nameConstants) {
+        for (Map.Entry<String, String> entry : nameConstants.entrySet()) {
+            out.printf("private static final byte[] %s = XmlTokenizer.utf8(\"%s\");\n",
+                    entry.getValue(), entry.getKey());
+        }
+        if (!nameConstants.isEmpty()) {
+            out.println();
+        }
+    }
+
+    private void printXmlTokenizer(CodeWriter out) {
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.print("// Reads UTF-8 encoded documents straight from their bytes. Names are compared "
+                + "without decoding\n"
+                + "// them, and simple content made of a single run of bytes is decoded only once "
+                + "it's needed.\n");
+        out.println("final class XmlTokenizer {");
+        out.print("private static final byte[] XMLNS = utf8(\"xmlns\");\n"
+                + "\n"
+                + "private final byte[] data;\n"
+                + "private final int end;\n"
+                + "private int pos;\n"
+                + "// offset and local name of the last start tag\n"
+                + "private int tagStart;\n"
+                + "private int nameStart;\n"
+                + "private int nameEnd;\n"
+                + "private boolean emptyElement;\n"
+                + "// local name start, name end, value start and value end of each attribute of"
+                + " the last start tag\n"
+                + "private int[] attributes = new int[32];\n"
+                + "private int attributeCount;\n"
+                + "// qualified name start and end of each open element, which end tags have to"
+                + " match\n"
+                + "private int[] openNames = new int[32];\n"
+                + "private int depth;\n"
+                + "// simple content which is a single run of bytes\n"
+                + "private int textStart;\n"
+                + "private int textEnd;\n"
+                + "\n"
+                + "XmlTokenizer(java.nio.ByteBuffer buffer) {\n"
+                + "if (buffer.hasArray()) {\n"
+                + "data = buffer.array();\n"
+                + "pos = buffer.arrayOffset() + buffer.position();\n"
+                + "end = buffer.arrayOffset() + buffer.limit();\n"
+                + "} else {\n"
+                + "data = new byte[buffer.remaining()];\n"
+                + "buffer.duplicate().get(data);\n"
+                + "pos = 0;\n"
+                + "end = data.length;\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "static byte[] utf8(String value) {\n"
+                + "return value.getBytes(java.nio.charset.StandardCharsets.UTF_8);\n"
+                + "}\n"
+                + "\n");
+        out.print("// Skips the prolog and reads the start tag of the root element.\n"
+                + "void readRootTag() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "if (end - pos >= 3 && data[pos] == (byte) 0xEF && data[pos + 1] == (byte) 0xBB\n"
+                + "&& data[pos + 2] == (byte) 0xBF) {\n"
+                + "pos += 3;\n"
+                + "}\n"
+                + "while (true) {\n"
+                + "skipWhitespace();\n"
+                + "if (startsWith(\"<?\")) {\n"
+                + "skipPast(\"?>\");\n"
+                + "} else if (startsWith(\"<!--\")) {\n"
+                + "skipPast(\"-->\");\n"
+                + "} else if (startsWith(\"<!\")) {\n"
+                + "throw error(\"document type declarations are not supported\");\n"
+                + "} else if (startsWith(\"<\")) {\n"
+                + "readStartTag();\n"
+                + "return;\n"
+                + "} else {\n"
+                + "throw error(\"expected the root element\");\n"
+                + "}\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "boolean isName(byte[] name) {\n"
+                + "return equals(nameStart, nameEnd, name);\n"
+                + "}\n"
+                + "\n"
+                + "// Returns the index of the attribute of the last start tag with the given"
+                + " local name, or -1.\n"
+                + "int findAttribute(byte[] name) {\n"
+                + "for (int i = 0; i < attributeCount; i += 4) {\n"
+                + "if (equals(attributes[i], attributes[i + 1], name)) {\n"
+                + "return i;\n"
+                + "}\n"
+                + "}\n"
+                + "return -1;\n"
+                + "}\n"
+                + "\n");
+        out.print("String getAttributeValue(int index) throws"
+                + " org.xmlpull.v1.XmlPullParserException {\n"
+                + "int start = attributes[index + 2];\n"
+                + "int valueEnd = attributes[index + 3];\n"
+                + "if (isPlain(start, valueEnd, true)) {\n"
+                + "return new String(data, start, valueEnd - start,"
+                + " java.nio.charset.StandardCharsets.UTF_8);\n"
+                + "}\n"
+                + "return decode(start, valueEnd, true);\n"
+                + "}\n"
+                + "\n"
+                + "long getLongAttributeValue(int index, long min, long max)\n"
+                + "throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "int start = attributes[index + 2];\n"
+                + "int valueEnd = attributes[index + 3];\n"
+                + "if (isPlain(start, valueEnd, true)) {\n"
+                + "return parseLong(start, valueEnd, min, max);\n"
+                + "}\n"
+                + "return parseLong(decode(start, valueEnd, true), min, max);\n"
+                + "}\n"
+                + "\n"
+                + "// Moves to the next child element of the current element. Returns false once"
+                + " the end of the\n"
+                + "// current element has been read instead.\n"
+                + "boolean nextChildTag() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "if (emptyElement) {\n"
+                + "emptyElement = false;\n"
+                + "--depth;\n"
+                + "return false;\n"
+                + "}\n"
+                + "while (true) {\n"
+                + "// text between children is ignored\n"
+                + "while (pos < end && data[pos] != '<') {\n"
+                + "++pos;\n"
+                + "}\n"
+                + "if (startsWith(\"</\")) {\n"
+                + "readEndTag();\n"
+                + "return false;\n"
+                + "} else if (startsWith(\"<!--\")) {\n"
+                + "skipPast(\"-->\");\n"
+                + "} else if (startsWith(\"<![CDATA[\")) {\n"
+                + "skipPast(\"]]>\");\n"
+                + "} else if (startsWith(\"<?\")) {\n"
+                + "skipPast(\"?>\");\n"
+                + "} else if (startsWith(\"<!\")) {\n"
+                + "throw error(\"unexpected declaration\");\n"
+                + "} else if (startsWith(\"<\")) {\n"
+                + "readStartTag();\n"
+                + "return true;\n"
+                + "} else {\n"
+                + "throw error(\"unexpected end of document\");\n"
+                + "}\n"
+                + "}\n"
+                + "}\n"
+                + "\n");
+        out.print("// Reads the text content of the current element and its end tag.\n"
+                + "String readText() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "String text = readTextContent();\n"
+                + "if (text != null) {\n"
+                + "return text;\n"
+                + "}\n"
+                + "return new String(data, textStart, textEnd - textStart,\n"
+                + "java.nio.charset.StandardCharsets.UTF_8);\n"
+                + "}\n"
+                + "\n"
+                + "// Reads the text content of the current element as an integer, like"
+                + " Long.parseLong does.\n"
+                + "long readLongText(long min, long max) throws"
+                + " org.xmlpull.v1.XmlPullParserException {\n"
+                + "String text = readTextContent();\n"
+                + "if (text != null) {\n"
+                + "return parseLong(text, min, max);\n"
+                + "}\n"
+                + "return parseLong(textStart, textEnd, min, max);\n"
+                + "}\n"
+                + "\n"
+                + "// Skips the rest of the current element.\n"
+                + "void skip() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "int parentDepth = depth - 1;\n"
+                + "while (depth > parentDepth) {\n"
+                + "nextChildTag();\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "// Returns null if the text is a single run of bytes without references, which"
+                + " is left in\n"
+                + "// [textStart, textEnd) instead.\n"
+                + "private String readTextContent() throws org.xmlpull.v1.XmlPullParserException"
+                + " {\n"
+                + "if (emptyElement) {\n"
+                + "emptyElement = false;\n"
+                + "--depth;\n"
+                + "textStart = pos;\n"
+                + "textEnd = pos;\n"
+                + "return null;\n"
+                + "}\n"
+                + "int start = pos;\n"
+                + "while (pos < end && data[pos] != '<' && data[pos] != '&' && data[pos] != '\\r')"
+                + " {\n"
+                + "++pos;\n"
+                + "}\n"
+                + "if (startsWith(\"</\")) {\n"
+                + "textStart = start;\n"
+                + "textEnd = pos;\n"
+                + "readEndTag();\n"
+                + "return null;\n"
+                + "}\n"
+                + "pos = start;\n"
+                + "StringBuilder text = new StringBuilder();\n"
+                + "while (true) {\n"
+                + "int run = pos;\n"
+                + "while (pos < end && data[pos] != '<') {\n"
+                + "++pos;\n"
+                + "}\n"
+                + "text.append(decode(run, pos, false));\n"
+                + "if (startsWith(\"</\")) {\n"
+                + "readEndTag();\n"
+                + "return text.toString();\n"
+                + "} else if (startsWith(\"<!--\")) {\n"
+                + "skipPast(\"-->\");\n"
+                + "} else if (startsWith(\"<![CDATA[\")) {\n"
+                + "int cdataStart = pos + 9;\n"
+                + "skipPast(\"]]>\");\n"
+                + "text.append(new String(data, cdataStart, pos - 3 - cdataStart,\n"
+                + "java.nio.charset.StandardCharsets.UTF_8));\n"
+                + "} else if (startsWith(\"<?\")) {\n"
+                + "skipPast(\"?>\");\n"
+                + "} else if (startsWith(\"<\")) {\n"
+                + "throw error(\"unexpected element in text\");\n"
+                + "} else {\n"
+                + "throw error(\"unexpected end of document\");\n"
+                + "}\n"
+                + "}\n"
+                + "}\n"
+                + "\n");
+        out.print("private void readStartTag() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "tagStart = pos++;\n"
+                + "int qualifiedStart = pos;\n"
+                + "nameEnd = readName();\n"
+                + "nameStart = localStart(qualifiedStart, nameEnd);\n"
+                + "if (depth * 2 == openNames.length) {\n"
+                + "openNames = java.util.Arrays.copyOf(openNames, depth * 4);\n"
+                + "}\n"
+                + "openNames[depth * 2] = qualifiedStart;\n"
+                + "openNames[depth * 2 + 1] = nameEnd;\n"
+                + "++depth;\n"
+                + "attributeCount = 0;\n"
+                + "while (true) {\n"
+                + "skipWhitespace();\n"
+                + "if (startsWith(\"/>\")) {\n"
+                + "pos += 2;\n"
+                + "emptyElement = true;\n"
+                + "return;\n"
+                + "} else if (startsWith(\">\")) {\n"
+                + "++pos;\n"
+                + "emptyElement = false;\n"
+                + "return;\n"
+                + "}\n"
+                + "int attributeStart = pos;\n"
+                + "int localEnd = readName();\n"
+                + "int localStart = localStart(attributeStart, localEnd);\n"
+                + "boolean namespace = equals(attributeStart, localEnd, XMLNS)\n"
+                + "|| (localStart - attributeStart == XMLNS.length + 1\n"
+                + "&& equals(attributeStart, localStart - 1, XMLNS));\n"
+                + "skipWhitespace();\n"
+                + "expect('=');\n"
+                + "skipWhitespace();\n"
+                + "if (pos == end || (data[pos] != '\"' && data[pos] != '\\'')) {\n"
+                + "throw error(\"expected an attribute value\");\n"
+                + "}\n"
+                + "byte quote = data[pos++];\n"
+                + "int valueStart = pos;\n"
+                + "while (pos < end && data[pos] != quote) {\n"
+                + "++pos;\n"
+                + "}\n"
+                + "expect(quote);\n"
+                + "if (namespace) {\n"
+                + "continue;\n"
+                + "}\n"
+                + "if (attributeCount == attributes.length) {\n"
+                + "attributes = java.util.Arrays.copyOf(attributes, attributeCount * 2);\n"
+                + "}\n"
+                + "attributes[attributeCount++] = localStart;\n"
+                + "attributes[attributeCount++] = localEnd;\n"
+                + "attributes[attributeCount++] = valueStart;\n"
+                + "attributes[attributeCount++] = pos - 1;\n"
+                + "}\n"
+                + "}\n"
+                + "\n");
+        out.print("private void readEndTag() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "pos += 2;\n"
+                + "int start = pos;\n"
+                + "readName();\n"
+                + "int qualifiedEnd = pos;\n"
+                + "--depth;\n"
+                + "if (depth < 0 || qualifiedEnd - start != openNames[depth * 2 + 1] -"
+                + " openNames[depth * 2]\n"
+                + "|| !equals(start, qualifiedEnd, data, openNames[depth * 2])) {\n"
+                + "throw error(\"mismatched end tag\");\n"
+                + "}\n"
+                + "skipWhitespace();\n"
+                + "expect('>');\n"
+                + "}\n"
+                + "\n"
+                + "// Returns the end of the qualified name starting at pos.\n"
+                + "private int readName() throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "int start = pos;\n"
+                + "while (pos < end) {\n"
+                + "byte b = data[pos];\n"
+                + "if (b == '>' || b == '/' || b == '=' || isWhitespace(b)) {\n"
+                + "break;\n"
+                + "}\n"
+                + "++pos;\n"
+                + "}\n"
+                + "if (pos == start) {\n"
+                + "throw error(\"expected a name\");\n"
+                + "}\n"
+                + "return pos;\n"
+                + "}\n"
+                + "\n"
+                + "// Returns the start of the local part of a qualified name.\n"
+                + "private int localStart(int start, int nameEnd) {\n"
+                + "for (int i = nameEnd - 1; i >= start; --i) {\n"
+                + "if (data[i] == ':') {\n"
+                + "return i + 1;\n"
+                + "}\n"
+                + "}\n"
+                + "return start;\n"
+                + "}\n"
+                + "\n");
+        out.print("private boolean equals(int start, int rangeEnd, byte[] name) {\n"
+                + "return rangeEnd - start == name.length && equals(start, rangeEnd, name, 0);\n"
+                + "}\n"
+                + "\n"
+                + "private boolean equals(int start, int rangeEnd, byte[] other, int otherStart)"
+                + " {\n"
+                + "for (int i = start; i < rangeEnd; ++i) {\n"
+                + "if (data[i] != other[otherStart + i - start]) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "}\n"
+                + "return true;\n"
+                + "}\n"
+                + "\n"
+                + "private boolean isPlain(int start, int valueEnd, boolean attribute) {\n"
+                + "for (int i = start; i < valueEnd; ++i) {\n"
+                + "byte b = data[i];\n"
+                + "if (b == '&' || b == '\\r' || (attribute && (b == '\\n' || b == '\\t'))) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "}\n"
+                + "return true;\n"
+                + "}\n"
+                + "\n"
+                + "// Replaces references and normalizes line ends, and whitespace in attribute"
+                + " values. Bytes of\n"
+                + "// multi-byte UTF-8 sequences are never ASCII, so runs between special"
+                + " characters are decoded\n"
+                + "// separately.\n"
+                + "private String decode(int start, int valueEnd, boolean attribute)\n"
+                + "throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "StringBuilder value = new StringBuilder(valueEnd - start);\n"
+                + "int run = start;\n"
+                + "for (int i = start; i < valueEnd; ++i) {\n"
+                + "byte b = data[i];\n"
+                + "if (b != '&' && b != '\\r' && !(attribute && (b == '\\n' || b == '\\t'))) {\n"
+                + "continue;\n"
+                + "}\n"
+                + "value.append(new String(data, run, i - run,"
+                + " java.nio.charset.StandardCharsets.UTF_8));\n"
+                + "if (b == '&') {\n"
+                + "int referenceEnd = i + 1;\n"
+                + "while (referenceEnd < valueEnd && data[referenceEnd] != ';') {\n"
+                + "++referenceEnd;\n"
+                + "}\n"
+                + "if (referenceEnd == valueEnd) {\n"
+                + "throw error(\"unterminated reference\");\n"
+                + "}\n"
+                + "appendReference(value, new String(data, i + 1, referenceEnd - i - 1,\n"
+                + "java.nio.charset.StandardCharsets.UTF_8));\n"
+                + "i = referenceEnd;\n"
+                + "} else if (b == '\\r') {\n"
+                + "value.append(attribute ? ' ' : '\\n');\n"
+                + "if (i + 1 < valueEnd && data[i + 1] == '\\n') {\n"
+                + "++i;\n"
+                + "}\n"
+                + "} else {\n"
+                + "value.append(' ');\n"
+                + "}\n"
+                + "run = i + 1;\n"
+                + "}\n"
+                + "value.append(new String(data, run, valueEnd - run,"
+                + " java.nio.charset.StandardCharsets.UTF_8));\n"
+                + "return value.toString();\n"
+                + "}\n"
+                + "\n");
+        out.print("private void appendReference(StringBuilder value, String name)\n"
+                + "throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "switch (name) {\n"
+                + "case \"lt\":\n"
+                + "value.append('<');\n"
+                + "return;\n"
+                + "case \"gt\":\n"
+                + "value.append('>');\n"
+                + "return;\n"
+                + "case \"amp\":\n"
+                + "value.append('&');\n"
+                + "return;\n"
+                + "case \"apos\":\n"
+                + "value.append('\\'');\n"
+                + "return;\n"
+                + "case \"quot\":\n"
+                + "value.append('\"');\n"
+                + "return;\n"
+                + "}\n"
+                + "try {\n"
+                + "if (name.startsWith(\"#x\")) {\n"
+                + "value.appendCodePoint(Integer.parseInt(name.substring(2), 16));\n"
+                + "return;\n"
+                + "} else if (name.startsWith(\"#\")) {\n"
+                + "value.appendCodePoint(Integer.parseInt(name.substring(1)));\n"
+                + "return;\n"
+                + "}\n"
+                + "} catch (IllegalArgumentException e) {\n"
+                + "// falls through\n"
+                + "}\n"
+                + "throw error(\"unknown reference &\" + name + \";\");\n"
+                + "}\n"
+                + "\n"
+                + "// Accepts the same syntax as Long.parseLong, without decoding the bytes"
+                + " first.\n"
+                + "private long parseLong(int start, int valueEnd, long min, long max) {\n"
+                + "int i = start;\n"
+                + "boolean negative = false;\n"
+                + "if (i < valueEnd && (data[i] == '-' || data[i] == '+')) {\n"
+                + "negative = data[i] == '-';\n"
+                + "++i;\n"
+                + "}\n"
+                + "if (i == valueEnd) {\n"
+                + "throw invalidNumber(start, valueEnd);\n"
+                + "}\n"
+                + "// accumulates negatively since Long.MIN_VALUE has no positive counterpart\n"
+                + "long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;\n"
+                + "long value = 0;\n"
+                + "for (; i < valueEnd; ++i) {\n"
+                + "int digit = data[i] - '0';\n"
+                + "if (digit < 0 || digit > 9 || value < limit / 10) {\n"
+                + "throw invalidNumber(start, valueEnd);\n"
+                + "}\n"
+                + "value *= 10;\n"
+                + "if (value < limit + digit) {\n"
+                + "throw invalidNumber(start, valueEnd);\n"
+                + "}\n"
+                + "value -= digit;\n"
+                + "}\n"
+                + "value = negative ? value : -value;\n"
+                + "if (value < min || value > max) {\n"
+                + "throw invalidNumber(start, valueEnd);\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n");
+        out.print("private static long parseLong(String text, long min, long max) {\n"
+                + "long value = Long.parseLong(text);\n"
+                + "if (value < min || value > max) {\n"
+                + "throw new NumberFormatException(\"Value out of range: \\\"\" + text +"
+                + " \"\\\"\");\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n"
+                + "private NumberFormatException invalidNumber(int start, int valueEnd) {\n"
+                + "return new NumberFormatException(\"For input string: \\\"\" + new String(data,"
+                + " start,\n"
+                + "valueEnd - start, java.nio.charset.StandardCharsets.UTF_8) + \"\\\"\");\n"
+                + "}\n"
+                + "\n"
+                + "private static boolean isWhitespace(byte b) {\n"
+                + "return b == ' ' || b == '\\t' || b == '\\n' || b == '\\r';\n"
+                + "}\n"
+                + "\n"
+                + "private void skipWhitespace() {\n"
+                + "while (pos < end && isWhitespace(data[pos])) {\n"
+                + "++pos;\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "private boolean startsWith(String prefix) {\n"
+                + "if (end - pos < prefix.length()) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "for (int i = 0; i < prefix.length(); ++i) {\n"
+                + "if (data[pos + i] != prefix.charAt(i)) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "}\n"
+                + "return true;\n"
+                + "}\n"
+                + "\n"
+                + "private void skipPast(String terminator) throws"
+                + " org.xmlpull.v1.XmlPullParserException {\n"
+                + "while (pos < end) {\n"
+                + "if (startsWith(terminator)) {\n"
+                + "pos += terminator.length();\n"
+                + "return;\n"
+                + "}\n"
+                + "++pos;\n"
+                + "}\n"
+                + "throw error(\"unexpected end of document\");\n"
+                + "}\n"
+                + "\n");
+        out.print("private void expect(int b) throws org.xmlpull.v1.XmlPullParserException {\n"
+                + "if (pos == end || data[pos] != b) {\n"
+                + "throw error(\"expected '\" + (char) b + \"'\");\n"
+                + "}\n"
+                + "++pos;\n"
+                + "}\n"
+                + "\n"
+                + "private org.xmlpull.v1.XmlPullParserException error(String message) {\n"
+                + "return new org.xmlpull.v1.XmlPullParserException(message + \" at offset \" +"
+                + " pos);\n"
+                + "}\n");
+        if (parallel || listener) {
+            out.println();
+            out.print("int getTagStart() {\n"
+                    + "return tagStart;\n"
+                    + "}\n");
+        }
+        if (listener) {
+            out.println();
+            out.print("int getPosition() {\n"
+                    + "return pos;\n"
+                    + "}\n");
+        }
+        if (parallel) {
+            out.println();
+            out.print("// Growable list of the offsets of elements to read in parallel.\n"
+                    + "static final class Offsets {\n"
+                    + "private int[] values = new int[16];\n"
+                    + "private int size;\n"
+                    + "\n"
+                    + "void add(int offset) {\n"
+                    + "if (size == values.length) {\n"
+                    + "values = java.util.Arrays.copyOf(values, size * 2);\n"
+                    + "}\n"
+                    + "values[size++] = offset;\n"
+                    + "}\n"
+                    + "}\n"
+                    + "\n"
+                    + "interface ElementReader<T> {\n"
+                    + "T read(XmlTokenizer tokenizer) throws"
+                    + " org.xmlpull.v1.XmlPullParserException,\n"
+                    + "javax.xml.datatype.DatatypeConfigurationException;\n"
+                    + "}\n"
+                    + "\n"
+                    + "private XmlTokenizer(byte[] data, int end) {\n"
+                    + "this.data = data;\n"
+                    + "this.end = end;\n"
+                    + "}\n"
+                    + "\n"
+                    + "// Reads the elements starting at offsets on pool. Each task reads a"
+                    + " contiguous range of\n"
+                    + "// elements with its own tokenizer over the same bytes, and the results are"
+                    + " merged in document\n"
+                    + "// order.\n"
+                    + "<T> java.util.List<T> readElements(java.util.concurrent.ForkJoinPool pool,"
+                    + " Offsets offsets,\n"
+                    + "ElementReader<T> reader) throws org.xmlpull.v1.XmlPullParserException,\n"
+                    + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                    + "int count = offsets.size;\n"
+                    + "int chunks = Math.min(count, pool.getParallelism() * 4);\n"
+                    + "java.util.List<java.util.concurrent.Callable<java.util.List<T>>> tasks =\n"
+                    + "new java.util.ArrayList<>(chunks);\n"
+                    + "for (int chunk = 0; chunk < chunks; ++chunk) {\n"
+                    + "int from = (int) ((long) count * chunk / chunks);\n"
+                    + "int to = (int) ((long) count * (chunk + 1) / chunks);\n"
+                    + "tasks.add(() -> {\n"
+                    + "java.util.List<T> items = new java.util.ArrayList<>(to - from);\n"
+                    + "XmlTokenizer tokenizer = new XmlTokenizer(data, end);\n"
+                    + "for (int i = from; i < to; ++i) {\n"
+                    + "tokenizer.pos = offsets.values[i];\n"
+                    + "tokenizer.depth = 0;\n"
+                    + "tokenizer.readStartTag();\n"
+                    + "items.add(reader.read(tokenizer));\n"
+                    + "}\n"
+                    + "return items;\n"
+                    + "});\n"
+                    + "}\n"
+                    + "java.util.List<T> result = new java.util.ArrayList<>(count);\n"
+                    + "for (java.util.concurrent.Future<java.util.List<T>> future :"
+                    + " pool.invokeAll(tasks)) {\n"
+                    + "try {\n"
+                    + "result.addAll(future.get());\n"
+                    + "} catch (InterruptedException e) {\n"
+                    + "Thread.currentThread().interrupt();\n"
+                    + "throw new org.xmlpull.v1.XmlPullParserException(\"interrupted\");\n"
+                    + "} catch (java.util.concurrent.ExecutionException e) {\n"
+                    + "Throwable cause = e.getCause();\n"
+                    + "if (cause instanceof org.xmlpull.v1.XmlPullParserException) {\n"
+                    + "throw (org.xmlpull.v1.XmlPullParserException) cause;\n"
+                    + "} else if (cause instanceof"
+                    + " javax.xml.datatype.DatatypeConfigurationException) {\n"
+                    + "throw (javax.xml.datatype.DatatypeConfigurationException) cause;\n"
+                    + "} else if (cause instanceof RuntimeException) {\n"
+                    + "throw (RuntimeException) cause;\n"
+                    + "} else if (cause instanceof Error) {\n"
+                    + "throw (Error) cause;\n"
+                    + "}\n"
+                    + "throw new IllegalStateException(cause);\n"
+                    + "}\n"
+                    + "}\n"
+                    + "return result;\n"
+                    + "}\n");
+        }
+        out.println("}");
+    }
+
+    private void printWriter(CodeWriter out, XsdComplexType complexType)
+            throws JavaCodeGeneratorException {
+        JavaSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
+                getValueType((XsdSimpleContent) complexType, true) : null;
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
+
+        // the name is given by the caller since a type may be used by elements of any name
+        out.print("void write(XmlWriter out, String name) throws java.io.IOException {\n"
+                + "out.writeIndent();\n"
+                + "out.write(\"<\");\n"
+                + "out.write(name);\n");
+        for (XsdAttribute attribute : allAttributes) {
+            XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+            JavaSimpleType type = simpleTypes.map(attributeValue.getType());
+            String name = Utils.capitalize(Utils.toVariableName(attributeValue.getName()));
+            String getter = String.format("get%s()", name);
+            // absent primitives are told apart by their presence bits
+            out.printf("if (%s) {\n", type.getName().equals(type.getNullableName())
+                    ? getter + " != null" : "has" + name + "()");
+            out.printf("out.write(\" %s=\\\"\");\n", attributeValue.getName());
+            printWriterText(out, type, getter, true);
+            out.print("out.write(\"\\\"\");\n"
+                    + "}\n");
+        }
+
+        if (baseValueType != null) {
+            out.printf("out.write(\">\");\n"
+                    + "if (%s) {\n",
+                    baseValueType.getName().equals(baseValueType.getNullableName())
+                            ? "getValue() != null" : "hasValue()");
+            printWriterText(out, baseValueType, "getValue()", false);
+            out.print("}\n"
+                    + "out.write(\"</\");\n"
+                    + "out.write(name);\n"
+                    + "out.write(\">\\n\");\n"
+                    + "}\n");
+            return;
+        }
+        if (allElements.isEmpty()) {
+            out.print("out.write(\"/>\\n\");\n"
+                    + "}\n");
+            return;
+        }
+
+        out.print("out.write(\">\\n\");\n"
+                + "out.increaseIndent();\n");
+        for (XsdElement element : allElements) {
+            XsdElement elementValue = resolvedSchema.resolveElement(element);
+            JavaType type = parseType(elementValue.getType(), elementValue.getName());
+            String name = Utils.capitalize(Utils.toVariableName(
+                    resolvedSchema.getElementName(elementValue)));
+            String getter = String.format("get%s()", name);
+            String value = getter;
+            if (element.isMultiple()) {
+                out.printf("for (%s item : %s) {\n", type.getNullableName(), getter);
+                value = "item";
+            } else if (type.getName().equals(type.getNullableName())) {
+                out.printf("if (%s != null) {\n", getter);
+            } else {
+                out.printf("if (has%s()) {\n", name);
+            }
+            if (type instanceof JavaComplexType) {
+                out.printf("%s.write(out, \"%s\");\n", value, elementValue.getName());
+            } else {
+                out.printf("out.writeIndent();\n"
+                        + "out.write(\"<%s>\");\n", elementValue.getName());
+                printWriterText(out, (JavaSimpleType) type, value, false);
+                out.printf("out.write(\"</%s>\\n\");\n", elementValue.getName());
+            }
+            out.print("}\n");
+        }
+        out.print("out.decreaseIndent();\n"
+                + "out.writeIndent();\n"
+                + "out.write(\"</\");\n"
+                + "out.write(name);\n"
+                + "out.write(\">\\n\");\n"
+                + "}\n");
+    }
+
+    // Prints statements writing the escaped text of value.
+    private void printWriterText(CodeWriter out, JavaSimpleType type, String value,
+            boolean attribute) {
+        String method = attribute ? "writeAttributeText" : "writeText";
+        if (type.isList()) {
+            out.printf("for (int i = 0; i < %s.size(); ++i) {\n"
+                    + "if (i != 0) {\n"
+                    + "out.write(\" \");\n"
+                    + "}\n"
+                    + "out.%s(%s);\n"
+                    + "}\n", value, method,
+                    type.getWritingExpression(String.format("%s.get(i)", value)));
+        } else {
+            out.printf("out.%s(%s);\n", method, type.getWritingExpression(value));
+        }
+    }
+
+    private void printXmlWriter(CodeWriter out) throws JavaCodeGeneratorException {
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.print("// Writes documents as xml. The underlying java.io.Writer should encode UTF-8."
+                + "\n");
+        out.println("public class XmlWriter implements java.io.Closeable {");
+        out.print("private final java.io.Writer out;\n"
+                + "private int indent;\n"
+                + "\n"
+                + "public XmlWriter(java.io.Writer out) {\n"
+                + "this.out = new java.io.BufferedWriter(out);\n"
+                + "}\n"
+                + "\n"
+                + "void write(String text) throws java.io.IOException {\n"
+                + "out.write(text);\n"
+                + "}\n"
+                + "\n"
+                + "void writeText(String text) throws java.io.IOException {\n"
+                + "writeEscaped(text, false);\n"
+                + "}\n"
+                + "\n"
+                + "void writeAttributeText(String text) throws java.io.IOException {\n"
+                + "writeEscaped(text, true);\n"
+                + "}\n"
+                + "\n"
+                + "void writeIndent() throws java.io.IOException {\n"
+                + "for (int i = 0; i < indent; ++i) {\n"
+                + "out.write(\"    \");\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "void increaseIndent() {\n"
+                + "++indent;\n"
+                + "}\n"
+                + "\n"
+                + "void decreaseIndent() {\n"
+                + "--indent;\n"
+                + "}\n"
+                + "\n"
+                + "// Writes runs of characters which don't need escaping at once.\n"
+                + "private void writeEscaped(String text, boolean attribute) "
+                + "throws java.io.IOException {\n"
+                + "int start = 0;\n"
+                + "for (int i = 0; i < text.length(); ++i) {\n"
+                + "String escaped;\n"
+                + "switch (text.charAt(i)) {\n"
+                + "case '&':\n"
+                + "escaped = \"&amp;\";\n"
+                + "break;\n"
+                + "case '<':\n"
+                + "escaped = \"&lt;\";\n"
+                + "break;\n"
+                + "case '>':\n"
+                + "escaped = \"&gt;\";\n"
+                + "break;\n"
+                + "case '\"':\n"
+                + "escaped = attribute ? \"&quot;\" : null;\n"
+                + "break;\n"
+                + "case '\\r':\n"
+                + "escaped = \"&#13;\";\n"
+                + "break;\n"
+                + "case '\\n':\n"
+                + "escaped = attribute ? \"&#10;\" : null;\n"
+                + "break;\n"
+                + "case '\\t':\n"
+                + "escaped = attribute ? \"&#9;\" : null;\n"
+                + "break;\n"
+                + "default:\n"
+                + "escaped = null;\n"
+                + "}\n"
+                + "if (escaped != null) {\n"
+                + "out.write(text, start, i - start);\n"
+                + "out.write(escaped);\n"
+                + "start = i + 1;\n"
+                + "}\n"
+                + "}\n"
+                + "out.write(text, start, text.length() - start);\n"
+                + "}\n"
+                + "\n"
+                + "public void flush() throws java.io.IOException {\n"
+                + "out.flush();\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public void close() throws java.io.IOException {\n"
+                + "out.close();\n"
+                + "}\n");
+
+        boolean isMultiRootElement = xmlSchema.getElementMap().values().size() > 1;
+        for (XsdElement element : xmlSchema.getElementMap().values()) {
+            JavaType javaType = parseType(element.getType(), element.getName());
+            out.println();
+            out.printf("public static void write%s(XmlWriter out, %s value)"
+                    + " throws java.io.IOException {\n"
+                    + "out.write(\"<?xml version=\\\"1.0\\\" encoding=\\\"utf-8\\\"?>\\n\");\n",
+                    isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                    javaType.getName());
+            if (javaType instanceof JavaComplexType) {
+                out.printf("value.write(out, \"%s\");\n", element.getName());
+            } else {
+                out.printf("out.write(\"<%s>\");\n", element.getName());
+                printWriterText(out, (JavaSimpleType) javaType, "value", false);
+                out.printf("out.write(\"</%s>\\n\");\n", element.getName());
+            }
+            out.print("}\n");
+        }
+        out.println("}");
+    }
+
+    private void printSnapshot(CodeWriter out, String name, XsdComplexType complexType)
+            throws JavaCodeGeneratorException {
+        JavaSimpleType baseValueType = (complexType instanceof XsdSimpleContent) ?
+                getValueType((XsdSimpleContent) complexType, true) : null;
+        List<XsdElement> allElements = resolvedSchema.getAllElements(complexType);
+        List<XsdAttribute> allAttributes = resolvedSchema.getAllAttributes(complexType);
+
+        // members are written in the same order as they are read
+        List<JavaType> allTypes = new ArrayList<>();
+        List<String> allVariableNames = new ArrayList<>();
+        List<Boolean> allMultiples = new ArrayList<>();
+        for (XsdAttribute attribute : allAttributes) {
+            XsdAttribute attributeValue = resolvedSchema.resolveAttribute(attribute);
+            allTypes.add(simpleTypes.map(attributeValue.getType()));
+            allVariableNames.add(Utils.toVariableName(attributeValue.getName()));
+            allMultiples.add(false);
+        }
+        if (baseValueType != null) {
+            allTypes.add(baseValueType);
+            allVariableNames.add("value");
+            allMultiples.add(false);
+        } else {
+            for (XsdElement element : allElements) {
+                XsdElement elementValue = resolvedSchema.resolveElement(element);
+                allTypes.add(parseType(elementValue.getType(), elementValue.getName()));
+                allVariableNames.add(
+                        Utils.toVariableName(resolvedSchema.getElementName(elementValue)));
+                allMultiples.add(element.isMultiple());
+            }
+        }
+
+        out.printf("static void writeSnapshot(%s instance, XmlSnapshot.Writer out) {\n", name);
+        for (int i = 0; i < allTypes.size(); ++i) {
+            JavaType type = allTypes.get(i);
+            String getter = String.format("instance.get%s()",
+                    Utils.capitalize(allVariableNames.get(i)));
+            if (allMultiples.get(i)) {
+                out.printf("out.writeList(%s, item -> %s);\n", getter,
+                        getSnapshotWriteExpression(type, "item", 1));
+            } else {
+                // absent primitives are told apart by their presence bits
+                out.printf("if (out.writePresence(%s)) {\n"
+                        + "%s;\n"
+                        + "}\n", type.getName().equals(type.getNullableName()) ? getter
+                                : String.format("instance.has%s()",
+                                        Utils.capitalize(allVariableNames.get(i))),
+                        getSnapshotWriteExpression(type, getter, 0));
+            }
+        }
+        if (allTypes.isEmpty()) {
+            out.print("out.writeBoolean(false);\n");
+        }
+        out.print("}\n");
+
+        out.println();
+        out.printf("static %s readSnapshot(XmlSnapshot.Reader in) " +
+                "throws javax.xml.datatype.DatatypeConfigurationException {\n", name);
+        out.printf("%s instance = new %s();\n", name, name);
+        for (int i = 0; i < allTypes.size(); ++i) {
+            JavaType type = allTypes.get(i);
+            String variableName = Utils.capitalize(allVariableNames.get(i));
+            if (allMultiples.get(i)) {
+                out.printf("instance.get%s().addAll(in.readList(() -> %s));\n", variableName,
+                        getSnapshotReadExpression(type));
+            } else {
+                out.printf("if (in.readBoolean()) {\n"
+                        + "instance.set%s(%s);\n"
+                        + "}\n", variableName, getSnapshotReadExpression(type));
+            }
+        }
+        if (allTypes.isEmpty()) {
+            out.print("in.readBoolean();\n");
+        }
+        out.print("return instance;\n"
+                + "}\n");
+    }
+
+    // Returns an expression writing value to the XmlSnapshot.Writer named out. depth makes the
+    // names of nested lambda parameters unique.
+    private String getSnapshotWriteExpression(JavaType type, String value, int depth) {
+        if (type instanceof JavaComplexType) {
+            return String.format("%s.writeSnapshot(%s, out)", type.getName(), value);
+        }
+        JavaSimpleType simpleType = (JavaSimpleType) type;
+        if (simpleType.isList()) {
+            String item = "item" + depth;
+            return String.format("out.writeList(%s, %s -> %s)", value, item,
+                    getSnapshotWriteExpression(new JavaSimpleType(simpleType.getTypeName(),
+                            "%s", false), item, depth + 1));
+        }
+        switch (simpleType.getTypeName()) {
+            case "boolean":
+                return String.format("out.writeBoolean(%s)", value);
+            case "byte":
+            case "short":
+            case "int":
+            case "long":
+                return String.format("out.writeSignedVarint(%s)", value);
+            case "float":
+                return String.format("out.writeFloat(%s)", value);
+            case "double":
+                return String.format("out.writeDouble(%s)", value);
+            case "java.lang.String":
+                return String.format("out.writeString(%s)", value);
+            case "byte[]":
+                return String.format("out.writeBytes(%s)", value);
+            case "java.math.BigInteger":
+                return String.format("out.writeBytes(%s.toByteArray())", value);
+            case "java.math.BigDecimal":
+            case "javax.xml.datatype.Duration":
+                return String.format("out.writeString(%s.toString())", value);
+            case "javax.xml.datatype.XMLGregorianCalendar":
+                return String.format("out.writeString(%s.toXMLFormat())", value);
+            default:
+                // enums
+                return String.format("out.writeVarint(%s.ordinal())", value);
+        }
+    }
+
+    // Returns an expression reading a value from the XmlSnapshot.Reader named in.
+    private String getSnapshotReadExpression(JavaType type) {
+        if (type instanceof JavaComplexType) {
+            return String.format("%s.readSnapshot(in)", type.getName());
+        }
+        JavaSimpleType simpleType = (JavaSimpleType) type;
+        if (simpleType.isList()) {
+            return String.format("in.readList(() -> %s)", getSnapshotReadExpression(
+                    new JavaSimpleType(simpleType.getTypeName(), "%s", false)));
+        }
+        switch (simpleType.getTypeName()) {
+            case "boolean":
+                return "in.readBoolean()";
+            case "byte":
+            case "short":
+            case "int":
+                return String.format("(%s) in.readSignedVarint()", simpleType.getTypeName());
+            case "long":
+                return "in.readSignedVarint()";
+            case "float":
+                return "in.readFloat()";
+            case "double":
+                return "in.readDouble()";
+            case "java.lang.String":
+                return "in.readString()";
+            case "byte[]":
+                return "in.readBytes()";
+            case "java.math.BigInteger":
+                return "new java.math.BigInteger(in.readBytes())";
+            case "java.math.BigDecimal":
+                return "new java.math.BigDecimal(in.readString())";
+            case "javax.xml.datatype.Duration":
+                return "javax.xml.datatype.DatatypeFactory.newInstance().newDuration("
+                        + "in.readString())";
+            case "javax.xml.datatype.XMLGregorianCalendar":
+                return "javax.xml.datatype.DatatypeFactory.newInstance()"
+                        + ".newXMLGregorianCalendar(in.readString())";
+            default:
+                // enums
+                return String.format("%s.values()[(int) in.readVarint()]",
+                        simpleType.getTypeName());
+        }
+    }
+
+    // Returns the field of presence bits which holds the given bit.
+    private static String getPresenceField(String presenceName, int bit) {
+        return bit < 32 ? presenceName : presenceName + bit / 32;
+    }
+
+    /**
+     * presenceBit is the bit which is set with a primitive member, in the fields named after
+     * presenceName, or -1 if absent values of the member aren't told apart.
+     */
     private void printGetterAndSetter(CodeWriter out, JavaType type, String variableName,
-            boolean isMultiple, boolean deprecated) {
+            boolean isMultiple, boolean deprecated, String presenceName, int presenceBit) {
         String typeName = isMultiple ? String.format("java.util.List<%s>", type.getNullableName())
                 : type.getName();
         out.println();
@@ -328,15 +2147,27 @@ public class JavaCodeGenerator {
         out.printf("return %s;\n"
                 + "}\n", variableName);
 
+        if (presenceBit >= 0) {
+            out.println();
+            out.printf("boolean has%s() {\n"
+                    + "return (%s & 1 << %d) != 0;\n"
+                    + "}\n", Utils.capitalize(variableName),
+                    getPresenceField(presenceName, presenceBit), presenceBit % 32);
+        }
+
         if (isMultiple) return;
         out.println();
         if (deprecated) {
             out.printf("@java.lang.Deprecated\n");
         }
         out.printf("public void set%s(%s %s) {\n"
-                        + "this.%s = %s;\n"
-                        + "}\n",
+                        + "this.%s = %s;\n",
                 Utils.capitalize(variableName), typeName, variableName, variableName, variableName);
+        if (presenceBit >= 0) {
+            out.printf("%s |= 1 << %d;\n", getPresenceField(presenceName, presenceBit),
+                    presenceBit % 32);
+        }
+        out.println("}");
     }
 
     private void printXmlParser(CodeWriter out) throws JavaCodeGeneratorException {
@@ -344,6 +2175,30 @@ public class JavaCodeGenerator {
         out.println();
         out.println("public class XmlParser {");
 
+        if (listener) {
+            out.print("private static volatile ParseListener parseListener = ParseListener.NONE;"
+                    + "\n"
+                    + "\n"
+                    + "// Sets the listener which all generated parsers report the elements they "
+                    + "read to.\n"
+                    + "public static void setParseListener(ParseListener listener) {\n"
+                    + "parseListener = listener != null ? listener : ParseListener.NONE;\n"
+                    + "}\n"
+                    + "\n"
+                    + "public static ParseListener getParseListener() {\n"
+                    + "return parseListener;\n"
+                    + "}\n"
+                    + "\n");
+        }
+
+        Map<String, String> nameConstants = new LinkedHashMap<>();
+        if (tokenizer) {
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                addNameConstant(nameConstants, element.getName());
+            }
+            printNameConstants(out, nameConstants);
+        }
+
         boolean isMultiRootElement = xmlSchema.getElementMap().values().size() > 1;
         for (XsdElement element : xmlSchema.getElementMap().values()) {
             JavaType javaType = parseType(element.getType(), element.getName());
@@ -369,6 +2224,93 @@ public class JavaCodeGenerator {
                     + "return null;\n"
                     + "}\n");
             out.println();
+            if (tokenizer) {
+                out.print("// Reads a UTF-8 encoded document with XmlTokenizer.\n");
+                out.printf("public static %s read%s(java.nio.ByteBuffer buffer)"
+                        + " throws org.xmlpull.v1.XmlPullParserException, "
+                        + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                        + "XmlTokenizer tokenizer = new XmlTokenizer(buffer);\n"
+                        + "tokenizer.readRootTag();\n"
+                        + "String raw = null;\n"
+                        + "if (tokenizer.isName(%s)) {\n", javaType.getName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                        nameConstants.get(element.getName()));
+                printTokenizerValue(out, javaType);
+                out.print("return value;\n"
+                        + "}\n"
+                        + "return null;\n"
+                        + "}\n");
+                out.println();
+            }
+            if (parallel && javaType instanceof JavaComplexType) {
+                boolean readParallel = hasParallelElements(
+                        (XsdComplexType) getRootType(element));
+                out.print("// Reads a UTF-8 encoded document with XmlTokenizer, reading repeated "
+                        + "complex children of\n"
+                        + "// the root element on pool.\n");
+                out.printf("public static %s readParallel%s(java.nio.ByteBuffer buffer, "
+                        + "java.util.concurrent.ForkJoinPool pool)"
+                        + " throws org.xmlpull.v1.XmlPullParserException, "
+                        + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                        + "XmlTokenizer tokenizer = new XmlTokenizer(buffer);\n"
+                        + "tokenizer.readRootTag();\n"
+                        + "if (tokenizer.isName(%s)) {\n"
+                        + "return %s.%s(tokenizer%s);\n"
+                        + "}\n"
+                        + "return null;\n"
+                        + "}\n", javaType.getName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                        nameConstants.get(element.getName()), javaType.getName(),
+                        readParallel ? "readParallel" : "read", readParallel ? ", pool" : "");
+                out.println();
+            }
+            if (watch) {
+                out.print("// Reads the document at path and reads it again whenever the file "
+                        + "changes. listener is\n"
+                        + "// called with each document read, on the watching thread except the "
+                        + "first time.\n");
+                out.printf("public static ConfigHolder<%s> watch%s(java.nio.file.Path path, "
+                        + "java.util.function.Consumer<%s> listener)"
+                        + " throws org.xmlpull.v1.XmlPullParserException, java.io.IOException, "
+                        + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                        + "return ConfigHolder.watch(path, XmlParser::read%s, listener);\n"
+                        + "}\n", javaType.getNullableName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                        javaType.getNullableName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "");
+                out.println();
+            }
+            if (cache) {
+                out.print("// Reads the document at path, or returns the document read before if "
+                        + "the file has the same\n"
+                        + "// size and modification time, and the same content if hashContent is "
+                        + "true. Concurrent\n"
+                        + "// callers reading the same file wait for one read. The returned "
+                        + "document is shared, so it\n"
+                        + "// must not be modified.\n");
+                out.printf("public static %s readCached%s(java.nio.file.Path path, "
+                        + "boolean hashContent)"
+                        + " throws org.xmlpull.v1.XmlPullParserException, java.io.IOException, "
+                        + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                        + "return CACHE.read(path, \"%s\", hashContent, XmlParser::read%s);\n"
+                        + "}\n", javaType.getNullableName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                        element.getName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "");
+                out.println();
+                out.printf("public static %s readCached%s(java.nio.file.Path path)"
+                        + " throws org.xmlpull.v1.XmlPullParserException, java.io.IOException, "
+                        + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                        + "return readCached%s(path, false);\n"
+                        + "}\n", javaType.getNullableName(),
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "",
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "");
+                out.println();
+            }
+            if (snapshot) {
+                printSnapshotReaderAndWriter(out, javaType,
+                        isMultiRootElement ? Utils.capitalize(javaType.getName()) : "");
+            }
         }
 
         out.print(
@@ -402,31 +2344,805 @@ public class JavaCodeGenerator {
                         + "}\n"
                         + "}\n");
 
+        for (String validator : validators) {
+            out.println();
+            out.print(validator);
+        }
+        if (countsTotalDigits) {
+            out.println();
+            out.print("// Returns the least totalDigits facet which value satisfies.\n"
+                    + "private static int countTotalDigits(java.math.BigDecimal value) {\n"
+                    + "value = value.stripTrailingZeros();\n"
+                    + "return value.scale() > 0 ? Math.max(value.precision(), value.scale()) "
+                    + ": value.precision() - value.scale();\n"
+                    + "}\n");
+        }
+
+        if (cache) {
+            out.println();
+            printXmlParserCache(out);
+        }
         out.println("}");
     }
 
-    private String getElementName(XsdElement element) {
-        if (element instanceof XsdChoice) {
-            return element.getName() + "_optional";
-        } else if (element instanceof XsdAll) {
-            return element.getName() + "_all";
+    private void printXmlParserCache(CodeWriter out) {
+        out.print("private static final Cache CACHE = new Cache();\n"
+                + "\n"
+                + "// Documents read by readCached, keyed by the real path of their file and the"
+                + " name of their\n"
+                + "// root element. A document is read again when the size or the modification"
+                + " time of its file,\n"
+                + "// or optionally the hash of its content, changes. Documents are softly"
+                + " referenced, so they can\n"
+                + "// be collected when memory is low, and at most MAX_ENTRIES files are cached.\n"
+                + "private static final class Cache {\n"
+                + "interface Reader<T> {\n"
+                + "T read(java.io.InputStream in) throws org.xmlpull.v1.XmlPullParserException,\n"
+                + "java.io.IOException, javax.xml.datatype.DatatypeConfigurationException;\n"
+                + "}\n"
+                + "\n"
+                + "private static final class Entry {\n"
+                + "final long size;\n"
+                + "final java.nio.file.attribute.FileTime modified;\n"
+                + "final byte[] hash;\n"
+                + "// set while the document is read, then replaced by value\n"
+                + "java.util.concurrent.FutureTask<Object> task;\n"
+                + "java.lang.ref.SoftReference<Object> value;\n"
+                + "\n"
+                + "Entry(long size, java.nio.file.attribute.FileTime modified, byte[] hash) {\n"
+                + "this.size = size;\n"
+                + "this.modified = modified;\n"
+                + "this.hash = hash;\n"
+                + "}\n"
+                + "\n"
+                + "boolean matches(long size, java.nio.file.attribute.FileTime modified, byte[]"
+                + " hash) {\n"
+                + "return this.size == size && this.modified.equals(modified)\n"
+                + "&& java.util.Arrays.equals(this.hash, hash);\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "static final int MAX_ENTRIES = 32;\n"
+                + "\n"
+                + "private final java.util.Map<String, Entry> entries =\n"
+                + "new java.util.LinkedHashMap<String, Entry>(16, 0.75f, true) {\n"
+                + "@Override\n"
+                + "protected boolean removeEldestEntry(java.util.Map.Entry<String, Entry> eldest)"
+                + " {\n"
+                + "return size() > MAX_ENTRIES;\n"
+                + "}\n"
+                + "};\n"
+                + "\n");
+        out.print("@SuppressWarnings(\"unchecked\")\n"
+                + "<T> T read(java.nio.file.Path path, String root, boolean hashContent, Reader<T>"
+                + " reader)\n"
+                + "throws org.xmlpull.v1.XmlPullParserException, java.io.IOException,\n"
+                + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                + "java.nio.file.Path realPath = path.toRealPath();\n"
+                + "String key = realPath + \"\\0\" + root;\n"
+                + "java.nio.file.attribute.BasicFileAttributes attributes ="
+                + " java.nio.file.Files.readAttributes(\n"
+                + "realPath, java.nio.file.attribute.BasicFileAttributes.class);\n"
+                + "byte[] data = hashContent ? java.nio.file.Files.readAllBytes(realPath) : null;\n"
+                + "byte[] hash = hashContent ? digest(data) : null;\n"
+                + "Entry entry;\n"
+                + "boolean reading = false;\n"
+                + "synchronized (entries) {\n"
+                + "entry = entries.get(key);\n"
+                + "if (entry != null && entry.matches(attributes.size(),"
+                + " attributes.lastModifiedTime(),\n"
+                + "hash)) {\n"
+                + "Object value = entry.value != null ? entry.value.get() : null;\n"
+                + "if (value != null) {\n"
+                + "return (T) value;\n"
+                + "}\n"
+                + "if (entry.task == null) {\n"
+                + "entry = null;\n"
+                + "}\n"
+                + "} else {\n"
+                + "entry = null;\n"
+                + "}\n"
+                + "if (entry == null) {\n"
+                + "entry = new Entry(attributes.size(), attributes.lastModifiedTime(), hash);\n"
+                + "entry.task = new java.util.concurrent.FutureTask<>(() -> reader.read(\n"
+                + "new java.io.ByteArrayInputStream(data != null ? data\n"
+                + ": java.nio.file.Files.readAllBytes(realPath))));\n"
+                + "entries.put(key, entry);\n"
+                + "reading = true;\n"
+                + "}\n"
+                + "}\n"
+                + "java.util.concurrent.FutureTask<Object> task = entry.task;\n"
+                + "if (reading) {\n"
+                + "task.run();\n"
+                + "}\n"
+                + "try {\n"
+                + "Object value = task.get();\n"
+                + "if (reading) {\n"
+                + "synchronized (entries) {\n"
+                + "entry.value = new java.lang.ref.SoftReference<>(value);\n"
+                + "entry.task = null;\n"
+                + "}\n"
+                + "}\n"
+                + "return (T) value;\n"
+                + "} catch (java.util.concurrent.ExecutionException e) {\n"
+                + "if (reading) {\n"
+                + "synchronized (entries) {\n"
+                + "entries.remove(key, entry);\n"
+                + "}\n"
+                + "}\n"
+                + "Throwable cause = e.getCause();\n"
+                + "if (cause instanceof org.xmlpull.v1.XmlPullParserException) {\n"
+                + "throw (org.xmlpull.v1.XmlPullParserException) cause;\n"
+                + "} else if (cause instanceof java.io.IOException) {\n"
+                + "throw (java.io.IOException) cause;\n"
+                + "} else if (cause instanceof javax.xml.datatype.DatatypeConfigurationException)"
+                + " {\n"
+                + "throw (javax.xml.datatype.DatatypeConfigurationException) cause;\n"
+                + "} else if (cause instanceof RuntimeException) {\n"
+                + "throw (RuntimeException) cause;\n"
+                + "} else if (cause instanceof Error) {\n"
+                + "throw (Error) cause;\n"
+                + "}\n"
+                + "throw new IllegalStateException(cause);\n"
+                + "} catch (InterruptedException e) {\n"
+                + "Thread.currentThread().interrupt();\n"
+                + "throw new java.io.InterruptedIOException();\n"
+                + "}\n"
+                + "}\n"
+                + "\n");
+        out.print("private static byte[] digest(byte[] data) {\n"
+                + "try {\n"
+                + "return java.security.MessageDigest.getInstance(\"SHA-256\").digest(data);\n"
+                + "} catch (java.security.NoSuchAlgorithmException e) {\n"
+                + "throw new IllegalStateException(e);\n"
+                + "}\n"
+                + "}\n"
+                + "}\n");
+    }
+
+    private void printParseListener(CodeWriter out) {
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.print("// Receives the elements read by the generated parsers. start is called when a "
+                + "parser begins to\n"
+                + "// read an element of a generated class, and end once the element has been "
+                + "read, including its\n"
+                + "// children. Elements which fail to read are not ended. Implementations have "
+                + "to be thread safe if\n"
+                + "// documents are read on several threads.\n");
+        out.println("public interface ParseListener {");
+        out.print("// Ignores all elements. Its calls are inlined to nothing by the JIT.\n"
+                + "ParseListener NONE = new ParseListener() {\n"
+                + "@Override\n"
+                + "public long start(String type) {\n"
+                + "return 0;\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public void end(String type, long start, long bytes) {\n"
+                + "}\n"
+                + "};\n"
+                + "\n"
+                + "// Returns a value which is passed to end, usually System.nanoTime().\n"
+                + "long start(String type);\n"
+                + "\n"
+                + "// start is the value returned by start. bytes is the size of the element in"
+                + " the document, or\n"
+                + "// -1 if the parser doesn't know it.\n"
+                + "void end(String type, long start, long bytes);\n"
+                + "\n"
+                + "// Counts the elements read of each type, how long they took and how many bytes"
+                + " they were.\n"
+                + "final class Histogram implements ParseListener {\n"
+                + "// Elements read of one type. Durations are counted in buckets of powers of two"
+                + " nanoseconds.\n"
+                + "public static final class Stats {\n"
+                + "private final java.util.concurrent.atomic.LongAdder count =\n"
+                + "new java.util.concurrent.atomic.LongAdder();\n"
+                + "private final java.util.concurrent.atomic.LongAdder nanos =\n"
+                + "new java.util.concurrent.atomic.LongAdder();\n"
+                + "private final java.util.concurrent.atomic.LongAdder bytes =\n"
+                + "new java.util.concurrent.atomic.LongAdder();\n"
+                + "private final java.util.concurrent.atomic.AtomicLongArray buckets =\n"
+                + "new java.util.concurrent.atomic.AtomicLongArray(64);\n"
+                + "\n"
+                + "public long getCount() {\n"
+                + "return count.sum();\n"
+                + "}\n"
+                + "\n");
+        out.print("public long getNanos() {\n"
+                + "return nanos.sum();\n"
+                + "}\n"
+                + "\n"
+                + "// Returns the bytes of the elements whose size is known.\n"
+                + "public long getBytes() {\n"
+                + "return bytes.sum();\n"
+                + "}\n"
+                + "\n"
+                + "// Returns how many elements took at least 2^index and less than 2^(index + 1)\n"
+                + "// nanoseconds. Elements which took no time are counted in the first bucket.\n"
+                + "public long getBucket(int index) {\n"
+                + "return buckets.get(index);\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public String toString() {\n"
+                + "return \"count=\" + getCount() + \" nanos=\" + getNanos() + \" bytes=\" +"
+                + " getBytes();\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "private final java.util.concurrent.ConcurrentMap<String, Stats> stats =\n"
+                + "new java.util.concurrent.ConcurrentHashMap<>();\n"
+                + "\n"
+                + "@Override\n"
+                + "public long start(String type) {\n"
+                + "return System.nanoTime();\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public void end(String type, long start, long bytes) {\n"
+                + "long nanos = System.nanoTime() - start;\n"
+                + "Stats typeStats = stats.computeIfAbsent(type, key -> new Stats());\n"
+                + "typeStats.count.increment();\n"
+                + "typeStats.nanos.add(nanos);\n"
+                + "if (bytes > 0) {\n"
+                + "typeStats.bytes.add(bytes);\n"
+                + "}\n"
+                + "typeStats.buckets.incrementAndGet(nanos > 0 ? 63 -"
+                + " Long.numberOfLeadingZeros(nanos) : 0);\n"
+                + "}\n"
+                + "\n");
+        out.print("// Returns the stats of each type read so far, by the name of its generated"
+                + " class.\n"
+                + "public java.util.Map<String, Stats> getStats() {\n"
+                + "return java.util.Collections.unmodifiableMap(new java.util.TreeMap<>(stats));\n"
+                + "}\n"
+                + "\n"
+                + "public void reset() {\n"
+                + "stats.clear();\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public String toString() {\n"
+                + "StringBuilder builder = new StringBuilder();\n"
+                + "for (java.util.Map.Entry<String, Stats> entry : getStats().entrySet()) {\n"
+                + "builder.append(entry.getKey()).append('"
+                + " ').append(entry.getValue()).append('\\n');\n"
+                + "}\n"
+                + "return builder.toString();\n"
+                + "}\n"
+                + "}\n");
+        out.println("}");
+    }
+
+    private static String getBenchmarkName(XsdElement element)
+            throws JavaCodeGeneratorException {
+        return Utils.toClassName(element.getName()) + "Benchmark";
+    }
+
+    private void printBenchmark(CodeWriter out, String name, XsdElement element,
+            SampleDocument sampleDocument) throws JavaCodeGeneratorException {
+        JavaType javaType = parseType(element.getType(), element.getName());
+        String readSuffix = xmlSchema.getElementMap().size() > 1
+                ? Utils.capitalize(javaType.getName()) : "";
+        String sample;
+        try {
+            sample = sampleDocument.of(element);
+        } catch (XsdParserException e) {
+            throw new JavaCodeGeneratorException(e.getMessage());
         }
-        return element.getName();
+
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.printf("// JMH benchmark of reading %s documents with XmlParser.\n"
+                + "// The corpus parameter is a document or a directory of documents, which are "
+                + "read in turn. If it\n"
+                + "// is empty, a document synthesized from the schema is read.\n",
+                element.getName());
+        out.print("@org.openjdk.jmh.annotations.State(org.openjdk.jmh.annotations.Scope.Thread)\n");
+        out.printf("public class %s {\n", name);
+        // string constants are limited to 64K bytes
+        out.print("private static final String[] SAMPLE = {\n");
+        for (int i = 0; i < sample.length(); i += 4096) {
+            out.printf("%s,\n", CodeWriter.toStringLiteral(
+                    sample.substring(i, Math.min(sample.length(), i + 4096))));
+        }
+        out.print("};\n"
+                + "\n"
+                + "@org.openjdk.jmh.annotations.Param({\"\"})\n"
+                + "public String corpus;\n"
+                + "\n"
+                + "private byte[][] documents;\n"
+                + "private int next;\n"
+                + "\n"
+                + "@org.openjdk.jmh.annotations.Setup\n"
+                + "public void setup() throws java.io.IOException {\n"
+                + "if (corpus.isEmpty()) {\n"
+                + "documents = new byte[][] {\n"
+                + "String.join(\"\", SAMPLE).getBytes(java.nio.charset.StandardCharsets.UTF_8)"
+                + "};\n"
+                + "return;\n"
+                + "}\n"
+                + "java.nio.file.Path path = java.nio.file.Paths.get(corpus);\n"
+                + "java.util.List<java.nio.file.Path> files = new java.util.ArrayList<>();\n"
+                + "if (java.nio.file.Files.isDirectory(path)) {\n"
+                + "try (java.util.stream.Stream<java.nio.file.Path> list = "
+                + "java.nio.file.Files.list(path)) {\n"
+                + "list.filter(java.nio.file.Files::isRegularFile).sorted().forEach(files::add);\n"
+                + "}\n"
+                + "} else {\n"
+                + "files.add(path);\n"
+                + "}\n"
+                + "if (files.isEmpty()) {\n"
+                + "throw new java.io.IOException(\"no documents in \" + corpus);\n"
+                + "}\n"
+                + "documents = new byte[files.size()][];\n"
+                + "for (int i = 0; i < documents.length; ++i) {\n"
+                + "documents[i] = java.nio.file.Files.readAllBytes(files.get(i));\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "private byte[] nextDocument() {\n"
+                + "byte[] document = documents[next];\n"
+                + "next = (next + 1) % documents.length;\n"
+                + "return document;\n"
+                + "}\n"
+                + "\n");
+        String read = String.format("XmlParser.read%s(new java.io.ByteArrayInputStream("
+                + "nextDocument()))", readSuffix);
+        out.printf("// Documents read per second.\n"
+                + "@org.openjdk.jmh.annotations.Benchmark\n"
+                + "@org.openjdk.jmh.annotations.BenchmarkMode("
+                + "org.openjdk.jmh.annotations.Mode.Throughput)\n"
+                + "public Object read() throws Exception {\n"
+                + "return %s;\n"
+                + "}\n"
+                + "\n"
+                + "// Time to the first document read by a new JVM, including loading and "
+                + "initializing the parser.\n"
+                + "@org.openjdk.jmh.annotations.Benchmark\n"
+                + "@org.openjdk.jmh.annotations.BenchmarkMode("
+                + "org.openjdk.jmh.annotations.Mode.SingleShotTime)\n"
+                + "@org.openjdk.jmh.annotations.Warmup(iterations = 0)\n"
+                + "@org.openjdk.jmh.annotations.Measurement(iterations = 1)\n"
+                + "@org.openjdk.jmh.annotations.Fork(10)\n"
+                + "public Object readFirst() throws Exception {\n"
+                + "return %s;\n"
+                + "}\n"
+                + "\n", read, read);
+        if (tokenizer) {
+            out.printf("// Documents read per second with XmlTokenizer.\n"
+                    + "@org.openjdk.jmh.annotations.Benchmark\n"
+                    + "@org.openjdk.jmh.annotations.BenchmarkMode("
+                    + "org.openjdk.jmh.annotations.Mode.Throughput)\n"
+                    + "public Object readBytes() throws Exception {\n"
+                    + "return XmlParser.read%s(java.nio.ByteBuffer.wrap(nextDocument()));\n"
+                    + "}\n"
+                    + "\n", readSuffix);
+        }
+        out.printf("// Runs the benchmarks with the GC profiler, which also reports the bytes "
+                + "allocated per document\n"
+                + "// read as gc.alloc.rate.norm. The first argument is the corpus.\n"
+                + "public static void main(String[] args) "
+                + "throws org.openjdk.jmh.runner.RunnerException {\n"
+                + "org.openjdk.jmh.runner.options.ChainedOptionsBuilder options =\n"
+                + "new org.openjdk.jmh.runner.options.OptionsBuilder()\n"
+                + ".include(java.util.regex.Pattern.quote(%s.class.getName() + \".\"))\n"
+                + ".addProfiler(org.openjdk.jmh.profile.GCProfiler.class);\n"
+                + "if (args.length > 0) {\n"
+                + "options.param(\"corpus\", args[0]);\n"
+                + "}\n"
+                + "new org.openjdk.jmh.runner.Runner(options.build()).run();\n"
+                + "}\n"
+                + "}\n", name);
     }
 
-    private void stackComponents(XsdComplexType complexType, List<XsdElement> elements,
-            List<XsdAttribute> attributes) throws JavaCodeGeneratorException {
-        if (complexType.getBase() != null) {
-            QName baseRef = complexType.getBase().getRef();
-            if (baseRef != null && !baseRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-                XsdType parent = getType(baseRef.getLocalPart());
-                if (parent instanceof XsdComplexType) {
-                    stackComponents((XsdComplexType) parent, elements, attributes);
-                }
+    private void printConfigHolder(CodeWriter out) {
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.print("// Holds the latest document read from a file, which is read again on a "
+                + "background thread when\n"
+                + "// the file changes. Documents are replaced as a whole, so readers see either "
+                + "the previous or the\n"
+                + "// next document without locking. Published documents must not be modified.\n");
+        out.println("public final class ConfigHolder<T> implements java.io.Closeable {");
+        out.print("interface Reader<T> {\n"
+                + "T read(java.io.InputStream in) throws org.xmlpull.v1.XmlPullParserException,\n"
+                + "java.io.IOException, javax.xml.datatype.DatatypeConfigurationException;\n"
+                + "}\n"
+                + "\n"
+                + "// Changes are read once the file has not changed for this long.\n"
+                + "static final long DEBOUNCE_MILLIS = 100;\n"
+                + "\n"
+                + "private final java.nio.file.Path path;\n"
+                + "private final Reader<T> reader;\n"
+                + "private final java.util.function.Consumer<T> listener;\n"
+                + "private final java.nio.file.WatchService watchService;\n"
+                + "private final Thread thread;\n"
+                + "private byte[] hash;\n"
+                + "private volatile T value;\n"
+                + "private volatile Exception error;\n"
+                + "\n"
+                + "private ConfigHolder(java.nio.file.Path path, Reader<T> reader,\n"
+                + "java.util.function.Consumer<T> listener) throws java.io.IOException {\n"
+                + "this.path = path.toAbsolutePath();\n"
+                + "this.reader = reader;\n"
+                + "this.listener = listener;\n"
+                + "watchService = this.path.getFileSystem().newWatchService();\n"
+                + "thread = new Thread(this::run, \"ConfigHolder \" + this.path);\n"
+                + "thread.setDaemon(true);\n"
+                + "}\n"
+                + "\n"
+                + "static <T> ConfigHolder<T> watch(java.nio.file.Path path, Reader<T> reader,\n"
+                + "java.util.function.Consumer<T> listener)\n"
+                + "throws org.xmlpull.v1.XmlPullParserException, java.io.IOException,\n"
+                + "javax.xml.datatype.DatatypeConfigurationException {\n"
+                + "ConfigHolder<T> holder = new ConfigHolder<>(path, reader, listener);\n"
+                + "try {\n"
+                + "// Watch before reading, so a change right after the first read is not missed.\n"
+                + "holder.path.getParent().register(holder.watchService,\n"
+                + "java.nio.file.StandardWatchEventKinds.ENTRY_CREATE,\n"
+                + "java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);\n"
+                + "byte[] data = java.nio.file.Files.readAllBytes(holder.path);\n"
+                + "T value = reader.read(new java.io.ByteArrayInputStream(data));\n"
+                + "if (value == null) {\n"
+                + "throw new org.xmlpull.v1.XmlPullParserException(\"unexpected root element\");\n"
+                + "}\n"
+                + "holder.hash = digest(data);\n"
+                + "holder.value = value;\n"
+                + "} catch (Exception e) {\n"
+                + "holder.watchService.close();\n"
+                + "throw e;\n"
+                + "}\n"
+                + "if (listener != null) {\n"
+                + "listener.accept(holder.value);\n"
+                + "}\n"
+                + "holder.thread.start();\n"
+                + "return holder;\n"
+                + "}\n"
+                + "\n");
+        out.print("// Returns the latest document which was read successfully.\n"
+                + "public T get() {\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n"
+                + "// Returns why the latest change of the file could not be read, or null if it"
+                + " was read.\n"
+                + "public Exception getError() {\n"
+                + "return error;\n"
+                + "}\n"
+                + "\n"
+                + "@Override\n"
+                + "public void close() throws java.io.IOException {\n"
+                + "watchService.close();\n"
+                + "}\n"
+                + "\n"
+                + "private void run() {\n"
+                + "try {\n"
+                + "while (true) {\n"
+                + "boolean changed = poll(watchService.take());\n"
+                + "java.nio.file.WatchKey key;\n"
+                + "while ((key = watchService.poll(DEBOUNCE_MILLIS,\n"
+                + "java.util.concurrent.TimeUnit.MILLISECONDS)) != null) {\n"
+                + "changed |= poll(key);\n"
+                + "}\n"
+                + "if (changed) {\n"
+                + "reload();\n"
+                + "}\n"
+                + "}\n"
+                + "} catch (InterruptedException | java.nio.file.ClosedWatchServiceException e) {\n"
+                + "// closed\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "private boolean poll(java.nio.file.WatchKey key) {\n"
+                + "boolean changed = false;\n"
+                + "for (java.nio.file.WatchEvent<?> event : key.pollEvents()) {\n"
+                + "if (event.kind() == java.nio.file.StandardWatchEventKinds.OVERFLOW\n"
+                + "|| path.getFileName().equals(event.context())) {\n"
+                + "changed = true;\n"
+                + "}\n"
+                + "}\n"
+                + "key.reset();\n"
+                + "return changed;\n"
+                + "}\n"
+                + "\n");
+        out.print("private void reload() {\n"
+                + "T newValue;\n"
+                + "try {\n"
+                + "byte[] data = java.nio.file.Files.readAllBytes(path);\n"
+                + "byte[] newHash = digest(data);\n"
+                + "if (java.util.Arrays.equals(hash, newHash)) {\n"
+                + "return;\n"
+                + "}\n"
+                + "newValue = reader.read(new java.io.ByteArrayInputStream(data));\n"
+                + "if (newValue == null) {\n"
+                + "throw new org.xmlpull.v1.XmlPullParserException(\"unexpected root element\");\n"
+                + "}\n"
+                + "hash = newHash;\n"
+                + "} catch (Exception e) {\n"
+                + "error = e;\n"
+                + "return;\n"
+                + "}\n"
+                + "error = null;\n"
+                + "value = newValue;\n"
+                + "if (listener != null) {\n"
+                + "try {\n"
+                + "listener.accept(newValue);\n"
+                + "} catch (RuntimeException e) {\n"
+                + "error = e;\n"
+                + "}\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "private static byte[] digest(byte[] data) {\n"
+                + "try {\n"
+                + "return java.security.MessageDigest.getInstance(\"SHA-256\").digest(data);\n"
+                + "} catch (java.security.NoSuchAlgorithmException e) {\n"
+                + "throw new IllegalStateException(e);\n"
+                + "}\n"
+                + "}\n");
+        out.println("}");
+    }
+
+    private void printSnapshotReaderAndWriter(CodeWriter out, JavaType javaType, String suffix) {
+        out.printf("public static void writeSnapshot%s(%s value, java.io.OutputStream stream)"
+                + " throws java.io.IOException {\n"
+                + "XmlSnapshot.Writer out = new XmlSnapshot.Writer();\n"
+                + "%s;\n"
+                + "out.finish(stream);\n"
+                + "}\n", suffix, javaType.getName(),
+                getSnapshotWriteExpression(javaType, "value", 0));
+        out.println();
+        out.print("// Returns null if the snapshot was written for another schema or is corrupted,"
+                + " in which case\n"
+                + "// the xml file should be read instead.\n");
+        out.printf("public static %s readSnapshot%s(java.nio.ByteBuffer buffer)"
+                + " throws javax.xml.datatype.DatatypeConfigurationException {\n"
+                + "XmlSnapshot.Reader in = new XmlSnapshot.Reader(buffer);\n"
+                + "try {\n"
+                + "if (!in.readHeader()) {\n"
+                + "return null;\n"
+                + "}\n"
+                + "return %s;\n"
+                + "} catch (java.nio.BufferUnderflowException | IndexOutOfBoundsException e) {\n"
+                + "return null;\n"
+                + "}\n"
+                + "}\n", javaType.getNullableName(), suffix,
+                getSnapshotReadExpression(javaType));
+        out.println();
+    }
+
+    private void printXmlSnapshot(CodeWriter out) throws JavaCodeGeneratorException {
+        out.printf("package %s;\n", packageName);
+        out.println();
+        out.print("// A snapshot starts with a header made of the magic \"XSDS\", the format"
+                + " version, the hash of\n"
+                + "// the generated classes and a table of all strings. Then the members of"
+                + " each object follow in\n"
+                + "// the order of declaration. Integers are varints, members which aren't"
+                + " lists are preceded by\n"
+                + "// their presence and lists by their size. Objects without members take a zero"
+                + " byte, so that each\n"
+                + "// item of a list takes at least one byte.\n");
+        out.println("final class XmlSnapshot {");
+        out.printf("static final int VERSION = 3;\n"
+                + "static final long SCHEMA_HASH = 0x%016xL;\n"
+                + "private static final byte[] MAGIC = { 'X', 'S', 'D', 'S' };\n\n",
+                computeSchemaHash());
+        out.print("interface ItemWriter<T> {\n"
+                + "void write(T item);\n"
+                + "}\n\n"
+                + "interface ItemReader<T> {\n"
+                + "T read() throws javax.xml.datatype.DatatypeConfigurationException;\n"
+                + "}\n\n");
+
+        out.print("static final class Writer {\n"
+                + "private final java.io.ByteArrayOutputStream body = "
+                + "new java.io.ByteArrayOutputStream();\n"
+                + "private final java.util.Map<String, Integer> stringIndexes = "
+                + "new java.util.HashMap<>();\n"
+                + "private final java.util.List<String> strings = new java.util.ArrayList<>();\n"
+                + "\n"
+                + "void writeVarint(long value) {\n"
+                + "while ((value & ~0x7FL) != 0) {\n"
+                + "body.write((int) ((value & 0x7F) | 0x80));\n"
+                + "value >>>= 7;\n"
+                + "}\n"
+                + "body.write((int) value);\n"
+                + "}\n"
+                + "\n"
+                + "void writeSignedVarint(long value) {\n"
+                + "writeVarint((value << 1) ^ (value >> 63));\n"
+                + "}\n"
+                + "\n"
+                + "void writeBoolean(boolean value) {\n"
+                + "body.write(value ? 1 : 0);\n"
+                + "}\n"
+                + "\n"
+                + "boolean writePresence(Object value) {\n"
+                + "writeBoolean(value != null);\n"
+                + "return value != null;\n"
+                + "}\n"
+                + "\n"
+                + "boolean writePresence(boolean present) {\n"
+                + "writeBoolean(present);\n"
+                + "return present;\n"
+                + "}\n"
+                + "\n"
+                + "void writeFloat(float value) {\n"
+                + "writeFixed(Float.floatToRawIntBits(value), 4);\n"
+                + "}\n"
+                + "\n"
+                + "void writeDouble(double value) {\n"
+                + "writeFixed(Double.doubleToRawLongBits(value), 8);\n"
+                + "}\n"
+                + "\n"
+                + "void writeBytes(byte[] value) {\n"
+                + "writeVarint(value.length);\n"
+                + "body.write(value, 0, value.length);\n"
+                + "}\n"
+                + "\n"
+                + "void writeString(String value) {\n"
+                + "Integer index = stringIndexes.get(value);\n"
+                + "if (index == null) {\n"
+                + "index = strings.size();\n"
+                + "stringIndexes.put(value, index);\n"
+                + "strings.add(value);\n"
+                + "}\n"
+                + "writeVarint(index);\n"
+                + "}\n"
+                + "\n"
+                + "<T> void writeList(java.util.List<T> value, ItemWriter<T> item) {\n"
+                + "writeVarint(value.size());\n"
+                + "for (T t : value) {\n"
+                + "item.write(t);\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "void finish(java.io.OutputStream out) throws java.io.IOException {\n"
+                + "Writer header = new Writer();\n"
+                + "header.body.write(MAGIC, 0, MAGIC.length);\n"
+                + "header.writeVarint(VERSION);\n"
+                + "header.writeFixed(SCHEMA_HASH, 8);\n"
+                + "header.writeVarint(strings.size());\n"
+                + "for (String string : strings) {\n"
+                + "header.writeBytes(string.getBytes("
+                + "java.nio.charset.StandardCharsets.UTF_8));\n"
+                + "}\n"
+                + "header.body.writeTo(out);\n"
+                + "body.writeTo(out);\n"
+                + "}\n"
+                + "\n"
+                + "private void writeFixed(long value, int size) {\n"
+                + "for (int i = 0; i < size; ++i) {\n"
+                + "body.write((int) (value >>> (8 * i)));\n"
+                + "}\n"
+                + "}\n"
+                + "}\n\n");
+
+        out.print("static final class Reader {\n"
+                + "private final java.nio.ByteBuffer buffer;\n"
+                + "private String[] strings;\n"
+                + "\n"
+                + "Reader(java.nio.ByteBuffer buffer) {\n"
+                + "this.buffer = buffer.duplicate();\n"
+                + "}\n"
+                + "\n"
+                + "// Returns false if the snapshot was written by another version or for another"
+                + " schema.\n"
+                + "boolean readHeader() {\n"
+                + "for (byte b : MAGIC) {\n"
+                + "if (buffer.get() != b) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "}\n"
+                + "if (readVarint() != VERSION || readFixed(8) != SCHEMA_HASH) {\n"
+                + "return false;\n"
+                + "}\n"
+                + "strings = new String[checkSize(readVarint())];\n"
+                + "for (int i = 0; i < strings.length; ++i) {\n"
+                + "strings[i] = new String(readBytes(), java.nio.charset.StandardCharsets.UTF_8);\n"
+                + "}\n"
+                + "return true;\n"
+                + "}\n"
+                + "\n"
+                + "long readVarint() {\n"
+                + "long value = 0;\n"
+                + "for (int shift = 0;; shift += 7) {\n"
+                + "byte b = buffer.get();\n"
+                + "value |= (long) (b & 0x7F) << shift;\n"
+                + "if ((b & 0x80) == 0) {\n"
+                + "return value;\n"
+                + "}\n"
+                + "}\n"
+                + "}\n"
+                + "\n"
+                + "long readSignedVarint() {\n"
+                + "long value = readVarint();\n"
+                + "return (value >>> 1) ^ -(value & 1);\n"
+                + "}\n"
+                + "\n"
+                + "boolean readBoolean() {\n"
+                + "return buffer.get() != 0;\n"
+                + "}\n"
+                + "\n"
+                + "float readFloat() {\n"
+                + "return Float.intBitsToFloat((int) readFixed(4));\n"
+                + "}\n"
+                + "\n"
+                + "double readDouble() {\n"
+                + "return Double.longBitsToDouble(readFixed(8));\n"
+                + "}\n"
+                + "\n"
+                + "byte[] readBytes() {\n"
+                + "byte[] value = new byte[checkSize(readVarint())];\n"
+                + "buffer.get(value);\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n"
+                + "String readString() {\n"
+                + "return strings[(int) readVarint()];\n"
+                + "}\n"
+                + "\n"
+                + "<T> java.util.List<T> readList(ItemReader<T> item)"
+                + " throws javax.xml.datatype.DatatypeConfigurationException {\n"
+                + "// each item takes at least one byte\n"
+                + "int size = checkSize(readVarint());\n"
+                + "java.util.List<T> value = new java.util.ArrayList<>(size);\n"
+                + "for (int i = 0; i < size; ++i) {\n"
+                + "value.add(item.read());\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n"
+                + "private long readFixed(int size) {\n"
+                + "long value = 0;\n"
+                + "for (int i = 0; i < size; ++i) {\n"
+                + "value |= (long) (buffer.get() & 0xFF) << (8 * i);\n"
+                + "}\n"
+                + "return value;\n"
+                + "}\n"
+                + "\n"
+                + "private int checkSize(long size) {\n"
+                + "if (size < 0 || size > buffer.remaining()) {\n"
+                + "throw new java.nio.BufferUnderflowException();\n"
+                + "}\n"
+                + "return (int) size;\n"
+                + "}\n"
+                + "}\n");
+        out.println("}");
+    }
+
+    // Hashes the members and types of every generated class, which the layout of a snapshot
+    // depends on.
+    private long computeSchemaHash() throws JavaCodeGeneratorException {
+        ResolvedSchema.TypeNames<JavaCodeGeneratorException> names =
+                new ResolvedSchema.TypeNames<JavaCodeGeneratorException>() {
+            @Override
+            public String getClassName(String name) throws JavaCodeGeneratorException {
+                return Utils.toClassName(name);
             }
-        }
-        elements.addAll(complexType.getElements());
-        attributes.addAll(complexType.getAttributes());
+
+            @Override
+            public String getTypeName(XsdType type, String name)
+                    throws JavaCodeGeneratorException {
+                return parseType(type, name).getName();
+            }
+
+            @Override
+            public String getAttributeTypeName(XsdType type) throws JavaCodeGeneratorException {
+                return simpleTypes.map(type).getName();
+            }
+
+            @Override
+            public String getValueTypeName(XsdSimpleContent simpleContent)
+                    throws JavaCodeGeneratorException {
+                return getValueType(simpleContent, true).getName();
+            }
+        };
+        return resolvedSchema.computeSchemaHash(names);
     }
 
     private String getBaseName(XsdComplexType complexType) throws JavaCodeGeneratorException {
@@ -434,7 +3150,7 @@ public class JavaCodeGenerator {
         if (complexType.getBase().getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
             return null;
         }
-        XsdType base = getType(complexType.getBase().getRef().getLocalPart());
+        XsdType base = resolvedSchema.getType(complexType.getBase().getRef().getLocalPart());
         if (base instanceof XsdComplexType) {
             return Utils.toClassName(base.getName());
         }
@@ -447,11 +3163,11 @@ public class JavaCodeGenerator {
         QName baseRef = simpleContent.getBase().getRef();
         assert baseRef != null;
         if (baseRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-            return predefinedType(baseRef.getLocalPart());
+            return simpleTypes.map(simpleContent.getBase());
         } else {
-            XsdType parent = getType(baseRef.getLocalPart());
+            XsdType parent = resolvedSchema.getType(baseRef.getLocalPart());
             if (parent instanceof XsdSimpleType) {
-                return parseSimpleTypeReference(baseRef, false);
+                return simpleTypes.map(simpleContent.getBase());
             }
             if (!traverse) return null;
             if (parent instanceof XsdSimpleContent) {
@@ -467,11 +3183,11 @@ public class JavaCodeGenerator {
         if (type.getRef() != null) {
             String name = type.getRef().getLocalPart();
             if (type.getRef().getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-                return predefinedType(name);
+                return simpleTypes.map(type);
             } else {
-                XsdType typeValue = getType(name);
+                XsdType typeValue = resolvedSchema.getType(name);
                 if (typeValue instanceof XsdSimpleType) {
-                    return parseSimpleTypeReference(type.getRef(), false);
+                    return simpleTypes.map(type);
                 }
                 return parseType(typeValue, name);
             }
@@ -479,99 +3195,294 @@ public class JavaCodeGenerator {
         if (type instanceof XsdComplexType) {
             return new JavaComplexType(Utils.toClassName(defaultName));
         } else if (type instanceof XsdSimpleType) {
-            return parseSimpleTypeValue((XsdSimpleType) type, false);
+            return simpleTypes.map(type);
         } else {
             throw new JavaCodeGeneratorException(
                     String.format("unknown type name : %s", defaultName));
         }
     }
 
-    private JavaSimpleType parseSimpleType(XsdType type, boolean traverse)
-            throws JavaCodeGeneratorException {
-        if (type.getRef() != null) {
-            return parseSimpleTypeReference(type.getRef(), traverse);
-        } else {
-            return parseSimpleTypeValue((XsdSimpleType) type, traverse);
+    // Maps simple types to JavaSimpleTypes.
+    private class SimpleTypeMapping
+            extends ResolvedSchema.SimpleTypeMapping<JavaSimpleType, JavaCodeGeneratorException> {
+        SimpleTypeMapping() {
+            super(resolvedSchema);
         }
-    }
 
-    private JavaSimpleType parseSimpleTypeReference(QName typeRef, boolean traverse)
-            throws JavaCodeGeneratorException {
-        assert typeRef != null;
-        String typeName = typeRef.getLocalPart();
-        if (typeRef.getNamespaceURI().equals(XsdConstants.XSD_NAMESPACE)) {
-            return predefinedType(typeName);
-        }
-        if (javaSimpleTypeMap.containsKey(typeName)) {
-            return javaSimpleTypeMap.get(typeName);
-        } else if (traverse) {
-            XsdSimpleType simpleType = getSimpleType(typeName);
-            JavaSimpleType ret = parseSimpleTypeValue(simpleType, true);
-            javaSimpleTypeMap.put(typeName, ret);
-            return ret;
-        } else {
-            throw new JavaCodeGeneratorException(String.format("unknown type name : %s", typeName));
+        @Override
+        protected JavaSimpleType mapPredefined(String name) throws JavaCodeGeneratorException {
+            return predefinedType(name);
+        }
+
+        @Override
+        protected JavaSimpleType mapEnumeration(XsdRestriction restriction)
+                throws JavaCodeGeneratorException {
+            String name = Utils.toClassName(restriction.getName());
+            return new JavaSimpleType(name, name, name + ".valueOf(%s.replace(\".\", \"_\")."
+                    + "replaceAll(\"[^A-Za-z0-9_]\", \"\"))", "%s.getRawName()", false);
+        }
+
+        @Override
+        protected JavaSimpleType mapRestriction(XsdRestriction restriction,
+                JavaSimpleType baseType) throws JavaCodeGeneratorException {
+            // facets are considered only if validate is true.
+            if (validate && !restriction.getFacets().isEmpty()) {
+                return getValidatedType(restriction, baseType);
+            }
+            return baseType;
+        }
+
+        @Override
+        protected JavaSimpleType mapList(JavaSimpleType itemType)
+                throws JavaCodeGeneratorException {
+            return itemType.newListType();
+        }
+
+        @Override
+        protected JavaSimpleType mapUnion(boolean list) {
+            // unions are almost always interpreted as java.lang.String
+            return new JavaSimpleType("java.lang.String", "%s", list);
+        }
+
+        @Override
+        protected boolean isList(JavaSimpleType type) {
+            return type.isList();
+        }
+
+        @Override
+        protected JavaCodeGeneratorException newException(String message) {
+            return new JavaCodeGeneratorException(message);
         }
     }
 
-    private JavaSimpleType parseSimpleTypeValue(XsdSimpleType simpleType, boolean traverse)
+    // Returns baseType whose values are checked against the facets of restriction by a validator
+    // of XmlParser. Facets which don't apply to the built-in type being restricted are ignored,
+    // as are the facets of restrictions of lists, unions and enumerations.
+    private JavaSimpleType getValidatedType(XsdRestriction restriction, JavaSimpleType baseType)
             throws JavaCodeGeneratorException {
-        if (simpleType instanceof XsdList) {
-            XsdList list = (XsdList) simpleType;
-            return parseSimpleType(list.getItemType(), traverse).newListType();
-        } else if (simpleType instanceof XsdRestriction) {
-            // we don't consider any restrictions.
-            XsdRestriction restriction = (XsdRestriction) simpleType;
-            if (restriction.getEnums() != null) {
-                String name = Utils.toClassName(restriction.getName());
-                return new JavaSimpleType(name, name + ".valueOf(%s.replace(\".\", \"_\")."
-                        + "replaceAll(\"[^A-Za-z0-9_]\", \"\"))", false);
-            }
-            return parseSimpleType(restriction.getBase(), traverse);
-        } else if (simpleType instanceof XsdUnion) {
-            // unions are almost always interpreted as java.lang.String
-            // Exceptionally, if any of member types of union are 'list', then we interpret it as
-            // List<String>
-            XsdUnion union = (XsdUnion) simpleType;
-            for (XsdType memberType : union.getMemberTypes()) {
-                if (parseSimpleType(memberType, traverse).isList()) {
-                    return new JavaSimpleType("java.lang.String", "%s", true);
+        if (validatedTypes.containsKey(restriction)) {
+            return validatedTypes.get(restriction);
+        }
+        String predefined = resolvedSchema.getPredefinedBase(restriction);
+        if (predefined == null || baseType.isList()) {
+            validatedTypes.put(restriction, baseType);
+            return baseType;
+        }
+        // anonymous types are numbered
+        String name = restriction.getName() != null ? Utils.toClassName(restriction.getName())
+                : "Value";
+        String suffix = name;
+        for (int i = 0; suffix.equals("Value") || validatorNames.contains(suffix); ++i) {
+            suffix = name + i;
+        }
+        String label = restriction.getName() != null ? restriction.getName() : "value";
+        String prefix = suffix.toUpperCase();
+        String typeName = baseType.getTypeName();
+        String length = getLengthExpression(ResolvedSchema.getLengthUnit(predefined));
+        boolean numeric = ResolvedSchema.isNumericType(predefined);
+
+        StringBuilder constants = new StringBuilder();
+        StringBuilder checks = new StringBuilder();
+        List<String> patterns = new ArrayList<>();
+        try {
+            for (XsdFacet facet : restriction.getFacets()) {
+                String condition = null;
+                switch (facet.getKind()) {
+                    case LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s != %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case MIN_LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s < %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case MAX_LENGTH:
+                        if (length != null) {
+                            condition = String.format("%s > %d", length,
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    case PATTERN:
+                        patterns.add(facet.getValue());
+                        break;
+                    case MIN_INCLUSIVE:
+                        if (numeric) {
+                            condition = getBoundCondition(facet, typeName, "<", prefix, constants);
+                        }
+                        break;
+                    case MAX_INCLUSIVE:
+                        if (numeric) {
+                            condition = getBoundCondition(facet, typeName, ">", prefix, constants);
+                        }
+                        break;
+                    case MIN_EXCLUSIVE:
+                        if (numeric) {
+                            condition = getBoundCondition(facet, typeName, "<=", prefix, constants);
+                        }
+                        break;
+                    case MAX_EXCLUSIVE:
+                        if (numeric) {
+                            condition = getBoundCondition(facet, typeName, ">=", prefix, constants);
+                        }
+                        break;
+                    case TOTAL_DIGITS:
+                        if (numeric && !typeName.equals("double") && !typeName.equals("float")) {
+                            String decimal = typeName.equals("java.math.BigDecimal") ? "value"
+                                    : typeName.equals("java.math.BigInteger")
+                                    ? "new java.math.BigDecimal(value)"
+                                    : "java.math.BigDecimal.valueOf(value)";
+                            condition = String.format("countTotalDigits(%s) > %d", decimal,
+                                    ResolvedSchema.parseFacetLength(facet));
+                            countsTotalDigits = true;
+                        }
+                        break;
+                    case FRACTION_DIGITS:
+                        if (typeName.equals("java.math.BigDecimal")) {
+                            condition = String.format(
+                                    "Math.max(value.stripTrailingZeros().scale(), 0) > %d",
+                                    ResolvedSchema.parseFacetLength(facet));
+                        }
+                        break;
+                    default:
+                        // whiteSpace is applied by the parsing of the built-in type.
+                        break;
+                }
+                if (condition != null) {
+                    printFacetCheck(checks, condition, label, facet.getKind().getTagName() + " "
+                            + facet.getValue());
                 }
             }
-            return new JavaSimpleType("java.lang.String", "%s", false);
-        } else {
-            // unreachable
-            throw new IllegalStateException("unknown simple type");
+        } catch (XsdParserException e) {
+            throw new JavaCodeGeneratorException(e.getMessage());
+        }
+        if (!patterns.isEmpty()) {
+            // patterns of the same restriction are alternatives
+            StringBuilder regex = new StringBuilder();
+            for (String pattern : patterns) {
+                if (regex.length() > 0) regex.append("|");
+                regex.append("(?:").append(toJavaRegex(pattern)).append(")");
+            }
+            constants.append(String.format("private static final java.util.regex.Pattern "
+                    + "%s_PATTERN = java.util.regex.Pattern.compile(%s);\n", prefix,
+                    CodeWriter.toStringLiteral(regex.toString())));
+            printFacetCheck(checks, String.format("!%s_PATTERN.matcher(raw).matches()", prefix),
+                    label, "pattern " + String.join(" | ", patterns));
         }
+        if (checks.length() == 0) {
+            validatedTypes.put(restriction, baseType);
+            return baseType;
+        }
+
+        String validator = "validate" + suffix;
+        StringBuilder code = new StringBuilder(constants);
+        if (constants.length() > 0) {
+            code.append("\n");
+        }
+        code.append(String.format("// Checks a value of %s against its facets.\n"
+                + "static %s %s(%s value, String raw) "
+                + "throws org.xmlpull.v1.XmlPullParserException {\n",
+                restriction.getName() != null ? label : "an anonymous type", typeName, validator,
+                typeName));
+        code.append(checks);
+        code.append("return value;\n"
+                + "}\n");
+        validators.add(code.toString());
+        validatorNames.add(suffix);
+        JavaSimpleType ret = baseType.newValidatedType(validator);
+        validatedTypes.put(restriction, ret);
+        return ret;
     }
 
-    private XsdElement resolveElement(XsdElement element) throws JavaCodeGeneratorException {
-        if (element.getRef() == null) return element;
-        String name = element.getRef().getLocalPart();
-        XsdElement ret = xmlSchema.getElementMap().get(name);
-        if (ret != null) return ret;
-        throw new JavaCodeGeneratorException(String.format("no element named : %s", name));
+    private static void printFacetCheck(StringBuilder checks, String condition, String label,
+            String facet) {
+        checks.append(String.format("if (%s) {\n"
+                + "throw new org.xmlpull.v1.XmlPullParserException(\"invalid %s : \" + raw + %s);\n"
+                + "}\n", condition, label, CodeWriter.toStringLiteral(" (" + facet + ")")));
     }
 
-    private XsdAttribute resolveAttribute(XsdAttribute attribute)
-            throws JavaCodeGeneratorException {
-        if (attribute.getRef() == null) return attribute;
-        String name = attribute.getRef().getLocalPart();
-        XsdAttribute ret = xmlSchema.getAttributeMap().get(name);
-        if (ret != null) return ret;
-        throw new JavaCodeGeneratorException(String.format("no attribute named : %s", name));
+    // Returns an expression counting the length of value for the length facets measured in
+    // unit.
+    private static String getLengthExpression(ResolvedSchema.LengthUnit unit) {
+        if (unit == null) return null;
+        switch (unit) {
+            case CHARACTERS:
+                return "value.codePointCount(0, value.length())";
+            case HEX_OCTETS:
+                return "raw.trim().length() / 2";
+            default:
+                return "value.length";
+        }
     }
 
-    private XsdType getType(String name) throws JavaCodeGeneratorException {
-        XsdType type = xmlSchema.getTypeMap().get(name);
-        if (type != null) return type;
-        throw new JavaCodeGeneratorException(String.format("no type named : %s", name));
+    // Returns the condition under which value violates a range facet. Bounds of BigInteger and
+    // BigDecimal values are printed as constants.
+    private static String getBoundCondition(XsdFacet facet, String typeName, String operator,
+            String prefix, StringBuilder constants) throws JavaCodeGeneratorException {
+        String value = facet.getValue().trim();
+        try {
+            switch (typeName) {
+                case "java.math.BigInteger":
+                case "java.math.BigDecimal": {
+                    String bound = typeName.equals("java.math.BigInteger")
+                            ? new java.math.BigDecimal(value).toBigIntegerExact().toString()
+                            : new java.math.BigDecimal(value).toString();
+                    String constant = prefix + "_" + facet.getKind().name();
+                    constants.append(String.format("private static final %s %s = new %s(\"%s\");\n",
+                            typeName, constant, typeName, bound));
+                    return String.format("value.compareTo(%s) %s 0", constant, operator);
+                }
+                case "double":
+                case "float": {
+                    String bound;
+                    if (value.equals("INF")) {
+                        bound = "Double.POSITIVE_INFINITY";
+                    } else if (value.equals("-INF")) {
+                        bound = "Double.NEGATIVE_INFINITY";
+                    } else if (value.equals("NaN")) {
+                        bound = "Double.NaN";
+                    } else if (typeName.equals("float")) {
+                        // compared as floats, so that the bound is rounded like the value
+                        bound = Float.parseFloat(value) + "f";
+                    } else {
+                        bound = String.valueOf(Double.parseDouble(value));
+                    }
+                    return String.format("value %s %s", operator, bound);
+                }
+                default: {
+                    java.math.BigInteger bound =
+                            new java.math.BigDecimal(value).toBigIntegerExact();
+                    if (bound.bitLength() > 63) {
+                        throw new JavaCodeGeneratorException(String.format(
+                                "%s out of range : %s", facet.getKind().getTagName(), value));
+                    }
+                    return String.format("value %s %sL", operator, bound);
+                }
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new JavaCodeGeneratorException(String.format("invalid %s : %s",
+                    facet.getKind().getTagName(), value));
+        }
     }
 
-    private XsdSimpleType getSimpleType(String name) throws JavaCodeGeneratorException {
-        XsdType type = getType(name);
-        if (type instanceof XsdSimpleType) return (XsdSimpleType) type;
-        throw new JavaCodeGeneratorException(String.format("not a simple type : %s", name));
+    // Returns pattern, an XML Schema regular expression, as a java.util.regex expression. They
+    // agree except for ^ and $, which are escaped, and for the multi-character escapes of XML
+    // names and character class subtraction, which are rejected.
+    private static String toJavaRegex(String pattern) throws JavaCodeGeneratorException {
+        if (pattern.matches("(?s).*(\\\\[iIcC]|-\\[).*")) {
+            throw new JavaCodeGeneratorException("unsupported pattern : " + pattern);
+        }
+        String regex = ResolvedSchema.escapeAnchors(pattern);
+        try {
+            java.util.regex.Pattern.compile(regex);
+        } catch (java.util.regex.PatternSyntaxException e) {
+            throw new JavaCodeGeneratorException(
+                    String.format("invalid pattern : %s (%s)", pattern, e.getDescription()));
+        }
+        return regex;
     }
 
     private static JavaSimpleType predefinedType(String name) throws JavaCodeGeneratorException {
@@ -611,8 +3522,8 @@ public class JavaCodeGenerator {
                 return new JavaSimpleType("javax.xml.datatype.Duration",
                         "javax.xml.datatype.DatatypeFactory.newInstance().newDuration(%s)", false);
             case "decimal":
-                return new JavaSimpleType("java.math.BigDecimal", "new java.math.BigDecimal(%s)",
-                        false);
+                return new JavaSimpleType("java.math.BigDecimal", "java.math.BigDecimal",
+                        "new java.math.BigDecimal(%s)", "%s.toPlainString()", false);
             case "integer":
             case "negativeInteger":
             case "nonNegativeInteger":
@@ -644,11 +3555,12 @@ public class JavaCodeGenerator {
                 return new JavaSimpleType("float", "java.lang.Float", "Float.parseFloat(%s)",
                         false);
             case "base64Binary":
-                return new JavaSimpleType("byte[]", "java.util.Base64.getDecoder().decode(%s)",
-                        false);
+                return new JavaSimpleType("byte[]", "byte[]",
+                        "java.util.Base64.getDecoder().decode(%s)",
+                        "java.util.Base64.getEncoder().encodeToString(%s)", false);
             case "hexBinary":
-                return new JavaSimpleType("java.math.BigInteger",
-                        "new java.math.BigInteger(%s, 16)", false);
+                return new JavaSimpleType("java.math.BigInteger", "java.math.BigInteger",
+                        "new java.math.BigInteger(%s, 16)", "%s.toString(16)", false);
         }
         throw new JavaCodeGeneratorException("unknown xsd predefined type : " + name);
     }
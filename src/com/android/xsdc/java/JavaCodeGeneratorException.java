@@ -16,7 +16,7 @@
 
 package com.android.xsdc.java;
 
-class JavaCodeGeneratorException extends Exception {
+public class JavaCodeGeneratorException extends Exception {
     JavaCodeGeneratorException(String message) {
         super(message);
     }
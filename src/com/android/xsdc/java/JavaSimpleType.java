@@ -20,19 +20,34 @@ class JavaSimpleType implements JavaType {
     final private String name;
     final private String nullableName;
     final private String rawParsingExpression;
+    final private String rawWritingExpression;
     final private boolean list;
+    // If true, rawParsingExpression checks the parsed value against the facets of its type.
+    final private boolean validated;
     final private String fullName;
     final private String nullableFullName;
 
-    JavaSimpleType(String name, String nullableName, String rawParsingExpression, boolean list) {
+    private JavaSimpleType(String name, String nullableName, String rawParsingExpression,
+            String rawWritingExpression, boolean list, boolean validated) {
         this.name = name;
         this.nullableName = nullableName;
         this.rawParsingExpression = rawParsingExpression;
+        this.rawWritingExpression = rawWritingExpression;
         this.list = list;
+        this.validated = validated;
         fullName = list ? String.format("java.util.List<%s>", nullableName) : name;
         nullableFullName = list ? String.format("java.util.List<%s>", nullableName) : nullableName;
     }
 
+    JavaSimpleType(String name, String nullableName, String rawParsingExpression,
+            String rawWritingExpression, boolean list) {
+        this(name, nullableName, rawParsingExpression, rawWritingExpression, list, false);
+    }
+
+    JavaSimpleType(String name, String nullableName, String rawParsingExpression, boolean list) {
+        this(name, nullableName, rawParsingExpression, "String.valueOf(%s)", list);
+    }
+
     JavaSimpleType(String name, String rawParsingExpression, boolean list) {
         this(name, name, rawParsingExpression, list);
     }
@@ -41,9 +56,31 @@ class JavaSimpleType implements JavaType {
         return list;
     }
 
+    boolean isValidated() {
+        return validated;
+    }
+
+    String getTypeName() {
+        return name;
+    }
+
     JavaSimpleType newListType() throws JavaCodeGeneratorException {
         if (list) throw new JavaCodeGeneratorException("list of list is not supported");
-        return new JavaSimpleType(name, nullableName, rawParsingExpression, true);
+        return new JavaSimpleType(name, nullableName, rawParsingExpression,
+                rawWritingExpression, true, validated);
+    }
+
+    // Returns this type whose parsed values are passed with their raw strings to validator, a
+    // static method of XmlParser which returns the value or throws if it is invalid.
+    JavaSimpleType newValidatedType(String validator) {
+        return new JavaSimpleType(name, nullableName,
+                String.format("XmlParser.%s(%s, %%1$s)", validator, rawParsingExpression),
+                rawWritingExpression, list, true);
+    }
+
+    // Returns an expression converting an item of this type to its xml representation.
+    String getWritingExpression(String value) {
+        return String.format(rawWritingExpression, value);
     }
 
     @Override
@@ -18,11 +18,13 @@ package com.android.xsdc.tag;
 
 import com.android.xsdc.XsdParserException;
 
+import java.util.List;
+
 import javax.xml.namespace.QName;
 
 public class XsdChoice extends XsdElement {
-    public XsdChoice(String name, QName ref, XsdType type, boolean multiple)
-            throws XsdParserException {
-        super(name, ref, type, multiple);
+    public XsdChoice(String name, QName ref, XsdType type, boolean multiple,
+            List<XsdIdentityConstraint> identityConstraints) throws XsdParserException {
+        super(name, ref, type, multiple, identityConstraints);
     }
 }
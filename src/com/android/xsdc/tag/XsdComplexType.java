@@ -16,7 +16,6 @@
 
 package com.android.xsdc.tag;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -29,10 +28,10 @@ public abstract class XsdComplexType extends XsdType {
             List<XsdElement> elements) {
         super(name, null);
         this.base = base;
-        this.attributes = Collections.unmodifiableList(
-                attributes != null ? attributes : new ArrayList<>());
-        this.elements = Collections.unmodifiableList(
-                elements != null ? elements : new ArrayList<>());
+        this.attributes = attributes != null && !attributes.isEmpty()
+                ? Collections.unmodifiableList(attributes) : Collections.emptyList();
+        this.elements = elements != null && !elements.isEmpty()
+                ? Collections.unmodifiableList(elements) : Collections.emptyList();
     }
 
     public XsdType getBase() {
@@ -18,14 +18,23 @@ package com.android.xsdc.tag;
 
 import com.android.xsdc.XsdParserException;
 
+import java.util.Collections;
+import java.util.List;
+
 import javax.xml.namespace.QName;
 
 public class XsdElement extends XsdTag {
     final private XsdType type;
     private boolean multiple;
+    final private List<XsdIdentityConstraint> identityConstraints;
 
     public XsdElement(String name, QName ref, XsdType type, boolean multiple)
             throws XsdParserException {
+        this(name, ref, type, multiple, Collections.emptyList());
+    }
+
+    public XsdElement(String name, QName ref, XsdType type, boolean multiple,
+            List<XsdIdentityConstraint> identityConstraints) throws XsdParserException {
         super(name, ref);
         if (name == null && ref == null) {
             throw new XsdParserException("name and ref cannot be both null");
@@ -36,6 +45,7 @@ public class XsdElement extends XsdTag {
         }
         this.type = type;
         this.multiple = multiple;
+        this.identityConstraints = Collections.unmodifiableList(identityConstraints);
     }
 
     public XsdType getType() {
@@ -49,4 +59,8 @@ public class XsdElement extends XsdTag {
     public boolean isMultiple() {
         return multiple;
     }
+
+    public List<XsdIdentityConstraint> getIdentityConstraints() {
+        return identityConstraints;
+    }
 }
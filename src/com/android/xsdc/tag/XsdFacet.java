@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc.tag;
+
+import com.android.xsdc.XsdParserException;
+
+// A constraining facet of a simpleType restriction, such as pattern or maxInclusive.
+public class XsdFacet extends XsdTag {
+    public enum Kind {
+        LENGTH("length"),
+        MIN_LENGTH("minLength"),
+        MAX_LENGTH("maxLength"),
+        PATTERN("pattern"),
+        MIN_INCLUSIVE("minInclusive"),
+        MAX_INCLUSIVE("maxInclusive"),
+        MIN_EXCLUSIVE("minExclusive"),
+        MAX_EXCLUSIVE("maxExclusive"),
+        TOTAL_DIGITS("totalDigits"),
+        FRACTION_DIGITS("fractionDigits"),
+        WHITE_SPACE("whiteSpace");
+
+        final private String tagName;
+
+        Kind(String tagName) {
+            this.tagName = tagName;
+        }
+
+        public String getTagName() {
+            return tagName;
+        }
+    }
+
+    final private Kind kind;
+    final private String value;
+
+    public XsdFacet(Kind kind, String value) throws XsdParserException {
+        super(null, null);
+        if (value == null) {
+            throw new XsdParserException(
+                    String.format("value should exist in %s", kind.getTagName()));
+        }
+        this.kind = kind;
+        this.value = value;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc.tag;
+
+import com.android.xsdc.XsdParserException;
+
+public class XsdField extends XsdTag {
+    final private String xpath;
+
+    public XsdField(String xpath) throws XsdParserException {
+        super(null, null);
+        if (xpath == null) {
+            throw new XsdParserException("xpath should exist in field");
+        }
+        this.xpath = xpath;
+    }
+
+    public String getXpath() {
+        return xpath;
+    }
+}
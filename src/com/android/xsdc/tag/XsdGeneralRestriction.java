@@ -23,13 +23,20 @@ public class XsdGeneralRestriction extends XsdTag {
     final private XsdType base;
     final private List<XsdAttribute> attributes;
     final private List<XsdElement> elements;
+    final private List<XsdFacet> facets;
 
     public XsdGeneralRestriction(XsdType base, List<XsdAttribute> attributes,
             List<XsdElement> elements) {
+        this(base, attributes, elements, Collections.emptyList());
+    }
+
+    public XsdGeneralRestriction(XsdType base, List<XsdAttribute> attributes,
+            List<XsdElement> elements, List<XsdFacet> facets) {
         super(null, null);
         this.base = base;
         this.attributes = Collections.unmodifiableList(attributes);
         this.elements = Collections.unmodifiableList(elements);
+        this.facets = Collections.unmodifiableList(facets);
     }
 
     public XsdType getBase() {
@@ -43,4 +50,8 @@ public class XsdGeneralRestriction extends XsdTag {
     public List<XsdElement> getElements() {
         return elements;
     }
+
+    public List<XsdFacet> getFacets() {
+        return facets;
+    }
 }
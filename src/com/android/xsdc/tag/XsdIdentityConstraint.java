@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc.tag;
+
+import com.android.xsdc.XsdParserException;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+// key, unique or keyref of an element. refer is the key or unique which a keyref refers to.
+public class XsdIdentityConstraint extends XsdTag {
+    public enum Kind {
+        KEY, UNIQUE, KEYREF
+    }
+
+    final private Kind kind;
+    final private QName refer;
+    final private XsdSelector selector;
+    final private List<XsdField> fields;
+
+    public XsdIdentityConstraint(String name, Kind kind, QName refer, XsdSelector selector,
+            List<XsdField> fields) throws XsdParserException {
+        super(name, null);
+        if (name == null) {
+            throw new XsdParserException("name should exist in identity constraint");
+        }
+        if (selector == null || fields.isEmpty()) {
+            throw new XsdParserException(String.format(
+                    "In identity constraint '%s', selector and field should exist", name));
+        }
+        if ((kind == Kind.KEYREF) != (refer != null)) {
+            throw new XsdParserException(String.format(
+                    "In identity constraint '%s', refer should exist only in keyref", name));
+        }
+        this.kind = kind;
+        this.refer = refer;
+        this.selector = selector;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public QName getRefer() {
+        return refer;
+    }
+
+    public XsdSelector getSelector() {
+        return selector;
+    }
+
+    public List<XsdField> getFields() {
+        return fields;
+    }
+}
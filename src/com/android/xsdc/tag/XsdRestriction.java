@@ -23,15 +23,22 @@ import com.android.xsdc.XsdParserException;
 public class XsdRestriction extends XsdSimpleType {
     final private XsdType base;
     final private List<XsdEnumeration> enums;
+    final private List<XsdFacet> facets;
 
     public XsdRestriction(String name, XsdType base, List<XsdEnumeration> enums)
             throws XsdParserException {
+        this(name, base, enums, Collections.emptyList());
+    }
+
+    public XsdRestriction(String name, XsdType base, List<XsdEnumeration> enums,
+            List<XsdFacet> facets) throws XsdParserException {
         super(name);
         if (base == null) {
             throw new XsdParserException("restriction base should exist in simpleType");
         }
         this.base = base;
         this.enums = enums;
+        this.facets = Collections.unmodifiableList(facets);
     }
 
     public XsdType getBase() {
@@ -41,4 +48,8 @@ public class XsdRestriction extends XsdSimpleType {
     public List<XsdEnumeration> getEnums() {
         return enums;
     }
+
+    public List<XsdFacet> getFacets() {
+        return facets;
+    }
 }
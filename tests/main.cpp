@@ -17,11 +17,16 @@
 #include <iostream>
 #include <string>
 #include <gtest/gtest.h>
+#include <unistd.h>
 #include "nested_type.h"
+#include "nested_type_arena.h"
 #include "purchase_simple.h"
+#include "purchase_simple_writer.h"
 #include "simple_complex_content.h"
 
 #include "predefined_types.h"
+#include "predefined_types_snapshot.h"
+#include "recursive_type.h"
 #include "reference.h"
 #include "simple_type.h"
 
@@ -125,6 +130,40 @@ TEST_F(XmlTest, Predefinedtypes) {
 
 }
 
+TEST_F(XmlTest, PredefinedtypesSnapshot) {
+  using namespace predefined::types::snapshot;
+  Types type = *read("resources/predefined_types.xml");
+  string snapshot_file = ::testing::TempDir() + "predefined_types.snapshot";
+  ASSERT_TRUE(writeSnapshot(type, snapshot_file.c_str()));
+
+  optional<Types> snapshot = readSnapshot(snapshot_file.c_str());
+  unlink(snapshot_file.c_str());
+  ASSERT_TRUE(snapshot.has_value());
+
+  const StringTypes& stringTypes = snapshot->getStringTypes();
+  const NumericTypes& numericTypes = snapshot->getNumericTypes();
+  const MiscTypes& miscTypes = snapshot->getMiscTypes();
+  const ListPrimitiveTypes& listPrimitiveTypes = snapshot->getListPrimitiveTypes();
+
+  EXPECT_EQ(stringTypes.getString(), "abcd");
+  EXPECT_EQ(stringTypes.getEntities(), type.getStringTypes().getEntities());
+  EXPECT_EQ(snapshot->getDateTypes().getDuration(), "P3M");
+  EXPECT_EQ(numericTypes.getDecimal(), 1234.57);
+  EXPECT_EQ(numericTypes.get_long(), 9223372036854775807);
+  EXPECT_EQ(numericTypes.getNegativeInteger(), -1234);
+  EXPECT_EQ((int)numericTypes.getByte(), 127);
+  EXPECT_EQ((int)(numericTypes.getUnsignedByte()), 255);
+  EXPECT_TRUE(miscTypes.getBoolean());
+  EXPECT_EQ(miscTypes.get_double(), 1234.57);
+  EXPECT_EQ(listPrimitiveTypes.getListInt()[0], -2147483648);
+  EXPECT_EQ(listPrimitiveTypes.getListByte()[0], -128);
+  EXPECT_EQ(listPrimitiveTypes.getListDouble()[1], 5678.12);
+  EXPECT_FALSE(listPrimitiveTypes.getListBoolean()[1]);
+
+  // not a snapshot
+  EXPECT_FALSE(readSnapshot("resources/predefined_types.xml").has_value());
+}
+
 TEST_F(XmlTest, Nestedtype) {
   using namespace nested::type;
   Employee employee = *read("resources/nested_type.xml");
@@ -132,6 +171,8 @@ TEST_F(XmlTest, Nestedtype) {
   Employee::Address address = *employee.getFirstAddress();
   Employee::Address::Extra extra = *address.getFirstExtra();
 
+  EXPECT_TRUE(employee.hasAddress());
+  EXPECT_TRUE(address.hasExtra());
   EXPECT_EQ((int)employee.getId(), 1);
   EXPECT_EQ(employee.getName(), "Peter");
   EXPECT_EQ(address.getCountry(), "US");
@@ -141,10 +182,43 @@ TEST_F(XmlTest, Nestedtype) {
   EXPECT_EQ(extra.getLine2(), "Good Street");
 }
 
+TEST_F(XmlTest, NestedtypeMalformed) {
+  using namespace nested::type;
+  string xml_file = ::testing::TempDir() + "nested_type_malformed.xml";
+  FILE* file = fopen(xml_file.c_str(), "w");
+  ASSERT_TRUE(file != nullptr);
+  fputs("<employee><id>1</id><address><zip>33x42</zip></address></employee>", file);
+  fclose(file);
+
+  // a malformed value of a nested element fails the whole document
+  EXPECT_FALSE(read(xml_file.c_str()).has_value());
+  EXPECT_FALSE(arena::read(xml_file.c_str()).has_value());
+  unlink(xml_file.c_str());
+}
+
+TEST_F(XmlTest, NestedtypeArena) {
+  using namespace nested::type::arena;
+  XmlDocument<Employee> document = *read("resources/nested_type.xml");
+  Employee& employee = *document;
+
+  const Employee::Address& address = employee.getAddress();
+  const Employee::Address::Extra& extra = address.getExtra();
+
+  EXPECT_EQ((int)employee.getId(), 1);
+  EXPECT_EQ(employee.getName(), "Peter");
+  EXPECT_EQ(address.getCountry(), "US");
+  EXPECT_EQ(address.getState(), "Mountain View");
+  EXPECT_EQ(address.getZip(), 3342);
+  EXPECT_EQ(extra.getLine1(), "Donga 303-111");
+  EXPECT_EQ(extra.getLine2(), "Good Street");
+  EXPECT_EQ(employee.getAssets().size(), 0);
+}
+
 TEST_F(XmlTest, Purchasesimple) {
   using namespace purchase::simple;
   PurchaseOrderType orderType = *read("resources/purchase_simple.xml");
 
+  EXPECT_TRUE(orderType.hasOrderDate());
   EXPECT_EQ(orderType.getOrderDate(), "1900-01-01");
 
   EXPECT_EQ(orderType.getShipTo()[0].getName(), "name1");
@@ -160,12 +234,63 @@ TEST_F(XmlTest, Purchasesimple) {
   EXPECT_EQ(orderType.getShipTo()[1].getZip(), -7922816251426433759);
   EXPECT_EQ(orderType.getShipTo()[1].getCountry(), "US");
 
-  EXPECT_EQ(orderType.getBillTo()[0].getName(), "billName");
-  EXPECT_EQ(orderType.getBillTo()[0].getStreet(), "billStreet");
-  EXPECT_EQ(orderType.getBillTo()[0].getCity(), "billCity");
-  EXPECT_EQ(orderType.getBillTo()[0].getState(), "billState");
-  EXPECT_EQ(orderType.getBillTo()[0].getZip(), 1);
-  EXPECT_EQ(orderType.getBillTo()[0].getCountry(), "US");
+  EXPECT_TRUE(orderType.hasBillTo());
+  EXPECT_EQ(orderType.getBillTo().getName(), "billName");
+  EXPECT_EQ(orderType.getBillTo().getStreet(), "billStreet");
+  EXPECT_EQ(orderType.getBillTo().getCity(), "billCity");
+  EXPECT_EQ(orderType.getBillTo().getState(), "billState");
+  EXPECT_EQ(orderType.getBillTo().getZip(), 1);
+  EXPECT_EQ(orderType.getBillTo().getCountry(), "US");
+}
+
+TEST_F(XmlTest, PurchasesimpleWriter) {
+  using namespace purchase::simple::writer;
+  PurchaseOrderType orderType = *read("resources/purchase_simple.xml");
+  string xml;
+  write(xml, orderType);
+
+  string xml_file = ::testing::TempDir() + "purchase_simple_writer.xml";
+  FILE* file = fopen(xml_file.c_str(), "w");
+  ASSERT_TRUE(file != nullptr);
+  fwrite(xml.data(), 1, xml.size(), file);
+  fclose(file);
+  optional<PurchaseOrderType> written = read(xml_file.c_str());
+  unlink(xml_file.c_str());
+  ASSERT_TRUE(written.has_value());
+
+  EXPECT_EQ(written->getOrderDate(), "1900-01-01");
+  EXPECT_EQ(written->getShipTo().size(), 2);
+  EXPECT_EQ(written->getShipTo()[1].getName(), "name2");
+  EXPECT_EQ(written->getShipTo()[1].getZip(), -7922816251426433759);
+  EXPECT_EQ(written->getShipTo()[1].getCountry(), "US");
+  EXPECT_EQ(written->getBillTo().getCity(), "billCity");
+
+  // writing the document read back yields the same XML
+  string rewritten;
+  write(rewritten, *written);
+  EXPECT_EQ(rewritten, xml);
+}
+
+TEST_F(XmlTest, Recursivetype) {
+  using namespace recursive::type;
+  NodeType node = *read("resources/recursive_type.xml");
+
+  ASSERT_TRUE(node.hasChild());
+  EXPECT_EQ(node.getChild().getName(), "middle");
+  ASSERT_TRUE(node.getChild().hasChild());
+  EXPECT_EQ(node.getChild().getChild().getName(), "leaf");
+  EXPECT_FALSE(node.getChild().getChild().hasChild());
+  EXPECT_EQ(node.getChild().getChild().getFirstChild(), nullptr);
+
+  // copies of recursive children are deep
+  NodeType copy = node;
+  ASSERT_TRUE(copy.hasChild());
+  EXPECT_NE(copy.getFirstChild(), node.getFirstChild());
+  EXPECT_EQ(copy.getChild().getChild().getName(), "leaf");
+  NodeType leaf = node.getChild().getChild();
+  copy = leaf;
+  EXPECT_FALSE(copy.hasChild());
+  EXPECT_EQ(node.getChild().getName(), "middle");
 }
 
 TEST_F(XmlTest, Reference) {
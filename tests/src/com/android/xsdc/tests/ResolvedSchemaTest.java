@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc.tests;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+import com.android.xsdc.ResolvedSchema;
+import com.android.xsdc.XmlSchema;
+import com.android.xsdc.XsdParserException;
+import com.android.xsdc.tag.XsdAttribute;
+import com.android.xsdc.tag.XsdComplexContent;
+import com.android.xsdc.tag.XsdComplexType;
+import com.android.xsdc.tag.XsdElement;
+import com.android.xsdc.tag.XsdRestriction;
+import com.android.xsdc.tag.XsdSimpleContent;
+import com.android.xsdc.tag.XsdType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+public class ResolvedSchemaTest {
+    private static final String SCHEMA_START =
+            "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">";
+    private static final String SCHEMA_END = "</xs:schema>";
+
+    private static XmlSchema parseXsd(String body) throws Exception {
+        String xsd = SCHEMA_START + body + SCHEMA_END;
+        return TestHelper.parseXsd(new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> getNames(List<? extends XsdElement> elements) {
+        List<String> names = new ArrayList<>();
+        for (XsdElement element : elements) {
+            names.add(element.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testInheritedMembers() throws Exception {
+        XmlSchema xmlSchema = parseXsd(
+                "<xs:complexType name=\"grandchild\">"
+                + "<xs:complexContent><xs:extension base=\"child\"><xs:sequence>"
+                + "<xs:element name=\"c\" type=\"xs:string\"/>"
+                + "</xs:sequence></xs:extension></xs:complexContent>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"child\">"
+                + "<xs:complexContent><xs:extension base=\"parent\"><xs:sequence>"
+                + "<xs:element name=\"b\" type=\"xs:string\"/>"
+                + "</xs:sequence><xs:attribute name=\"y\" type=\"xs:int\"/>"
+                + "</xs:extension></xs:complexContent>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"parent\">"
+                + "<xs:sequence><xs:element name=\"a\" type=\"xs:string\"/></xs:sequence>"
+                + "<xs:attribute name=\"x\" type=\"xs:int\"/>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"root\" type=\"grandchild\"/>");
+        ResolvedSchema resolvedSchema = new ResolvedSchema(xmlSchema);
+
+        XsdComplexType grandchild = (XsdComplexType) resolvedSchema.getType("grandchild");
+        assertThat(getNames(resolvedSchema.getAllElements(grandchild)),
+                is(Arrays.asList("a", "b", "c")));
+        List<String> attributes = new ArrayList<>();
+        for (XsdAttribute attribute : resolvedSchema.getAllAttributes(grandchild)) {
+            attributes.add(attribute.getName());
+        }
+        assertThat(attributes, is(Arrays.asList("x", "y")));
+
+        // members of the base are shared, not copied
+        XsdComplexType parent = (XsdComplexType) resolvedSchema.getType("parent");
+        assertSame(resolvedSchema.getAllElements(parent).get(0),
+                resolvedSchema.getAllElements(grandchild).get(0));
+
+        try {
+            resolvedSchema.getAllElements(new XsdComplexContent("other", null, null, null));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // complex types of another schema are rejected
+        }
+    }
+
+    @Test
+    public void testResolveReferences() throws Exception {
+        XmlSchema xmlSchema = parseXsd(
+                "<xs:complexType name=\"list\">"
+                + "<xs:sequence><xs:element ref=\"item\" maxOccurs=\"unbounded\"/></xs:sequence>"
+                + "<xs:attribute ref=\"lang\"/>"
+                + "</xs:complexType>"
+                + "<xs:attribute name=\"lang\" type=\"xs:language\"/>"
+                + "<xs:element name=\"item\" type=\"xs:string\"/>"
+                + "<xs:element name=\"list\" type=\"list\"/>");
+        ResolvedSchema resolvedSchema = new ResolvedSchema(xmlSchema);
+
+        XsdComplexType list = (XsdComplexType) resolvedSchema.getType("list");
+        XsdElement item = list.getElements().get(0);
+        assertSame(xmlSchema.getElementMap().get("item"), resolvedSchema.resolveElement(item));
+        assertSame(xmlSchema.getAttributeMap().get("lang"),
+                resolvedSchema.resolveAttribute(list.getAttributes().get(0)));
+        XsdElement root = xmlSchema.getElementMap().get("list");
+        assertSame(root, resolvedSchema.resolveElement(root));
+    }
+
+    @Test
+    public void testUnresolvedReferences() throws Exception {
+        String[][] cases = {
+                {"<xs:complexType name=\"t\"><xs:sequence><xs:element ref=\"missing\"/>"
+                        + "</xs:sequence></xs:complexType>",
+                        "no element named : missing"},
+                {"<xs:complexType name=\"t\"><xs:attribute ref=\"missing\"/></xs:complexType>",
+                        "no attribute named : missing"},
+                // references in anonymous types are checked too
+                {"<xs:element name=\"e\"><xs:complexType><xs:sequence>"
+                        + "<xs:element name=\"v\"><xs:simpleType><xs:list itemType=\"missing\"/>"
+                        + "</xs:simpleType></xs:element>"
+                        + "</xs:sequence></xs:complexType></xs:element>",
+                        "no type named : missing"},
+                {"<xs:complexType name=\"a\"><xs:complexContent><xs:extension base=\"b\"/>"
+                        + "</xs:complexContent></xs:complexType>"
+                        + "<xs:complexType name=\"b\"><xs:complexContent><xs:extension base=\"a\"/>"
+                        + "</xs:complexContent></xs:complexType>",
+                        "circular base of type : "},
+        };
+        for (String[] unresolved : cases) {
+            XmlSchema xmlSchema = parseXsd(unresolved[0]);
+            try {
+                new ResolvedSchema(xmlSchema);
+                fail(unresolved[0]);
+            } catch (XsdParserException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(unresolved[1]));
+            }
+        }
+    }
+
+    @Test
+    public void testPredefinedBase() throws Exception {
+        XmlSchema xmlSchema = parseXsd(
+                "<xs:simpleType name=\"percent\">"
+                + "<xs:restriction base=\"small\"><xs:maxInclusive value=\"100\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"small\">"
+                + "<xs:restriction base=\"xs:int\"><xs:minInclusive value=\"0\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"color\">"
+                + "<xs:restriction base=\"xs:string\"><xs:enumeration value=\"red\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"shortColors\">"
+                + "<xs:restriction base=\"colors\"><xs:maxLength value=\"2\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"colors\"><xs:list itemType=\"color\"/></xs:simpleType>");
+        ResolvedSchema resolvedSchema = new ResolvedSchema(xmlSchema);
+        assertThat(resolvedSchema.getPredefinedBase(
+                (XsdRestriction) resolvedSchema.getType("percent")), is("int"));
+        assertNull(resolvedSchema.getPredefinedBase(
+                (XsdRestriction) resolvedSchema.getType("color")));
+        assertNull(resolvedSchema.getPredefinedBase(
+                (XsdRestriction) resolvedSchema.getType("shortColors")));
+    }
+
+    // Maps simple types to descriptions, counting the named types mapped.
+    private static class Descriptions extends ResolvedSchema.SimpleTypeMapping<String, Exception> {
+        int restrictions;
+
+        Descriptions(ResolvedSchema resolvedSchema) {
+            super(resolvedSchema);
+        }
+
+        @Override
+        protected String mapPredefined(String name) {
+            return name;
+        }
+
+        @Override
+        protected String mapEnumeration(XsdRestriction restriction) {
+            return "enum " + restriction.getName();
+        }
+
+        @Override
+        protected String mapRestriction(XsdRestriction restriction, String baseType) {
+            ++restrictions;
+            return baseType;
+        }
+
+        @Override
+        protected String mapList(String itemType) throws Exception {
+            if (isList(itemType)) throw newException("list of list");
+            return itemType + "[]";
+        }
+
+        @Override
+        protected String mapUnion(boolean list) {
+            return list ? "string[]" : "string";
+        }
+
+        @Override
+        protected boolean isList(String type) {
+            return type.endsWith("[]");
+        }
+
+        @Override
+        protected Exception newException(String message) {
+            return new Exception(message);
+        }
+    }
+
+    @Test
+    public void testSimpleTypeMapping() throws Exception {
+        XmlSchema xmlSchema = parseXsd(
+                "<xs:simpleType name=\"percent\">"
+                + "<xs:restriction base=\"xs:int\"><xs:maxInclusive value=\"100\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"percents\"><xs:list itemType=\"percent\"/>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"color\">"
+                + "<xs:restriction base=\"xs:string\"><xs:enumeration value=\"red\"/>"
+                + "</xs:restriction></xs:simpleType>"
+                + "<xs:simpleType name=\"either\"><xs:union memberTypes=\"color percent\"/>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"eitherList\">"
+                + "<xs:union memberTypes=\"color percents\"/></xs:simpleType>"
+                + "<xs:complexType name=\"t\"/>");
+        ResolvedSchema resolvedSchema = new ResolvedSchema(xmlSchema);
+        Descriptions descriptions = new Descriptions(resolvedSchema);
+
+        assertThat(descriptions.map(ref("percents")), is("int[]"));
+        assertThat(descriptions.map(ref("color")), is("enum color"));
+        assertThat(descriptions.map(ref("either")), is("string"));
+        assertThat(descriptions.map(ref("eitherList")), is("string[]"));
+        assertThat(descriptions.map(new XsdType(null,
+                new QName("http://www.w3.org/2001/XMLSchema", "boolean"))), is("boolean"));
+        // percent is mapped once, however often it is referred to
+        assertThat(descriptions.restrictions, is(1));
+
+        try {
+            descriptions.map(ref("t"));
+            fail();
+        } catch (Exception e) {
+            assertThat(e.getMessage(), is("not a simple type : t"));
+        }
+    }
+
+    private static XsdType ref(String name) {
+        return new XsdType(null, new QName(name));
+    }
+
+    @Test
+    public void testParseFacetLength() throws Exception {
+        XmlSchema xmlSchema = parseXsd(
+                "<xs:simpleType name=\"code\">"
+                + "<xs:restriction base=\"xs:string\"><xs:length value=\" 4 \"/>"
+                + "<xs:maxLength value=\"-1\"/><xs:minLength value=\"x\"/>"
+                + "</xs:restriction></xs:simpleType>");
+        XsdRestriction code = (XsdRestriction) xmlSchema.getTypeMap().get("code");
+        assertThat(ResolvedSchema.parseFacetLength(code.getFacets().get(0)), is(4));
+        for (int i = 1; i < 3; ++i) {
+            try {
+                ResolvedSchema.parseFacetLength(code.getFacets().get(i));
+                fail();
+            } catch (XsdParserException e) {
+                // negative and malformed lengths are rejected
+            }
+        }
+    }
+
+    @Test
+    public void testEscapeAnchors() {
+        assertThat(ResolvedSchema.escapeAnchors("$\\d+|^[^^]+"), is("\\$\\d+|\\^[^^]+"));
+        assertThat(ResolvedSchema.escapeAnchors("[a^$]\\^\\$"), is("[a^$]\\^\\$"));
+        assertThat(ResolvedSchema.escapeAnchors("[\\]^]^"), is("[\\]^]\\^"));
+    }
+
+    // Names every type by its name in the schema, or by the given suffix for predefined ones.
+    private static ResolvedSchema.TypeNames<RuntimeException> names(String suffix) {
+        return new ResolvedSchema.TypeNames<RuntimeException>() {
+            @Override
+            public String getClassName(String name) {
+                return name;
+            }
+
+            @Override
+            public String getTypeName(XsdType type, String name) {
+                return type.getRef() != null ? type.getRef().getLocalPart() + suffix : name;
+            }
+
+            @Override
+            public String getAttributeTypeName(XsdType type) {
+                return getTypeName(type, "");
+            }
+
+            @Override
+            public String getValueTypeName(XsdSimpleContent simpleContent) {
+                return getTypeName(simpleContent.getBase(), "");
+            }
+        };
+    }
+
+    @Test
+    public void testSchemaHash() throws Exception {
+        String xsd = "<xs:complexType name=\"t\"><xs:sequence>"
+                + "<xs:element name=\"a\" type=\"xs:string\" maxOccurs=\"unbounded\"/>"
+                + "</xs:sequence><xs:attribute name=\"x\" type=\"xs:int\"/></xs:complexType>"
+                + "<xs:element name=\"root\" type=\"t\"/>";
+        long hash = new ResolvedSchema(parseXsd(xsd)).computeSchemaHash(names(""));
+        // the hash is the same for every parse of the schema
+        assertEquals(hash, new ResolvedSchema(parseXsd(xsd)).computeSchemaHash(names("")));
+        // and changes with the generated types and the members
+        assertTrue(hash != new ResolvedSchema(parseXsd(xsd)).computeSchemaHash(names("_t")));
+        assertTrue(hash != new ResolvedSchema(parseXsd(xsd.replace("\"unbounded\"", "\"1\"")))
+                .computeSchemaHash(names("")));
+        assertTrue(hash != new ResolvedSchema(parseXsd(xsd.replace("\"x\"", "\"y\"")))
+                .computeSchemaHash(names("")));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.xsdc.tests;
+
+import static org.junit.Assert.*;
+
+import com.android.xsdc.SymbolTable;
+import com.android.xsdc.XmlSchema;
+import com.android.xsdc.XsdHandler;
+import com.android.xsdc.XsdStaxReader;
+import com.android.xsdc.tag.XsdType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Measures the heap retained by the XmlSchema of generated schemas of 10k and 100k types, read
+ * with a SymbolTable and with a table which shares nothing.
+ */
+public class SchemaMemoryTest {
+    // Returns the names as they are parsed and a new type reference for each use.
+    private static class CopyingSymbolTable extends SymbolTable {
+        @Override
+        public String intern(String string) {
+            return string;
+        }
+
+        @Override
+        public QName qName(String namespaceURI, String localPart) {
+            return new QName(namespaceURI, localPart);
+        }
+
+        @Override
+        public XsdType typeRef(QName ref) {
+            return new XsdType(null, ref);
+        }
+    }
+
+    private static byte[] generateSchema(int types) {
+        StringBuilder xsd = new StringBuilder(
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">");
+        for (int i = 0; i < types; i++) {
+            xsd.append("<xs:complexType name=\"type").append(i).append("\"><xs:sequence>")
+                    .append("<xs:element name=\"name\" type=\"xs:string\"/>")
+                    .append("<xs:element name=\"count\" type=\"xs:int\" minOccurs=\"0\"/>")
+                    .append("<xs:element name=\"child\" type=\"type").append(Math.max(i - 1, 0))
+                    .append("\" minOccurs=\"0\"/>")
+                    .append("</xs:sequence>")
+                    .append("<xs:attribute name=\"id\" type=\"xs:string\"/>")
+                    .append("</xs:complexType>");
+        }
+        xsd.append("<xs:element name=\"root\" type=\"type").append(types - 1).append("\"/>");
+        xsd.append("</xs:schema>");
+        return xsd.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // collect until a collection frees nothing more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) break;
+            used = now;
+        }
+        return used;
+    }
+
+    private static long retainedHeap(byte[] xsd, int types, boolean interned) throws Exception {
+        long before = usedHeap();
+        XsdHandler xsdHandler = new XsdHandler(
+                interned ? new SymbolTable() : new CopyingSymbolTable());
+        XsdStaxReader.parse(new ByteArrayInputStream(xsd), xsdHandler);
+        XmlSchema xmlSchema = xsdHandler.getSchema();
+        xsdHandler = null;
+        long retained = usedHeap() - before;
+        // also keeps the schema reachable until it is measured
+        assertEquals(types, xmlSchema.getTypeMap().size());
+        return retained;
+    }
+
+    @Test
+    public void testRetainedHeap() throws Exception {
+        long[] perType = new long[2];
+        int[] sizes = {10_000, 100_000};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] xsd = generateSchema(sizes[i]);
+            long copied = retainedHeap(xsd, sizes[i], false);
+            long interned = retainedHeap(xsd, sizes[i], true);
+            System.out.printf("%d types : %d bytes retained, %d bytes without interning%n",
+                    sizes[i], interned, copied);
+            assertTrue(sizes[i] + " types", interned < copied);
+            perType[i] = interned / sizes[i];
+        }
+        // the schema grows with the number of types, not faster
+        assertTrue(perType[1] + " bytes per type of 100k, " + perType[0] + " of 10k",
+                perType[1] < perType[0] * 2);
+    }
+}
@@ -16,30 +16,36 @@
 
 package com.android.xsdc.tests;
 
-import com.android.xsdc.FileSystem;
+import com.android.xsdc.InMemoryFileSystem;
 import com.android.xsdc.XmlSchema;
-import com.android.xsdc.XsdHandler;
-import com.android.xsdc.java.JavaCodeGenerator;
+import com.android.xsdc.XsdCompiler;
 
 import javax.tools.*;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import java.io.*;
+import java.net.JarURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.fail;
 
 class TestHelper {
     static class InMemoryJavaFileObject extends SimpleJavaFileObject {
-        private final String contents;
+        private final CharSequence contents;
 
-        InMemoryJavaFileObject(String className, String contents) {
+        InMemoryJavaFileObject(String className, CharSequence contents) {
             super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
                     Kind.SOURCE);
             this.contents = contents;
@@ -98,26 +104,91 @@ class TestHelper {
 
     final static String packageName = "test";
 
+    // shared by the tests, which may run concurrently
+    final static XsdCompiler compiler = new XsdCompiler();
+
+    // Returns a builder of options generating Java code in packageName, every option being off.
+    static XsdCompiler.Builder options() {
+        return XsdCompiler.Options.builder(XsdCompiler.Language.JAVA, packageName);
+    }
+
+    // Returns the names of the schemas in the directories of the test resources, which are all
+    // the schemas generating code, sorted.
+    static List<String> listSchemas() throws Exception {
+        URL anchor = TestHelper.class.getClassLoader().getResource(
+                "purchase_simple/purchase_simple.xsd");
+        List<String> names = new ArrayList<>();
+        if (anchor.getProtocol().equals("jar")) {
+            JarURLConnection connection = (JarURLConnection) anchor.openConnection();
+            connection.setUseCaches(false);
+            try (JarFile jar = connection.getJarFile()) {
+                for (JarEntry entry : Collections.list(jar.entries())) {
+                    names.add(entry.getName());
+                }
+            }
+        } else {
+            Path root = Paths.get(anchor.toURI()).getParent().getParent();
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.forEach(path -> names.add(
+                        root.relativize(path).toString().replace(File.separatorChar, '/')));
+            }
+        }
+        names.removeIf(name -> !name.matches("[^/]+/[^/]+\\.xsd"));
+        Collections.sort(names);
+        return names;
+    }
+
     static TestCompilationResult parseXsdAndCompile(InputStream in) throws Exception {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-        SAXParser parser = factory.newSAXParser();
-        XsdHandler xsdHandler = new XsdHandler();
-        parser.parse(in, xsdHandler);
-        XmlSchema xmlSchema = xsdHandler.getSchema();
-        Map<String, StringBuffer> fileOutputMap = new HashMap<>();
-        FileSystem fs = new FileSystem(fileOutputMap);
-        JavaCodeGenerator javaCodeGenerator = new JavaCodeGenerator(xmlSchema, packageName);
-        javaCodeGenerator.print(fs);
+        return parseXsdAndCompile(in, options().build());
+    }
+
+    static TestCompilationResult parseXsdAndCompile(InputStream in, XsdCompiler.Options options)
+            throws Exception {
+        return generateAndCompile(parseXsd(in), options);
+    }
+
+    static XmlSchema parseXsd(InputStream in) throws Exception {
+        return compiler.parse(in);
+    }
+
+    static TestCompilationResult generateAndCompile(XmlSchema xmlSchema) throws Exception {
+        return generateAndCompile(xmlSchema, options().build());
+    }
+
+    static TestCompilationResult generateAndCompile(XmlSchema xmlSchema,
+            XsdCompiler.Options options) throws Exception {
+        InMemoryFileSystem fs = new InMemoryFileSystem();
+        compiler.generate(xmlSchema, options, fs);
+        Map<String, CharSequence> sources = new HashMap<>();
+        for (String fileName : fs.getFileNames()) {
+            sources.put(fileName.split("\\.")[0], fs.getCharContent(fileName));
+        }
+        return compile(sources);
+    }
+
+    // Compiles Java sources, by class name.
+    static TestCompilationResult compile(Map<String, ? extends CharSequence> sources)
+            throws Exception {
         List<JavaFileObject> javaFileObjects = new ArrayList<>();
-        for (Map.Entry<String, StringBuffer> entry : fileOutputMap.entrySet()) {
-            String className = entry.getKey().split("\\.")[0];
-            javaFileObjects.add(
-                    new InMemoryJavaFileObject(className, entry.getValue().toString()));
+        for (Map.Entry<String, ? extends CharSequence> source : sources.entrySet()) {
+            javaFileObjects.add(new InMemoryJavaFileObject(source.getKey(), source.getValue()));
         }
         return new TestCompilationResult(compile(javaFileObjects));
     }
 
+    // Returns the Java and C++ sources generated for xmlSchema with every option which doesn't
+    // exclude another, by file name.
+    static Map<String, String> generateSources(XmlSchema xmlSchema) throws Exception {
+        Map<String, String> sources = new HashMap<>(compiler.generate(xmlSchema,
+                options().setSnapshot(true).setWriter(true).setTokenizer(true).setParallel(true)
+                        .setWatch(true).setCache(true).setListener(true).setIndices(true)
+                        .setValidate(true).build()));
+        sources.putAll(compiler.generate(xmlSchema,
+                XsdCompiler.Options.builder(XsdCompiler.Language.CPP, packageName)
+                        .setSnapshot(true).setWriter(true).setValidate(true).build()));
+        return sources;
+    }
+
     private static List<InMemoryJavaClassObject> compile(List<JavaFileObject> javaFileObjects)
             throws IOException {
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
@@ -19,6 +19,23 @@ package com.android.xsdc.tests;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
 
+import com.android.xsdc.InMemoryFileSystem;
+import com.android.xsdc.ResolvedSchema;
+import com.android.xsdc.SampleDocument;
+import com.android.xsdc.SchemaCache;
+import com.android.xsdc.SymbolTable;
+import com.android.xsdc.XmlSchema;
+import com.android.xsdc.XmlSchemaCodec;
+import com.android.xsdc.XsdCompiler;
+import com.android.xsdc.XsdHandler;
+import com.android.xsdc.XsdParserException;
+import com.android.xsdc.XsdSchemaLoader;
+import com.android.xsdc.XsdStaxReader;
+import com.android.xsdc.java.JavaCodeGenerator;
+import com.android.xsdc.tag.XsdAttribute;
+import com.android.xsdc.tag.XsdComplexType;
+import com.android.xsdc.tag.XsdElement;
+
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -27,11 +44,27 @@ import org.xml.sax.SAXException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.Duration;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.parsers.SAXParserFactory;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class XmlParserTest {
     @Test
@@ -366,17 +399,1413 @@ public class XmlParserTest {
         assertThat(student, is(Arrays.asList("Sam", "Paul", "Peter")));
     }
 
+    @Test
+    public void testSnapshot() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "predefined_types/predefined_types.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in,
+                    TestHelper.options().setSnapshot(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> types = result.loadClass("Types");
+
+        Object instance;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "predefined_types.xml")) {
+            instance = xmlParser.getMethod("read", InputStream.class).invoke(null, in);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xmlParser.getMethod("writeSnapshot", types, OutputStream.class).invoke(null, instance,
+                out);
+        byte[] snapshot = out.toByteArray();
+        Object snapshotInstance = xmlParser.getMethod("readSnapshot", ByteBuffer.class).invoke(
+                null, ByteBuffer.wrap(snapshot));
+
+        assertSameValues(instance, snapshotInstance);
+
+        // a snapshot for another schema is rejected
+        snapshot[5] ^= 1;
+        assertNull(xmlParser.getMethod("readSnapshot", ByteBuffer.class).invoke(null,
+                ByteBuffer.wrap(snapshot)));
+        // so is a truncated snapshot
+        snapshot[5] ^= 1;
+        assertNull(xmlParser.getMethod("readSnapshot", ByteBuffer.class).invoke(null,
+                ByteBuffer.wrap(snapshot, 0, snapshot.length - 1)));
+    }
+
+    @Test
+    public void testSnapshotCount() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"empty\"/>"
+                + "<xs:complexType name=\"items\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"item\" type=\"empty\" maxOccurs=\"unbounded\"/>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"items\" type=\"items\"/>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setSnapshot(true).build());
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> items = result.loadClass("Items");
+
+        Object instance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                new ByteArrayInputStream("<items><item/><item/></items>".getBytes(
+                        StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xmlParser.getMethod("writeSnapshot", items, OutputStream.class).invoke(null, instance,
+                out);
+        byte[] snapshot = out.toByteArray();
+        Object snapshotInstance = xmlParser.getMethod("readSnapshot", ByteBuffer.class).invoke(
+                null, ByteBuffer.wrap(snapshot));
+        assertThat(((List) items.getMethod("getItem").invoke(snapshotInstance)).size(), is(2));
+
+        // the body starts with the count of items, after the magic, the version, the hash and
+        // the empty string table
+        byte[] corrupt = Arrays.copyOf(snapshot, 23);
+        Arrays.fill(corrupt, 14, 22, (byte) 0xFF);
+        corrupt[22] = 0x7F;
+        assertNull(xmlParser.getMethod("readSnapshot", ByteBuffer.class).invoke(null,
+                ByteBuffer.wrap(corrupt)));
+    }
+
+    @Test
+    public void testSnapshotAbsentPrimitives() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:element name=\"item\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"size\" type=\"xs:int\" minOccurs=\"0\"/>"
+                + "</xs:sequence>"
+                + "<xs:attribute name=\"count\" type=\"xs:long\"/>"
+                + "<xs:attribute name=\"enabled\" type=\"xs:boolean\"/>"
+                + "</xs:complexType>"
+                + "</xs:element>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setSnapshot(true).build());
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> item = result.loadClass("Item");
+        List<Method> hasMethods = new ArrayList<>();
+        for (String name : new String[] {"hasSize", "hasCount", "hasEnabled"}) {
+            Method method = item.getDeclaredMethod(name);
+            method.setAccessible(true);
+            hasMethods.add(method);
+        }
+
+        String[] documents = {
+                "<item/>",
+                "<item count=\"0\"/>",
+                "<item enabled=\"false\"><size>0</size></item>",
+        };
+        for (String document : documents) {
+            Object instance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                    new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            xmlParser.getMethod("writeSnapshot", item, OutputStream.class).invoke(null,
+                    instance, out);
+            Object snapshotInstance = xmlParser.getMethod("readSnapshot", ByteBuffer.class)
+                    .invoke(null, ByteBuffer.wrap(out.toByteArray()));
+
+            // absent primitives stay absent, like in the parsed document
+            for (Method hasMethod : hasMethods) {
+                assertEquals(document + " " + hasMethod.getName(), hasMethod.invoke(instance),
+                        hasMethod.invoke(snapshotInstance));
+            }
+            assertSameValues(instance, snapshotInstance);
+        }
+    }
+
+    @Test
+    public void testWriter() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "predefined_types/predefined_types.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in,
+                    TestHelper.options().setWriter(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> xmlWriter = result.loadClass("XmlWriter");
+        Class<?> types = result.loadClass("Types");
+
+        Object instance;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "predefined_types.xml")) {
+            instance = xmlParser.getMethod("read", InputStream.class).invoke(null, in);
+        }
+
+        StringWriter out = new StringWriter();
+        try (Closeable writer = (Closeable) xmlWriter.getConstructor(Writer.class).newInstance(
+                out)) {
+            xmlWriter.getMethod("write", xmlWriter, types).invoke(null, writer, instance);
+        }
+        Object writtenInstance;
+        try (InputStream in = new ByteArrayInputStream(
+                out.toString().getBytes(StandardCharsets.UTF_8))) {
+            writtenInstance = xmlParser.getMethod("read", InputStream.class).invoke(null, in);
+        }
+
+        assertSameValues(instance, writtenInstance);
+    }
+
+    @Test
+    public void testWriterAbsentPrimitives() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:simpleType name=\"count\">"
+                + "<xs:restriction base=\"xs:int\">"
+                + "<xs:minInclusive value=\"1\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:complexType name=\"amount\">"
+                + "<xs:simpleContent>"
+                + "<xs:extension base=\"xs:long\"/>"
+                + "</xs:simpleContent>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"item\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"size\" type=\"xs:int\" minOccurs=\"0\"/>"
+                + "<xs:element name=\"amount\" type=\"amount\" minOccurs=\"0\"/>"
+                + "</xs:sequence>"
+                + "<xs:attribute name=\"count\" type=\"count\"/>"
+                + "<xs:attribute name=\"enabled\" type=\"xs:boolean\"/>"
+                + "</xs:complexType>"
+                + "</xs:element>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setWriter(true).setValidate(true).build());
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> xmlWriter = result.loadClass("XmlWriter");
+        Class<?> item = result.loadClass("Item");
+        Method hasCount = item.getDeclaredMethod("hasCount");
+        hasCount.setAccessible(true);
+
+        String[] primitives = {"count=\"2\"", "enabled=\"false\"", "<size>0</size>",
+                "<amount>0</amount>"};
+        String[] documents = {
+                "<item/>",
+                "<item count=\"2\" enabled=\"false\"><size>0</size><amount>0</amount></item>",
+        };
+        for (String document : documents) {
+            Object instance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                    new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+            StringWriter out = new StringWriter();
+            try (Closeable writer = (Closeable) xmlWriter.getConstructor(Writer.class)
+                    .newInstance(out)) {
+                xmlWriter.getMethod("write", xmlWriter, item).invoke(null, writer, instance);
+            }
+            // absent primitives are left out, so the written document reads the same and is
+            // still valid
+            for (String primitive : primitives) {
+                assertEquals(out.toString(), document.contains(primitive),
+                        out.toString().contains(primitive));
+            }
+            Object writtenInstance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                    new ByteArrayInputStream(out.toString().getBytes(StandardCharsets.UTF_8)));
+            assertEquals(hasCount.invoke(instance), hasCount.invoke(writtenInstance));
+            assertSameValues(instance, writtenInstance);
+        }
+    }
+
+    @Test
+    public void testTokenizer() throws Exception {
+        String[][] documents = {
+                {"nested_type/nested_type.xsd", "nested_type.xml"},
+                {"predefined_types/predefined_types.xsd", "predefined_types.xml"},
+                {"purchase_simple/purchase_simple.xsd", "purchase_simple.xml"},
+                {"reference/reference.xsd", "reference.xml"},
+                {"simple_complex_content/simple_complex_content.xsd",
+                        "simple_complex_content.xml"},
+                {"simple_type/simple_type.xsd", "simple_type.xml"},
+        };
+        for (String[] document : documents) {
+            TestCompilationResult result;
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    document[0])) {
+                result = TestHelper.parseXsdAndCompile(in,
+                        TestHelper.options().setTokenizer(true).build());
+            }
+            byte[] xml;
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    document[1])) {
+                xml = readAllBytes(in);
+            }
+            assertSameDocument(result, xml);
+        }
+    }
+
+    @Test
+    public void testTokenizerSyntax() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"item\">"
+                + "<xs:simpleContent>"
+                + "<xs:extension base=\"xs:string\">"
+                + "<xs:attribute name=\"id\" type=\"xs:int\"/>"
+                + "<xs:attribute name=\"label\" type=\"xs:string\"/>"
+                + "</xs:extension>"
+                + "</xs:simpleContent>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"list\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"item\" type=\"item\" maxOccurs=\"unbounded\"/>"
+                + "<xs:element name=\"count\" type=\"xs:short\"/>"
+                + "<xs:element name=\"total\" type=\"xs:long\"/>"
+                + "<xs:element name=\"note\" type=\"xs:string\"/>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"list\" type=\"list\"/>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setTokenizer(true).build());
+
+        assertSameDocument(result, ("\uFEFF<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
+                + "<!-- comment -->\n"
+                + "<p:list xmlns:p=\"urn:p\" xmlns=\"urn:d\">\n"
+                + "  <item id=\"+7\" label='a &amp; b&#x21;\tc&#10;d'>x &lt; y</item>\n"
+                + "  <unknown a=\"1\"><item id=\"3\"/><nested/></unknown>\n"
+                + "  <p:item id=\"-1\" label=\"\u00e9\u4e2d\"><![CDATA[<raw>]]> and more\r\n"
+                + "lines</p:item>\n"
+                + "  <item/>\n"
+                + "  <count>-32768</count>\n"
+                + "  <total>9223372036854775807</total>\n"
+                + "  <note>\u00e9\u4e2d&#233;</note>\n"
+                + "</p:list>\n").getBytes(StandardCharsets.UTF_8));
+
+        // invalid integers fail the same way with both parsers
+        for (String count : new String[] {"32768", "1x", " 5", "", "-", "&#49;2"}) {
+            assertSameDocument(result, ("<list><count>" + count + "</count></list>").getBytes(
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in,
+                    TestHelper.options().setTokenizer(true).setParallel(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Method read = xmlParser.getMethod("read", ByteBuffer.class);
+        Method readParallel = xmlParser.getMethod("readParallel", ByteBuffer.class,
+                ForkJoinPool.class);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            StringBuilder xml = new StringBuilder("<PurchaseOrder OrderDate=\"1900-01-01\">\n");
+            for (int i = 0; i < 1000; ++i) {
+                xml.append("<ShipTo country=\"US\"><name>name").append(i)
+                        .append("</name><zip>").append(i).append("</zip></ShipTo>\n");
+                if (i == 500) {
+                    xml.append("<BillTo><name>billName</name></BillTo>\n");
+                }
+            }
+            xml.append("</PurchaseOrder>\n");
+            byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+            Object instance = readParallel.invoke(null, ByteBuffer.wrap(bytes), pool);
+            assertThat(((List) instance.getClass().getMethod("getShipTo").invoke(
+                    instance)).size(), is(1000));
+            assertSameValues(read.invoke(null, ByteBuffer.wrap(bytes)), instance);
+
+            // errors in any of the children are thrown to the caller
+            byte[] invalid = xml.toString().replace("<zip>700</zip>", "<zip>x</zip>").getBytes(
+                    StandardCharsets.UTF_8);
+            try {
+                readParallel.invoke(null, ByteBuffer.wrap(invalid), pool);
+                fail();
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                assertSame(NumberFormatException.class, e.getCause().getClass());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in, TestHelper.options().setWatch(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> configHolder = result.loadClass("ConfigHolder");
+        Method getBillTo = result.loadClass("PurchaseOrderType").getMethod("getBillTo");
+        Method getName = result.loadClass("USAddress").getMethod("getName");
+        Method get = configHolder.getMethod("get");
+        Method getError = configHolder.getMethod("getError");
+
+        Path dir = Files.createTempDirectory("xsdc");
+        Path path = dir.resolve("purchase.xml");
+        String xml = "<PurchaseOrder><BillTo><name>%s</name></BillTo></PurchaseOrder>";
+        Files.write(path, String.format(xml, "first").getBytes(StandardCharsets.UTF_8));
+        BlockingQueue<Object> documents = new LinkedBlockingQueue<>();
+        Consumer<Object> listener = documents::add;
+        try (Closeable holder = (Closeable) xmlParser.getMethod("watch", Path.class,
+                Consumer.class).invoke(null, path, listener)) {
+            // the first document is read before watch returns
+            Object first = documents.poll();
+            assertSame(first, get.invoke(holder));
+            assertThat(getName.invoke(getBillTo.invoke(first)), is("first"));
+
+            Files.write(path, String.format(xml, "second").getBytes(StandardCharsets.UTF_8));
+            Object second = documents.poll(10, TimeUnit.SECONDS);
+            assertThat(getName.invoke(getBillTo.invoke(second)), is("second"));
+            assertSame(second, get.invoke(holder));
+
+            // rewriting the same content doesn't publish a new document
+            Files.write(path, String.format(xml, "second").getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(500);
+            Files.write(path, String.format(xml, "third").getBytes(StandardCharsets.UTF_8));
+            Object third = documents.poll(10, TimeUnit.SECONDS);
+            assertThat(getName.invoke(getBillTo.invoke(third)), is("third"));
+
+            // invalid documents keep the previous document
+            Files.write(path, "<PurchaseOrder><BillTo><zip>x</zip></BillTo></PurchaseOrder>"
+                    .getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 100 && getError.invoke(holder) == null; ++i) {
+                Thread.sleep(100);
+            }
+            assertSame(NumberFormatException.class, getError.invoke(holder).getClass());
+            assertSame(third, get.invoke(holder));
+            assertTrue(documents.isEmpty());
+        } finally {
+            Files.delete(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in, TestHelper.options().setCache(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Method readCached = xmlParser.getMethod("readCached", Path.class);
+        Method readCachedHash = xmlParser.getMethod("readCached", Path.class, boolean.class);
+        Method getBillTo = result.loadClass("PurchaseOrderType").getMethod("getBillTo");
+        Method getName = result.loadClass("USAddress").getMethod("getName");
+
+        Path dir = Files.createTempDirectory("xsdc");
+        Path path = dir.resolve("purchase.xml");
+        String xml = "<PurchaseOrder><BillTo><name>%s</name></BillTo></PurchaseOrder>";
+        try {
+            Files.write(path, String.format(xml, "first").getBytes(StandardCharsets.UTF_8));
+            Object first = readCached.invoke(null, path);
+            assertThat(getName.invoke(getBillTo.invoke(first)), is("first"));
+            assertSame(first, readCached.invoke(null, path));
+            assertSame(first, readCached.invoke(null, dir.resolve(".").resolve("purchase.xml")));
+
+            // a change of the same size within the same modification time is only seen by
+            // hashing the content
+            FileTime modified = Files.getLastModifiedTime(path);
+            Files.write(path, String.format(xml, "fifth").getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(path, modified);
+            assertSame(first, readCached.invoke(null, path));
+            Object fifth = readCachedHash.invoke(null, path, true);
+            assertThat(getName.invoke(getBillTo.invoke(fifth)), is("fifth"));
+            assertSame(fifth, readCachedHash.invoke(null, path, true));
+
+            // errors are thrown to every caller and are not cached
+            Files.write(path, "<PurchaseOrder><BillTo><zip>x</zip></BillTo></PurchaseOrder>"
+                    .getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 2; ++i) {
+                try {
+                    readCached.invoke(null, path);
+                    fail();
+                } catch (java.lang.reflect.InvocationTargetException e) {
+                    assertSame(NumberFormatException.class, e.getCause().getClass());
+                }
+            }
+
+            // concurrent callers share one document
+            Files.write(path, String.format(xml, "second").getBytes(StandardCharsets.UTF_8));
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Object>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; ++i) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return readCached.invoke(null, path);
+                    }));
+                }
+                start.countDown();
+                Object second = futures.get(0).get();
+                assertThat(getName.invoke(getBillTo.invoke(second)), is("second"));
+                for (Future<Object> future : futures) {
+                    assertSame(second, future.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            Files.delete(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testListener() throws Exception {
+        TestCompilationResult result;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            result = TestHelper.parseXsdAndCompile(in,
+                    TestHelper.options().setTokenizer(true).setListener(true).build());
+        }
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> parseListener = result.loadClass("ParseListener");
+        Class<?> histogram = result.loadClass("ParseListener$Histogram");
+        Class<?> stats = result.loadClass("ParseListener$Histogram$Stats");
+        Method getStats = histogram.getMethod("getStats");
+        Method getCount = stats.getMethod("getCount");
+        Method getBytes = stats.getMethod("getBytes");
+        byte[] xml;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple.xml")) {
+            xml = readAllBytes(in);
+        }
+        String text = new String(xml, StandardCharsets.UTF_8);
+
+        Object listener = histogram.newInstance();
+        xmlParser.getMethod("setParseListener", parseListener).invoke(null, listener);
+        xmlParser.getMethod("read", InputStream.class).invoke(null, new ByteArrayInputStream(xml));
+        Map<?, ?> pullStats = (Map<?, ?>) getStats.invoke(listener);
+        assertThat(pullStats.keySet(), is(new HashSet<>(Arrays.asList("PurchaseOrderType",
+                "USAddress"))));
+        assertThat(getCount.invoke(pullStats.get("PurchaseOrderType")), is(1L));
+        assertThat(getCount.invoke(pullStats.get("USAddress")), is(3L));
+        // XmlPullParser doesn't know the size of elements
+        assertThat(getBytes.invoke(pullStats.get("USAddress")), is(0L));
+
+        histogram.getMethod("reset").invoke(listener);
+        xmlParser.getMethod("read", ByteBuffer.class).invoke(null, ByteBuffer.wrap(xml));
+        Map<?, ?> tokenizerStats = (Map<?, ?>) getStats.invoke(listener);
+        assertThat(getCount.invoke(tokenizerStats.get("PurchaseOrderType")), is(1L));
+        assertThat(getCount.invoke(tokenizerStats.get("USAddress")), is(3L));
+        assertThat(getBytes.invoke(tokenizerStats.get("PurchaseOrderType")),
+                is((long) (text.indexOf("</PurchaseOrder>") + "</PurchaseOrder>".length()
+                        - text.indexOf("<PurchaseOrder"))));
+        long addressBytes = 0;
+        for (String tag : new String[] {"ShipTo", "BillTo"}) {
+            for (int start = text.indexOf("<" + tag); start != -1;
+                    start = text.indexOf("<" + tag, start + 1)) {
+                addressBytes += text.indexOf("</" + tag + ">", start) + tag.length() + 3 - start;
+            }
+        }
+        assertThat(getBytes.invoke(tokenizerStats.get("USAddress")), is(addressBytes));
+
+        // elements are not reported after the listener is removed
+        xmlParser.getMethod("setParseListener", parseListener).invoke(null, (Object) null);
+        histogram.getMethod("reset").invoke(listener);
+        xmlParser.getMethod("read", ByteBuffer.class).invoke(null, ByteBuffer.wrap(xml));
+        assertTrue(((Map<?, ?>) getStats.invoke(listener)).isEmpty());
+    }
+
+    @Test
+    public void testIndices() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"product\">"
+                + "<xs:attribute name=\"id\" type=\"xs:string\"/>"
+                + "<xs:attribute name=\"price\" type=\"xs:int\"/>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"catalog\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"products\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"product\" type=\"product\" maxOccurs=\"unbounded\"/>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "</xs:element>"
+                + "<xs:element name=\"order\" maxOccurs=\"unbounded\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"sku\" type=\"xs:string\"/>"
+                + "</xs:sequence>"
+                + "<xs:attribute name=\"number\" type=\"xs:integer\"/>"
+                + "</xs:complexType>"
+                + "</xs:element>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "<xs:key name=\"productKey\">"
+                + "<xs:selector xpath=\"products/product\"/>"
+                + "<xs:field xpath=\"@id\"/>"
+                + "</xs:key>"
+                + "<xs:unique name=\"productPrice\">"
+                + "<xs:selector xpath=\"products/product\"/>"
+                + "<xs:field xpath=\"@price\"/>"
+                + "</xs:unique>"
+                + "<xs:unique name=\"orderNumber\">"
+                + "<xs:selector xpath=\"order\"/>"
+                + "<xs:field xpath=\"@number\"/>"
+                + "</xs:unique>"
+                + "<xs:keyref name=\"orderProduct\" refer=\"productKey\">"
+                + "<xs:selector xpath=\"./order\"/>"
+                + "<xs:field xpath=\"sku\"/>"
+                + "</xs:keyref>"
+                + "</xs:element>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setTokenizer(true).setIndices(true).build());
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> catalog = result.loadClass("Catalog");
+        Class<?> order = result.loadClass("Catalog$Order");
+        Method findProductById = catalog.getMethod("findProductById", String.class);
+        Method findProductByPrice = catalog.getMethod("findProductByPrice", Integer.class);
+        Method findOrderByNumber = catalog.getMethod("findOrderByNumber", BigInteger.class);
+        Method resolveOrderProduct = catalog.getMethod("resolveOrderProduct", order);
+        Method getPrice = result.loadClass("Product").getMethod("getPrice");
+        Method getId = result.loadClass("Product").getMethod("getId");
+
+        // absent primitives are told apart by presence bits, without boxing them
+        Class<?> product = result.loadClass("Product");
+        assertEquals(int.class, product.getDeclaredField("price").getType());
+        assertNotNull(product.getDeclaredMethod("hasPrice"));
+        // and only when indices, writers or snapshots need them
+        Class<?> defaultProduct = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)))
+                .loadClass("Product");
+        assertEquals(int.class, defaultProduct.getDeclaredField("price").getType());
+        for (Method method : defaultProduct.getDeclaredMethods()) {
+            assertFalse(method.getName().startsWith("has"));
+        }
+
+        String xml = "<catalog>"
+                + "<products><product id=\"a\" price=\"1\"/><product id=\"b\" price=\"2\"/>"
+                + "<product id=\"c\"/><product id=\"d\"/></products>"
+                + "<order number=\"1\"><sku>b</sku></order>"
+                + "<order><sku>a</sku></order>"
+                + "<order><sku>a</sku></order>"
+                + "</catalog>";
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        assertSameDocument(result, bytes);
+        for (Object instance : new Object[] {
+                xmlParser.getMethod("read", InputStream.class).invoke(null,
+                        new ByteArrayInputStream(bytes)),
+                xmlParser.getMethod("read", ByteBuffer.class).invoke(null,
+                        ByteBuffer.wrap(bytes))}) {
+            assertThat(getPrice.invoke(findProductById.invoke(instance, "b")), is(2));
+            assertNull(findProductById.invoke(instance, "e"));
+            // products without a price aren't indexed by it
+            assertThat(getId.invoke(findProductByPrice.invoke(instance, 2)), is("b"));
+            assertNull(findProductByPrice.invoke(instance, 0));
+            Object firstOrder = findOrderByNumber.invoke(instance, BigInteger.ONE);
+            assertThat(getPrice.invoke(resolveOrderProduct.invoke(instance, firstOrder)), is(2));
+        }
+
+        // documents breaking the constraints fail to read with both parsers
+        for (String invalid : new String[] {
+                xml.replace("id=\"b\"", "id=\"a\""),
+                xml.replace("id=\"b\"", ""),
+                xml.replace("price=\"2\"", "price=\"1\""),
+                xml.replace("<sku>b</sku>", "<sku>e</sku>"),
+                xml.replace("<order>", "<order number=\"1\">")}) {
+            assertSameDocument(result, invalid.getBytes(StandardCharsets.UTF_8));
+            try {
+                xmlParser.getMethod("read", InputStream.class).invoke(null,
+                        new ByteArrayInputStream(invalid.getBytes(StandardCharsets.UTF_8)));
+                fail();
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                assertThat(e.getCause().getClass().getSimpleName(),
+                        is("XmlPullParserException"));
+            }
+        }
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:simpleType name=\"percent\">"
+                + "<xs:restriction base=\"xs:int\">"
+                + "<xs:minInclusive value=\"0\"/>"
+                + "<xs:maxInclusive value=\"100\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"evenPercent\">"
+                + "<xs:restriction base=\"percent\">"
+                + "<xs:pattern value=\"\\d*[02468]\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"code\">"
+                + "<xs:restriction base=\"xs:string\">"
+                + "<xs:pattern value=\"[A-Z]{2}-\\d+\"/>"
+                + "<xs:pattern value=\"none\"/>"
+                + "<xs:maxLength value=\"6\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"price\">"
+                + "<xs:restriction base=\"xs:decimal\">"
+                + "<xs:minExclusive value=\"0\"/>"
+                + "<xs:totalDigits value=\"5\"/>"
+                + "<xs:fractionDigits value=\"2\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                // ^ and $ are ordinary characters in XML Schema
+                + "<xs:simpleType name=\"amount\">"
+                + "<xs:restriction base=\"xs:string\">"
+                + "<xs:pattern value=\"$\\d+|^[^^]+\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:element name=\"item\">"
+                + "<xs:complexType>"
+                + "<xs:sequence>"
+                + "<xs:element name=\"percent\" type=\"evenPercent\" maxOccurs=\"unbounded\"/>"
+                + "<xs:element name=\"code\" type=\"code\"/>"
+                + "<xs:element name=\"price\" type=\"price\"/>"
+                + "<xs:element name=\"amount\" type=\"amount\" minOccurs=\"0\"/>"
+                + "</xs:sequence>"
+                + "<xs:attribute name=\"name\">"
+                + "<xs:simpleType>"
+                + "<xs:restriction base=\"xs:string\">"
+                + "<xs:minLength value=\"2\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "</xs:attribute>"
+                + "</xs:complexType>"
+                + "</xs:element>"
+                + "</xs:schema>";
+        TestCompilationResult result = TestHelper.parseXsdAndCompile(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)),
+                TestHelper.options().setTokenizer(true).setValidate(true).build());
+
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        Class<?> item = result.loadClass("Item");
+        String xml = "<item name=\"ab\">"
+                + "<percent>0</percent><percent>100</percent>"
+                + "<code>AB-12</code>"
+                + "<price>123.45</price>"
+                + "</item>";
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        assertSameDocument(result, bytes);
+        Object instance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                new ByteArrayInputStream(bytes));
+        assertThat(item.getMethod("getPercent").invoke(instance), is(Arrays.asList(0, 100)));
+        assertThat(item.getMethod("getCode").invoke(instance), is("AB-12"));
+        assertThat(item.getMethod("getPrice").invoke(instance), is(new BigDecimal("123.45")));
+
+        // values breaking a facet fail to read with both parsers
+        for (String invalid : new String[] {
+                xml.replace("name=\"ab\"", "name=\"a\""),
+                xml.replace("<percent>0</percent>", "<percent>-2</percent>"),
+                xml.replace("<percent>100</percent>", "<percent>102</percent>"),
+                xml.replace("<percent>0</percent>", "<percent>7</percent>"),
+                xml.replace("AB-12", "AB-1234"),
+                xml.replace("AB-12", "A-12"),
+                xml.replace("123.45", "0"),
+                xml.replace("123.45", "1234.56"),
+                xml.replace("123.45", "1.234"),
+                xml.replace("</item>", "<amount>12</amount></item>"),
+                xml.replace("</item>", "<amount>^a^</amount></item>")}) {
+            assertSameDocument(result, invalid.getBytes(StandardCharsets.UTF_8));
+            try {
+                xmlParser.getMethod("read", InputStream.class).invoke(null,
+                        new ByteArrayInputStream(invalid.getBytes(StandardCharsets.UTF_8)));
+                fail(invalid);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                assertThat(e.getCause().getClass().getSimpleName(),
+                        is("XmlPullParserException"));
+            }
+        }
+        assertSameDocument(result, xml.replace("AB-12", "none").getBytes(StandardCharsets.UTF_8));
+        for (String amount : new String[] {"$12", "^a"}) {
+            Object amountInstance = xmlParser.getMethod("read", InputStream.class).invoke(null,
+                    new ByteArrayInputStream(xml.replace("</item>",
+                            "<amount>" + amount + "</amount></item>").getBytes(
+                                    StandardCharsets.UTF_8)));
+            assertThat(item.getMethod("getAmount").invoke(amountInstance), is(amount));
+        }
+    }
+
+    @Test
+    public void testPruneUnreachableTypes() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"base\">"
+                + "<xs:attribute name=\"id\" type=\"id\"/>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"node\">"
+                + "<xs:complexContent>"
+                + "<xs:extension base=\"base\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"child\" type=\"node\" minOccurs=\"0\"/>"
+                + "<xs:element name=\"kind\">"
+                + "<xs:simpleType>"
+                + "<xs:list itemType=\"kind\"/>"
+                + "</xs:simpleType>"
+                + "</xs:element>"
+                + "</xs:sequence>"
+                + "</xs:extension>"
+                + "</xs:complexContent>"
+                + "</xs:complexType>"
+                + "<xs:simpleType name=\"id\">"
+                + "<xs:union memberTypes=\"xs:int name\"/>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"name\">"
+                + "<xs:restriction base=\"xs:string\"/>"
+                + "</xs:simpleType>"
+                + "<xs:simpleType name=\"kind\">"
+                + "<xs:restriction base=\"xs:string\">"
+                + "<xs:enumeration value=\"a\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:complexType name=\"unused\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"other\" type=\"otherUnused\"/>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "<xs:simpleType name=\"otherUnused\">"
+                + "<xs:restriction base=\"xs:string\">"
+                + "<xs:enumeration value=\"b\"/>"
+                + "</xs:restriction>"
+                + "</xs:simpleType>"
+                + "<xs:element name=\"tree\" type=\"node\"/>"
+                + "</xs:schema>";
+        XmlSchema xmlSchema = TestHelper.parseXsd(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)));
+        List<String> pruned = new ArrayList<>();
+        XmlSchema prunedSchema = xmlSchema.pruneUnreachableTypes(pruned);
+        assertThat(pruned, is(Arrays.asList("unused", "otherUnused")));
+        assertThat(prunedSchema.getTypeMap().keySet(),
+                is(new HashSet<>(Arrays.asList("base", "node", "id", "name", "kind"))));
+
+        TestCompilationResult result = TestHelper.generateAndCompile(prunedSchema);
+        assertNotNull(result.loadClass("Node"));
+        assertNotNull(result.loadClass("Kind"));
+        assertNull(result.loadClass("Unused"));
+        assertNull(result.loadClass("OtherUnused"));
+    }
+
+    @Test
+    public void testSharedSymbols() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"pair\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"first\" type=\"xs:string\"/>"
+                + "<xs:element name=\"second\" type=\"xs:string\"/>"
+                + "</xs:sequence>"
+                + "<xs:attribute name=\"first\" type=\"xs:string\"/>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"pair\" type=\"pair\"/>"
+                + "</xs:schema>";
+        XmlSchema xmlSchema = TestHelper.parseXsd(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)));
+        XsdComplexType pair = (XsdComplexType) xmlSchema.getTypeMap().get("pair");
+        XsdElement first = pair.getElements().get(0);
+        XsdElement second = pair.getElements().get(1);
+        XsdAttribute attribute = pair.getAttributes().get(0);
+        assertSame(first.getType(), second.getType());
+        assertSame(first.getType(), attribute.getType());
+        assertSame(first.getName(), attribute.getName());
+        assertSame(xmlSchema.getElementMap().get("pair").getName(), pair.getName());
+    }
+
+    @Test
+    public void testSymbolsOfOneLoad() throws Exception {
+        byte[] xsd = ("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:element name=\"first\" type=\"xs:string\"/>"
+                + "<xs:element name=\"second\" type=\"xs:string\"/>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8);
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1)) {
+            XmlSchema firstLoad = loader.load(xsd);
+            XmlSchema secondLoad = loader.load(xsd);
+            // symbols are shared within a load, but a loader doesn't keep them across loads
+            assertSame(firstLoad.getElementMap().get("first").getType(),
+                    firstLoad.getElementMap().get("second").getType());
+            assertNotSame(firstLoad.getElementMap().get("first").getType(),
+                    secondLoad.getElementMap().get("first").getType());
+        }
+    }
+
+    @Test
+    public void testStaxReader() throws Exception {
+        List<String> xsdFiles = TestHelper.listSchemas();
+        assertTrue(xsdFiles.contains("recursive_type/recursive_type.xsd"));
+        for (String xsdFile : xsdFiles) {
+            XmlSchema saxSchema;
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    xsdFile)) {
+                saxSchema = parseXsdWithSax(in);
+            }
+            XsdHandler xsdHandler = new XsdHandler();
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    xsdFile)) {
+                XsdStaxReader.parse(in, xsdHandler);
+            }
+            assertEquals(xsdFile, TestHelper.generateSources(saxSchema),
+                    TestHelper.generateSources(xsdHandler.getSchema()));
+        }
+    }
+
+    @Test
+    public void testCompiler() throws Exception {
+        byte[] contents;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            contents = readAllBytes(in);
+        }
+        XsdCompiler.Options options = XsdCompiler.Options.builder(XsdCompiler.Language.JAVA,
+                "test").setWriter(true).setValidate(true).build();
+        Map<String, String> expected = TestHelper.compiler.compile(contents, options);
+        assertTrue(expected.containsKey("PurchaseOrderType.java"));
+
+        // concurrent compiles share one compiler
+        try (XsdCompiler compiler = new XsdCompiler(2, null)) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Map<String, String>>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; ++i) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return compiler.compile(new ByteArrayInputStream(contents), options);
+                    }));
+                }
+                start.countDown();
+                for (Future<Map<String, String>> future : futures) {
+                    assertEquals(expected, future.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        Map<String, String> cpp = TestHelper.compiler.compile(contents,
+                XsdCompiler.Options.builder(XsdCompiler.Language.CPP, "purchase.simple")
+                        .build());
+        assertThat(cpp.keySet(), is(new HashSet<>(Arrays.asList("purchase_simple.cpp",
+                "include/purchase_simple.h"))));
+    }
+
+    @Test
+    public void testInMemoryFileSystem() throws Exception {
+        InMemoryFileSystem fs = new InMemoryFileSystem();
+        try (PrintWriter out = fs.getPrintWriter("ascii.txt")) {
+            out.print("class A {}\n");
+        }
+        try (PrintWriter out = fs.getPrintWriter("utf8.txt")) {
+            out.print("// caf\u00e9\n");
+        }
+        assertThat(new ArrayList<>(fs.getFileNames()), is(Arrays.asList("ascii.txt",
+                "utf8.txt")));
+        CharSequence ascii = fs.getCharContent("ascii.txt");
+        assertEquals("class A {}\n", ascii.toString());
+        assertEquals("A", ascii.subSequence(6, 7).toString());
+        assertEquals("// caf\u00e9\n", fs.getCharContent("utf8.txt").toString());
+
+        ByteBuffer bytes = fs.getBytes("utf8.txt");
+        assertTrue(bytes.isReadOnly());
+        byte[] utf8 = new byte[bytes.remaining()];
+        bytes.get(utf8);
+        assertArrayEquals("// caf\u00e9\n".getBytes(StandardCharsets.UTF_8), utf8);
+        assertNull(fs.getBytes("missing.txt"));
+    }
+
+    @Test
+    public void testSampleDocument() throws Exception {
+        String[] xsdFiles = {
+                "nested_type/nested_type.xsd",
+                "predefined_types/predefined_types.xsd",
+                "purchase_simple/purchase_simple.xsd",
+                "reference/reference.xsd",
+                "simple_complex_content/simple_complex_content.xsd",
+                "simple_type/simple_type.xsd",
+        };
+        for (String xsdFile : xsdFiles) {
+            XmlSchema xmlSchema;
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    xsdFile)) {
+                xmlSchema = TestHelper.parseXsd(in);
+            }
+            Map<String, String> sources = TestHelper.compiler.generate(xmlSchema,
+                    XsdCompiler.Options.builder(XsdCompiler.Language.JAVA, "test")
+                            .setBenchmark(true).build());
+            TestCompilationResult result = TestHelper.generateAndCompile(xmlSchema,
+                    TestHelper.options().setValidate(true).build());
+            Class<?> xmlParser = result.loadClass("XmlParser");
+            StringBuilder benchmarks = new StringBuilder();
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                if (source.getKey().endsWith("Benchmark.java")) {
+                    benchmarks.append(source.getValue());
+                }
+            }
+            SampleDocument sampleDocument = new SampleDocument(new ResolvedSchema(xmlSchema));
+            for (XsdElement element : xmlSchema.getElementMap().values()) {
+                String sample = sampleDocument.of(element);
+
+                // the read method of the root element returns the document, the others null
+                Object document = null;
+                for (Method method : xmlParser.getMethods()) {
+                    if (!method.getName().startsWith("read")
+                            || !Arrays.equals(method.getParameterTypes(),
+                                    new Class<?>[] {InputStream.class})) {
+                        continue;
+                    }
+                    Object value = method.invoke(null, new ByteArrayInputStream(
+                            sample.getBytes(StandardCharsets.UTF_8)));
+                    if (value != null) {
+                        assertNull(sample, document);
+                        document = value;
+                        assertTrue(benchmarks.indexOf("XmlParser." + method.getName() + "(")
+                                >= 0);
+                    }
+                }
+                assertNotNull(sample, document);
+            }
+        }
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        XmlSchema xmlSchema;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "purchase_simple/purchase_simple.xsd")) {
+            xmlSchema = TestHelper.parseXsd(in);
+        }
+        InMemoryFileSystem fs = new InMemoryFileSystem();
+        InMemoryFileSystem benchmarkFs = new InMemoryFileSystem();
+        TestHelper.compiler.generate(xmlSchema,
+                TestHelper.options().setTokenizer(true).setBenchmark(true).build(), fs,
+                benchmarkFs, null, null, null);
+
+        // the parser is generated apart from the benchmarks, so it compiles without JMH
+        assertThat(benchmarkFs.getFileNames(),
+                is(Collections.singleton("PurchaseOrderBenchmark.java")));
+        Map<String, CharSequence> sources = new HashMap<>(jmhStubs());
+        for (String fileName : fs.getFileNames()) {
+            assertFalse(fileName, fileName.endsWith("Benchmark.java"));
+            sources.put(fileName.split("\\.")[0], fs.getCharContent(fileName));
+        }
+        sources.put("PurchaseOrderBenchmark",
+                benchmarkFs.getCharContent("PurchaseOrderBenchmark.java"));
+
+        // the benchmark compiles against the parser and the API of JMH, and reads the sample
+        // document without a corpus
+        TestCompilationResult result = TestHelper.compile(sources);
+        Class<?> benchmark = result.loadClass("PurchaseOrderBenchmark");
+        Object instance = benchmark.getConstructor().newInstance();
+        benchmark.getField("corpus").set(instance, "");
+        benchmark.getMethod("setup").invoke(instance);
+        Class<?> purchaseOrderType = result.loadClass("PurchaseOrderType");
+        assertTrue(purchaseOrderType.isInstance(benchmark.getMethod("read").invoke(instance)));
+        assertTrue(purchaseOrderType.isInstance(
+                benchmark.getMethod("readBytes").invoke(instance)));
+        assertTrue(purchaseOrderType.isInstance(
+                benchmark.getMethod("readFirst").invoke(instance)));
+    }
+
+    // Returns sources of the part of the API of JMH which generated benchmarks use, by class
+    // name, so that they are compiled without JMH.
+    private static Map<String, String> jmhStubs() {
+        String annotations = "package org.openjdk.jmh.annotations;\n";
+        String runner = "package org.openjdk.jmh.runner;\n";
+        String options = "package org.openjdk.jmh.runner.options;\n";
+        Map<String, String> stubs = new HashMap<>();
+        stubs.put("org.openjdk.jmh.annotations.Benchmark",
+                annotations + "public @interface Benchmark {}");
+        stubs.put("org.openjdk.jmh.annotations.BenchmarkMode",
+                annotations + "public @interface BenchmarkMode { Mode[] value(); }");
+        stubs.put("org.openjdk.jmh.annotations.Fork",
+                annotations + "public @interface Fork { int value(); }");
+        stubs.put("org.openjdk.jmh.annotations.Measurement",
+                annotations + "public @interface Measurement { int iterations(); }");
+        stubs.put("org.openjdk.jmh.annotations.Mode",
+                annotations + "public enum Mode { Throughput, SingleShotTime }");
+        stubs.put("org.openjdk.jmh.annotations.Param",
+                annotations + "public @interface Param { String[] value(); }");
+        stubs.put("org.openjdk.jmh.annotations.Scope",
+                annotations + "public enum Scope { Thread }");
+        stubs.put("org.openjdk.jmh.annotations.Setup",
+                annotations + "public @interface Setup {}");
+        stubs.put("org.openjdk.jmh.annotations.State",
+                annotations + "public @interface State { Scope value(); }");
+        stubs.put("org.openjdk.jmh.annotations.Warmup",
+                annotations + "public @interface Warmup { int iterations(); }");
+        stubs.put("org.openjdk.jmh.profile.GCProfiler",
+                "package org.openjdk.jmh.profile;\npublic class GCProfiler {}");
+        stubs.put("org.openjdk.jmh.runner.Runner", runner + "public class Runner {\n"
+                + "public Runner(org.openjdk.jmh.runner.options.Options options) {}\n"
+                + "public void run() throws RunnerException {}\n"
+                + "}");
+        stubs.put("org.openjdk.jmh.runner.RunnerException",
+                runner + "public class RunnerException extends Exception {}");
+        stubs.put("org.openjdk.jmh.runner.options.ChainedOptionsBuilder",
+                options + "public interface ChainedOptionsBuilder {\n"
+                        + "ChainedOptionsBuilder include(String regexp);\n"
+                        + "ChainedOptionsBuilder addProfiler(Class<?> profiler);\n"
+                        + "ChainedOptionsBuilder param(String name, String... values);\n"
+                        + "Options build();\n"
+                        + "}");
+        stubs.put("org.openjdk.jmh.runner.options.Options",
+                options + "public interface Options {}");
+        stubs.put("org.openjdk.jmh.runner.options.OptionsBuilder",
+                options + "public class OptionsBuilder implements ChainedOptionsBuilder {\n"
+                        + "public ChainedOptionsBuilder include(String regexp) { return this; }\n"
+                        + "public ChainedOptionsBuilder addProfiler(Class<?> profiler) {\n"
+                        + "return this;\n"
+                        + "}\n"
+                        + "public ChainedOptionsBuilder param(String name, String... values) {\n"
+                        + "return this;\n"
+                        + "}\n"
+                        + "public Options build() { return null; }\n"
+                        + "}");
+        return stubs;
+    }
+
+    @Test
+    public void testCppBenchmark() throws Exception {
+        XmlSchema xmlSchema;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "simple_type/simple_type.xsd")) {
+            xmlSchema = TestHelper.parseXsd(in);
+        }
+        Map<String, String> sources = TestHelper.compiler.generate(xmlSchema,
+                XsdCompiler.Options.builder(XsdCompiler.Language.CPP, "simple.type")
+                        .setBenchmark(true).build());
+        assertThat(sources.keySet(), is(new HashSet<>(Arrays.asList("simple_type.cpp",
+                "include/simple_type.h", "simple_type_benchmark.cpp"))));
+
+        // every root element has a reader in the benchmark
+        String benchmark = sources.get("simple_type_benchmark.cpp");
+        assertTrue(benchmark.contains("#include \"simple_type.h\""));
+        for (String name : xmlSchema.getElementMap().keySet()) {
+            assertTrue(name, benchmark.contains("{\"" + name + "\", [](const char* file) { "
+                    + "return simple::type::read"));
+        }
+    }
+
+    @Test
+    public void testSchemaCodec() throws Exception {
+        String[] xsdFiles = {
+                "nested_type/nested_type.xsd",
+                "predefined_types/predefined_types.xsd",
+                "purchase_simple/purchase_simple.xsd",
+                "reference/reference.xsd",
+                "simple_complex_content/simple_complex_content.xsd",
+                "simple_type/simple_type.xsd",
+        };
+        for (String xsdFile : xsdFiles) {
+            XmlSchema xmlSchema;
+            try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                    xsdFile)) {
+                xmlSchema = TestHelper.parseXsd(in);
+            }
+            byte[] encoded = XmlSchemaCodec.encode(xmlSchema);
+            XmlSchema decoded = XmlSchemaCodec.decode(ByteBuffer.wrap(encoded),
+                    new SymbolTable());
+            assertEquals(xsdFile, TestHelper.generateSources(xmlSchema),
+                    TestHelper.generateSources(decoded));
+
+            // huge and negative counts anywhere are rejected without being allocated
+            byte[][] counts = {
+                    {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+                    {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f}};
+            for (byte[] count : counts) {
+                for (int i = 8; i + count.length <= encoded.length; ++i) {
+                    byte[] corrupt = encoded.clone();
+                    System.arraycopy(count, 0, corrupt, i, count.length);
+                    try {
+                        XmlSchemaCodec.decode(ByteBuffer.wrap(corrupt), new SymbolTable());
+                    } catch (XsdParserException e) {
+                        // expected for most positions
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSchemaCache() throws Exception {
+        Path dir = Files.createTempDirectory("xsdc");
+        Path cacheDir = dir.resolve("cache");
+        Path xsd = dir.resolve("root.xsd");
+        Files.write(xsd, (
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:element name=\"first\" type=\"xs:string\"/>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1, new SchemaCache(cacheDir))) {
+            assertThat(loader.load(xsd).getElementMap().keySet(),
+                    is(Collections.singleton("first")));
+        }
+        assertEquals(1, cacheDir.toFile().list().length);
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1, new SchemaCache(cacheDir))) {
+            assertThat(loader.load(xsd).getElementMap().keySet(),
+                    is(Collections.singleton("first")));
+        }
+
+        // a changed document is parsed again
+        Files.write(xsd, (
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:element name=\"second\" type=\"xs:string\"/>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1, new SchemaCache(cacheDir))) {
+            assertThat(loader.load(xsd).getElementMap().keySet(),
+                    is(Collections.singleton("second")));
+        }
+
+        // so is a document whose cache entry is corrupt
+        File[] entries = cacheDir.toFile().listFiles();
+        assertEquals(1, entries.length);
+        Files.write(entries[0].toPath(), new byte[] {0, 0, 0});
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1, new SchemaCache(cacheDir))) {
+            assertThat(loader.load(xsd).getElementMap().keySet(),
+                    is(Collections.singleton("second")));
+        }
+    }
+
+    @Test
+    public void testFingerprints() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:complexType name=\"outer\">"
+                + "<xs:sequence>"
+                + "<xs:element name=\"inner\" type=\"inner\"/>"
+                + "</xs:sequence>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"inner\">"
+                + "<xs:attribute name=\"value\" type=\"%s\"/>"
+                + "</xs:complexType>"
+                + "<xs:complexType name=\"other\">"
+                + "<xs:attribute name=\"value\" type=\"%s\"/>"
+                + "</xs:complexType>"
+                + "<xs:element name=\"outer\" type=\"outer\"/>"
+                + "</xs:schema>";
+        Map<String, String> fingerprints = getFingerprints(
+                String.format(xsd, "xs:string", "xs:string"));
+        assertThat(fingerprints.keySet(), is(new HashSet<>(Arrays.asList("Outer.java",
+                "Inner.java", "Other.java", "XmlParser.java"))));
+
+        // other doesn't depend on inner
+        Map<String, String> changedInner = getFingerprints(
+                String.format(xsd, "xs:int", "xs:string"));
+        assertFalse(fingerprints.get("Outer.java").equals(changedInner.get("Outer.java")));
+        assertFalse(fingerprints.get("Inner.java").equals(changedInner.get("Inner.java")));
+        assertEquals(fingerprints.get("Other.java"), changedInner.get("Other.java"));
+        assertFalse(fingerprints.get("XmlParser.java").equals(changedInner.get("XmlParser.java")));
+
+        Map<String, String> changedOther = getFingerprints(
+                String.format(xsd, "xs:string", "xs:int"));
+        assertEquals(fingerprints.get("Outer.java"), changedOther.get("Outer.java"));
+        assertEquals(fingerprints.get("Inner.java"), changedOther.get("Inner.java"));
+        assertFalse(fingerprints.get("Other.java").equals(changedOther.get("Other.java")));
+    }
+
+    private static Map<String, String> getFingerprints(String xsd) throws Exception {
+        XmlSchema xmlSchema = TestHelper.parseXsd(
+                new ByteArrayInputStream(xsd.getBytes(StandardCharsets.UTF_8)));
+        return new JavaCodeGenerator(xmlSchema, TestHelper.options().build()).getFingerprints();
+    }
+
+    @Test
+    public void testStaxReaderUnsupportedTag() throws Exception {
+        thrown.expect(XsdParserException.class);
+        thrown.expectMessage("unsupported tag : redefine");
+
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
+                "unsupported_tag.xsd")) {
+            XsdStaxReader.parse(in, new XsdHandler());
+        }
+    }
+
+    @Test
+    public void testIncludeAndImport() throws Exception {
+        Path dir = Files.createTempDirectory("xsdc");
+        Files.createDirectory(dir.resolve("lib"));
+        Files.write(dir.resolve("lib/common.xsd"), (
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:simpleType name=\"name\">"
+                + "<xs:restriction base=\"xs:string\"/>"
+                + "</xs:simpleType>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("lib/point.xsd"), (
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:include schemaLocation=\"common.xsd\"/>"
+                + "<xs:complexType name=\"point\">"
+                + "<xs:attribute name=\"label\" type=\"name\"/>"
+                + "</xs:complexType>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("root.xsd"), (
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:import namespace=\"http://www.w3.org/XML/1998/namespace\"/>"
+                + "<xs:include schemaLocation=\"lib/point.xsd\"/>"
+                + "<xs:include schemaLocation=\"lib/common.xsd\"/>"
+                + "<xs:element name=\"origin\" type=\"point\"/>"
+                + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(2)) {
+            XmlSchema xmlSchema = loader.load(dir.resolve("root.xsd"));
+            // dependencies come first and common.xsd is merged once
+            assertThat(new ArrayList<>(xmlSchema.getTypeMap().keySet()),
+                    is(Arrays.asList("name", "point")));
+            assertThat(xmlSchema.getElementMap().keySet(),
+                    is(Collections.singleton("origin")));
+            // documents read again by the same loader give the same definitions
+            XmlSchema reloaded = loader.load(dir.resolve("root.xsd"));
+            assertSame(xmlSchema.getTypeMap().get("point"), reloaded.getTypeMap().get("point"));
+            // a changed document is parsed again, the others are still reused
+            Files.write(dir.resolve("lib/point.xsd"), (
+                    "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                    + "<xs:include schemaLocation=\"common.xsd\"/>"
+                    + "<xs:complexType name=\"point\">"
+                    + "<xs:attribute name=\"label\" type=\"name\"/>"
+                    + "<xs:attribute name=\"note\" type=\"name\"/>"
+                    + "</xs:complexType>"
+                    + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+            XmlSchema changed = loader.load(dir.resolve("root.xsd"));
+            assertNotSame(xmlSchema.getTypeMap().get("point"), changed.getTypeMap().get("point"));
+            assertThat(((XsdComplexType) changed.getTypeMap().get("point")).getAttributes()
+                    .size(), is(2));
+            assertSame(xmlSchema.getTypeMap().get("name"), changed.getTypeMap().get("name"));
+
+            TestCompilationResult result = TestHelper.generateAndCompile(xmlSchema);
+            String xml = "<origin label=\"o\"/>";
+            Object instance = result.loadClass("XmlParser").getMethod("read",
+                    InputStream.class).invoke(null, new ByteArrayInputStream(
+                    xml.getBytes(StandardCharsets.UTF_8)));
+            assertThat(instance.getClass().getMethod("getLabel").invoke(instance), is("o"));
+        }
+    }
+
+    @Test
+    public void testLoaderKeepsRecentDocuments() throws Exception {
+        Path dir = Files.createTempDirectory("xsdc");
+        for (String name : new String[] {"first", "second"}) {
+            Files.write(dir.resolve(name + ".xsd"), (
+                    "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                    + "<xs:element name=\"" + name + "\" type=\"xs:string\"/>"
+                    + "</xs:schema>").getBytes(StandardCharsets.UTF_8));
+        }
+        try (XsdSchemaLoader loader = new XsdSchemaLoader(1, null, 1)) {
+            XmlSchema first = loader.load(dir.resolve("first.xsd"));
+            assertSame(first.getElementMap().get("first"),
+                    loader.load(dir.resolve("first.xsd")).getElementMap().get("first"));
+            // reading another document evicts the least recently used one
+            loader.load(dir.resolve("second.xsd"));
+            assertNotSame(first.getElementMap().get("first"),
+                    loader.load(dir.resolve("first.xsd")).getElementMap().get("first"));
+        }
+    }
+
+    // Reads a schema with the SAX parser, which XsdStaxReader replaced in xsdc.
+    private static XmlSchema parseXsdWithSax(InputStream in) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XsdHandler xsdHandler = new XsdHandler();
+        factory.newSAXParser().parse(in, xsdHandler);
+        return xsdHandler.getSchema();
+    }
+
+    // Reads xml with both XmlPullParser and XmlTokenizer, which have to produce the same values or
+    // throw the same type of exception.
+    private static void assertSameDocument(TestCompilationResult result, byte[] xml)
+            throws Exception {
+        Class<?> xmlParser = result.loadClass("XmlParser");
+        boolean found = false;
+        for (Method method : xmlParser.getMethods()) {
+            if (!method.getName().startsWith("read")
+                    || !Arrays.equals(method.getParameterTypes(),
+                            new Class<?>[] {InputStream.class})) {
+                continue;
+            }
+            found = true;
+            Method tokenizerMethod = xmlParser.getMethod(method.getName(), ByteBuffer.class);
+            Object expected = null;
+            Throwable expectedError = null;
+            try {
+                expected = method.invoke(null, new ByteArrayInputStream(xml));
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                expectedError = e.getCause();
+            }
+            Object actual = null;
+            Throwable actualError = null;
+            try {
+                actual = tokenizerMethod.invoke(null, ByteBuffer.wrap(xml));
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                actualError = e.getCause();
+            }
+            if (expectedError != null || actualError != null) {
+                assertNotNull(expectedError);
+                assertNotNull(actualError);
+                assertSame(expectedError.getClass(), actualError.getClass());
+            } else {
+                assertSameValues(expected, actual);
+            }
+        }
+        assertTrue(found);
+    }
+
+    private static byte[] readAllBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int size; (size = in.read(buffer)) != -1;) {
+            out.write(buffer, 0, size);
+        }
+        return out.toByteArray();
+    }
+
+    // Compares generated objects through their getters.
+    private static void assertSameValues(Object expected, Object actual) throws Exception {
+        if (expected == null || actual == null) {
+            assertSame(expected, actual);
+        } else if (expected instanceof List) {
+            List expectedList = (List) expected;
+            List actualList = (List) actual;
+            assertThat(actualList.size(), is(expectedList.size()));
+            for (int i = 0; i < expectedList.size(); ++i) {
+                assertSameValues(expectedList.get(i), actualList.get(i));
+            }
+        } else if (expected instanceof byte[]) {
+            assertArrayEquals((byte[]) expected, (byte[]) actual);
+        } else if (expected.getClass().getName().startsWith(TestHelper.packageName + ".")) {
+            assertSame(expected.getClass(), actual.getClass());
+            for (Method method : expected.getClass().getMethods()) {
+                if (method.getName().startsWith("get") && method.getParameterCount() == 0
+                        && method.getDeclaringClass() != Object.class) {
+                    assertSameValues(method.invoke(expected), method.invoke(actual));
+                }
+            }
+        } else {
+            assertThat(actual, is(expected));
+        }
+    }
+
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
     @Test
     public void testUnsupportedTag() throws Exception {
         thrown.expect(SAXException.class);
-        thrown.expectMessage("unsupported tag : import");
+        thrown.expectMessage("unsupported tag : redefine");
 
         try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
                 "unsupported_tag.xsd")) {
-            TestHelper.parseXsdAndCompile(in);
+            parseXsdWithSax(in);
         }
     }
 
@@ -387,7 +1816,7 @@ public class XmlParserTest {
 
         try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(
                 "unsupported_attribute.xsd")) {
-            TestHelper.parseXsdAndCompile(in);
+            parseXsdWithSax(in);
         }
     }
 }